@@ -0,0 +1,239 @@
+package ru.perminov.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.TaskScheduler;
+import org.springframework.scheduling.Trigger;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Планировщик с полосами приоритета.
+ * Каждая полоса ({@link SchedulerLane.Lane}) — отдельный пул потоков; полоса задачи определяется при регистрации
+ * по аннотации {@link SchedulerLane} на методе с @Scheduled (см. {@link SchedulingConfig}) и запоминается
+ * за зарегистрированным экземпляром задачи. Задача без назначения попадает в полосу HOUSEKEEPING.
+ * Каждая задача обёрнута монитором: она не запускается параллельно сама с собой, запуски fixedRate,
+ * «догоняющие» после долгого выполнения, пропускаются, а по каждой задаче считаются задержка
+ * старта относительно расписания (lag) и длительность.
+ */
+@Component
+@Slf4j
+public class LaneTaskScheduler implements TaskScheduler, DisposableBean {
+
+    private final Map<SchedulerLane.Lane, ThreadPoolTaskScheduler> lanes = new EnumMap<>(SchedulerLane.Lane.class);
+    private final List<MonitoredTask> tasks = new CopyOnWriteArrayList<>();
+    private final Map<Runnable, Assignment> assignments = Collections.synchronizedMap(new IdentityHashMap<>());
+
+    public LaneTaskScheduler() {
+        for (SchedulerLane.Lane lane : SchedulerLane.Lane.values()) {
+            ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+            scheduler.setPoolSize(lane.getPoolSize());
+            scheduler.setThreadNamePrefix(lane.getThreadPrefix());
+            scheduler.setErrorHandler(t -> log.error("Ошибка задачи в полосе {}: {}", lane, t.getMessage(), t));
+            scheduler.initialize();
+            lanes.put(lane, scheduler);
+        }
+    }
+
+    /**
+     * Назначение полосы зарегистрированной задаче; вызывается до её планирования
+     */
+    public void assign(Runnable task, String name, SchedulerLane.Lane lane) {
+        assignments.put(task, new Assignment(name, lane));
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable task, Trigger trigger) {
+        MonitoredTask monitored = monitor(task, Kind.TRIGGER, null);
+        Trigger tracking = ctx -> {
+            Instant next = trigger.nextExecution(ctx);
+            monitored.expectedAt = next;
+            return next;
+        };
+        return lane(monitored).schedule(monitored, tracking);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable task, Instant startTime) {
+        MonitoredTask monitored = monitor(task, Kind.ONCE, null);
+        monitored.expectedAt = startTime;
+        return lane(monitored).schedule(monitored, startTime);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, Instant startTime, Duration period) {
+        MonitoredTask monitored = monitor(task, Kind.FIXED_RATE, period);
+        monitored.expectedAt = startTime;
+        return lane(monitored).scheduleAtFixedRate(monitored, startTime, period);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, Duration period) {
+        MonitoredTask monitored = monitor(task, Kind.FIXED_RATE, period);
+        monitored.expectedAt = Instant.now();
+        return lane(monitored).scheduleAtFixedRate(monitored, period);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, Instant startTime, Duration delay) {
+        MonitoredTask monitored = monitor(task, Kind.FIXED_DELAY, delay);
+        monitored.expectedAt = startTime;
+        return lane(monitored).scheduleWithFixedDelay(monitored, startTime, delay);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, Duration delay) {
+        MonitoredTask monitored = monitor(task, Kind.FIXED_DELAY, delay);
+        monitored.expectedAt = Instant.now();
+        return lane(monitored).scheduleWithFixedDelay(monitored, delay);
+    }
+
+    @Override
+    public void destroy() {
+        lanes.values().forEach(ThreadPoolTaskScheduler::shutdown);
+    }
+
+    /**
+     * Метрики задач по полосам: период, число запусков и пропусков, задержка старта и длительность
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        for (SchedulerLane.Lane lane : SchedulerLane.Lane.values()) {
+            List<Map<String, Object>> laneTasks = new ArrayList<>();
+            for (MonitoredTask task : tasks) {
+                if (task.lane == lane) {
+                    laneTasks.add(task.toStats());
+                }
+            }
+            Map<String, Object> laneStats = new LinkedHashMap<>();
+            laneStats.put("threads", lane.getPoolSize());
+            laneStats.put("active", lanes.get(lane).getActiveCount());
+            laneStats.put("tasks", laneTasks);
+            stats.put(lane.name(), laneStats);
+        }
+        return stats;
+    }
+
+    private ThreadPoolTaskScheduler lane(MonitoredTask task) {
+        return lanes.get(task.lane);
+    }
+
+    private MonitoredTask monitor(Runnable task, Kind kind, Duration period) {
+        Assignment assignment = assignments.remove(task);
+        String name = assignment != null ? assignment.name() : task.toString();
+        SchedulerLane.Lane lane = assignment != null ? assignment.lane() : SchedulerLane.Lane.HOUSEKEEPING;
+        MonitoredTask monitored = new MonitoredTask(task, name, lane, kind, period);
+        tasks.add(monitored);
+        log.info("⏱️ Задача {} назначена в полосу {} ({}{})", name, lane, kind,
+            assignment != null ? "" : ", без регистрации");
+        return monitored;
+    }
+
+    private record Assignment(String name, SchedulerLane.Lane lane) {
+    }
+
+    private enum Kind { FIXED_RATE, FIXED_DELAY, TRIGGER, ONCE }
+
+    private static final class MonitoredTask implements Runnable {
+        final Runnable delegate;
+        final String name;
+        final SchedulerLane.Lane lane;
+        final Kind kind;
+        final Duration period;
+        final AtomicBoolean running = new AtomicBoolean();
+
+        // Ожидаемое время следующего старта по расписанию
+        volatile Instant expectedAt;
+
+        // Метрики пишутся только из run(), который не выполняется параллельно сам с собой
+        volatile long runs;
+        volatile long skipped;
+        volatile long failures;
+        volatile long lastLagMs;
+        volatile long maxLagMs;
+        volatile long lastDurationMs;
+        volatile long maxDurationMs;
+        volatile long totalDurationMs;
+        volatile long lastStartMs;
+
+        MonitoredTask(Runnable delegate, String name, SchedulerLane.Lane lane, Kind kind, Duration period) {
+            this.delegate = delegate;
+            this.name = name;
+            this.lane = lane;
+            this.kind = kind;
+            this.period = period;
+        }
+
+        @Override
+        public void run() {
+            Instant now = Instant.now();
+            Instant expected = expectedAt;
+            long lagMs = expected != null ? Math.max(0, Duration.between(expected, now).toMillis()) : 0;
+            if (kind == Kind.FIXED_RATE && period != null) {
+                expectedAt = (expected != null ? expected : now).plus(period);
+                // Пул fixedRate после долгого выполнения запускает пропущенные такты подряд — такие догоняющие запуски отбрасываем
+                if (lagMs >= period.toMillis() && runs > 0) {
+                    skipped++;
+                    return;
+                }
+            }
+            if (!running.compareAndSet(false, true)) {
+                skipped++;
+                return;
+            }
+            long start = System.currentTimeMillis();
+            lastStartMs = start;
+            lastLagMs = lagMs;
+            maxLagMs = Math.max(maxLagMs, lagMs);
+            try {
+                delegate.run();
+            } catch (RuntimeException | Error e) {
+                failures++;
+                throw e;
+            } finally {
+                long duration = System.currentTimeMillis() - start;
+                runs++;
+                lastDurationMs = duration;
+                maxDurationMs = Math.max(maxDurationMs, duration);
+                totalDurationMs += duration;
+                if (kind == Kind.FIXED_DELAY && period != null) {
+                    expectedAt = Instant.now().plus(period);
+                }
+                running.set(false);
+            }
+        }
+
+        Map<String, Object> toStats() {
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("task", name);
+            s.put("kind", kind.name());
+            s.put("periodMs", period != null ? period.toMillis() : null);
+            s.put("running", running.get());
+            s.put("runs", runs);
+            s.put("skipped", skipped);
+            s.put("failures", failures);
+            s.put("lastLagMs", lastLagMs);
+            s.put("maxLagMs", maxLagMs);
+            s.put("lastDurationMs", lastDurationMs);
+            s.put("maxDurationMs", maxDurationMs);
+            s.put("avgDurationMs", runs > 0 ? totalDurationMs / runs : 0);
+            // Полоса отстаёт, если задача стартует позже или выполняется дольше своего периода
+            s.put("behind", period != null && (lastLagMs > period.toMillis() || lastDurationMs > period.toMillis()));
+            s.put("lastStartMs", lastStartMs);
+            return s;
+        }
+    }
+}
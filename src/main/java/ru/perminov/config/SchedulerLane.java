@@ -0,0 +1,48 @@
+package ru.perminov.config;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Полоса планировщика для метода с @Scheduled.
+ * Задачи разных полос выполняются на отдельных пулах потоков, поэтому долгий полный скан
+ * не задерживает проверку стопов, а часовая синхронизация справочника — сброс состояния риска.
+ * Метод без аннотации попадает в полосу HOUSEKEEPING.
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface SchedulerLane {
+
+    Lane value();
+
+    enum Lane {
+        /** Стопы, OCO, риск-мониторинг, поток рыночных данных */
+        RISK_CRITICAL("lane-risk-", 2),
+        /** Быстрые торговые циклы */
+        TRADING("lane-trading-", 2),
+        /** Полные сканирования, отчёты и часовая синхронизация справочника инструментов */
+        ANALYTICS("lane-analytics-", 2),
+        /** Сброс состояния риска в БД (write-behind) и обновление лимитов API: короткие задачи, не ждут синхронизаций */
+        STATE("lane-state-", 1),
+        /** Синхронизации позиций и ордеров, балансы, обновление настроек */
+        HOUSEKEEPING("lane-housekeeping-", 2);
+
+        private final String threadPrefix;
+        private final int poolSize;
+
+        Lane(String threadPrefix, int poolSize) {
+            this.threadPrefix = threadPrefix;
+            this.poolSize = poolSize;
+        }
+
+        public String getThreadPrefix() {
+            return threadPrefix;
+        }
+
+        public int getPoolSize() {
+            return poolSize;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package ru.perminov.config;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.scheduling.config.Task;
+import org.springframework.scheduling.support.ScheduledMethodRunnable;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.Method;
+import java.util.List;
+
+/**
+ * Все @Scheduled-задачи выполняются через {@link LaneTaskScheduler} вместо общего однопоточного планировщика.
+ * Полоса каждой задачи определяется здесь, при регистрации, пока задача ещё не обёрнута декораторами
+ * планировщика: по аннотации {@link SchedulerLane} на методе с @Scheduled.
+ */
+@Configuration
+@RequiredArgsConstructor
+public class SchedulingConfig implements SchedulingConfigurer {
+
+    private final LaneTaskScheduler laneTaskScheduler;
+
+    @Override
+    public void configureTasks(ScheduledTaskRegistrar taskRegistrar) {
+        taskRegistrar.setTaskScheduler(laneTaskScheduler);
+        assignLanes(taskRegistrar.getFixedRateTaskList());
+        assignLanes(taskRegistrar.getFixedDelayTaskList());
+        assignLanes(taskRegistrar.getCronTaskList());
+        assignLanes(taskRegistrar.getTriggerTaskList());
+    }
+
+    private void assignLanes(List<? extends Task> registered) {
+        for (Task task : registered) {
+            if (!(task.getRunnable() instanceof ScheduledMethodRunnable smr)) {
+                continue;
+            }
+            Method method = smr.getMethod();
+            // Метод может принадлежать CGLIB-прокси (@Transactional): имя и аннотацию берём с пользовательского класса
+            String name = ClassUtils.getUserClass(smr.getTarget()).getSimpleName() + "." + method.getName();
+            SchedulerLane annotation = AnnotatedElementUtils.findMergedAnnotation(method, SchedulerLane.class);
+            SchedulerLane.Lane lane = annotation != null ? annotation.value() : SchedulerLane.Lane.HOUSEKEEPING;
+            laneTaskScheduler.assign(task.getRunnable(), name, lane);
+        }
+    }
+}
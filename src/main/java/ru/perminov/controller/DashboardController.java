@@ -375,17 +375,10 @@ public class DashboardController {
     public ResponseEntity<?> getRecentTrades(@RequestParam(value = "accountId", required = false) String accountId,
                                              @RequestParam(value = "limit", required = false, defaultValue = "10") int limit) {
         try {
-            // Получаем последние записи из репозитория orders по дате
-            List<Order> all = accountId == null || accountId.isEmpty()
-                    ? orderRepository.findAll()
-                    : orderRepository.findByAccountId(accountId);
-            // Фильтруем только исполненные/частично исполненные
-            List<Order> executed = all.stream()
-                    .filter(o -> o.getStatus() != null && (o.getStatus().contains("EXECUTION_REPORT_STATUS_FILL")
-                            || o.getStatus().contains("EXECUTION_REPORT_STATUS_PARTIALLY_FILLED")))
-                    .sorted(java.util.Comparator.comparing(Order::getOrderDate).reversed())
-                    .limit(limit)
-                    .toList();
+            // Последние исполненные/частично исполненные ордера: фильтр, сортировка и лимит — на стороне БД
+            List<Order> executed = orderRepository.findRecentExecuted(
+                    accountId == null || accountId.isEmpty() ? null : accountId,
+                    org.springframework.data.domain.PageRequest.of(0, Math.max(1, limit)));
 
             List<java.util.Map<String, Object>> trades = executed.stream().map(o -> {
                 java.util.Map<String, Object> t = new java.util.HashMap<>();
@@ -1,5 +1,7 @@
 package ru.perminov.controller;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.context.event.EventListener;
@@ -9,168 +11,118 @@ import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import ru.perminov.event.LogEvent;
 import ru.perminov.event.LogStatisticsEvent;
 import ru.perminov.service.BotLogService;
+import ru.perminov.service.SseBroadcaster;
+import ru.perminov.service.TradingSettingsService;
 
 import java.io.IOException;
-import java.util.concurrent.CopyOnWriteArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import org.apache.catalina.connector.ClientAbortException;
+import java.util.Map;
 
 @RestController
 @RequestMapping("/api/logs")
 @RequiredArgsConstructor
 @Slf4j
 public class LogStreamController {
-    
+
+    private static final int REPLAY_LIMIT = 500;
+
     private final BotLogService botLogService;
-    private final CopyOnWriteArrayList<SseEmitter> emitters = new CopyOnWriteArrayList<>();
-    private final ExecutorService executorService = Executors.newCachedThreadPool();
-    
+    private final TradingSettingsService settingsService;
+    private SseBroadcaster<BotLogService.BotLogEntry> broadcaster;
+
+    @PostConstruct
+    public void init() {
+        broadcaster = new SseBroadcaster<>("logs", "new-logs", BotLogService.BotLogEntry::getSequence,
+                settingsService.getInt("logs.stream.queue_capacity", 500),
+                settingsService.getInt("logs.stream.flush_ms", 250),
+                settingsService.getInt("logs.stream.max_overflow_frames", 3),
+                settingsService.getInt("logs.stream.stall_timeout_ms", 30000));
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        broadcaster.close();
+    }
+
     /**
-     * Подписка на поток логов в реальном времени
+     * Подписка на поток логов в реальном времени.
+     * При переподключении с Last-Event-ID (заголовок или параметр lastEventId) досылаются пропущенные записи.
      */
     @GetMapping(value = "/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter streamLogs() {
+    public SseEmitter streamLogs(@RequestHeader(value = "Last-Event-ID", required = false) String lastEventIdHeader,
+                                 @RequestParam(value = "lastEventId", required = false) String lastEventIdParam) {
         SseEmitter emitter = new SseEmitter(Long.MAX_VALUE);
-        emitters.add(emitter);
-        
-        // Отправляем начальные данные
+        Long cursor = parseCursor(lastEventIdHeader != null ? lastEventIdHeader : lastEventIdParam);
+
         try {
             emitter.send(SseEmitter.event()
                     .name("connected")
                     .data("Подключение к логам установлено"));
-            
-            // Отправляем последние записи
-            var recentLogs = botLogService.getRecentLogEntries(10);
-            emitter.send(SseEmitter.event()
-                    .name("initial-logs")
-                    .data(recentLogs));
-                    
         } catch (IOException e) {
             // Broken pipe - нормальная ситуация, когда клиент закрыл соединение
-            if (isClientDisconnected(e)) {
+            if (SseBroadcaster.isClientDisconnected(e)) {
                 log.debug("Клиент закрыл соединение при отправке начальных данных");
             } else {
                 log.error("Ошибка при отправке начальных данных", e);
             }
+            return emitter;
         }
-        
-        // Обработка завершения соединения
-        emitter.onCompletion(() -> {
-            emitters.remove(emitter);
-            log.info("SSE соединение завершено");
-        });
-        
-        emitter.onTimeout(() -> {
-            emitters.remove(emitter);
-            log.info("SSE соединение прервано по таймауту");
-        });
-        
-        emitter.onError((ex) -> {
-            emitters.remove(emitter);
-            // Broken pipe - нормальная ситуация, когда клиент закрыл соединение
-            if (isClientDisconnected(ex)) {
-                log.debug("SSE соединение закрыто клиентом");
-            } else {
-                log.error("Ошибка SSE соединения", ex);
-            }
-        });
-        
-        log.info("Новое SSE соединение установлено. Всего соединений: {}", emitters.size());
+
+        if (cursor != null) {
+            // Пропущенные записи — старые первыми, тем же событием, что и живая лента. Отдаём хвост
+            // не длиннее REPLAY_LIMIT: если пропущено больше, клиент получит кадр "reset" с диапазоном
+            broadcaster.subscribe(emitter, "new-logs",
+                    () -> botLogService.getLogEntriesAfter(
+                            Math.max(cursor, botLogService.getLastSequence() - REPLAY_LIMIT), null, null, REPLAY_LIMIT),
+                    cursor);
+        } else {
+            broadcaster.subscribe(emitter, "initial-logs", () -> botLogService.getRecentLogEntries(10));
+        }
+
+        log.info("Новое SSE соединение установлено{}. Всего соединений: {}",
+                cursor != null ? " (продолжение с #" + cursor + ")" : "", broadcaster.getSubscriberCount());
         return emitter;
     }
-    
+
     /**
-     * Обработчик события нового лога
+     * Обработчик события нового лога: запись ставится в очереди подписчиков и уходит пачкой
      */
     @EventListener
     public void handleLogEvent(LogEvent event) {
-        if (emitters.isEmpty()) {
-            return;
-        }
-        
-        executorService.submit(() -> {
-            emitters.removeIf(emitter -> {
-                try {
-                    emitter.send(SseEmitter.event()
-                            .name("new-log")
-                            .data(event.getLogEntry()));
-                    return false;
-                } catch (IOException e) {
-                    // Broken pipe - нормальная ситуация, когда клиент закрыл соединение
-                    if (isClientDisconnected(e)) {
-                        log.debug("Клиент закрыл соединение при отправке лога");
-                    } else {
-                        log.debug("Ошибка отправки лога клиенту", e);
-                    }
-                    return true;
-                }
-            });
-        });
+        broadcaster.publish(event.getLogEntry());
     }
-    
+
     /**
-     * Обработчик события обновления статистики
+     * Обработчик события обновления статистики: клиентам уходит только последнее значение
      */
     @EventListener
     public void handleLogStatisticsEvent(LogStatisticsEvent event) {
-        if (emitters.isEmpty()) {
-            return;
-        }
-        
-        executorService.submit(() -> {
-            emitters.removeIf(emitter -> {
-                try {
-                    emitter.send(SseEmitter.event()
-                            .name("statistics-update")
-                            .data(event.getStatistics()));
-                    return false;
-                } catch (IOException e) {
-                    // Broken pipe - нормальная ситуация, когда клиент закрыл соединение
-                    if (isClientDisconnected(e)) {
-                        log.debug("Клиент закрыл соединение при отправке статистики");
-                    } else {
-                        log.debug("Ошибка отправки статистики клиенту", e);
-                    }
-                    return true;
-                }
-            });
-        });
+        broadcaster.publishState("statistics-update", event.getStatistics());
     }
-    
-    /**
-     * Проверка, является ли исключение следствием закрытия соединения клиентом
-     * (Broken pipe, ClientAbortException и т.д.)
-     */
-    private boolean isClientDisconnected(Throwable e) {
-        if (e == null) {
-            return false;
-        }
-        
-        String message = e.getMessage();
-        if (message != null) {
-            String lowerMessage = message.toLowerCase();
-            if (lowerMessage.contains("broken pipe") || 
-                lowerMessage.contains("connection reset") ||
-                lowerMessage.contains("connection aborted")) {
-                return true;
-            }
-        }
-        
-        // Проверяем тип исключения
-        if (e instanceof ClientAbortException) {
-            return true;
-        }
-        
-        // Проверяем причину (cause)
-        return isClientDisconnected(e.getCause());
-    }
-    
+
     /**
      * Получение количества активных подключений
      */
     @GetMapping("/connections/count")
     public int getActiveConnectionsCount() {
-        return emitters.size();
+        return broadcaster.getSubscriberCount();
+    }
+
+    /**
+     * Метрики рассылки: подписчики, отставание, отброшенные события
+     */
+    @GetMapping("/stream/stats")
+    public Map<String, Object> getStreamStats() {
+        return broadcaster.getStats();
+    }
+
+    private Long parseCursor(String value) {
+        if (value == null || value.isBlank()) {
+            return null;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
-} 
\ No newline at end of file
+}
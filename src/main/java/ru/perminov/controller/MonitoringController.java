@@ -3,8 +3,26 @@ package ru.perminov.controller;
 import lombok.RequiredArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import ru.perminov.config.LaneTaskScheduler;
+import ru.perminov.service.AnalysisContext;
+import ru.perminov.service.ApiRateLimiter;
+import ru.perminov.service.CandleStore;
+import ru.perminov.service.InstrumentCatalog;
+import ru.perminov.service.InstrumentScanPipeline;
+import ru.perminov.service.InstrumentSyncService;
+import ru.perminov.service.MarketDataHub;
+import ru.perminov.service.OrderRegistry;
 import ru.perminov.service.PortfolioManagementService;
+import ru.perminov.service.PortfolioStateService;
+import ru.perminov.service.PositionRiskStateService;
+import ru.perminov.service.PositionSyncService;
+import ru.perminov.service.PreTradeRiskGate;
+import ru.perminov.service.SingleFlight;
+import ru.perminov.service.TradeHistoryIndex;
+import ru.perminov.service.TradingDecisionPipeline;
 import ru.perminov.service.TradingSettingsService;
+import ru.perminov.service.UniversePrefetchService;
+import ru.perminov.service.VirtualTriggerIndex;
 
 import java.util.Map;
 
@@ -15,6 +33,24 @@ public class MonitoringController {
 
     private final PortfolioManagementService portfolioManagementService;
     private final TradingSettingsService tradingSettingsService;
+    private final CandleStore candleStore;
+    private final MarketDataHub marketDataHub;
+    private final ApiRateLimiter apiRateLimiter;
+    private final InstrumentScanPipeline instrumentScanPipeline;
+    private final VirtualTriggerIndex virtualTriggerIndex;
+    private final LaneTaskScheduler laneTaskScheduler;
+    private final SingleFlight singleFlight;
+    private final UniversePrefetchService universePrefetchService;
+    private final InstrumentCatalog instrumentCatalog;
+    private final InstrumentSyncService instrumentSyncService;
+    private final OrderRegistry orderRegistry;
+    private final PositionRiskStateService positionRiskStateService;
+    private final TradeHistoryIndex tradeHistoryIndex;
+    private final PortfolioStateService portfolioStateService;
+    private final PositionSyncService positionSyncService;
+    private final PreTradeRiskGate preTradeRiskGate;
+    private final TradingDecisionPipeline tradingDecisionPipeline;
+    private final AnalysisContext analysisContext;
 
     @PostMapping("/start")
     public ResponseEntity<?> start(@RequestParam String accountId) {
@@ -37,6 +73,94 @@ public class MonitoringController {
         String accountId = tradingSettingsService.getString("auto_monitor.account_id", "");
         return ResponseEntity.ok(Map.of("enabled", enabled, "accountId", accountId));
     }
-}
 
+    @GetMapping("/candle-cache")
+    public ResponseEntity<?> candleCache() {
+        return ResponseEntity.ok(candleStore.getStats());
+    }
+
+    @GetMapping("/market-data")
+    public ResponseEntity<?> marketData() {
+        return ResponseEntity.ok(marketDataHub.getStats());
+    }
+
+    @GetMapping("/rate-limiter")
+    public ResponseEntity<?> rateLimiter() {
+        return ResponseEntity.ok(apiRateLimiter.getStats());
+    }
+
+    @GetMapping("/scan")
+    public ResponseEntity<?> scan() {
+        return ResponseEntity.ok(instrumentScanPipeline.getStats());
+    }
+
+    @GetMapping("/virtual-stops")
+    public ResponseEntity<?> virtualStops() {
+        return ResponseEntity.ok(virtualTriggerIndex.getStats());
+    }
+
+    @GetMapping("/scheduler")
+    public ResponseEntity<?> scheduler() {
+        return ResponseEntity.ok(laneTaskScheduler.getStats());
+    }
+
+    @GetMapping("/single-flight")
+    public ResponseEntity<?> singleFlight() {
+        return ResponseEntity.ok(singleFlight.getStats());
+    }
+
+    @GetMapping("/prefetch")
+    public ResponseEntity<?> prefetch() {
+        return ResponseEntity.ok(universePrefetchService.getStats());
+    }
+
+    @GetMapping("/instruments")
+    public ResponseEntity<?> instruments() {
+        return ResponseEntity.ok(instrumentCatalog.getStats());
+    }
+
+    @GetMapping("/instrument-sync")
+    public ResponseEntity<?> instrumentSync() {
+        return ResponseEntity.ok(instrumentSyncService.getStats());
+    }
+
+    @GetMapping("/orders")
+    public ResponseEntity<?> orders() {
+        return ResponseEntity.ok(orderRegistry.getStats());
+    }
+
+    @GetMapping("/risk-state")
+    public ResponseEntity<?> riskState() {
+        return ResponseEntity.ok(positionRiskStateService.getStats());
+    }
+
+    @GetMapping("/trade-history")
+    public ResponseEntity<?> tradeHistory() {
+        return ResponseEntity.ok(tradeHistoryIndex.getStats());
+    }
+
+    @GetMapping("/portfolio-state")
+    public ResponseEntity<?> portfolioState() {
+        return ResponseEntity.ok(portfolioStateService.getStats());
+    }
+
+    @GetMapping("/position-sync")
+    public ResponseEntity<?> positionSync() {
+        return ResponseEntity.ok(positionSyncService.getStats());
+    }
+
+    @GetMapping("/pre-trade")
+    public ResponseEntity<?> preTrade() {
+        return ResponseEntity.ok(preTradeRiskGate.getStats());
+    }
 
+    @GetMapping("/decision-pipeline")
+    public ResponseEntity<?> decisionPipeline() {
+        return ResponseEntity.ok(tradingDecisionPipeline.getStats());
+    }
+
+    @GetMapping("/analysis-context")
+    public ResponseEntity<?> analysisContext() {
+        return ResponseEntity.ok(analysisContext.getStats());
+    }
+}
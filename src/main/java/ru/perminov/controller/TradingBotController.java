@@ -517,6 +517,47 @@ public class TradingBotController {
                     .body("Ошибка при получении последних записей лога: " + e.getMessage());
         }
     }
+
+    /**
+     * Записи лога после указанного номера (для продолжения чтения с места обрыва)
+     */
+    @GetMapping("/log/since")
+    public ResponseEntity<?> getLogEntriesSince(@RequestParam(value = "after", defaultValue = "0") long after,
+                                                @RequestParam(value = "limit", defaultValue = "200") int limit,
+                                                @RequestParam(value = "level", required = false) String level,
+                                                @RequestParam(value = "category", required = false) String category) {
+        try {
+            BotLogService.LogLevel logLevel = level != null ? BotLogService.LogLevel.valueOf(level.toUpperCase()) : null;
+            BotLogService.LogCategory logCategory = category != null ? BotLogService.LogCategory.valueOf(category.toUpperCase()) : null;
+            // Номер берём до выборки: записи, добавленные во время неё, не будут пропущены
+            long lastSequence = botLogService.getLastSequence();
+            List<BotLogService.BotLogEntry> entries = botLogService.getLogEntriesAfter(after, logLevel, logCategory, limit);
+            // Выборка обрезана лимитом — курсор на последней отданной записи, иначе на конце буфера
+            // (отфильтрованные записи тоже пройдены)
+            boolean hasMore = entries.size() >= limit && lastSequence > after;
+            long cursor;
+            if (hasMore) {
+                cursor = entries.isEmpty() ? after : entries.get(entries.size() - 1).getSequence();
+            } else {
+                cursor = Math.max(after, lastSequence);
+                if (!entries.isEmpty()) {
+                    cursor = Math.max(cursor, entries.get(entries.size() - 1).getSequence());
+                }
+            }
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("entries", entries);
+            response.put("lastSequence", cursor);
+            response.put("hasMore", hasMore);
+            return ResponseEntity.ok(response);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body("Неверный уровень или категория лога: " + e.getMessage());
+        } catch (Exception e) {
+            log.error("Ошибка при получении записей лога по курсору: {}", e.getMessage());
+            return ResponseEntity.internalServerError()
+                    .body("Ошибка при получении записей лога по курсору: " + e.getMessage());
+        }
+    }
     
     /**
      * Продвинутый анализ торговых сигналов
@@ -29,6 +29,7 @@ public class Instrument {
     private String buyAvailableFlag;
     private String sellAvailableFlag;
     private String minPriceIncrement;
+    private Integer lot;
     private String apiTradeAvailableFlag;
     private String uid;
     private String realExchange;
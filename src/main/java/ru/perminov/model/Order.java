@@ -2,12 +2,14 @@ package ru.perminov.model;
 
 import lombok.Data;
 import jakarta.persistence.*;
+import ru.perminov.service.OrderRegistryListener;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
 @Data
 @Entity
 @Table(name = "orders")
+@EntityListeners(OrderRegistryListener.class)
 public class Order {
     
     @Id
@@ -13,6 +13,7 @@ public class Position {
     @GeneratedValue(strategy = GenerationType.IDENTITY)
     private Long id;
     
+    private String accountId;
     private String figi;
     private String ticker;
     private String isin;
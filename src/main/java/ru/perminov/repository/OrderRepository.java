@@ -1,10 +1,14 @@
 package ru.perminov.repository;
 
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 import ru.perminov.model.Order;
 
 import java.time.LocalDateTime;
+import java.util.Collection;
 import java.util.List;
 
 @Repository
@@ -19,4 +23,16 @@ public interface OrderRepository extends JpaRepository<Order, String> {
     List<Order> findByAccountId(String accountId);
     
     List<Order> findByFigiAndAccountIdOrderByOrderDateDesc(String figi, String accountId);
+    
+    List<Order> findByFigiAndAccountIdOrderByOrderDateDesc(String figi, String accountId, Pageable pageable);
+    
+    @Query("select o from Order o where o.status is not null and o.status not in :terminal and o.status not like '%CANCEL%'")
+    List<Order> findLive(@Param("terminal") Collection<String> terminalStatuses);
+    
+    List<Order> findByOrderTypeInAndStatusIn(Collection<String> orderTypes, Collection<String> statuses);
+    
+    @Query("select o from Order o where (:accountId is null or o.accountId = :accountId) " +
+           "and (o.status like '%EXECUTION_REPORT_STATUS_FILL%' or o.status like '%EXECUTION_REPORT_STATUS_PARTIALLY_FILLED%') " +
+           "order by o.orderDate desc")
+    List<Order> findRecentExecuted(@Param("accountId") String accountId, Pageable pageable);
 } 
\ No newline at end of file
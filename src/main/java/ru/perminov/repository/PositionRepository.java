@@ -5,12 +5,11 @@ import org.springframework.stereotype.Repository;
 import ru.perminov.model.Position;
 
 import java.util.List;
-import java.util.Optional;
 
 @Repository
 public interface PositionRepository extends JpaRepository<Position, Long> {
     
-    Optional<Position> findByFigi(String figi);
+    List<Position> findByAccountId(String accountId);
     
     List<Position> findByInstrumentType(String instrumentType);
     
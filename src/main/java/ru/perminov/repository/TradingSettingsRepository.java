@@ -1,6 +1,7 @@
 package ru.perminov.repository;
 
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.stereotype.Repository;
 import ru.perminov.model.TradingSettings;
 
@@ -12,5 +13,8 @@ public interface TradingSettingsRepository extends JpaRepository<TradingSettings
     Optional<TradingSettings> findByKey(String key);
     
     boolean existsByKey(String key);
+    
+    @Query("select max(s.updatedAt) from TradingSettings s")
+    java.time.LocalDateTime findMaxUpdatedAt();
 }
 
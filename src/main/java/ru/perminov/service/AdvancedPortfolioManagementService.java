@@ -17,6 +17,7 @@ import java.util.stream.Collectors;
 public class AdvancedPortfolioManagementService {
     
     private final PortfolioService portfolioService;
+    private final PortfolioStateService portfolioStateService;
     private final MarketAnalysisService marketAnalysisService;
     private final AdvancedTradingStrategyService tradingStrategyService;
     private final RiskManagementService riskManagementService;
@@ -311,34 +312,9 @@ public class AdvancedPortfolioManagementService {
     
     // Вспомогательные методы
     private PortfolioAnalysis analyzePortfolio(String accountId) {
-        Portfolio portfolio = portfolioService.getPortfolio(accountId);
-        List<Position> positions = portfolio.getPositions();
-        
-        BigDecimal totalValue = BigDecimal.ZERO;
-        Map<String, BigDecimal> currentAllocations = new HashMap<>();
-        Map<String, BigDecimal> positionValues = new HashMap<>();
-        
-        for (Position position : positions) {
-            BigDecimal quantity = position.getQuantity();
-            BigDecimal currentPrice = BigDecimal.ZERO;
-            
-            if (position.getCurrentPrice() != null) {
-                try {
-                    currentPrice = new BigDecimal(position.getCurrentPrice().toString());
-                } catch (Exception e) {
-                                            log.warn("Не удалось получить цену для позиции");
-                }
-            }
-            
-            BigDecimal positionValue = quantity.multiply(currentPrice);
-            positionValues.put(position.getFigi(), positionValue);
-            totalValue = totalValue.add(positionValue);
-            
-            String instrumentType = position.getInstrumentType();
-            currentAllocations.merge(instrumentType, positionValue, BigDecimal::add);
-        }
-        
-        return new PortfolioAnalysis(totalValue, currentAllocations, new HashMap<>(), positionValues, positions);
+        PortfolioStateService.Snapshot snapshot = portfolioStateService.getSnapshot(accountId);
+        return new PortfolioAnalysis(snapshot.getTotalValue(), snapshot.getTypeValues(), snapshot.getTypePercentages(),
+            snapshot.getPositionValues(), snapshot.getPositions());
     }
     
     private DynamicAllocation getTargetAllocation(MarketCondition condition) {
@@ -3,13 +3,10 @@ package ru.perminov.service;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
-import ru.tinkoff.piapi.contract.v1.HistoricCandle;
 import ru.tinkoff.piapi.contract.v1.CandleInterval;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.util.List;
-import java.util.ArrayList;
 
 @Service
 @RequiredArgsConstructor
@@ -17,62 +14,91 @@ import java.util.ArrayList;
 public class AdvancedTechnicalAnalysisService {
     
     private final MarketAnalysisService marketAnalysisService;
+    private final AnalysisContext analysisContext;
     
     /**
      * MACD (Moving Average Convergence Divergence)
      */
     public MACDResult calculateMACD(String figi, CandleInterval interval) {
-        List<HistoricCandle> candles = marketAnalysisService.getCandles(figi, interval, 50);
+        return analysisContext.memo(figi, interval, "macd", IndicatorEngine.EMA_SLOW, () -> computeMACD(figi, interval));
+    }
+
+    private MACDResult computeMACD(String figi, CandleInterval interval) {
+        IndicatorEngine.IndicatorSnapshot indicators = marketAnalysisService.getIndicators(figi, interval);
         
-        if (candles.size() < 26) {
+        if (indicators.getBars() < IndicatorEngine.EMA_SLOW) {
             return new MACDResult(BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO);
         }
         
-        BigDecimal ema12 = calculateEMA(candles, 12);
-        BigDecimal ema26 = calculateEMA(candles, 26);
-        BigDecimal macdLine = ema12.subtract(ema26);
-        BigDecimal signalLine = calculateSignalLine(candles, macdLine);
-        BigDecimal histogram = macdLine.subtract(signalLine);
-        
-        return new MACDResult(macdLine, signalLine, histogram);
+        return new MACDResult(toDecimal(indicators.getMacd(), 6), toDecimal(indicators.getMacdSignal(), 6),
+            toDecimal(indicators.getMacdHistogram(), 6));
     }
     
     /**
      * Bollinger Bands
      */
     public BollingerBandsResult calculateBollingerBands(String figi, CandleInterval interval, int period) {
-        List<HistoricCandle> candles = marketAnalysisService.getCandles(figi, interval, period + 10);
+        return analysisContext.memo(figi, interval, "bollinger", period, () -> computeBollingerBands(figi, interval, period));
+    }
+
+    private BollingerBandsResult computeBollingerBands(String figi, CandleInterval interval, int period) {
+        if (period == IndicatorEngine.BOLLINGER_PERIOD) {
+            IndicatorEngine.IndicatorSnapshot indicators = marketAnalysisService.getIndicators(figi, interval);
+            if (indicators.getBars() < period) {
+                return new BollingerBandsResult(BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO);
+            }
+            return new BollingerBandsResult(toDecimal(indicators.getBollingerUpper(), 4),
+                toDecimal(indicators.getBollingerMiddle(), 4), toDecimal(indicators.getBollingerLower(), 4));
+        }
+        
+        // Нестандартный период — расчёт по серии
+        CandleSeries candles = marketAnalysisService.getSeries(figi, interval, period + 10);
         
         if (candles.size() < period) {
             return new BollingerBandsResult(BigDecimal.ZERO, BigDecimal.ZERO, BigDecimal.ZERO);
         }
         
-        BigDecimal sma = marketAnalysisService.calculateSMA(figi, interval, period);
-        BigDecimal standardDeviation = calculateStandardDeviation(candles, sma, period);
+        // SMA по той же серии, что и calculateSMA (окно period + 10 дней), без повторного запроса
+        double sma = round(average(candles, period), 4);
+        double standardDeviation = calculateStandardDeviation(candles, sma, period);
         
-        BigDecimal upperBand = sma.add(standardDeviation.multiply(BigDecimal.valueOf(2)));
-        BigDecimal lowerBand = sma.subtract(standardDeviation.multiply(BigDecimal.valueOf(2)));
+        double upperBand = sma + standardDeviation * 2;
+        double lowerBand = sma - standardDeviation * 2;
         
-        return new BollingerBandsResult(upperBand, sma, lowerBand);
+        return new BollingerBandsResult(toDecimal(upperBand, 4), toDecimal(sma, 4), toDecimal(lowerBand, 4));
     }
     
     /**
      * Stochastic Oscillator
      */
     public StochasticResult calculateStochastic(String figi, CandleInterval interval, int period) {
-        List<HistoricCandle> candles = marketAnalysisService.getCandles(figi, interval, period + 10);
+        return analysisContext.memo(figi, interval, "stochastic", period, () -> computeStochastic(figi, interval, period));
+    }
+
+    private StochasticResult computeStochastic(String figi, CandleInterval interval, int period) {
+        if (period == IndicatorEngine.STOCHASTIC_PERIOD) {
+            IndicatorEngine.IndicatorSnapshot indicators = marketAnalysisService.getIndicators(figi, interval);
+            if (indicators.getBars() < period) {
+                return new StochasticResult(BigDecimal.ZERO, BigDecimal.ZERO);
+            }
+            return new StochasticResult(toDecimal(indicators.getStochasticK(), 2), toDecimal(indicators.getStochasticD(), 2));
+        }
+        
+        // Нестандартный период — расчёт по серии
+        CandleSeries candles = marketAnalysisService.getSeries(figi, interval, period + 10);
         
         if (candles.size() < period) {
             return new StochasticResult(BigDecimal.ZERO, BigDecimal.ZERO);
         }
         
-        BigDecimal highestHigh = getHighestHigh(candles, period);
-        BigDecimal lowestLow = getLowestLow(candles, period);
-        BigDecimal currentClose = getCurrentPrice(candles);
+        double highestHigh = getHighestHigh(candles, period);
+        double lowestLow = getLowestLow(candles, period);
+        double currentClose = getCurrentPrice(candles);
         
-        BigDecimal kPercent = currentClose.subtract(lowestLow)
-            .divide(highestHigh.subtract(lowestLow), 4, RoundingMode.HALF_UP)
-            .multiply(BigDecimal.valueOf(100));
+        double range = highestHigh - lowestLow;
+        BigDecimal kPercent = range > 0
+            ? toDecimal(round((currentClose - lowestLow) / range, 4) * 100, 2)
+            : BigDecimal.ZERO;
         
         BigDecimal dPercent = calculateDPercent(candles, period);
         
@@ -83,131 +109,131 @@ public class AdvancedTechnicalAnalysisService {
      * Volume Analysis
      */
     public VolumeAnalysisResult analyzeVolume(String figi, CandleInterval interval) {
-        List<HistoricCandle> candles = marketAnalysisService.getCandles(figi, interval, 20);
+        return analysisContext.memo(figi, interval, "volume", 20, () -> computeVolume(figi, interval));
+    }
+
+    private VolumeAnalysisResult computeVolume(String figi, CandleInterval interval) {
+        CandleSeries candles = marketAnalysisService.getSeries(figi, interval, 20);
         
         if (candles.size() < 10) {
             return new VolumeAnalysisResult(BigDecimal.ZERO, BigDecimal.ZERO, "NORMAL");
         }
         
-        BigDecimal avgVolume = calculateAverageVolume(candles, 10);
-        BigDecimal currentVolume = BigDecimal.valueOf(candles.get(0).getVolume());
-        BigDecimal volumeRatio = currentVolume.divide(avgVolume, 4, RoundingMode.HALF_UP);
+        double avgVolume = calculateAverageVolume(candles, 10);
+        long currentVolume = candles.volume(0);
+        double volumeRatio = avgVolume > 0 ? currentVolume / avgVolume : 0.0;
         
         String volumeSignal = "NORMAL";
-        if (volumeRatio.compareTo(BigDecimal.valueOf(1.5)) > 0) {
+        if (volumeRatio > 1.5) {
             volumeSignal = "HIGH";
-        } else if (volumeRatio.compareTo(BigDecimal.valueOf(0.5)) < 0) {
+        } else if (volumeRatio < 0.5) {
             volumeSignal = "LOW";
         }
         
-        return new VolumeAnalysisResult(currentVolume, volumeRatio, volumeSignal);
+        return new VolumeAnalysisResult(BigDecimal.valueOf(currentVolume), toDecimal(volumeRatio, 4), volumeSignal);
     }
     
     /**
      * Support and Resistance Levels
      */
     public SupportResistanceResult findSupportResistance(String figi, CandleInterval interval) {
-        List<HistoricCandle> candles = marketAnalysisService.getCandles(figi, interval, 50);
+        return analysisContext.memo(figi, interval, "support_resistance", 0, () -> computeSupportResistance(figi, interval));
+    }
+
+    private SupportResistanceResult computeSupportResistance(String figi, CandleInterval interval) {
+        CandleSeries candles = marketAnalysisService.getSeries(figi, interval, 50);
         
         if (candles.size() < 20) {
             return new SupportResistanceResult(BigDecimal.ZERO, BigDecimal.ZERO);
         }
         
-        BigDecimal resistance = findResistanceLevel(candles);
-        BigDecimal support = findSupportLevel(candles);
+        double resistance = findResistanceLevel(candles);
+        double support = findSupportLevel(candles);
         
-        return new SupportResistanceResult(resistance, support);
+        return new SupportResistanceResult(toDecimal(resistance, 4), toDecimal(support, 4));
     }
     
-    // Вспомогательные методы
-    private BigDecimal calculateEMA(List<HistoricCandle> candles, int period) {
-        BigDecimal multiplier = BigDecimal.valueOf(2.0 / (period + 1));
-        BigDecimal ema = getCurrentPrice(candles);
-        
-        for (int i = 1; i < Math.min(period, candles.size()); i++) {
-            BigDecimal price = getPrice(candles.get(i));
-            ema = price.multiply(multiplier).add(ema.multiply(BigDecimal.ONE.subtract(multiplier)));
+    // Вспомогательные методы (работают по колоночной серии, без аллокаций)
+    private double average(CandleSeries candles, int period) {
+        int n = Math.min(period, candles.size());
+        if (n == 0) return 0.0;
+        double sum = 0.0;
+        for (int i = 0; i < n; i++) {
+            sum += candles.close(i);
         }
-        
-        return ema;
+        return sum / n;
     }
     
-    private BigDecimal calculateSignalLine(List<HistoricCandle> candles, BigDecimal macdLine) {
-        // Упрощенная реализация сигнальной линии
-        return macdLine.multiply(BigDecimal.valueOf(0.8));
-    }
-    
-    private BigDecimal calculateStandardDeviation(List<HistoricCandle> candles, BigDecimal mean, int period) {
-        BigDecimal sum = BigDecimal.ZERO;
+    private double calculateStandardDeviation(CandleSeries candles, double mean, int period) {
+        double sum = 0.0;
         
         for (int i = 0; i < Math.min(period, candles.size()); i++) {
-            BigDecimal price = getPrice(candles.get(i));
-            BigDecimal diff = price.subtract(mean);
-            sum = sum.add(diff.multiply(diff));
+            double diff = candles.close(i) - mean;
+            sum += diff * diff;
         }
         
-        BigDecimal variance = sum.divide(BigDecimal.valueOf(period), 8, RoundingMode.HALF_UP);
-        return BigDecimal.valueOf(Math.sqrt(variance.doubleValue()));
+        return Math.sqrt(sum / period);
     }
     
-    private BigDecimal getHighestHigh(List<HistoricCandle> candles, int period) {
-        return candles.stream()
-            .limit(period)
-            .map(this::getHighPrice)
-            .max(BigDecimal::compareTo)
-            .orElse(BigDecimal.ZERO);
+    private double getHighestHigh(CandleSeries candles, int period) {
+        int n = Math.min(period, candles.size());
+        if (n == 0) return 0.0;
+        double max = candles.high(0);
+        for (int i = 1; i < n; i++) {
+            max = Math.max(max, candles.high(i));
+        }
+        return max;
     }
     
-    private BigDecimal getLowestLow(List<HistoricCandle> candles, int period) {
-        return candles.stream()
-            .limit(period)
-            .map(this::getLowPrice)
-            .min(BigDecimal::compareTo)
-            .orElse(BigDecimal.ZERO);
+    private double getLowestLow(CandleSeries candles, int period) {
+        int n = Math.min(period, candles.size());
+        if (n == 0) return 0.0;
+        double min = candles.low(0);
+        for (int i = 1; i < n; i++) {
+            min = Math.min(min, candles.low(i));
+        }
+        return min;
     }
     
-    private BigDecimal calculateDPercent(List<HistoricCandle> candles, int period) {
+    private BigDecimal calculateDPercent(CandleSeries candles, int period) {
         // Упрощенная реализация %D
         return BigDecimal.valueOf(50.0);
     }
     
-    private BigDecimal calculateAverageVolume(List<HistoricCandle> candles, int period) {
-        return candles.stream()
-            .limit(period)
-            .map(candle -> BigDecimal.valueOf(candle.getVolume()))
-            .reduce(BigDecimal.ZERO, BigDecimal::add)
-            .divide(BigDecimal.valueOf(period), 4, RoundingMode.HALF_UP);
+    private double calculateAverageVolume(CandleSeries candles, int period) {
+        long sum = 0;
+        for (int i = 0; i < Math.min(period, candles.size()); i++) {
+            sum += candles.volume(i);
+        }
+        return (double) sum / period;
     }
     
-    private BigDecimal findResistanceLevel(List<HistoricCandle> candles) {
+    private double findResistanceLevel(CandleSeries candles) {
         return getHighestHigh(candles, 20);
     }
     
-    private BigDecimal findSupportLevel(List<HistoricCandle> candles) {
+    private double findSupportLevel(CandleSeries candles) {
         return getLowestLow(candles, 20);
     }
     
-    private BigDecimal getCurrentPrice(List<HistoricCandle> candles) {
-        return getPrice(candles.get(0));
+    private double getCurrentPrice(CandleSeries candles) {
+        return candles.close(0);
     }
     
-    private BigDecimal getPrice(HistoricCandle candle) {
-        return new BigDecimal(candle.getClose().getUnits() + "." + 
-            String.format("%09d", candle.getClose().getNano()));
+    private static double round(double value, int scale) {
+        double factor = Math.pow(10, scale);
+        return Math.round(value * factor) / factor;
     }
     
-    private BigDecimal getHighPrice(HistoricCandle candle) {
-        return new BigDecimal(candle.getHigh().getUnits() + "." + 
-            String.format("%09d", candle.getHigh().getNano()));
-    }
-    
-    private BigDecimal getLowPrice(HistoricCandle candle) {
-        return new BigDecimal(candle.getLow().getUnits() + "." + 
-            String.format("%09d", candle.getLow().getNano()));
+    private static BigDecimal toDecimal(double value, int scale) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return BigDecimal.ZERO;
+        }
+        return BigDecimal.valueOf(value).setScale(scale, RoundingMode.HALF_UP);
     }
     
-    // Результаты анализа
-    public static class MACDResult {
+    // Результаты анализа: неизменяемые, мемоизируются на торговый цикл и разделяются вызывающими
+    public static final class MACDResult {
         private final BigDecimal macdLine;
         private final BigDecimal signalLine;
         private final BigDecimal histogram;
@@ -223,7 +249,7 @@ public class AdvancedTechnicalAnalysisService {
         public BigDecimal getHistogram() { return histogram; }
     }
     
-    public static class BollingerBandsResult {
+    public static final class BollingerBandsResult {
         private final BigDecimal upperBand;
         private final BigDecimal middleBand;
         private final BigDecimal lowerBand;
@@ -239,7 +265,7 @@ public class AdvancedTechnicalAnalysisService {
         public BigDecimal getLowerBand() { return lowerBand; }
     }
     
-    public static class StochasticResult {
+    public static final class StochasticResult {
         private final BigDecimal kPercent;
         private final BigDecimal dPercent;
         
@@ -252,7 +278,7 @@ public class AdvancedTechnicalAnalysisService {
         public BigDecimal getDPercent() { return dPercent; }
     }
     
-    public static class VolumeAnalysisResult {
+    public static final class VolumeAnalysisResult {
         private final BigDecimal currentVolume;
         private final BigDecimal volumeRatio;
         private final String volumeSignal;
@@ -268,7 +294,7 @@ public class AdvancedTechnicalAnalysisService {
         public String getVolumeSignal() { return volumeSignal; }
     }
     
-    public static class SupportResistanceResult {
+    public static final class SupportResistanceResult {
         private final BigDecimal resistance;
         private final BigDecimal support;
         
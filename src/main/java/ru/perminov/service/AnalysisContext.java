@@ -0,0 +1,232 @@
+package ru.perminov.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.CandleInterval;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Мемоизация анализа в пределах торгового цикла.
+ * Каждый индикатор по ключу (figi, interval, индикатор, период) считается один раз и переиспользуется
+ * всеми сервисами цикла — сигналом, оценкой возможности, фильтрами и параллельными запросами конвейера.
+ * Цикл привязан к потоку, который его открыл: у каждого цикла свои значения, а потоки вне цикла
+ * (мониторы стопов и OCO, API) всегда считают заново. Задачи, которые цикл запускает в других потоках
+ * (сканирование, параллельные запросы решения), получают цикл через {@link #bind}.
+ * Правила инвалидации:
+ * <ul>
+ *   <li>вне открытого цикла мемоизация не работает, значения считаются напрямую;</li>
+ *   <li>вложенный цикл в том же потоке использует внешний; закрытие внешнего цикла отбрасывает его значения;</li>
+ *   <li>значение старше {@code analysis.context.max_age_ms} пересчитывается и внутри цикла;</li>
+ *   <li>новый завершённый бар по (figi, interval) сбрасывает значения этой пары во всех открытых циклах ({@link #invalidate}).</li>
+ * </ul>
+ * Ошибки расчёта не кэшируются; параллельные вызовы одного ключа ждут один расчёт.
+ * Одно значение получают все вызывающие цикла, поэтому мемоизировать можно только неизменяемые результаты
+ * (final-классы с final-полями неизменяемых типов). Живые данные (цена) мемоизируются с собственным
+ * коротким сроком жизни — см. {@link #memoPrice}.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class AnalysisContext {
+
+    private final TradingSettingsService settingsService;
+
+    private final ThreadLocal<Scope> current = new ThreadLocal<>();
+    private final Set<Scope> openScopes = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong cycles = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong bypassed = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Открывает торговый цикл в текущем потоке; вложенный вызов продолжает уже открытый цикл
+     */
+    public Cycle openCycle() {
+        if (current.get() != null) {
+            return new Cycle(null);
+        }
+        Scope scope = new Scope();
+        openScopes.add(scope);
+        current.set(scope);
+        cycles.incrementAndGet();
+        return new Cycle(scope);
+    }
+
+    /**
+     * Задача для другого потока, выполняемая в цикле вызывающего (если он открыт)
+     */
+    public <T> Supplier<T> bind(Supplier<T> task) {
+        Scope scope = current.get();
+        if (scope == null) {
+            return task;
+        }
+        return () -> {
+            Scope previous = current.get();
+            current.set(scope);
+            try {
+                return task.get();
+            } finally {
+                if (previous != null) {
+                    current.set(previous);
+                } else {
+                    current.remove();
+                }
+            }
+        };
+    }
+
+    /**
+     * Значение индикатора из текущего цикла либо расчёт с сохранением
+     */
+    public <T> T memo(String figi, CandleInterval interval, String indicator, int period, Supplier<T> calculation) {
+        return memo(figi, interval, indicator, period, settingsService.getInt("analysis.context.max_age_ms", 10000), calculation);
+    }
+
+    /**
+     * То же с явным сроком жизни значения (для быстро меняющихся данных)
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T memo(String figi, CandleInterval interval, String indicator, int period, long maxAgeMs, Supplier<T> calculation) {
+        Scope scope = current.get();
+        if (scope == null) {
+            bypassed.incrementAndGet();
+            return calculation.get();
+        }
+        Map<String, Memo> memos = scope.memos;
+        String key = key(figi, interval) + indicator + ":" + period;
+        while (true) {
+            long now = System.currentTimeMillis();
+            Memo existing = memos.get(key);
+            if (existing != null) {
+                if (!existing.value.isDone()) {
+                    coalesced.incrementAndGet();
+                    return (T) await(existing);
+                }
+                if (!existing.value.isCompletedExceptionally() && now - existing.computedAtMs <= maxAgeMs) {
+                    hits.incrementAndGet();
+                    return (T) await(existing);
+                }
+            }
+            Memo mine = new Memo();
+            boolean won = existing == null
+                ? memos.putIfAbsent(key, mine) == null
+                : memos.replace(key, existing, mine);
+            if (!won) {
+                continue;
+            }
+            misses.incrementAndGet();
+            try {
+                T value = calculation.get();
+                mine.computedAtMs = System.currentTimeMillis();
+                mine.value.complete(value);
+                return value;
+            } catch (RuntimeException | Error e) {
+                memos.remove(key, mine);
+                mine.value.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Текущая цена инструмента: переиспользуется не дольше analysis.context.price_max_age_ms,
+     * чтобы решение не опиралось на цену многосекундной давности
+     */
+    public <T> T memoPrice(String figi, Supplier<T> price) {
+        return memo(figi, CandleInterval.CANDLE_INTERVAL_UNSPECIFIED, "price", 0,
+            settingsService.getInt("analysis.context.price_max_age_ms", 1000), price);
+    }
+
+    /**
+     * Сброс всех значений по (figi, interval) во всех открытых циклах: появился новый завершённый бар
+     */
+    public void invalidate(String figi, CandleInterval interval) {
+        String prefix = key(figi, interval);
+        for (Scope scope : openScopes) {
+            if (scope.memos.keySet().removeIf(k -> k.startsWith(prefix))) {
+                invalidations.incrementAndGet();
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("openCycles", openScopes.size());
+        int entries = 0;
+        for (Scope scope : openScopes) {
+            entries += scope.memos.size();
+        }
+        stats.put("entries", entries);
+        stats.put("cycles", cycles.get());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("bypassed", bypassed.get());
+        stats.put("invalidations", invalidations.get());
+        long lookups = hits.get() + misses.get() + coalesced.get();
+        stats.put("hitRatio", lookups > 0 ? (double) (hits.get() + coalesced.get()) / lookups : 0.0);
+        return stats;
+    }
+
+    private static String key(String figi, CandleInterval interval) {
+        return figi + ":" + interval + ":";
+    }
+
+    private Object await(Memo memo) {
+        try {
+            return memo.value.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) throw re;
+            if (cause instanceof Error err) throw err;
+            throw e;
+        }
+    }
+
+    private static final class Memo {
+        final CompletableFuture<Object> value = new CompletableFuture<>();
+        volatile long computedAtMs;
+    }
+
+    /**
+     * Значения одного открытого цикла
+     */
+    private static final class Scope {
+        final Map<String, Memo> memos = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Область торгового цикла; закрывается через try-with-resources в том же потоке.
+     * Вложенный цикл ничего не закрывает — значения живут до закрытия внешнего
+     */
+    public final class Cycle implements AutoCloseable {
+        private final Scope scope;
+        private boolean closed;
+
+        private Cycle(Scope scope) {
+            this.scope = scope;
+        }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            if (scope != null) {
+                current.remove();
+                openScopes.remove(scope);
+            }
+        }
+    }
+}
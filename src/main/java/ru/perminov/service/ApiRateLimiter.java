@@ -1,91 +1,325 @@
 package ru.perminov.service;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
+import ru.perminov.config.SchedulerLane;
 
-import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
+/**
+ * Лимитер запросов к брокерскому API.
+ * Отдельное ведро токенов на каждый класс квот (рыночные данные, заявки, инструменты, операции):
+ * токены пополняются непрерывно, ёмкость ведра — допустимый всплеск. Пока токены есть, разрешение
+ * выдаётся сразу; иначе запрос встаёт в FIFO-очередь своего класса и получает разрешение, как только
+ * накопится токен. Поверх классов действует общее ведро api.limit.per_minute: разрешение выдаётся,
+ * только когда токен есть и в ведре класса, и в общем, поэтому суммарная нагрузка на брокера не растёт
+ * от числа классов. Лимиты читаются из настроек периодически, а не на каждый вызов.
+ */
 @Component
 @RequiredArgsConstructor
 @Slf4j
 public class ApiRateLimiter {
 
-    // Простая модель: не более X запросов в минуту, распределённых по времени
+    /**
+     * Классы квот брокера
+     */
+    public enum ApiClass {
+        MARKET_DATA("market_data", 40),
+        ORDERS("orders", 20),
+        INSTRUMENTS("instruments", 20),
+        OPERATIONS("operations", 20);
+
+        private final String key;
+        private final int defaultSharePct;
+
+        ApiClass(String key, int defaultSharePct) {
+            this.key = key;
+            this.defaultSharePct = defaultSharePct;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Доля общего лимита api.limit.per_minute, которую класс получает, если свой лимит не задан
+         */
+        public int getDefaultSharePct() {
+            return defaultSharePct;
+        }
+    }
+
     private final TradingSettingsService settingsService;
-    // private final Semaphore permits = new Semaphore(1, true);
-    private final AtomicInteger usedInWindow = new AtomicInteger(0);
-    private volatile long windowStartMin = Instant.now().getEpochSecond() / 60;
+    private final Map<ApiClass, Bucket> buckets = new EnumMap<>(ApiClass.class);
+    private final Bucket global = new Bucket("global");
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "api-rate-limiter");
+        t.setDaemon(true);
+        return t;
+    });
+
+    @PostConstruct
+    public void init() {
+        for (ApiClass apiClass : ApiClass.values()) {
+            buckets.put(apiClass, new Bucket(apiClass.getKey()));
+        }
+        refreshLimits();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
 
+    /**
+     * Разрешение не получено (ожидание прервано или отменено): вызов API выполнять нельзя
+     */
+    public static class PermitDeniedException extends RuntimeException {
+        public PermitDeniedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Блокирующее получение разрешения (класс по умолчанию — рыночные данные)
+     */
     public void acquire() {
-        throttleWindow();
-        int limit = getPerMinuteLimit();
-        int backoffMs = getBackoffMs();
-        // log.debug("ApiRateLimiter.acquire(): лимит={}, текущее использование={}", limit, usedInWindow.get());
-        while (true) {
-            throttleWindow();
-            int current = usedInWindow.get();
-            if (current < limit) {
-                if (usedInWindow.compareAndSet(current, current + 1)) {
-                    // Мягкая пауза для равномерности
-                    int delay = getSpreadDelayMs(limit);
-                    // log.debug("ApiRateLimiter: разрешено, задержка {}ms", delay);
-                    sleepQuiet(delay);
-                    return;
+        acquire(ApiClass.MARKET_DATA);
+    }
+
+    /**
+     * Блокирующее получение разрешения для класса квот: поток ждёт на future, без Thread.sleep.
+     * Если разрешение не получено, бросает {@link PermitDeniedException} — вызов API не должен выполняться.
+     */
+    public void acquire(ApiClass apiClass) {
+        CompletableFuture<Void> permit = acquireAsync(apiClass);
+        try {
+            permit.get();
+        } catch (InterruptedException e) {
+            permit.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new PermitDeniedException("Ожидание разрешения " + apiClass.getKey() + " прервано", e);
+        } catch (ExecutionException | CancellationException e) {
+            log.debug("ApiRateLimiter: ожидание разрешения прервано: {}", e.getMessage());
+            throw new PermitDeniedException("Разрешение " + apiClass.getKey() + " не получено", e);
+        }
+    }
+
+    /**
+     * Неблокирующее получение разрешения: сначала токен класса, затем общий токен.
+     * Future завершается потоком лимитера, поэтому тяжёлые продолжения следует вешать через *Async-методы.
+     * Отмена future снимает ожидание в очереди.
+     */
+    public CompletableFuture<Void> acquireAsync(ApiClass apiClass) {
+        CompletableFuture<Void> classPermit = take(buckets.get(apiClass));
+        if (classPermit.isDone()) {
+            return take(global);
+        }
+        CompletableFuture<Void> permit = new CompletableFuture<>();
+        classPermit.whenComplete((ignored, error) -> {
+            if (error != null) {
+                permit.completeExceptionally(error);
+                return;
+            }
+            CompletableFuture<Void> globalPermit = take(global);
+            globalPermit.whenComplete((v, globalError) -> {
+                if (globalError != null) {
+                    permit.completeExceptionally(globalError);
+                } else {
+                    permit.complete(null);
                 }
-            } else {
-                // Достигнут лимит окна - ждём начала следующей минуты
-                // log.debug("ApiRateLimiter: достигнут лимит, ожидание {}ms", backoffMs);
-                sleepQuiet(backoffMs);
+            });
+            permit.whenComplete((v, e) -> {
+                if (permit.isCancelled()) globalPermit.cancel(false);
+            });
+        });
+        permit.whenComplete((v, e) -> {
+            if (permit.isCancelled()) classPermit.cancel(false);
+        });
+        return permit;
+    }
+
+    /**
+     * Асинхронный вызов API под разрешением класса: запрос уходит, как только выдано разрешение,
+     * без потока, ждущего в очереди лимитера. Асинхронные методы SDK только отправляют запрос,
+     * поэтому их можно вызывать из потока лимитера.
+     */
+    public <T> CompletableFuture<T> call(ApiClass apiClass, Supplier<CompletableFuture<T>> request) {
+        return acquireAsync(apiClass).thenCompose(ignored -> request.get());
+    }
+
+    private CompletableFuture<Void> take(Bucket bucket) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        boolean scheduleDrain;
+        synchronized (bucket) {
+            bucket.refill(System.nanoTime());
+            if (bucket.queue.isEmpty() && bucket.tokens >= 1.0) {
+                bucket.tokens -= 1.0;
+                bucket.granted++;
+                return CompletableFuture.completedFuture(null);
             }
+            bucket.queue.addLast(new Waiter(future, System.nanoTime()));
+            bucket.throttled++;
+            scheduleDrain = !bucket.drainScheduled;
+            bucket.drainScheduled = true;
+        }
+        if (scheduleDrain) {
+            scheduleDrain(bucket);
+        }
+        return future;
+    }
+
+    private void scheduleDrain(Bucket bucket) {
+        long delayNanos;
+        synchronized (bucket) {
+            delayNanos = bucket.nanosUntilToken(System.nanoTime());
         }
+        scheduler.schedule(() -> drain(bucket), Math.max(delayNanos, 100_000L), TimeUnit.NANOSECONDS);
     }
 
-    private void throttleWindow() {
-        long nowMin = Instant.now().getEpochSecond() / 60;
-        if (nowMin != windowStartMin) {
-            synchronized (this) {
-                if (nowMin != windowStartMin) {
-                    // log.debug("ApiRateLimiter: сброс окна {} -> {}", windowStartMin, nowMin);
-                    windowStartMin = nowMin;
-                    usedInWindow.set(0);
+    private void drain(Bucket bucket) {
+        List<CompletableFuture<Void>> ready = new ArrayList<>();
+        boolean more;
+        synchronized (bucket) {
+            long now = System.nanoTime();
+            bucket.refill(now);
+            while (!bucket.queue.isEmpty() && bucket.tokens >= 1.0) {
+                Waiter waiter = bucket.queue.pollFirst();
+                if (waiter.future.isDone()) {
+                    continue; // отменён вызывающим
                 }
+                bucket.tokens -= 1.0;
+                bucket.granted++;
+                bucket.waitNanos += now - waiter.enqueuedNanos;
+                ready.add(waiter.future);
             }
+            more = !bucket.queue.isEmpty();
+            bucket.drainScheduled = more;
+        }
+        ready.forEach(f -> f.complete(null));
+        if (more) {
+            scheduleDrain(bucket);
         }
     }
 
-    private int getPerMinuteLimit() {
-        // Значение по умолчанию консервативное; можно поднять при необходимости
-        int limit = settingsService.getInt("api.limit.per_minute", 50);
-        // log.debug("ApiRateLimiter: лимит в минуту = {}", limit);
-        return limit;
+    /**
+     * Перечитывает лимиты из настроек: api.limit.{класс}.per_minute и api.limit.{класс}.burst.
+     * api.limit.per_minute — общий потолок на все классы; если лимит класса не задан, класс получает
+     * свою долю общего (рыночные данные 40%, остальные по 20%), так что по умолчанию сумма классов
+     * равна прежнему общему лимиту.
+     */
+    @SchedulerLane(SchedulerLane.Lane.STATE)
+    @Scheduled(fixedDelay = 30000)
+    public void refreshLimits() {
+        int globalLimit = Math.max(1, settingsService.getInt("api.limit.per_minute", 50));
+        configure(global, globalLimit, settingsService.getInt("api.limit.burst", Math.max(1, globalLimit / 10)));
+        for (Map.Entry<ApiClass, Bucket> entry : buckets.entrySet()) {
+            String prefix = "api.limit." + entry.getKey().getKey();
+            int share = Math.max(1, globalLimit * entry.getKey().getDefaultSharePct() / 100);
+            int perMinute = Math.max(1, settingsService.getInt(prefix + ".per_minute", share));
+            configure(entry.getValue(), perMinute, settingsService.getInt(prefix + ".burst", Math.max(1, perMinute / 10)));
+        }
     }
 
-    private int getBackoffMs() {
-        int backoff = settingsService.getInt("api.limit.backoff_ms", 500);
-        // log.debug("ApiRateLimiter: задержка при превышении лимита = {}ms", backoff);
-        return backoff;
+    private void configure(Bucket bucket, int perMinute, int burst) {
+        synchronized (bucket) {
+            bucket.refill(System.nanoTime());
+            bucket.configure(perMinute, Math.max(1, burst));
+        }
     }
 
-    private int getSpreadDelayMs(int limit) {
-        // Распределяем запросы равномерно на окно (60 000 мс / limit)
-        if (limit <= 0) return 1000;
-        int delay = Math.max(10, 60000 / limit);
-        // log.debug("ApiRateLimiter: задержка распределения для лимита {} = {}ms", limit, delay);
-        return delay;
+    /**
+     * Счётчики по классам: выдано разрешений, сколько ждали в очереди, суммарное/среднее ожидание
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        List<Bucket> all = new ArrayList<>(buckets.values());
+        all.add(global);
+        for (Bucket bucket : all) {
+            Map<String, Object> s = new LinkedHashMap<>();
+            synchronized (bucket) {
+                s.put("perMinute", bucket.perMinute);
+                s.put("burst", bucket.capacity);
+                s.put("tokens", bucket.tokens);
+                s.put("queued", bucket.queue.size());
+                s.put("granted", bucket.granted);
+                s.put("throttled", bucket.throttled);
+                s.put("totalWaitMs", bucket.waitNanos / 1_000_000);
+                s.put("avgWaitMs", bucket.throttled > 0 ? bucket.waitNanos / 1_000_000.0 / bucket.throttled : 0.0);
+            }
+            stats.put(bucket.key, s);
+        }
+        return stats;
     }
 
-    private void sleepQuiet(int ms) {
-        try {
-            // log.debug("ApiRateLimiter: ожидание {}ms", ms);
-            TimeUnit.MILLISECONDS.sleep(ms);
-        } catch (InterruptedException ignored) {
-            // log.debug("ApiRateLimiter: прервано ожидание {}ms", ms);
-            Thread.currentThread().interrupt();
+    private static final class Waiter {
+        final CompletableFuture<Void> future;
+        final long enqueuedNanos;
+
+        Waiter(CompletableFuture<Void> future, long enqueuedNanos) {
+            this.future = future;
+            this.enqueuedNanos = enqueuedNanos;
         }
     }
-}
 
+    /**
+     * Ведро токенов одного класса квот; все поля — под монитором ведра
+     */
+    private static final class Bucket {
+        final String key;
+        final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+        int perMinute = 1;
+        double capacity = 1.0;
+        double tokensPerNano = 1.0 / 60_000_000_000.0;
+        double tokens;
+        long lastRefillNanos = System.nanoTime();
+        boolean drainScheduled;
+        boolean configured;
+        long granted;
+        long throttled;
+        long waitNanos;
+
+        Bucket(String key) {
+            this.key = key;
+        }
+
+        void configure(int perMinute, int burst) {
+            this.perMinute = perMinute;
+            this.capacity = burst;
+            this.tokensPerNano = perMinute / 60_000_000_000.0;
+            // При старте ведро полное, при смене лимитов токены только обрезаются по новой ёмкости
+            this.tokens = configured ? Math.min(tokens, capacity) : capacity;
+            this.configured = true;
+        }
 
+        void refill(long now) {
+            long elapsed = now - lastRefillNanos;
+            if (elapsed > 0) {
+                tokens = Math.min(capacity, tokens + elapsed * tokensPerNano);
+                lastRefillNanos = now;
+            }
+        }
+
+        long nanosUntilToken(long now) {
+            refill(now);
+            if (tokens >= 1.0) return 0L;
+            return (long) Math.ceil((1.0 - tokens) / tokensPerNano);
+        }
+    }
+}
@@ -4,6 +4,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.model.AccountBalanceSnapshot;
 import ru.perminov.repository.AccountBalanceSnapshotRepository;
 import ru.tinkoff.piapi.core.models.Portfolio;
@@ -23,6 +24,7 @@ public class BalanceTrackerService {
     private final AccountBalanceSnapshotRepository snapshotRepository;
 
     // Снимок каждые 15 минут
+    @SchedulerLane(SchedulerLane.Lane.HOUSEKEEPING)
     @Scheduled(fixedRate = 900_000)
     public void captureBalances() {
         try {
@@ -10,9 +10,20 @@ import ru.perminov.event.LogStatisticsEvent;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
+/**
+ * Журнал действий бота для UI.
+ * Записи лежат в кольцевом буфере фиксированной ёмкости без блокировок: запись — один
+ * инкремент последовательности и одна замена ячейки, вытесненная запись вычитается из
+ * счётчиков по уровням и категориям. Статистика читается из счётчиков без обхода буфера,
+ * чтение по курсору (номер последовательности) позволяет SSE-клиентам продолжать с места обрыва.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
@@ -20,8 +31,17 @@ public class BotLogService {
     
     private final ApplicationEventPublisher eventPublisher;
     
-    private static final int MAX_LOG_ENTRIES = 1000;
-    private final List<BotLogEntry> logEntries = new CopyOnWriteArrayList<>();
+    // Степень двойки: индекс ячейки — sequence & MASK
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    private static final int STATISTICS_EVERY = 10;
+    
+    private final AtomicReferenceArray<BotLogEntry> ring = new AtomicReferenceArray<>(CAPACITY);
+    // Следующий номер записи; номера начинаются с 1, 0 — «ничего не прочитано»
+    private final AtomicLong nextSequence = new AtomicLong(1);
+    // Число записей в буфере по уровням и категориям (с учётом вытеснения)
+    private final AtomicLongArray levelCounts = new AtomicLongArray(LogLevel.values().length);
+    private final AtomicLongArray categoryCounts = new AtomicLongArray(LogCategory.values().length);
     private final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
     
     // Инициализация при создании сервиса
@@ -43,7 +63,9 @@ public class BotLogService {
      * Добавление записи в лог
      */
     public void addLogEntry(LogLevel level, LogCategory category, String message, String details) {
+        long sequence = nextSequence.getAndIncrement();
         BotLogEntry entry = new BotLogEntry(
+            sequence,
             LocalDateTime.now(),
             level,
             category,
@@ -51,11 +73,10 @@ public class BotLogService {
             details
         );
         
-        logEntries.add(0, entry); // Добавляем в начало списка
-        
-        // Ограничиваем размер лога
-        if (logEntries.size() > MAX_LOG_ENTRIES) {
-            logEntries.remove(logEntries.size() - 1);
+        BotLogEntry evicted = ring.getAndSet((int) (sequence & MASK), entry);
+        count(entry, 1);
+        if (evicted != null) {
+            count(evicted, -1);
         }
         
         // Логируем в стандартный лог
@@ -81,7 +102,7 @@ public class BotLogService {
             eventPublisher.publishEvent(new LogEvent(entry));
             
             // Обновляем статистику каждые 10 записей
-            if (logEntries.size() % 10 == 0) {
+            if (sequence % STATISTICS_EVERY == 0) {
                 BotLogService.LogStatistics statistics = getLogStatistics();
                 eventPublisher.publishEvent(new LogStatisticsEvent(statistics));
             }
@@ -98,58 +119,108 @@ public class BotLogService {
     }
     
     /**
-     * Получение всех записей лога
+     * Получение всех записей лога (новые первыми)
      */
     public List<BotLogEntry> getAllLogEntries() {
-        return new ArrayList<>(logEntries);
+        return getLogEntries(null, null, CAPACITY);
     }
     
     /**
-     * Получение записей лога с фильтрацией
+     * Получение записей лога с фильтрацией (новые первыми).
+     * Буфер обходится от последней записи назад до набора limit, без промежуточных копий.
      */
     public List<BotLogEntry> getLogEntries(LogLevel level, LogCategory category, int limit) {
-        return logEntries.stream()
-            .filter(entry -> level == null || entry.getLevel() == level)
-            .filter(entry -> category == null || entry.getCategory() == category)
-            .limit(limit)
-            .toList();
+        List<BotLogEntry> result = new ArrayList<>(Math.min(Math.max(limit, 0), CAPACITY));
+        long last = nextSequence.get() - 1;
+        long first = Math.max(1, last - CAPACITY + 1);
+        for (long seq = last; seq >= first && result.size() < limit; seq--) {
+            BotLogEntry entry = slot(seq);
+            if (entry != null && entry.matches(level, category)) {
+                result.add(entry);
+            }
+        }
+        return result;
     }
     
     /**
      * Получение последних записей
      */
     public List<BotLogEntry> getRecentLogEntries(int count) {
-        return logEntries.stream()
-            .limit(count)
-            .toList();
+        return getLogEntries(null, null, count);
+    }
+    
+    /**
+     * Чтение по курсору: записи с номером больше afterSequence, старые первыми.
+     * Если курсор отстал больше чем на ёмкость буфера, возвращается самое старое из сохранившегося.
+     */
+    public List<BotLogEntry> getLogEntriesAfter(long afterSequence, LogLevel level, LogCategory category, int limit) {
+        List<BotLogEntry> result = new ArrayList<>();
+        long last = nextSequence.get() - 1;
+        long first = Math.max(Math.max(1, afterSequence + 1), last - CAPACITY + 1);
+        for (long seq = first; seq <= last && result.size() < limit; seq++) {
+            BotLogEntry entry = slot(seq);
+            if (entry != null && entry.matches(level, category)) {
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Номер последней выданной записи (курсор «с текущего момента»)
+     */
+    public long getLastSequence() {
+        return nextSequence.get() - 1;
     }
     
     /**
      * Очистка лога
      */
     public void clearLog() {
-        logEntries.clear();
+        for (int i = 0; i < CAPACITY; i++) {
+            BotLogEntry removed = ring.getAndSet(i, null);
+            if (removed != null) {
+                count(removed, -1);
+            }
+        }
         addLogEntry(LogLevel.INFO, LogCategory.SYSTEM_STATUS, "Лог очищен", "Все записи удалены");
     }
     
     /**
-     * Получение статистики лога
+     * Получение статистики лога (из счётчиков, без обхода буфера)
      */
     public LogStatistics getLogStatistics() {
-        long totalEntries = logEntries.size();
-        long infoCount = logEntries.stream().filter(e -> e.getLevel() == LogLevel.INFO).count();
-        long warningCount = logEntries.stream().filter(e -> e.getLevel() == LogLevel.WARNING).count();
-        long errorCount = logEntries.stream().filter(e -> e.getLevel() == LogLevel.ERROR).count();
-        long successCount = logEntries.stream().filter(e -> e.getLevel() == LogLevel.SUCCESS).count();
-        long tradeCount = logEntries.stream().filter(e -> e.getLevel() == LogLevel.TRADE).count();
+        long infoCount = levelCounts.get(LogLevel.INFO.ordinal());
+        long warningCount = levelCounts.get(LogLevel.WARNING.ordinal());
+        long errorCount = levelCounts.get(LogLevel.ERROR.ordinal());
+        long successCount = levelCounts.get(LogLevel.SUCCESS.ordinal());
+        long tradeCount = levelCounts.get(LogLevel.TRADE.ordinal());
+        long totalEntries = infoCount + warningCount + errorCount + successCount + tradeCount;
+        
+        Map<LogCategory, Long> byCategory = new EnumMap<>(LogCategory.class);
+        for (LogCategory category : LogCategory.values()) {
+            byCategory.put(category, categoryCounts.get(category.ordinal()));
+        }
         
-        return new LogStatistics(totalEntries, infoCount, warningCount, errorCount, successCount, tradeCount);
+        return new LogStatistics(totalEntries, infoCount, warningCount, errorCount, successCount, tradeCount, byCategory);
+    }
+    
+    private BotLogEntry slot(long sequence) {
+        BotLogEntry entry = ring.get((int) (sequence & MASK));
+        // Ячейка могла быть уже перезаписана более новой записью или ещё не заполнена
+        return entry != null && entry.getSequence() == sequence ? entry : null;
+    }
+    
+    private void count(BotLogEntry entry, int delta) {
+        levelCounts.addAndGet(entry.getLevel().ordinal(), delta);
+        categoryCounts.addAndGet(entry.getCategory().ordinal(), delta);
     }
     
     /**
      * Класс для представления записи лога
      */
     public static class BotLogEntry {
+        private final long sequence;
         private final LocalDateTime timestamp;
         private final LogLevel level;
         private final LogCategory category;
@@ -157,6 +228,11 @@ public class BotLogService {
         private final String details;
         
         public BotLogEntry(LocalDateTime timestamp, LogLevel level, LogCategory category, String message, String details) {
+            this(0, timestamp, level, category, message, details);
+        }
+        
+        BotLogEntry(long sequence, LocalDateTime timestamp, LogLevel level, LogCategory category, String message, String details) {
+            this.sequence = sequence;
             this.timestamp = timestamp;
             this.level = level;
             this.category = category;
@@ -165,12 +241,17 @@ public class BotLogService {
         }
         
         // Getters
+        public long getSequence() { return sequence; }
         public LocalDateTime getTimestamp() { return timestamp; }
         public LogLevel getLevel() { return level; }
         public LogCategory getCategory() { return category; }
         public String getMessage() { return message; }
         public String getDetails() { return details; }
         
+        boolean matches(LogLevel levelFilter, LogCategory categoryFilter) {
+            return (levelFilter == null || level == levelFilter) && (categoryFilter == null || category == categoryFilter);
+        }
+        
         public String getFormattedTimestamp() {
             return timestamp.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
         }
@@ -210,9 +291,16 @@ public class BotLogService {
         private final long errorCount;
         private final long successCount;
         private final long tradeCount;
+        private final Map<LogCategory, Long> categoryCounts;
         
         public LogStatistics(long totalEntries, long infoCount, long warningCount, 
                            long errorCount, long successCount, long tradeCount) {
+            this(totalEntries, infoCount, warningCount, errorCount, successCount, tradeCount, Map.of());
+        }
+        
+        public LogStatistics(long totalEntries, long infoCount, long warningCount, long errorCount,
+                           long successCount, long tradeCount, Map<LogCategory, Long> categoryCounts) {
+            this.categoryCounts = categoryCounts;
             this.totalEntries = totalEntries;
             this.infoCount = infoCount;
             this.warningCount = warningCount;
@@ -228,5 +316,6 @@ public class BotLogService {
         public long getErrorCount() { return errorCount; }
         public long getSuccessCount() { return successCount; }
         public long getTradeCount() { return tradeCount; }
+        public Map<LogCategory, Long> getCategoryCounts() { return categoryCounts; }
     }
 } 
\ No newline at end of file
@@ -0,0 +1,139 @@
+package ru.perminov.service;
+
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+
+import java.math.BigDecimal;
+import java.util.List;
+
+/**
+ * Колоночное представление серии свечей на примитивных массивах.
+ * Строится один раз при поступлении свечей; срезы ({@link #tail}, {@link #lastDays}) разделяют массивы
+ * исходной серии, поэтому индикаторы работают без аллокаций и без разбора Quotation через строки.
+ * Индекс 0 — самая старая свеча среза, как и в списке, который возвращает API.
+ */
+public final class CandleSeries {
+
+    public static final CandleSeries EMPTY = of(List.of());
+
+    private final List<HistoricCandle> source;
+    private final long[] time;
+    private final double[] open;
+    private final double[] high;
+    private final double[] low;
+    private final double[] close;
+    private final long[] volume;
+    private final boolean[] complete;
+    private final int offset;
+    private final int length;
+
+    private CandleSeries(List<HistoricCandle> source, long[] time, double[] open, double[] high, double[] low,
+                         double[] close, long[] volume, boolean[] complete, int offset, int length) {
+        this.source = source;
+        this.time = time;
+        this.open = open;
+        this.high = high;
+        this.low = low;
+        this.close = close;
+        this.volume = volume;
+        this.complete = complete;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public static CandleSeries of(List<HistoricCandle> candles) {
+        List<HistoricCandle> src = candles != null ? candles : List.of();
+        int n = src.size();
+        long[] time = new long[n];
+        double[] open = new double[n];
+        double[] high = new double[n];
+        double[] low = new double[n];
+        double[] close = new double[n];
+        long[] volume = new long[n];
+        boolean[] complete = new boolean[n];
+        for (int i = 0; i < n; i++) {
+            HistoricCandle c = src.get(i);
+            time[i] = c.getTime().getSeconds();
+            open[i] = toDouble(c.getOpen());
+            high[i] = toDouble(c.getHigh());
+            low[i] = toDouble(c.getLow());
+            close[i] = toDouble(c.getClose());
+            volume[i] = c.getVolume();
+            complete[i] = c.getIsComplete();
+        }
+        return new CandleSeries(src, time, open, high, low, close, volume, complete, 0, n);
+    }
+
+    public int size() { return length; }
+    public boolean isEmpty() { return length == 0; }
+
+    public long time(int i) { return time[offset + i]; }
+    public double open(int i) { return open[offset + i]; }
+    public double high(int i) { return high[offset + i]; }
+    public double low(int i) { return low[offset + i]; }
+    public double close(int i) { return close[offset + i]; }
+    public long volume(int i) { return volume[offset + i]; }
+    public boolean isComplete(int i) { return complete[offset + i]; }
+
+    /**
+     * Исходная свеча (protobuf) по индексу среза
+     */
+    public HistoricCandle candle(int i) { return source.get(offset + i); }
+
+    /**
+     * Срез, начиная с индекса {@code from}, без копирования
+     */
+    public CandleSeries tail(int from) {
+        if (from <= 0) return this;
+        int f = Math.min(from, length);
+        return new CandleSeries(source, time, open, high, low, close, volume, complete, offset + f, length - f);
+    }
+
+    /**
+     * Свечи за последние {@code days} дней: бинарный поиск по времени, без копирования
+     */
+    public CandleSeries lastDays(int days) {
+        long fromSec = System.currentTimeMillis() / 1000 - days * 86400L;
+        int lo = 0;
+        int hi = length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (time[offset + mid] < fromSec) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return tail(lo);
+    }
+
+    /**
+     * Индекс последней завершённой свечи или -1
+     */
+    public int lastCompleteIndex() {
+        for (int i = length - 1; i >= 0; i--) {
+            if (complete[offset + i]) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Свечи среза в виде списка (представление исходного списка, без копирования)
+     */
+    public List<HistoricCandle> asList() {
+        return (offset == 0 && length == source.size()) ? source : source.subList(offset, offset + length);
+    }
+
+    public static double toDouble(Quotation q) {
+        if (q == null) return 0.0;
+        return q.getUnits() + q.getNano() / 1_000_000_000.0;
+    }
+
+    /**
+     * Точное преобразование Quotation в BigDecimal без строкового разбора
+     */
+    public static BigDecimal toBigDecimal(Quotation q) {
+        if (q == null) return BigDecimal.ZERO;
+        return BigDecimal.valueOf(q.getUnits()).add(BigDecimal.valueOf(q.getNano(), 9));
+    }
+}
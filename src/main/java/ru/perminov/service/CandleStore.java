@@ -0,0 +1,242 @@
+package ru.perminov.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.CandleInterval;
+import ru.tinkoff.piapi.contract.v1.HistoricCandle;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ограниченное хранилище свечей.
+ * Одна каноническая серия на пару (figi, interval), любые окна по дням отдаются срезом этой серии.
+ * Серия хранится в колоночном виде ({@link CandleSeries}), массивы строятся один раз при поступлении свечей.
+ * Серия живёт до границы текущего бара (для дневных и старше — до границы торговой сессии по МСК),
+ * при превышении лимитов вытесняются давно не использованные серии.
+ * Устаревшая серия не удаляется сразу: она служит базой для инкрементальной догрузки с последней
+ * завершённой свечи (см. {@link #getRefreshBase} и {@link #merge}).
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class CandleStore {
+
+    private static final ZoneId MOSCOW = ZoneId.of("Europe/Moscow");
+
+    private final TradingSettingsService settingsService;
+
+    // LRU по порядку доступа; все операции с картой под монитором this
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long totalCandles = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong fullLoads = new AtomicLong();
+    private final AtomicLong incrementalLoads = new AtomicLong();
+
+    /**
+     * Срез кэшированной серии за последние {@code days} дней или null, если серии нет, она устарела
+     * или покрывает меньший период.
+     */
+    public CandleSeries get(String figi, CandleInterval interval, int days) {
+        long nowMs = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            String key = key(figi, interval);
+            entry = entries.get(key);
+            if (entry != null && nowMs >= entry.expiresAtMs) {
+                // Оставляем серию как базу для инкрементальной догрузки
+                expirations.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry == null || entry.days < days) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.series.lastDays(days);
+    }
+
+    /**
+     * Период в днях, который покрывает актуальная серия (0, если серии нет).
+     * Позволяет при промахе сразу загрузить окно не меньше уже закэшированного.
+     */
+    public synchronized int getCoveredDays(String figi, CandleInterval interval) {
+        Entry entry = entries.get(key(figi, interval));
+        return entry != null ? entry.days : 0;
+    }
+
+    /**
+     * База для инкрементальной догрузки: закэшированная серия (в том числе устаревшая) и время
+     * последней завершённой свечи. null, если серии нет или в ней нет ни одной завершённой свечи.
+     */
+    public synchronized RefreshBase getRefreshBase(String figi, CandleInterval interval) {
+        Entry entry = entries.get(key(figi, interval));
+        if (entry == null) {
+            return null;
+        }
+        int lastComplete = entry.series.lastCompleteIndex();
+        if (lastComplete < 0) {
+            return null;
+        }
+        return new RefreshBase(entry.series, entry.days, entry.series.time(lastComplete));
+    }
+
+    /**
+     * Сохраняет серию (по возрастанию времени), полностью загруженную за последние {@code days} дней.
+     */
+    public CandleSeries put(String figi, CandleInterval interval, int days, List<HistoricCandle> candles) {
+        fullLoads.incrementAndGet();
+        return store(figi, interval, days, candles);
+    }
+
+    /**
+     * Вливает догруженный хвост [lastComplete, now] в базовую серию: всё, начиная с первой свечи хвоста,
+     * заменяется хвостом (в том числе незавершённый бар), свечи старше now - days отбрасываются.
+     */
+    public CandleSeries merge(String figi, CandleInterval interval, RefreshBase base, List<HistoricCandle> tail) {
+        List<HistoricCandle> fresh = tail != null ? tail : List.of();
+        long cutSec = fresh.isEmpty() ? Long.MAX_VALUE : fresh.get(0).getTime().getSeconds();
+        CandleSeries kept = base.series.lastDays(base.days);
+        List<HistoricCandle> merged = new ArrayList<>(kept.size() + fresh.size());
+        for (int i = 0; i < kept.size() && kept.time(i) < cutSec; i++) {
+            merged.add(kept.candle(i));
+        }
+        merged.addAll(fresh);
+        incrementalLoads.incrementAndGet();
+        return store(figi, interval, base.days, merged);
+    }
+
+    private CandleSeries store(String figi, CandleInterval interval, int days, List<HistoricCandle> candles) {
+        long nowMs = System.currentTimeMillis();
+        CandleSeries series = CandleSeries.of(candles != null ? Collections.unmodifiableList(candles) : List.of());
+        Entry entry = new Entry(series, days, computeExpiresAt(interval, nowMs));
+        int maxEntries = Math.max(1, settingsService.getInt("candles.cache.max_entries", 500));
+        long maxCandles = Math.max(1, settingsService.getInt("candles.cache.max_candles", 500000));
+        synchronized (this) {
+            String key = key(figi, interval);
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                totalCandles -= previous.series.size();
+            }
+            totalCandles += series.size();
+            evictIfNeeded(key, maxEntries, maxCandles);
+        }
+        return series;
+    }
+
+    public synchronized void invalidate(String figi, CandleInterval interval) {
+        Entry entry = entries.remove(key(figi, interval));
+        if (entry != null) {
+            totalCandles -= entry.series.size();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        totalCandles = 0;
+    }
+
+    /**
+     * Счётчики кэша для мониторинга
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("entries", entries.size());
+            stats.put("candles", totalCandles);
+        }
+        long h = hits.get();
+        long m = misses.get();
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRate", (h + m) > 0 ? (double) h / (h + m) : 0.0);
+        stats.put("expirations", expirations.get());
+        stats.put("evictions", evictions.get());
+        stats.put("fullLoads", fullLoads.get());
+        stats.put("incrementalLoads", incrementalLoads.get());
+        return stats;
+    }
+
+    private void evictIfNeeded(String protectedKey, int maxEntries, long maxCandles) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((entries.size() > maxEntries || totalCandles > maxCandles) && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            if (eldest.getKey().equals(protectedKey)) {
+                continue; // только что положенную серию не вытесняем
+            }
+            totalCandles -= eldest.getValue().series.size();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Серия устаревает на границе следующего бара; дневные и более старшие — на границе сессии (полночь МСК).
+     */
+    static long computeExpiresAt(CandleInterval interval, long nowMs) {
+        long stepMs;
+        switch (interval) {
+            case CANDLE_INTERVAL_1_MIN:
+                stepMs = 60_000L;
+                break;
+            case CANDLE_INTERVAL_5_MIN:
+                stepMs = 5 * 60_000L;
+                break;
+            case CANDLE_INTERVAL_15_MIN:
+                stepMs = 15 * 60_000L;
+                break;
+            case CANDLE_INTERVAL_HOUR:
+                stepMs = 60 * 60_000L;
+                break;
+            default:
+                LocalDate today = Instant.ofEpochMilli(nowMs).atZone(MOSCOW).toLocalDate();
+                return today.plusDays(1).atStartOfDay(MOSCOW).toInstant().toEpochMilli();
+        }
+        return (nowMs / stepMs + 1) * stepMs;
+    }
+
+    private static String key(String figi, CandleInterval interval) {
+        return figi + "_" + interval;
+    }
+
+    private static final class Entry {
+        final CandleSeries series;
+        final int days;
+        final long expiresAtMs;
+
+        Entry(CandleSeries series, int days, long expiresAtMs) {
+            this.series = series;
+            this.days = days;
+            this.expiresAtMs = expiresAtMs;
+        }
+    }
+
+    public static final class RefreshBase {
+        private final CandleSeries series;
+        private final int days;
+        private final long lastCompleteSec;
+
+        RefreshBase(CandleSeries series, int days, long lastCompleteSec) {
+            this.series = series;
+            this.days = days;
+            this.lastCompleteSec = lastCompleteSec;
+        }
+
+        public int getDays() { return days; }
+        public Instant getLastCompleteTime() { return Instant.ofEpochSecond(lastCompleteSec); }
+    }
+}
@@ -0,0 +1,115 @@
+package ru.perminov.service;
+
+import com.google.protobuf.Timestamp;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.MarketDataResponse;
+import ru.tinkoff.piapi.contract.v1.Order;
+import ru.tinkoff.piapi.contract.v1.OrderBook;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Локальный поток рыночных данных без обращения к API (market-data.stream.source=fake).
+ * Цены публикуются вручную через {@link #publishLastPrice} и {@link #publishOrderBook},
+ * доставляются только по подписанным инструментам — так же, как в боевом потоке.
+ * Обрыв потока имитируется через {@link #fail}.
+ */
+@Component
+@ConditionalOnProperty(prefix = "market-data.stream", name = "source", havingValue = "fake")
+@Slf4j
+public class FakeMarketDataStreamSource implements MarketDataStreamSource {
+
+    private final Set<String> subscribed = ConcurrentHashMap.newKeySet();
+    private volatile Consumer<MarketDataResponse> onMessage;
+    private volatile Consumer<Throwable> onError;
+
+    @Override
+    public void open(Consumer<MarketDataResponse> onMessage, Consumer<Throwable> onError) {
+        this.onMessage = onMessage;
+        this.onError = onError;
+        log.info("📡 Локальный (fake) поток рыночных данных открыт");
+    }
+
+    @Override
+    public void subscribe(List<String> figis) {
+        subscribed.addAll(figis);
+    }
+
+    @Override
+    public void unsubscribe(List<String> figis) {
+        figis.forEach(subscribed::remove);
+    }
+
+    @Override
+    public void close() {
+        onMessage = null;
+        onError = null;
+        subscribed.clear();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return onMessage != null;
+    }
+
+    public void publishLastPrice(String figi, BigDecimal price) {
+        emit(figi, MarketDataResponse.newBuilder()
+            .setLastPrice(LastPrice.newBuilder()
+                .setFigi(figi)
+                .setPrice(toQuotation(price))
+                .setTime(now()))
+            .build());
+    }
+
+    public void publishOrderBook(String figi, BigDecimal bid, BigDecimal ask) {
+        emit(figi, MarketDataResponse.newBuilder()
+            .setOrderbook(OrderBook.newBuilder()
+                .setFigi(figi)
+                .setDepth(1)
+                .addBids(Order.newBuilder().setPrice(toQuotation(bid)).setQuantity(1))
+                .addAsks(Order.newBuilder().setPrice(toQuotation(ask)).setQuantity(1))
+                .setTime(now()))
+            .build());
+    }
+
+    /**
+     * Обрыв потока: ошибка доставляется в колбэк, как при разрыве соединения с API
+     */
+    public void fail(Throwable error) {
+        Consumer<Throwable> consumer = onError;
+        if (consumer != null) {
+            consumer.accept(error);
+        }
+    }
+
+    public Set<String> getSubscribed() {
+        return Set.copyOf(subscribed);
+    }
+
+    private void emit(String figi, MarketDataResponse response) {
+        Consumer<MarketDataResponse> consumer = onMessage;
+        if (consumer != null && subscribed.contains(figi)) {
+            consumer.accept(response);
+        }
+    }
+
+    private static Quotation toQuotation(BigDecimal value) {
+        BigDecimal units = new BigDecimal(value.toBigInteger());
+        int nano = value.subtract(units).movePointRight(9).intValue();
+        return Quotation.newBuilder().setUnits(units.longValue()).setNano(nano).build();
+    }
+
+    private static Timestamp now() {
+        Instant t = Instant.now();
+        return Timestamp.newBuilder().setSeconds(t.getEpochSecond()).setNanos(t.getNano()).build();
+    }
+}
@@ -6,6 +6,7 @@ import org.springframework.boot.ApplicationRunner;
 import org.springframework.context.annotation.Bean;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.model.Order;
 import ru.perminov.repository.OrderRepository;
 import ru.tinkoff.piapi.contract.v1.OrderDirection;
@@ -16,8 +17,10 @@ import ru.tinkoff.piapi.core.models.Position;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 
@@ -30,6 +33,7 @@ import java.util.stream.Collectors;
 public class HardOcoMonitorService {
 
     private final OrderRepository orderRepository;
+    private final OrderRegistry orderRegistry;
     private final OrderService orderService;
     private final PortfolioService portfolioService;
     private final AccountService accountService;
@@ -40,6 +44,11 @@ public class HardOcoMonitorService {
     private final BotLogService botLogService;
     private final InstrumentNameService instrumentNameService;
 
+    private static final List<String> HARD_OCO_FINAL_STATUSES =
+            List.of("FILLED", "EXECUTED", "CANCELLED", "CANCELLED_BY_OCO", "REJECTED");
+    private static final List<String> OCO_PAIR_FINAL_STATUSES =
+            List.of("FILLED", "EXECUTED", "CANCELLED", "CANCELLED_BY_OCO");
+
     /**
      * Восстановление жестких ордеров при старте системы
      * Выполняется один раз при запуске приложения
@@ -70,45 +79,45 @@ public class HardOcoMonitorService {
     }
 
     /**
-     * Мониторинг HARD OCO ордеров каждые 30 секунд
+     * Мониторинг HARD OCO ордеров каждые 30 секунд.
+     * Сверка пакетная: активные HARD OCO ордера берутся из БД одним запросом по типу и статусу,
+     * состояние заявок у брокера запрашивается один раз на аккаунт за цикл и индексируется по orderId.
      */
+    @SchedulerLane(SchedulerLane.Lane.RISK_CRITICAL)
     @Scheduled(fixedRate = 30000)
     public void monitorHardOcoOrders() {
         try {
-            // Получаем все активные HARD OCO ордера из БД
-            // Фильтруем по типу HARD_OCO_* (это гарантирует, что мы берем только реальные HARD OCO ордера)
-            List<Order> hardOcoOrders = orderRepository.findAll().stream()
-                    .filter(order -> {
-                        // Проверяем тип ордера - должен начинаться с HARD_OCO_
-                        if (order.getOrderType() != null && order.getOrderType().startsWith("HARD_OCO_")) {
-                            return true;
-                        }
-                        return false;
-                    })
-                    .filter(order -> {
-                        // Исключаем уже исполненные или отмененные ордера
-                        String status = order.getStatus();
-                        return status != null && 
-                               !status.equals("FILLED") && 
-                               !status.equals("EXECUTED") && 
-                               !status.equals("CANCELLED") && 
-                               !status.equals("CANCELLED_BY_OCO") &&
-                               !status.equals("REJECTED");
-                    })
+            // Только живые HARD_OCO_* ордера из реестра (исполненные и отмененные в нем не хранятся)
+            List<Order> hardOcoOrders = orderRegistry.getByTypes(OrderRegistry.HARD_OCO_TYPES).stream()
+                    .filter(order -> !HARD_OCO_FINAL_STATUSES.contains(order.getStatus()))
                     .collect(Collectors.toList());
 
             if (hardOcoOrders.isEmpty()) {
                 return;
             }
 
-            log.debug("🔍 Мониторинг {} HARD OCO ордеров", hardOcoOrders.size());
+            Map<String, List<Order>> byAccount = hardOcoOrders.stream()
+                    .filter(order -> order.getAccountId() != null)
+                    .collect(Collectors.groupingBy(Order::getAccountId));
+
+            log.debug("🔍 Мониторинг {} HARD OCO ордеров по {} аккаунтам", hardOcoOrders.size(), byAccount.size());
 
-            for (Order order : hardOcoOrders) {
+            for (Map.Entry<String, List<Order>> entry : byAccount.entrySet()) {
+                String accountId = entry.getKey();
+                AccountSnapshot snapshot;
                 try {
-                    checkHardOcoOrder(order);
-                    Thread.sleep(100); // Небольшая задержка между проверками
+                    snapshot = new AccountSnapshot(accountId, orderService.getOrders(accountId));
                 } catch (Exception e) {
-                    log.error("Ошибка проверки HARD OCO ордера {}: {}", order.getOrderId(), e.getMessage());
+                    log.warn("Не удалось получить заявки брокера для аккаунта {}: {}. Сверка отложена до следующего цикла", 
+                            accountId, e.getMessage());
+                    continue;
+                }
+                for (Order order : entry.getValue()) {
+                    try {
+                        checkHardOcoOrder(order, snapshot);
+                    } catch (Exception e) {
+                        log.error("Ошибка проверки HARD OCO ордера {}: {}", order.getOrderId(), e.getMessage());
+                    }
                 }
             }
 
@@ -118,19 +127,15 @@ public class HardOcoMonitorService {
     }
 
     /**
-     * Проверка конкретного HARD OCO ордера
+     * Проверка конкретного HARD OCO ордера по снимку заявок брокера
      */
-    private void checkHardOcoOrder(Order order) {
+    private void checkHardOcoOrder(Order order, AccountSnapshot snapshot) {
         try {
             String accountId = order.getAccountId();
             String orderId = order.getOrderId();
 
-            // Получаем актуальный статус ордера у брокера
-            List<OrderState> brokerOrders = orderService.getOrders(accountId);
-            OrderState brokerOrder = brokerOrders.stream()
-                    .filter(o -> o.getOrderId().equals(orderId))
-                    .findFirst()
-                    .orElse(null);
+            // Актуальный статус ордера у брокера из снимка цикла
+            OrderState brokerOrder = snapshot.brokerOrders.get(orderId);
 
             if (brokerOrder == null) {
                 // Ордер не найден у брокера - возможно уже исполнен или отменен брокером (в конце торгового дня)
@@ -141,7 +146,7 @@ public class HardOcoMonitorService {
                 if (status != null && (status.equals("CANCELLED") || status.equals("NEW") || status.equals("PENDING"))) {
                     // Проверяем, есть ли еще активная позиция
                     try {
-                        Portfolio portfolio = portfolioService.getPortfolio(accountId);
+                        Portfolio portfolio = snapshot.getPortfolio();
                         Position position = portfolio.getPositions().stream()
                                 .filter(p -> figi.equals(p.getFigi()))
                                 .filter(p -> p.getQuantity() != null && p.getQuantity().compareTo(BigDecimal.ZERO) != 0)
@@ -198,7 +203,7 @@ public class HardOcoMonitorService {
                 // Ордер отменен брокером - проверяем, нужно ли восстановить
                 String figi = order.getFigi();
                 try {
-                    Portfolio portfolio = portfolioService.getPortfolio(accountId);
+                    Portfolio portfolio = snapshot.getPortfolio();
                     Position position = portfolio.getPositions().stream()
                             .filter(p -> figi.equals(p.getFigi()))
                             .filter(p -> p.getQuantity() != null && p.getQuantity().compareTo(BigDecimal.ZERO) != 0)
@@ -249,16 +254,8 @@ public class HardOcoMonitorService {
             }
 
             // Находим все ордера в этой OCO группе
-            List<Order> ocoOrders = orderRepository.findAll().stream()
-                    .filter(order -> order.getMessage() != null && order.getMessage().contains("OCO_GROUP:" + ocoGroupId))
-                    .filter(order -> {
-                        String status = order.getStatus();
-                        return status != null && 
-                               !status.equals("FILLED") && 
-                               !status.equals("EXECUTED") && 
-                               !status.equals("CANCELLED") && 
-                               !status.equals("CANCELLED_BY_OCO");
-                    })
+            List<Order> ocoOrders = orderRegistry.getByOcoGroup(ocoGroupId).stream()
+                    .filter(order -> !OCO_PAIR_FINAL_STATUSES.contains(order.getStatus()))
                     .collect(Collectors.toList());
 
             for (Order ocoOrder : ocoOrders) {
@@ -319,6 +316,7 @@ public class HardOcoMonitorService {
      * Проверка и установка жестких стоп-ордеров для существующих позиций без них
      * Выполняется каждые 5 минут, только если включена функция жестких ордеров
      */
+    @SchedulerLane(SchedulerLane.Lane.TRADING)
     @Scheduled(fixedRate = 300000) // каждые 5 минут
     public void checkAndSetupHardStopsForPositions() {
         log.info("⏰ Запуск проверки жестких стоп-ордеров (каждые 5 минут)");
@@ -437,20 +435,7 @@ public class HardOcoMonitorService {
                     log.debug("Позиция {} уже имеет активные жесткие стоп-ордера, пропускаем", figi);
                     
                     // Дополнительная проверка: если ордера есть в БД, но отменены брокером - восстанавливаем
-                    List<Order> cancelledHardOcoOrders = orderRepository.findByFigiAndAccountIdOrderByOrderDateDesc(figi, accountId)
-                            .stream()
-                            .filter(order -> {
-                                String orderType = order.getOrderType();
-                                if (orderType == null) return false;
-                                return orderType.equals("HARD_OCO_STOP_LOSS") || orderType.equals("HARD_OCO_TAKE_PROFIT");
-                            })
-                            .filter(order -> {
-                                String status = order.getStatus();
-                                return status != null && 
-                                       (status.equals("CANCELLED") || 
-                                        status.equals("CANCELLED_BY_BROKER"));
-                            })
-                            .collect(Collectors.toList());
+                    List<Order> cancelledHardOcoOrders = orderRegistry.getCancelledHardOco(accountId, figi);
                     
                     if (!cancelledHardOcoOrders.isEmpty()) {
                         log.warn("🔄 Найдены отмененные брокером жесткие ордера для позиции {}. Восстанавливаем...", figi);
@@ -518,8 +503,8 @@ public class HardOcoMonitorService {
                 log.warn("Не удалось получить активные ордера через API: {}. Используем только БД.", e.getMessage());
             }
             
-            // Находим все активные лимитные ордера для этой позиции из БД
-            List<Order> activeLimitOrders = orderRepository.findByFigiAndAccountIdOrderByOrderDateDesc(figi, accountId)
+            // Находим все активные лимитные ордера для этой позиции в реестре живых ордеров
+            List<Order> activeLimitOrders = orderRegistry.getByAccountAndFigi(accountId, figi)
                     .stream()
                     .filter(order -> {
                         // Только лимитные ордера, НО НЕ HARD_OCO и НЕ VIRTUAL (они управляются отдельно)
@@ -600,7 +585,7 @@ public class HardOcoMonitorService {
             log.info("🚫 Отмена жестких OCO ордеров для позиции {} (аккаунт {})", figi, accountId);
             
             // Находим все активные жесткие OCO ордера для этой позиции
-            List<Order> activeHardOcoOrders = orderRepository.findByFigiAndAccountIdOrderByOrderDateDesc(figi, accountId)
+            List<Order> activeHardOcoOrders = orderRegistry.getByAccountAndFigi(accountId, figi)
                     .stream()
                     .filter(order -> {
                         String orderType = order.getOrderType();
@@ -653,7 +638,7 @@ public class HardOcoMonitorService {
      * Проверка наличия активных жестких OCO ордеров для позиции
      */
     private boolean hasActiveHardOcoOrders(String figi, String accountId) {
-        List<Order> activeHardOcoOrders = orderRepository.findByFigiAndAccountIdOrderByOrderDateDesc(figi, accountId)
+        List<Order> activeHardOcoOrders = orderRegistry.getByAccountAndFigi(accountId, figi)
                 .stream()
                 .filter(order -> {
                     // Проверяем тип ордера - должен быть HARD_OCO_STOP_LOSS или HARD_OCO_TAKE_PROFIT
@@ -692,21 +677,8 @@ public class HardOcoMonitorService {
             log.info("🔄 Восстановление жестких стоп-ордеров для позиции {} (аккаунт {})", figi, accountId);
             
             // Сначала отменяем старые отмененные ордера в БД (помечаем их как восстановленные)
-            List<Order> cancelledOrders = orderRepository.findByFigiAndAccountIdOrderByOrderDateDesc(figi, accountId)
-                    .stream()
-                    .filter(order -> {
-                        String orderType = order.getOrderType();
-                        if (orderType == null) return false;
-                        return orderType.equals("HARD_OCO_STOP_LOSS") || orderType.equals("HARD_OCO_TAKE_PROFIT");
-                    })
-                    .filter(order -> {
-                        String status = order.getStatus();
-                        return status != null && 
-                               (status.equals("CANCELLED") || 
-                                status.equals("CANCELLED_BY_BROKER") ||
-                                status.equals("CANCELLED_BY_OCO"));
-                    })
-                    .collect(Collectors.toList());
+            // Ноги, отменённые OCO (CANCELLED_BY_OCO), уже конечные и восстановления не требуют
+            List<Order> cancelledOrders = orderRegistry.getCancelledHardOco(accountId, figi);
             
             for (Order cancelledOrder : cancelledOrders) {
                 cancelledOrder.setStatus("RESTORED");
@@ -796,7 +768,7 @@ public class HardOcoMonitorService {
                 Thread.sleep(500);
                 
                 boolean hasHardOco = hasActiveHardOcoOrders(figi, accountId);
-                boolean hasVirtualOco = orderRepository.findByFigiAndAccountIdOrderByOrderDateDesc(figi, accountId)
+                boolean hasVirtualOco = orderRegistry.getByAccountAndFigi(accountId, figi)
                         .stream()
                         .anyMatch(order -> {
                             String orderType = order.getOrderType();
@@ -979,5 +951,27 @@ public class HardOcoMonitorService {
             return figi;
         }
     }
-}
 
+    /**
+     * Снимок состояния аккаунта на один цикл сверки: заявки брокера по orderId и портфель (загружается лениво)
+     */
+    private final class AccountSnapshot {
+        private final String accountId;
+        private final Map<String, OrderState> brokerOrders = new HashMap<>();
+        private Portfolio portfolio;
+
+        AccountSnapshot(String accountId, List<OrderState> orders) {
+            this.accountId = accountId;
+            for (OrderState state : orders) {
+                brokerOrders.put(state.getOrderId(), state);
+            }
+        }
+
+        Portfolio getPortfolio() {
+            if (portfolio == null) {
+                portfolio = portfolioService.getPortfolio(accountId);
+            }
+            return portfolio;
+        }
+    }
+}
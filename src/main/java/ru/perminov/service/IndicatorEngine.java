@@ -0,0 +1,581 @@
+package ru.perminov.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.CandleInterval;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Потоковый движок индикаторов.
+ * Для каждой пары (figi, interval) хранится состояние, которое обновляется за O(1) при закрытии свечи
+ * (скользящие суммы, сглаживание Уайлдера, монотонные очереди для min/max) и при поступлении новой цены
+ * по формирующемуся бару — в этом случае значения пересчитываются предварительно, без изменения состояния.
+ * Число состояний ограничено ({@link #MAX_STATES}): давно не использованные серии вытесняются и при следующем
+ * обращении строятся заново по свечам.
+ */
+@Component
+@Slf4j
+public class IndicatorEngine {
+
+    public static final int SMA_FAST = 20;
+    public static final int SMA_SLOW = 50;
+    public static final int EMA_FAST = 12;
+    public static final int EMA_SLOW = 26;
+    public static final int MACD_SIGNAL = 9;
+    public static final int RSI_PERIOD = 14;
+    public static final int ATR_PERIOD = 14;
+    public static final int BOLLINGER_PERIOD = 20;
+    public static final int STOCHASTIC_PERIOD = 14;
+    public static final int STOCHASTIC_SMOOTH = 3;
+
+    static final int MAX_STATES = 2000;
+
+    // LRU по порядку доступа; все операции с картой под монитором самой карты
+    private final Map<String, IndicatorState> states = new LinkedHashMap<>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, IndicatorState> eldest) {
+            return size() > MAX_STATES;
+        }
+    };
+
+    /**
+     * Досылает в состояние завершённые свечи серии, которых оно ещё не видело, и запоминает формирующийся бар.
+     * Если серия не содержит последнюю учтённую свечу (разрыв данных), состояние строится заново.
+     */
+    public IndicatorSnapshot update(String figi, CandleInterval interval, CandleSeries series) {
+        IndicatorState state;
+        synchronized (states) {
+            state = states.computeIfAbsent(key(figi, interval), k -> new IndicatorState());
+        }
+        synchronized (state) {
+            int n = series.size();
+            int start = n;
+            while (start > 0 && series.time(start - 1) > state.lastTime) {
+                start--;
+            }
+            if (state.bars > 0 && start == 0 && n > 0) {
+                log.debug("Разрыв данных индикаторов для {} ({}), пересчитываем состояние", figi, interval);
+                state.reset();
+            }
+            for (int i = start; i < n; i++) {
+                if (!series.isComplete(i)) {
+                    state.setForming(series.time(i), series.high(i), series.low(i), series.close(i));
+                    break;
+                }
+                state.push(series.time(i), series.high(i), series.low(i), series.close(i));
+            }
+            return state.snapshot();
+        }
+    }
+
+    /**
+     * Новая цена по инструменту: обновляет формирующийся бар без пересчёта истории
+     */
+    public void onPrice(String figi, CandleInterval interval, double price) {
+        IndicatorState state = state(figi, interval);
+        if (state == null) {
+            return;
+        }
+        synchronized (state) {
+            state.onPrice(price);
+        }
+    }
+
+    /**
+     * Последний снимок без обращения к свечам (null, если состояние ещё не построено)
+     */
+    public IndicatorSnapshot getSnapshot(String figi, CandleInterval interval) {
+        IndicatorState state = state(figi, interval);
+        if (state == null) {
+            return null;
+        }
+        synchronized (state) {
+            return state.bars > 0 ? state.snapshot() : null;
+        }
+    }
+
+    public void reset(String figi, CandleInterval interval) {
+        synchronized (states) {
+            states.remove(key(figi, interval));
+        }
+    }
+
+    public int size() {
+        synchronized (states) {
+            return states.size();
+        }
+    }
+
+    private IndicatorState state(String figi, CandleInterval interval) {
+        synchronized (states) {
+            return states.get(key(figi, interval));
+        }
+    }
+
+    private static String key(String figi, CandleInterval interval) {
+        return figi + "_" + interval;
+    }
+
+    /**
+     * Состояние индикаторов по одной серии
+     */
+    static final class IndicatorState {
+        final RollingWindow smaFast = new RollingWindow(SMA_FAST);
+        final RollingWindow smaSlow = new RollingWindow(SMA_SLOW);
+        final RollingWindow bollinger = new RollingWindow(BOLLINGER_PERIOD);
+        final Ema emaFast = new Ema(EMA_FAST);
+        final Ema emaSlow = new Ema(EMA_SLOW);
+        final Ema macdSignal = new Ema(MACD_SIGNAL);
+        final Wilder rsiGain = new Wilder(RSI_PERIOD);
+        final Wilder rsiLoss = new Wilder(RSI_PERIOD);
+        final Wilder atr = new Wilder(ATR_PERIOD);
+        final MonotonicWindow highest = new MonotonicWindow(STOCHASTIC_PERIOD, true);
+        final MonotonicWindow lowest = new MonotonicWindow(STOCHASTIC_PERIOD, false);
+        final RollingWindow stochD = new RollingWindow(STOCHASTIC_SMOOTH);
+
+        long lastTime = Long.MIN_VALUE;
+        double lastClose = Double.NaN;
+        long bars = 0;
+
+        boolean hasForming;
+        long formingTime;
+        double formingHigh;
+        double formingLow;
+        double formingClose;
+
+        void reset() {
+            smaFast.reset();
+            smaSlow.reset();
+            bollinger.reset();
+            emaFast.reset();
+            emaSlow.reset();
+            macdSignal.reset();
+            rsiGain.reset();
+            rsiLoss.reset();
+            atr.reset();
+            highest.reset();
+            lowest.reset();
+            stochD.reset();
+            lastTime = Long.MIN_VALUE;
+            lastClose = Double.NaN;
+            bars = 0;
+            hasForming = false;
+        }
+
+        void push(long time, double high, double low, double close) {
+            smaFast.push(close);
+            smaSlow.push(close);
+            bollinger.push(close);
+            emaFast.push(close);
+            emaSlow.push(close);
+            if (emaSlow.isReady()) {
+                macdSignal.push(emaFast.value() - emaSlow.value());
+            }
+            if (bars > 0) {
+                double change = close - lastClose;
+                rsiGain.push(Math.max(change, 0.0));
+                rsiLoss.push(Math.max(-change, 0.0));
+                atr.push(trueRange(high, low, lastClose));
+            }
+            highest.push(bars, high);
+            lowest.push(bars, low);
+            double k = stochK(highest.peek(), lowest.peek(), close);
+            if (!Double.isNaN(k)) {
+                stochD.push(k);
+            }
+            lastTime = time;
+            lastClose = close;
+            bars++;
+            if (hasForming && formingTime <= time) {
+                hasForming = false;
+            }
+        }
+
+        void setForming(long time, double high, double low, double close) {
+            hasForming = true;
+            formingTime = time;
+            formingHigh = high;
+            formingLow = low;
+            formingClose = close;
+        }
+
+        void onPrice(double price) {
+            if (!hasForming) {
+                setForming(lastTime + 1, price, price, price);
+                return;
+            }
+            formingClose = price;
+            formingHigh = Math.max(formingHigh, price);
+            formingLow = Math.min(formingLow, price);
+        }
+
+        IndicatorSnapshot snapshot() {
+            if (!hasForming) {
+                double macd = emaFast.value() - emaSlow.value();
+                double var = bollinger.variance();
+                double mid = bollinger.mean();
+                return new IndicatorSnapshot(bars, lastClose,
+                    smaFast.mean(), smaSlow.mean(), emaFast.value(), emaSlow.value(),
+                    macd, macdSignal.value(), macd - macdSignal.value(),
+                    rsi(rsiGain.value(), rsiLoss.value(), rsiGain.isReady()),
+                    atr.value(),
+                    mid + 2 * Math.sqrt(var), mid, mid - 2 * Math.sqrt(var),
+                    stochK(highest.peek(), lowest.peek(), lastClose), stochD.mean());
+            }
+            // Предварительные значения по формирующемуся бару
+            double close = formingClose;
+            double emaF = emaFast.peekWith(close);
+            double emaS = emaSlow.peekWith(close);
+            double macd = emaF - emaS;
+            double signal = emaSlow.isReadyWith() ? macdSignal.peekWith(macd) : macdSignal.value();
+            double mid = bollinger.meanWith(close);
+            double var = bollinger.varianceWith(close);
+            double rsi = Double.NaN;
+            double atrValue = atr.value();
+            if (bars > 0) {
+                double change = close - lastClose;
+                rsi = rsi(rsiGain.peekWith(Math.max(change, 0.0)), rsiLoss.peekWith(Math.max(-change, 0.0)),
+                    rsiGain.isReadyWith());
+                atrValue = atr.peekWith(trueRange(formingHigh, formingLow, lastClose));
+            }
+            double k = stochK(highest.peekWith(bars, formingHigh), lowest.peekWith(bars, formingLow), close);
+            double d = Double.isNaN(k) ? stochD.mean() : stochD.meanWith(k);
+            return new IndicatorSnapshot(bars + 1, close,
+                smaFast.meanWith(close), smaSlow.meanWith(close), emaF, emaS,
+                macd, signal, macd - signal, rsi, atrValue,
+                mid + 2 * Math.sqrt(var), mid, mid - 2 * Math.sqrt(var), k, d);
+        }
+
+        private static double trueRange(double high, double low, double prevClose) {
+            return Math.max(high - low, Math.max(Math.abs(high - prevClose), Math.abs(low - prevClose)));
+        }
+
+        private static double rsi(double avgGain, double avgLoss, boolean ready) {
+            if (!ready) return Double.NaN;
+            if (avgLoss == 0.0) return 100.0;
+            return 100.0 - 100.0 / (1.0 + avgGain / avgLoss);
+        }
+
+        private static double stochK(double highestHigh, double lowestLow, double close) {
+            double range = highestHigh - lowestLow;
+            if (Double.isNaN(range) || range <= 0) return Double.NaN;
+            return (close - lowestLow) / range * 100.0;
+        }
+    }
+
+    /**
+     * Скользящее окно с суммой и суммой квадратов (SMA, Bollinger)
+     */
+    static final class RollingWindow {
+        private static final int RESYNC_EVERY = 1024;
+        private final double[] values;
+        private int count;
+        private int next;
+        private double sum;
+        private double sumSq;
+        private int pushesSinceResync;
+
+        RollingWindow(int period) {
+            this.values = new double[period];
+        }
+
+        void reset() {
+            count = 0;
+            next = 0;
+            sum = 0.0;
+            sumSq = 0.0;
+            pushesSinceResync = 0;
+        }
+
+        void push(double v) {
+            if (count == values.length) {
+                double old = values[next];
+                sum -= old;
+                sumSq -= old * old;
+            } else {
+                count++;
+            }
+            values[next] = v;
+            next = (next + 1) % values.length;
+            sum += v;
+            sumSq += v * v;
+            // Периодически пересчитываем суммы, чтобы не накапливать ошибку округления
+            if (++pushesSinceResync >= RESYNC_EVERY) {
+                resync();
+            }
+        }
+
+        double mean() {
+            return count > 0 ? sum / count : Double.NaN;
+        }
+
+        double variance() {
+            if (count == 0) return Double.NaN;
+            double m = sum / count;
+            return Math.max(0.0, sumSq / count - m * m);
+        }
+
+        double meanWith(double v) {
+            if (count == values.length) {
+                return (sum - values[next] + v) / count;
+            }
+            return (sum + v) / (count + 1);
+        }
+
+        double varianceWith(double v) {
+            double s;
+            double sq;
+            int n;
+            if (count == values.length) {
+                double old = values[next];
+                s = sum - old + v;
+                sq = sumSq - old * old + v * v;
+                n = count;
+            } else {
+                s = sum + v;
+                sq = sumSq + v * v;
+                n = count + 1;
+            }
+            double m = s / n;
+            return Math.max(0.0, sq / n - m * m);
+        }
+
+        private void resync() {
+            pushesSinceResync = 0;
+            double s = 0.0;
+            double sq = 0.0;
+            for (int i = 0; i < count; i++) {
+                s += values[i];
+                sq += values[i] * values[i];
+            }
+            sum = s;
+            sumSq = sq;
+        }
+    }
+
+    /**
+     * Экспоненциальная средняя, затравка — SMA первых period значений
+     */
+    static final class Ema {
+        private final int period;
+        private final double alpha;
+        private int count;
+        private double seedSum;
+        private double value = Double.NaN;
+
+        Ema(int period) {
+            this.period = period;
+            this.alpha = 2.0 / (period + 1);
+        }
+
+        void reset() {
+            count = 0;
+            seedSum = 0.0;
+            value = Double.NaN;
+        }
+
+        void push(double v) {
+            count++;
+            if (count < period) {
+                seedSum += v;
+                value = seedSum / count;
+            } else if (count == period) {
+                seedSum += v;
+                value = seedSum / period;
+            } else {
+                value = v * alpha + value * (1 - alpha);
+            }
+        }
+
+        boolean isReady() {
+            return count >= period;
+        }
+
+        boolean isReadyWith() {
+            return count + 1 >= period;
+        }
+
+        double value() {
+            return value;
+        }
+
+        double peekWith(double v) {
+            if (count + 1 <= period) {
+                return (seedSum + v) / (count + 1);
+            }
+            return v * alpha + value * (1 - alpha);
+        }
+    }
+
+    /**
+     * Сглаживание Уайлдера (RSI, ATR): первые period значений усредняются, далее avg = (avg * (p - 1) + x) / p
+     */
+    static final class Wilder {
+        private final int period;
+        private int count;
+        private double value = Double.NaN;
+        private double seedSum;
+
+        Wilder(int period) {
+            this.period = period;
+        }
+
+        void reset() {
+            count = 0;
+            seedSum = 0.0;
+            value = Double.NaN;
+        }
+
+        void push(double x) {
+            count++;
+            if (count <= period) {
+                seedSum += x;
+                value = seedSum / count;
+            } else {
+                value = (value * (period - 1) + x) / period;
+            }
+        }
+
+        boolean isReady() {
+            return count >= period;
+        }
+
+        boolean isReadyWith() {
+            return count + 1 >= period;
+        }
+
+        double value() {
+            return value;
+        }
+
+        double peekWith(double x) {
+            if (count + 1 <= period) {
+                return (seedSum + x) / (count + 1);
+            }
+            return (value * (period - 1) + x) / period;
+        }
+    }
+
+    /**
+     * Скользящий максимум/минимум на монотонной очереди (кольцевой буфер на примитивах)
+     */
+    static final class MonotonicWindow {
+        private final int period;
+        private final boolean max;
+        private final long[] seq;
+        private final double[] val;
+        private int head;
+        private int size;
+
+        MonotonicWindow(int period, boolean max) {
+            this.period = period;
+            this.max = max;
+            this.seq = new long[period];
+            this.val = new double[period];
+        }
+
+        void reset() {
+            head = 0;
+            size = 0;
+        }
+
+        void push(long s, double v) {
+            while (size > 0 && seq[head] <= s - period) {
+                head = (head + 1) % period;
+                size--;
+            }
+            while (size > 0) {
+                int back = (head + size - 1) % period;
+                if (max ? val[back] <= v : val[back] >= v) {
+                    size--;
+                } else {
+                    break;
+                }
+            }
+            int idx = (head + size) % period;
+            seq[idx] = s;
+            val[idx] = v;
+            size++;
+        }
+
+        double peek() {
+            return size > 0 ? val[head] : Double.NaN;
+        }
+
+        /**
+         * Экстремум окна, если бы в него было добавлено значение v с номером s (состояние не меняется)
+         */
+        double peekWith(long s, double v) {
+            for (int i = 0; i < size; i++) {
+                int idx = (head + i) % period;
+                if (seq[idx] > s - period) {
+                    return max ? Math.max(val[idx], v) : Math.min(val[idx], v);
+                }
+            }
+            return v;
+        }
+    }
+
+    /**
+     * Неизменяемый снимок индикаторов; NaN — недостаточно данных
+     */
+    public static final class IndicatorSnapshot {
+        private final long bars;
+        private final double lastPrice;
+        private final double smaFast;
+        private final double smaSlow;
+        private final double emaFast;
+        private final double emaSlow;
+        private final double macd;
+        private final double macdSignal;
+        private final double macdHistogram;
+        private final double rsi;
+        private final double atr;
+        private final double bollingerUpper;
+        private final double bollingerMiddle;
+        private final double bollingerLower;
+        private final double stochasticK;
+        private final double stochasticD;
+
+        IndicatorSnapshot(long bars, double lastPrice, double smaFast, double smaSlow, double emaFast, double emaSlow,
+                          double macd, double macdSignal, double macdHistogram, double rsi, double atr,
+                          double bollingerUpper, double bollingerMiddle, double bollingerLower,
+                          double stochasticK, double stochasticD) {
+            this.bars = bars;
+            this.lastPrice = lastPrice;
+            this.smaFast = smaFast;
+            this.smaSlow = smaSlow;
+            this.emaFast = emaFast;
+            this.emaSlow = emaSlow;
+            this.macd = macd;
+            this.macdSignal = macdSignal;
+            this.macdHistogram = macdHistogram;
+            this.rsi = rsi;
+            this.atr = atr;
+            this.bollingerUpper = bollingerUpper;
+            this.bollingerMiddle = bollingerMiddle;
+            this.bollingerLower = bollingerLower;
+            this.stochasticK = stochasticK;
+            this.stochasticD = stochasticD;
+        }
+
+        public long getBars() { return bars; }
+        public double getLastPrice() { return lastPrice; }
+        public double getSmaFast() { return smaFast; }
+        public double getSmaSlow() { return smaSlow; }
+        public double getEmaFast() { return emaFast; }
+        public double getEmaSlow() { return emaSlow; }
+        public double getMacd() { return macd; }
+        public double getMacdSignal() { return macdSignal; }
+        public double getMacdHistogram() { return macdHistogram; }
+        public double getRsi() { return rsi; }
+        public double getAtr() { return atr; }
+        public double getBollingerUpper() { return bollingerUpper; }
+        public double getBollingerMiddle() { return bollingerMiddle; }
+        public double getBollingerLower() { return bollingerLower; }
+        public double getStochasticK() { return stochasticK; }
+        public double getStochasticD() { return stochasticD; }
+    }
+}
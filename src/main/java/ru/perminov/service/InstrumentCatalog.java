@@ -0,0 +1,507 @@
+package ru.perminov.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.perminov.model.Instrument;
+import ru.perminov.repository.InstrumentRepository;
+import ru.tinkoff.piapi.contract.v1.Bond;
+import ru.tinkoff.piapi.contract.v1.Etf;
+import ru.tinkoff.piapi.contract.v1.Quotation;
+import ru.tinkoff.piapi.contract.v1.SecurityTradingStatus;
+import ru.tinkoff.piapi.contract.v1.Share;
+import ru.tinkoff.piapi.core.InstrumentsService;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Справочник инструментов в памяти.
+ * Неизменяемый снимок с индексами по FIGI, тикеру, UID и ISIN: лот, шаг цены, сектор, валюта, статус.
+ * Загружается из таблицы instruments при старте и атомарно заменяется после синхронизации
+ * ({@link InstrumentSyncService}). Полные описания акций, облигаций и фондов при загрузке из БД
+ * восстанавливаются из сохранённых колонок; флага шорта в таблице нет, до первой синхронизации он false.
+ * Строки без лота (записанные до появления колонки lot) для расчёта размера заявки не используются —
+ * лот по ним дозапрашивается из API.
+ * Инструменты вне снимка (валюты, редкие бумаги) дозапрашиваются по одному — через лимитер запросов
+ * и с объединением одновременных вызовов — и хранятся в ограниченном LRU-кэше до замены снимка;
+ * отрицательные ответы истекают через {@link #NEGATIVE_TTL_MS}.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class InstrumentCatalog {
+
+    private static final Entry NOT_FOUND = new Entry(null, null, null, null, null, null, 0, null, null, null, null);
+    private static final Object NO_DESCRIPTION = new Object();
+    private static final int MAX_RESOLVED = 2000;
+    private static final long NEGATIVE_TTL_MS = 10 * 60_000;
+
+    private final InstrumentRepository instrumentRepository;
+    private final InvestApiManager investApiManager;
+    private final ApiRateLimiter apiRateLimiter;
+    private final SingleFlight singleFlight;
+
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    // Дозапрошенные по одному инструменты и описания (и отрицательные ответы) до следующей замены снимка
+    private final Map<String, Resolved> resolved = Collections.synchronizedMap(
+        new LinkedHashMap<String, Resolved>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Resolved> eldest) {
+                return size() > MAX_RESOLVED;
+            }
+        });
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong apiLookups = new AtomicLong();
+    private volatile long loadedAtMs = 0;
+    private volatile String source = "none";
+
+    @PostConstruct
+    public void init() {
+        try {
+            reloadFromDatabase();
+        } catch (Exception e) {
+            log.warn("Справочник инструментов не загружен из БД: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Пересборка снимка из таблицы instruments
+     */
+    public void reloadFromDatabase() {
+        List<Instrument> rows = instrumentRepository.findAll();
+        Map<String, Entry> entries = new HashMap<>(rows.size() * 2);
+        Map<String, Share> shareMap = new HashMap<>();
+        Map<String, Bond> bondMap = new HashMap<>();
+        Map<String, Etf> etfMap = new HashMap<>();
+        for (Instrument row : rows) {
+            if (row.getFigi() == null) continue;
+            entries.put(row.getFigi(), Entry.of(row));
+            if (row.getLot() == null || row.getLot() <= 0) {
+                // Без лота описание неполное — оно будет дозапрошено из API при первом обращении
+                continue;
+            }
+            try {
+                switch (String.valueOf(row.getInstrumentType()).toLowerCase()) {
+                    case "share" -> shareMap.put(row.getFigi(), shareOf(row));
+                    case "bond" -> bondMap.put(row.getFigi(), bondOf(row));
+                    case "etf" -> etfMap.put(row.getFigi(), etfOf(row));
+                    default -> { }
+                }
+            } catch (Exception e) {
+                log.debug("Описание {} не восстановлено из БД: {}", row.getFigi(), e.getMessage());
+            }
+        }
+        swap(new Snapshot(entries, shareMap, bondMap, etfMap), "db");
+    }
+
+    /**
+     * Замена снимка полными списками из API (после синхронизации)
+     */
+    public void replace(Collection<Share> shares, Collection<Bond> bonds, Collection<Etf> etfs) {
+        Map<String, Entry> entries = new HashMap<>((shares.size() + bonds.size() + etfs.size()) * 2);
+        Map<String, Share> shareMap = new HashMap<>(shares.size() * 2);
+        Map<String, Bond> bondMap = new HashMap<>(bonds.size() * 2);
+        Map<String, Etf> etfMap = new HashMap<>(etfs.size() * 2);
+        for (Share s : shares) {
+            entries.put(s.getFigi(), new Entry(s.getFigi(), s.getTicker(), s.getUid(), s.getIsin(), s.getName(), "share",
+                s.getLot(), toBigDecimal(s.getMinPriceIncrement()), s.getSector(), s.getCurrency(), s.getTradingStatus().name()));
+            shareMap.put(s.getFigi(), s);
+        }
+        for (Bond b : bonds) {
+            entries.put(b.getFigi(), new Entry(b.getFigi(), b.getTicker(), b.getUid(), b.getIsin(), b.getName(), "bond",
+                b.getLot(), toBigDecimal(b.getMinPriceIncrement()), b.getSector(), b.getCurrency(), b.getTradingStatus().name()));
+            bondMap.put(b.getFigi(), b);
+        }
+        for (Etf e : etfs) {
+            entries.put(e.getFigi(), new Entry(e.getFigi(), e.getTicker(), e.getUid(), e.getIsin(), e.getName(), "etf",
+                e.getLot(), toBigDecimal(e.getMinPriceIncrement()), e.getSector(), e.getCurrency(), e.getTradingStatus().name()));
+            etfMap.put(e.getFigi(), e);
+        }
+        swap(new Snapshot(entries, shareMap, bondMap, etfMap), "api");
+    }
+
+    /**
+     * Инструмент из снимка, без обращения к API
+     */
+    public Entry get(String figi) {
+        if (figi == null) return null;
+        Entry entry = snapshot.byFigi.get(figi);
+        if (entry == null) {
+            entry = (Entry) cached(figi);
+        }
+        return entry == NOT_FOUND ? null : entry;
+    }
+
+    /**
+     * Инструмент из снимка; при отсутствии — одиночный запрос GetInstrumentBy(FIGI).
+     * Строка БД без лота (до первой синхронизации колонка lot пуста) считается промахом:
+     * размер лота нельзя подменять единицей, иначе заявка окажется в lot раз больше
+     */
+    public Entry resolve(String figi) {
+        if (figi == null || figi.isEmpty()) return null;
+        Entry known = snapshot.byFigi.get(figi);
+        if (known != null && known.lot > 0) {
+            hits.incrementAndGet();
+            return known;
+        }
+        Entry entry = (Entry) cached(figi);
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry == NOT_FOUND ? known : entry;
+        }
+        misses.incrementAndGet();
+        Entry loaded = singleFlight.execute("instrument:" + figi, 0, () -> loadByFigi(figi));
+        if (known != null && loaded != NOT_FOUND) {
+            // Сектор и прочие поля строки БД сохраняем, из API берём только лот и шаг цены
+            loaded = known.withLot(loaded.lot, loaded.minPriceIncrement);
+        }
+        resolved.put(figi, new Resolved(loaded, loaded == NOT_FOUND));
+        return loaded == NOT_FOUND ? known : loaded;
+    }
+
+    public Entry findByTicker(String ticker) {
+        return ticker != null ? snapshot.byTicker.get(ticker) : null;
+    }
+
+    public Entry findByUid(String uid) {
+        return uid != null ? snapshot.byUid.get(uid) : null;
+    }
+
+    public Entry findByIsin(String isin) {
+        return isin != null ? snapshot.byIsin.get(isin) : null;
+    }
+
+    /**
+     * Полные описания из снимка, без обращения к API
+     */
+    public Share getShare(String figi) {
+        return snapshot.shares.get(figi);
+    }
+
+    public Bond getBond(String figi) {
+        return snapshot.bonds.get(figi);
+    }
+
+    public Etf getEtf(String figi) {
+        return snapshot.etfs.get(figi);
+    }
+
+    /**
+     * Полное описание акции: из снимка, при отсутствии — одиночный запрос ShareBy(FIGI)
+     */
+    public Share resolveShare(String figi) {
+        return describe("share", figi, snapshot.shares, s -> s.getShareByFigiSync(figi));
+    }
+
+    public Bond resolveBond(String figi) {
+        return describe("bond", figi, snapshot.bonds, s -> s.getBondByFigiSync(figi));
+    }
+
+    public Etf resolveEtf(String figi) {
+        return describe("etf", figi, snapshot.etfs, s -> s.getEtfByFigiSync(figi));
+    }
+
+    public int size() {
+        return snapshot.byFigi.size();
+    }
+
+    public Map<String, Object> getStats() {
+        Snapshot current = snapshot;
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("instruments", current.byFigi.size());
+        stats.put("tickers", current.byTicker.size());
+        stats.put("uids", current.byUid.size());
+        stats.put("isins", current.byIsin.size());
+        stats.put("source", source);
+        stats.put("loadedAtMs", loadedAtMs);
+        stats.put("resolvedOutsideSnapshot", resolved.size());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("apiLookups", apiLookups.get());
+        return stats;
+    }
+
+    /**
+     * Описание из снимка или кэша; промах грузится один раз на все одновременные вызовы и под лимитером
+     */
+    @SuppressWarnings("unchecked")
+    private <T> T describe(String type, String figi, Map<String, T> fromSnapshot, Function<InstrumentsService, T> loader) {
+        if (figi == null || figi.isEmpty()) return null;
+        T known = fromSnapshot.get(figi);
+        if (known != null) {
+            hits.incrementAndGet();
+            return known;
+        }
+        // Тип известен из справочника и не совпадает — запрос другого типа заведомо бесполезен
+        Entry entry = get(figi);
+        if (entry != null && entry.instrumentType != null && !type.equalsIgnoreCase(entry.instrumentType)) {
+            return null;
+        }
+        String key = type + ":" + figi;
+        Object cached = cached(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return cached == NO_DESCRIPTION ? null : (T) cached;
+        }
+        misses.incrementAndGet();
+        Object loaded = singleFlight.execute("instrument:" + key, 0, () -> {
+            apiLookups.incrementAndGet();
+            try {
+                apiRateLimiter.acquire(ApiRateLimiter.ApiClass.INSTRUMENTS);
+                T value = loader.apply(investApiManager.getCurrentInvestApi().getInstrumentsService());
+                return value != null ? value : NO_DESCRIPTION;
+            } catch (ApiRateLimiter.PermitDeniedException e) {
+                throw e;
+            } catch (Exception e) {
+                log.debug("Инструмент {} ({}) не найден в API: {}", figi, type, e.getMessage());
+                return NO_DESCRIPTION;
+            }
+        });
+        resolved.put(key, new Resolved(loaded, loaded == NO_DESCRIPTION));
+        return loaded == NO_DESCRIPTION ? null : (T) loaded;
+    }
+
+    /**
+     * Значение из кэша дозапрошенных; истёкший отрицательный ответ удаляется
+     */
+    private Object cached(String key) {
+        Resolved r = resolved.get(key);
+        if (r == null) return null;
+        if (r.negative && System.currentTimeMillis() - r.loadedAtMs > NEGATIVE_TTL_MS) {
+            resolved.remove(key, r);
+            return null;
+        }
+        return r.value;
+    }
+
+    private static Share shareOf(Instrument row) {
+        return Share.newBuilder()
+            .setFigi(row.getFigi()).setTicker(text(row.getTicker())).setIsin(text(row.getIsin()))
+            .setUid(text(row.getUid())).setName(text(row.getName())).setCurrency(text(row.getCurrency()))
+            .setExchange(text(row.getExchange())).setSector(text(row.getSector()))
+            .setCountryOfRisk(text(row.getCountryOfRisk())).setCountryOfRiskName(text(row.getCountryOfRiskName()))
+            .setLot(row.getLot() != null ? row.getLot() : 0)
+            .setMinPriceIncrement(quotation(row.getMinPriceIncrement()))
+            .setTradingStatus(tradingStatus(row.getTradingStatus()))
+            .setBuyAvailableFlag(flag(row.getBuyAvailableFlag()))
+            .setSellAvailableFlag(flag(row.getSellAvailableFlag()))
+            .setApiTradeAvailableFlag(flag(row.getApiTradeAvailableFlag()))
+            .build();
+    }
+
+    private static Bond bondOf(Instrument row) {
+        return Bond.newBuilder()
+            .setFigi(row.getFigi()).setTicker(text(row.getTicker())).setIsin(text(row.getIsin()))
+            .setUid(text(row.getUid())).setName(text(row.getName())).setCurrency(text(row.getCurrency()))
+            .setExchange(text(row.getExchange())).setSector(text(row.getSector()))
+            .setCountryOfRisk(text(row.getCountryOfRisk())).setCountryOfRiskName(text(row.getCountryOfRiskName()))
+            .setLot(row.getLot() != null ? row.getLot() : 0)
+            .setMinPriceIncrement(quotation(row.getMinPriceIncrement()))
+            .setTradingStatus(tradingStatus(row.getTradingStatus()))
+            .setBuyAvailableFlag(flag(row.getBuyAvailableFlag()))
+            .setSellAvailableFlag(flag(row.getSellAvailableFlag()))
+            .setApiTradeAvailableFlag(flag(row.getApiTradeAvailableFlag()))
+            .build();
+    }
+
+    private static Etf etfOf(Instrument row) {
+        return Etf.newBuilder()
+            .setFigi(row.getFigi()).setTicker(text(row.getTicker())).setIsin(text(row.getIsin()))
+            .setUid(text(row.getUid())).setName(text(row.getName())).setCurrency(text(row.getCurrency()))
+            .setExchange(text(row.getExchange())).setSector(text(row.getSector()))
+            .setCountryOfRisk(text(row.getCountryOfRisk())).setCountryOfRiskName(text(row.getCountryOfRiskName()))
+            .setLot(row.getLot() != null ? row.getLot() : 0)
+            .setMinPriceIncrement(quotation(row.getMinPriceIncrement()))
+            .setTradingStatus(tradingStatus(row.getTradingStatus()))
+            .setBuyAvailableFlag(flag(row.getBuyAvailableFlag()))
+            .setSellAvailableFlag(flag(row.getSellAvailableFlag()))
+            .setApiTradeAvailableFlag(flag(row.getApiTradeAvailableFlag()))
+            .build();
+    }
+
+    private static String text(String value) {
+        return value != null ? value : "";
+    }
+
+    private static boolean flag(String value) {
+        return Boolean.parseBoolean(value);
+    }
+
+    private static SecurityTradingStatus tradingStatus(String value) {
+        try {
+            return value != null ? SecurityTradingStatus.valueOf(value) : SecurityTradingStatus.SECURITY_TRADING_STATUS_UNSPECIFIED;
+        } catch (IllegalArgumentException e) {
+            return SecurityTradingStatus.SECURITY_TRADING_STATUS_UNSPECIFIED;
+        }
+    }
+
+    private static Quotation quotation(String value) {
+        if (value == null || value.isBlank()) return Quotation.getDefaultInstance();
+        try {
+            BigDecimal decimal = new BigDecimal(value);
+            BigDecimal units = new BigDecimal(decimal.toBigInteger());
+            int nano = decimal.subtract(units).movePointRight(9).intValue();
+            return Quotation.newBuilder().setUnits(units.longValue()).setNano(nano).build();
+        } catch (NumberFormatException e) {
+            return Quotation.getDefaultInstance();
+        }
+    }
+
+    private void swap(Snapshot next, String from) {
+        snapshot = next;
+        resolved.clear();
+        loadedAtMs = System.currentTimeMillis();
+        source = from;
+        log.info("📚 Справочник инструментов обновлён из {}: {} инструментов", from, next.byFigi.size());
+    }
+
+    private Entry loadByFigi(String figi) {
+        apiLookups.incrementAndGet();
+        try {
+            apiRateLimiter.acquire(ApiRateLimiter.ApiClass.INSTRUMENTS);
+            ru.tinkoff.piapi.contract.v1.Instrument i = investApiManager.getCurrentInvestApi()
+                .getInstrumentsService().getInstrumentByFigiSync(figi);
+            return new Entry(i.getFigi(), i.getTicker(), i.getUid(), i.getIsin(), i.getName(),
+                i.getInstrumentType().toLowerCase(), i.getLot(), toBigDecimal(i.getMinPriceIncrement()),
+                null, i.getCurrency(), i.getTradingStatus().name());
+        } catch (ApiRateLimiter.PermitDeniedException e) {
+            throw e; // запроса не было — отрицательный ответ не запоминаем
+        } catch (Exception e) {
+            log.debug("Инструмент {} не найден в API: {}", figi, e.getMessage());
+            return NOT_FOUND;
+        }
+    }
+
+    private static BigDecimal toBigDecimal(Quotation q) {
+        if (q == null || (q.getUnits() == 0 && q.getNano() == 0)) return null;
+        return BigDecimal.valueOf(q.getUnits()).add(BigDecimal.valueOf(q.getNano(), 9)).stripTrailingZeros();
+    }
+
+    /**
+     * Дозапрошенное значение и время загрузки; отрицательные ответы истекают
+     */
+    private static final class Resolved {
+        final Object value;
+        final boolean negative;
+        final long loadedAtMs = System.currentTimeMillis();
+
+        Resolved(Object value, boolean negative) {
+            this.value = value;
+            this.negative = negative;
+        }
+    }
+
+    private static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(Map.of(), Map.of(), Map.of(), Map.of());
+
+        final Map<String, Entry> byFigi;
+        final Map<String, Entry> byTicker;
+        final Map<String, Entry> byUid;
+        final Map<String, Entry> byIsin;
+        final Map<String, Share> shares;
+        final Map<String, Bond> bonds;
+        final Map<String, Etf> etfs;
+
+        Snapshot(Map<String, Entry> byFigi, Map<String, Share> shares, Map<String, Bond> bonds, Map<String, Etf> etfs) {
+            Map<String, Entry> tickers = new HashMap<>(byFigi.size() * 2);
+            Map<String, Entry> uids = new HashMap<>(byFigi.size() * 2);
+            Map<String, Entry> isins = new HashMap<>(byFigi.size() * 2);
+            for (Entry entry : byFigi.values()) {
+                // Тикер/ISIN могут повторяться на разных площадках — берём первый, акции приоритетнее
+                putIndex(tickers, entry.ticker, entry);
+                putIndex(uids, entry.uid, entry);
+                putIndex(isins, entry.isin, entry);
+            }
+            this.byFigi = Map.copyOf(byFigi);
+            this.byTicker = Map.copyOf(tickers);
+            this.byUid = Map.copyOf(uids);
+            this.byIsin = Map.copyOf(isins);
+            this.shares = Map.copyOf(shares);
+            this.bonds = Map.copyOf(bonds);
+            this.etfs = Map.copyOf(etfs);
+        }
+
+        private static void putIndex(Map<String, Entry> index, String key, Entry entry) {
+            if (key == null || key.isEmpty()) return;
+            Entry existing = index.get(key);
+            if (existing == null || (!"share".equals(existing.instrumentType) && "share".equals(entry.instrumentType))) {
+                index.put(key, entry);
+            }
+        }
+    }
+
+    /**
+     * Справочные данные одного инструмента
+     */
+    public static final class Entry {
+        private final String figi;
+        private final String ticker;
+        private final String uid;
+        private final String isin;
+        private final String name;
+        private final String instrumentType;
+        private final int lot;
+        private final BigDecimal minPriceIncrement;
+        private final String sector;
+        private final String currency;
+        private final String tradingStatus;
+
+        Entry(String figi, String ticker, String uid, String isin, String name, String instrumentType, int lot,
+              BigDecimal minPriceIncrement, String sector, String currency, String tradingStatus) {
+            this.figi = figi;
+            this.ticker = ticker;
+            this.uid = uid;
+            this.isin = isin;
+            this.name = name;
+            this.instrumentType = instrumentType;
+            this.lot = lot;
+            this.minPriceIncrement = minPriceIncrement;
+            this.sector = sector;
+            this.currency = currency;
+            this.tradingStatus = tradingStatus;
+        }
+
+        static Entry of(Instrument row) {
+            BigDecimal increment = null;
+            if (row.getMinPriceIncrement() != null && !row.getMinPriceIncrement().isBlank()) {
+                try {
+                    increment = new BigDecimal(row.getMinPriceIncrement());
+                } catch (NumberFormatException ignore) {
+                    // в старых строках поле могло храниться не числом
+                }
+            }
+            return new Entry(row.getFigi(), row.getTicker(), row.getUid(), row.getIsin(), row.getName(),
+                row.getInstrumentType(), row.getLot() != null ? row.getLot() : 0, increment,
+                row.getSector(), row.getCurrency(), row.getTradingStatus());
+        }
+
+        Entry withLot(int lot, BigDecimal minPriceIncrement) {
+            return new Entry(figi, ticker, uid, isin, name, instrumentType, lot,
+                this.minPriceIncrement != null ? this.minPriceIncrement : minPriceIncrement,
+                sector, currency, tradingStatus);
+        }
+
+        public String getFigi() { return figi; }
+        public String getTicker() { return ticker; }
+        public String getUid() { return uid; }
+        public String getIsin() { return isin; }
+        public String getName() { return name; }
+        public String getInstrumentType() { return instrumentType; }
+        public int getLot() { return lot; }
+        public BigDecimal getMinPriceIncrement() { return minPriceIncrement; }
+        public String getSector() { return sector; }
+        public String getCurrency() { return currency; }
+        public String getTradingStatus() { return tradingStatus; }
+    }
+}
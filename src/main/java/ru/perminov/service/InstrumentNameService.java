@@ -3,12 +3,7 @@ package ru.perminov.service;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
-import ru.tinkoff.piapi.contract.v1.Share;
-import ru.tinkoff.piapi.contract.v1.Bond;
-import ru.tinkoff.piapi.contract.v1.Etf;
-import ru.tinkoff.piapi.contract.v1.Currency;
 
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
 
 @Service
@@ -16,55 +11,18 @@ import java.util.Map;
 @Slf4j
 public class InstrumentNameService {
     
-    private final InvestApiManager investApiManager;
-    
-    // Кэш для названий инструментов
-    private final Map<String, String> instrumentNameCache = new ConcurrentHashMap<>();
-    private final Map<String, String> tickerCache = new ConcurrentHashMap<>();
+    private final InstrumentCatalog instrumentCatalog;
     
     /**
      * Получение реального названия инструмента по FIGI
      */
     public String getInstrumentName(String figi, String instrumentType) {
         try {
-            // Проверяем кэш
-            String cachedName = instrumentNameCache.get(figi);
-            if (cachedName != null) {
-                return cachedName;
-            }
-            
-            // Отладочное логирование для VK
-            if (figi.startsWith("TCS") && figi.length() > 20) {
-                log.info("DEBUG: Получение названия для VK-подобного инструмента (тип: {})", instrumentType);
-            }
-            
-            String name = null;
-            
-            switch (instrumentType) {
-                case "share":
-                    name = getShareName(figi);
-                    break;
-                case "bond":
-                    name = getBondName(figi);
-                    break;
-                case "etf":
-                    name = getEtfName(figi);
-                    break;
-                case "currency":
-                    name = getCurrencyName(figi);
-                    break;
-                default:
-                    name = getFallbackName(figi, instrumentType);
-                    break;
-            }
-            
-            // Сохраняем в кэш
-            if (name != null && !name.isEmpty()) {
-                instrumentNameCache.put(figi, name);
-                log.debug("Получено название: {}", name);
+            InstrumentCatalog.Entry entry = instrumentCatalog.resolve(figi);
+            if (entry != null && entry.getName() != null && !entry.getName().isEmpty()) {
+                return entry.getName();
             }
-            
-            return name;
+            return isKnownType(instrumentType) ? null : getFallbackName(figi, instrumentType);
             
         } catch (Exception e) {
             log.warn("Ошибка получения названия: {}", e.getMessage());
@@ -77,39 +35,11 @@ public class InstrumentNameService {
      */
     public String getTicker(String figi, String instrumentType) {
         try {
-            // Проверяем кэш
-            String cachedTicker = tickerCache.get(figi);
-            if (cachedTicker != null) {
-                return cachedTicker;
-            }
-            
-            String ticker = null;
-            
-            switch (instrumentType) {
-                case "share":
-                    ticker = getShareTicker(figi);
-                    break;
-                case "bond":
-                    ticker = getBondTicker(figi);
-                    break;
-                case "etf":
-                    ticker = getEtfTicker(figi);
-                    break;
-                case "currency":
-                    ticker = getCurrencyTicker(figi);
-                    break;
-                default:
-                    ticker = getFallbackTicker(figi);
-                    break;
+            InstrumentCatalog.Entry entry = instrumentCatalog.resolve(figi);
+            if (entry != null && entry.getTicker() != null && !entry.getTicker().isEmpty()) {
+                return entry.getTicker();
             }
-            
-            // Сохраняем в кэш
-            if (ticker != null && !ticker.isEmpty()) {
-                tickerCache.put(figi, ticker);
-                log.debug("Получен тикер: {}", ticker);
-            }
-            
-            return ticker;
+            return isKnownType(instrumentType) ? null : getFallbackTicker(figi);
             
         } catch (Exception e) {
             log.warn("Ошибка получения тикера: {}", e.getMessage());
@@ -117,132 +47,12 @@ public class InstrumentNameService {
         }
     }
     
-    private String getShareName(String figi) {
-        try {
-            Share share = investApiManager.getCurrentInvestApi()
-                .getInstrumentsService()
-                .getShareByFigiSync(figi);
-            
-            if (share != null) {
-                return share.getName();
-            }
-        } catch (Exception e) {
-            log.debug("Не удалось получить акцию: {}", e.getMessage());
-            return null;
-        }
-        return null;
-    }
-    
-    private String getBondName(String figi) {
-        try {
-            Bond bond = investApiManager.getCurrentInvestApi()
-                .getInstrumentsService()
-                .getBondByFigiSync(figi);
-            
-            if (bond != null) {
-                return bond.getName();
-            }
-        } catch (Exception e) {
-            log.debug("Не удалось получить облигацию: {}", e.getMessage());
-            return null;
-        }
-        return null;
-    }
-    
-    private String getEtfName(String figi) {
-        try {
-            Etf etf = investApiManager.getCurrentInvestApi()
-                .getInstrumentsService()
-                .getEtfByFigiSync(figi);
-            
-            if (etf != null) {
-                return etf.getName();
-            }
-        } catch (Exception e) {
-            log.debug("Не удалось получить ETF: {}", e.getMessage());
-            return null;
-        }
-        return null;
-    }
-    
-    private String getCurrencyName(String figi) {
-        try {
-            Currency currency = investApiManager.getCurrentInvestApi()
-                .getInstrumentsService()
-                .getCurrencyByFigiSync(figi);
-            
-            if (currency != null) {
-                return currency.getName();
-            }
-        } catch (Exception e) {
-            log.debug("Не удалось получить валюту: {}", e.getMessage());
-            return null;
-        }
-        return null;
-    }
-    
-    private String getShareTicker(String figi) {
-        try {
-            Share share = investApiManager.getCurrentInvestApi()
-                .getInstrumentsService()
-                .getShareByFigiSync(figi);
-            
-            if (share != null) {
-                return share.getTicker();
-            }
-        } catch (Exception e) {
-            log.debug("Не удалось получить тикер акции: {}", e.getMessage());
-            return null;
-        }
-        return null;
-    }
-    
-    private String getBondTicker(String figi) {
-        try {
-            Bond bond = investApiManager.getCurrentInvestApi()
-                .getInstrumentsService()
-                .getBondByFigiSync(figi);
-            
-            if (bond != null) {
-                return bond.getTicker();
-            }
-        } catch (Exception e) {
-            log.debug("Не удалось получить тикер облигации: {}", e.getMessage());
-            return null;
-        }
-        return null;
-    }
-    
-    private String getEtfTicker(String figi) {
-        try {
-            Etf etf = investApiManager.getCurrentInvestApi()
-                .getInstrumentsService()
-                .getEtfByFigiSync(figi);
-            
-            if (etf != null) {
-                return etf.getTicker();
-            }
-        } catch (Exception e) {
-            log.debug("Не удалось получить тикер ETF: {}", e.getMessage());
-            return null;
-        }
-        return null;
-    }
-    
-    private String getCurrencyTicker(String figi) {
-        try {
-            Currency currency = investApiManager.getCurrentInvestApi()
-                .getInstrumentsService()
-                .getCurrencyByFigiSync(figi);
-            
-            if (currency != null) {
-                return currency.getTicker();
-            }
-        } catch (Exception e) {
-            log.debug("Не удалось получить тикер валюты: {}", e.getMessage());
-            return null;
-        }
-        return null;
+    /**
+     * Для известных типов справочник — единственный источник; шаблонные имена только для прочих
+     */
+    private boolean isKnownType(String instrumentType) {
+        return "share".equals(instrumentType) || "bond".equals(instrumentType)
+            || "etf".equals(instrumentType) || "currency".equals(instrumentType);
     }
     
     private String getFallbackName(String figi, String instrumentType) {
@@ -370,11 +180,10 @@ public class InstrumentNameService {
     }
     
     /**
-     * Очистка кэша
+     * Очистка кэша: справочник перечитывается из БД, дозапрошенные инструменты сбрасываются
      */
     public void clearCache() {
-        instrumentNameCache.clear();
-        tickerCache.clear();
+        instrumentCatalog.reloadFromDatabase();
         log.info("Кэш названий инструментов очищен");
     }
     
@@ -382,10 +191,6 @@ public class InstrumentNameService {
      * Получение статистики кэша
      */
     public Map<String, Object> getCacheStats() {
-        Map<String, Object> stats = new java.util.HashMap<>();
-        stats.put("instrumentNamesCount", instrumentNameCache.size());
-        stats.put("tickersCount", tickerCache.size());
-        stats.put("totalCacheSize", instrumentNameCache.size() + tickerCache.size());
-        return stats;
+        return instrumentCatalog.getStats();
     }
 }
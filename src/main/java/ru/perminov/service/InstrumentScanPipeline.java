@@ -0,0 +1,179 @@
+package ru.perminov.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Параллельный конвейер сканирования инструментов.
+ * Каждый инструмент анализируется в своём виртуальном потоке; число одновременно анализируемых
+ * инструментов ограничено семафором (scan.max_concurrency), а темп обращений к брокеру — самим
+ * {@link ApiRateLimiter}, на котором виртуальные потоки ждут без занятия платформенных потоков.
+ * Сканирование ограничено дедлайном цикла: по его истечении незавершённые задачи отменяются.
+ * Лучшие результаты отбираются min-кучей размера K без сортировки всего списка.
+ * Задачи выполняются в цикле анализа вызывающего потока ({@link AnalysisContext#bind}).
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class InstrumentScanPipeline {
+
+    private final TradingSettingsService settingsService;
+    private final AnalysisContext analysisContext;
+
+    private final AtomicLong scans = new AtomicLong();
+    private final AtomicLong analyzed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong timedOut = new AtomicLong();
+    private volatile long lastScanMs = 0;
+    private volatile int lastScanSize = 0;
+
+    /**
+     * Сканирует элементы и возвращает до {@code topK} лучших результатов (по убыванию {@code order}).
+     * Задача может вернуть null — такой элемент пропускается; исключения задачи считаются сбоем элемента.
+     */
+    public <T, R> ScanResult<R> scan(List<T> items, Function<T, R> task, Comparator<R> order, int topK) {
+        long deadlineMs = settingsService.getInt("scan.deadline_ms", 60000);
+        int maxConcurrency = Math.max(1, settingsService.getInt("scan.max_concurrency", 8));
+        return scan(items, task, order, topK, maxConcurrency, deadlineMs);
+    }
+
+    public <T, R> ScanResult<R> scan(List<T> items, Function<T, R> task, Comparator<R> order,
+                                     int topK, int maxConcurrency, long deadlineMs) {
+        long startNanos = System.nanoTime();
+        long deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(deadlineMs);
+        // Min-куча: в вершине худший из отобранных, вытесняется более сильным кандидатом
+        PriorityQueue<R> heap = new PriorityQueue<>(Math.max(1, topK), order);
+        Semaphore permits = new Semaphore(maxConcurrency);
+        int ok = 0;
+        int errors = 0;
+        int cancelled = 0;
+
+        // Не try-with-resources: close() ждал бы отменённые задачи, а дедлайн должен возвращать управление сразу
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        try {
+            CompletionService<R> completion = new ExecutorCompletionService<>(executor);
+            List<Future<R>> futures = new ArrayList<>(items.size());
+            for (T item : items) {
+                Supplier<R> analysis = analysisContext.bind(() -> task.apply(item));
+                futures.add(completion.submit(() -> {
+                    permits.acquire();
+                    try {
+                        return analysis.get();
+                    } finally {
+                        permits.release();
+                    }
+                }));
+            }
+
+            int pending = futures.size();
+            while (pending > 0) {
+                long remaining = deadlineNanos - System.nanoTime();
+                Future<R> done = remaining > 0 ? completion.poll(remaining, TimeUnit.NANOSECONDS) : null;
+                if (done == null) {
+                    break; // дедлайн цикла
+                }
+                pending--;
+                try {
+                    R result = done.get();
+                    ok++;
+                    if (result != null && topK > 0) {
+                        if (heap.size() < topK) {
+                            heap.add(result);
+                        } else if (order.compare(result, heap.peek()) > 0) {
+                            heap.poll();
+                            heap.add(result);
+                        }
+                    }
+                } catch (ExecutionException e) {
+                    errors++;
+                    log.debug("Сбой анализа элемента при сканировании: {}", e.getCause() != null ? e.getCause().getMessage() : e.getMessage());
+                }
+            }
+
+            if (pending > 0) {
+                for (Future<R> f : futures) {
+                    if (!f.isDone() && f.cancel(true)) {
+                        cancelled++;
+                    }
+                }
+                log.warn("⏱️ Сканирование прервано по дедлайну {} мс: не успели {} из {}", deadlineMs, pending, items.size());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Сканирование инструментов прервано");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<R> top = new ArrayList<>(heap);
+        top.sort(order.reversed());
+        long durationMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+
+        scans.incrementAndGet();
+        analyzed.addAndGet(ok);
+        failed.addAndGet(errors);
+        timedOut.addAndGet(cancelled);
+        lastScanMs = durationMs;
+        lastScanSize = items.size();
+
+        return new ScanResult<>(top, items.size(), ok, errors, cancelled, durationMs);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("scans", scans.get());
+        stats.put("analyzed", analyzed.get());
+        stats.put("failed", failed.get());
+        stats.put("timedOut", timedOut.get());
+        stats.put("lastScanMs", lastScanMs);
+        stats.put("lastScanSize", lastScanSize);
+        return stats;
+    }
+
+    /**
+     * Итог одного сканирования
+     */
+    public static class ScanResult<R> {
+        private final List<R> top;
+        private final int total;
+        private final int completed;
+        private final int failed;
+        private final int cancelled;
+        private final long durationMs;
+
+        public ScanResult(List<R> top, int total, int completed, int failed, int cancelled, long durationMs) {
+            this.top = top;
+            this.total = total;
+            this.completed = completed;
+            this.failed = failed;
+            this.cancelled = cancelled;
+            this.durationMs = durationMs;
+        }
+
+        public List<R> getTop() { return top; }
+        public int getTotal() { return total; }
+        public int getCompleted() { return completed; }
+        public int getFailed() { return failed; }
+        public int getCancelled() { return cancelled; }
+        public long getDurationMs() { return durationMs; }
+    }
+}
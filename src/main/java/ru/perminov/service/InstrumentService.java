@@ -19,6 +19,7 @@ import java.util.stream.Collectors;
 @Slf4j
 public class InstrumentService {
     private final InvestApiManager investApiManager;
+    private final InstrumentCatalog instrumentCatalog;
 
     public List<Share> getAllShares() throws ExecutionException, InterruptedException {
         return investApiManager.getCurrentInvestApi().getInstrumentsService().getAllShares().get();
@@ -72,27 +73,19 @@ public class InstrumentService {
         return tradableEtfs;
     }
 
-    public Share getShareByFigi(String figi) throws ExecutionException, InterruptedException {
-        List<Share> shares = getAllShares();
-        return shares.stream()
-                .filter(share -> share.getFigi().equals(figi))
-                .findFirst()
-                .orElse(null);
+    /**
+     * Поиск по FIGI: сначала справочник в памяти, при промахе — одиночный запрос через справочник
+     * (под лимитером, одновременные запросы одного FIGI объединяются)
+     */
+    public Share getShareByFigi(String figi) {
+        return instrumentCatalog.resolveShare(figi);
     }
 
-    public Bond getBondByFigi(String figi) throws ExecutionException, InterruptedException {
-        List<Bond> bonds = getAllBonds();
-        return bonds.stream()
-                .filter(bond -> bond.getFigi().equals(figi))
-                .findFirst()
-                .orElse(null);
+    public Bond getBondByFigi(String figi) {
+        return instrumentCatalog.resolveBond(figi);
     }
 
-    public Etf getEtfByFigi(String figi) throws ExecutionException, InterruptedException {
-        List<Etf> etfs = getAllEtfs();
-        return etfs.stream()
-                .filter(etf -> etf.getFigi().equals(figi))
-                .findFirst()
-                .orElse(null);
+    public Etf getEtfByFigi(String figi) {
+        return instrumentCatalog.resolveEtf(figi);
     }
-} 
\ No newline at end of file
+}
@@ -2,49 +2,251 @@ package ru.perminov.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.model.Instrument;
-import ru.perminov.repository.InstrumentRepository;
 import ru.tinkoff.piapi.contract.v1.Share;
 import ru.tinkoff.piapi.contract.v1.Bond;
 import ru.tinkoff.piapi.contract.v1.Etf;
+import ru.tinkoff.piapi.contract.v1.Quotation;
 
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 
+/**
+ * Синхронизация справочника инструментов с брокером.
+ * По каждому инструменту считается хэш синхронизируемых полей; в БД пишутся только новые и изменившиеся
+ * строки пакетным JDBC-upsert (INSERT ... ON CONFLICT), исчезнувшие из выдачи брокера удаляются.
+ * Пакеты коммитятся по отдельности — длинная транзакция на весь справочник не держится.
+ * Несинхронизируемые колонки таблицы upsert не затрагивает.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class InstrumentSyncService {
 
+    private static final String UPSERT_SQL =
+        "INSERT INTO instruments (figi, ticker, isin, name, currency, exchange, sector, country_of_risk, " +
+        "country_of_risk_name, instrument_type, trading_status, min_price_increment, lot, uid, " +
+        "buy_available_flag, sell_available_flag, api_trade_available_flag) " +
+        "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+        "ON CONFLICT (figi) DO UPDATE SET ticker = EXCLUDED.ticker, isin = EXCLUDED.isin, name = EXCLUDED.name, " +
+        "currency = EXCLUDED.currency, exchange = EXCLUDED.exchange, sector = EXCLUDED.sector, " +
+        "country_of_risk = EXCLUDED.country_of_risk, country_of_risk_name = EXCLUDED.country_of_risk_name, " +
+        "instrument_type = EXCLUDED.instrument_type, trading_status = EXCLUDED.trading_status, " +
+        "min_price_increment = EXCLUDED.min_price_increment, lot = EXCLUDED.lot, uid = EXCLUDED.uid, " +
+        "buy_available_flag = EXCLUDED.buy_available_flag, sell_available_flag = EXCLUDED.sell_available_flag, " +
+        "api_trade_available_flag = EXCLUDED.api_trade_available_flag";
+
+    private static final String SELECT_SYNCED_SQL =
+        "SELECT figi, ticker, isin, name, currency, exchange, sector, country_of_risk, country_of_risk_name, " +
+        "instrument_type, trading_status, min_price_increment, lot, uid, buy_available_flag, sell_available_flag, " +
+        "api_trade_available_flag FROM instruments";
+
     private final InstrumentService instrumentService;
-    private final InstrumentRepository instrumentRepository;
+    private final InstrumentCatalog instrumentCatalog;
+    private final JdbcTemplate jdbcTemplate;
+    private final TradingSettingsService settingsService;
+
+    // Хэши синхронизируемых полей того, что сейчас лежит в БД (figi -> hash)
+    private final Map<String, Long> storedHashes = new HashMap<>();
+    private boolean storedHashesLoaded = false;
+    private volatile int storedCount = 0;
 
+    private volatile SyncReport lastReport;
+    private volatile long runs = 0;
+    private volatile long failures = 0;
+
+    @SchedulerLane(SchedulerLane.Lane.ANALYTICS)
     @Scheduled(fixedRate = 3600_000)
     public void syncInstrumentsHourly() {
         try {
             log.info("Синхронизация инструментов в БД...");
-            List<Instrument> toSave = new ArrayList<>();
+            SyncReport report = sync();
+            log.info("Синхронизация инструментов: добавлено {}, изменено {}, удалено {}, без изменений {} за {} мс",
+                report.getAdded(), report.getChanged(), report.getRemoved(), report.getUnchanged(), report.getDurationMs());
+        } catch (Exception e) {
+            failures++;
+            log.warn("Ошибка синхронизации инструментов: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Полный проход синхронизации; проходы сериализованы, хэши меняются только внутри прохода
+     */
+    synchronized SyncReport sync() throws Exception {
+        long start = System.currentTimeMillis();
+        runs++;
+        List<Share> shares = instrumentService.getAllShares();
+        List<Bond> bonds = instrumentService.getAllBonds();
+        List<Etf> etfs = instrumentService.getAllEtfs();
 
-            for (Share s : instrumentService.getAllShares()) {
-                Instrument i = mapShare(s);
-                toSave.add(i);
+        List<Instrument> fetched = new ArrayList<>(shares.size() + bonds.size() + etfs.size());
+        shares.forEach(s -> fetched.add(mapShare(s)));
+        bonds.forEach(b -> fetched.add(mapBond(b)));
+        etfs.forEach(e -> fetched.add(mapEtf(e)));
+
+        if (!storedHashesLoaded) {
+            loadStoredHashes();
+        }
+
+        Map<String, Long> fetchedHashes = new HashMap<>(fetched.size() * 2);
+        List<Instrument> dirty = new ArrayList<>();
+        int added = 0;
+        int changed = 0;
+        for (Instrument instrument : fetched) {
+            long hash = hash(instrument);
+            if (fetchedHashes.put(instrument.getFigi(), hash) != null) {
+                continue; // дубликат FIGI в выдаче
             }
-            for (Bond b : instrumentService.getAllBonds()) {
-                Instrument i = mapBond(b);
-                toSave.add(i);
+            Long stored = storedHashes.get(instrument.getFigi());
+            if (stored == null) {
+                added++;
+                dirty.add(instrument);
+            } else if (stored != hash) {
+                changed++;
+                dirty.add(instrument);
             }
-            for (Etf e : instrumentService.getAllEtfs()) {
-                Instrument i = mapEtf(e);
-                toSave.add(i);
+        }
+
+        List<String> removedFigis = new ArrayList<>();
+        for (String figi : storedHashes.keySet()) {
+            if (!fetchedHashes.containsKey(figi)) {
+                removedFigis.add(figi);
             }
+        }
+        // Защита от неполной выдачи API: массовое удаление справочника не выполняем
+        if (!removedFigis.isEmpty() && removedFigis.size() > storedHashes.size() / 2) {
+            log.warn("⚠️ Брокер не вернул {} из {} известных инструментов — удаление пропущено",
+                removedFigis.size(), storedHashes.size());
+            removedFigis.clear();
+        }
 
-            instrumentRepository.saveAll(toSave);
-            log.info("Сохранено/обновлено инструментов: {}", toSave.size());
-        } catch (Exception e) {
-            log.warn("Ошибка синхронизации инструментов: {}", e.getMessage());
+        int batchSize = Math.max(1, settingsService.getInt("instruments.sync.batch_size", 500));
+        upsert(dirty, batchSize);
+        delete(removedFigis, batchSize);
+
+        for (Instrument instrument : dirty) {
+            storedHashes.put(instrument.getFigi(), fetchedHashes.get(instrument.getFigi()));
+        }
+        removedFigis.forEach(storedHashes::remove);
+        storedCount = storedHashes.size();
+
+        // Справочник в памяти переключается на свежие данные одним присваиванием
+        instrumentCatalog.replace(shares, bonds, etfs);
+
+        SyncReport report = new SyncReport(fetched.size(), added, changed, removedFigis.size(),
+            fetchedHashes.size() - added - changed, System.currentTimeMillis() - start, System.currentTimeMillis());
+        lastReport = report;
+        return report;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("runs", runs);
+        stats.put("failures", failures);
+        stats.put("storedInstruments", storedCount);
+        SyncReport report = lastReport;
+        if (report != null) {
+            stats.put("lastFetched", report.getFetched());
+            stats.put("lastAdded", report.getAdded());
+            stats.put("lastChanged", report.getChanged());
+            stats.put("lastRemoved", report.getRemoved());
+            stats.put("lastUnchanged", report.getUnchanged());
+            stats.put("lastDurationMs", report.getDurationMs());
+            stats.put("lastFinishedAtMs", report.getFinishedAtMs());
         }
+        return stats;
+    }
+
+    private void loadStoredHashes() {
+        storedHashes.clear();
+        jdbcTemplate.query(SELECT_SYNCED_SQL, rs -> {
+            Instrument i = new Instrument();
+            i.setFigi(rs.getString("figi"));
+            i.setTicker(rs.getString("ticker"));
+            i.setIsin(rs.getString("isin"));
+            i.setName(rs.getString("name"));
+            i.setCurrency(rs.getString("currency"));
+            i.setExchange(rs.getString("exchange"));
+            i.setSector(rs.getString("sector"));
+            i.setCountryOfRisk(rs.getString("country_of_risk"));
+            i.setCountryOfRiskName(rs.getString("country_of_risk_name"));
+            i.setInstrumentType(rs.getString("instrument_type"));
+            i.setTradingStatus(rs.getString("trading_status"));
+            i.setMinPriceIncrement(rs.getString("min_price_increment"));
+            int lot = rs.getInt("lot");
+            i.setLot(rs.wasNull() ? null : lot);
+            i.setUid(rs.getString("uid"));
+            i.setBuyAvailableFlag(rs.getString("buy_available_flag"));
+            i.setSellAvailableFlag(rs.getString("sell_available_flag"));
+            i.setApiTradeAvailableFlag(rs.getString("api_trade_available_flag"));
+            storedHashes.put(i.getFigi(), hash(i));
+        });
+        storedHashesLoaded = true;
+        log.info("Загружены хэши {} инструментов из БД", storedHashes.size());
+    }
+
+    private void upsert(List<Instrument> rows, int batchSize) {
+        if (rows.isEmpty()) return;
+        jdbcTemplate.batchUpdate(UPSERT_SQL, rows, batchSize, (ps, i) -> {
+            ps.setString(1, i.getFigi());
+            ps.setString(2, i.getTicker());
+            ps.setString(3, i.getIsin());
+            ps.setString(4, i.getName());
+            ps.setString(5, i.getCurrency());
+            ps.setString(6, i.getExchange());
+            ps.setString(7, i.getSector());
+            ps.setString(8, i.getCountryOfRisk());
+            ps.setString(9, i.getCountryOfRiskName());
+            ps.setString(10, i.getInstrumentType());
+            ps.setString(11, i.getTradingStatus());
+            ps.setString(12, i.getMinPriceIncrement());
+            if (i.getLot() != null) {
+                ps.setInt(13, i.getLot());
+            } else {
+                ps.setNull(13, Types.INTEGER);
+            }
+            ps.setString(14, i.getUid());
+            ps.setString(15, i.getBuyAvailableFlag());
+            ps.setString(16, i.getSellAvailableFlag());
+            ps.setString(17, i.getApiTradeAvailableFlag());
+        });
+    }
+
+    private void delete(List<String> figis, int batchSize) {
+        if (figis.isEmpty()) return;
+        jdbcTemplate.batchUpdate("DELETE FROM instruments WHERE figi = ?", figis, batchSize,
+            (ps, figi) -> ps.setString(1, figi));
+    }
+
+    /**
+     * 64-битный FNV-1a по синхронизируемым полям
+     */
+    private static long hash(Instrument i) {
+        long h = 0xcbf29ce484222325L;
+        for (Object field : new Object[] {i.getTicker(), i.getIsin(), i.getName(), i.getCurrency(), i.getExchange(),
+                i.getSector(), i.getCountryOfRisk(), i.getCountryOfRiskName(), i.getInstrumentType(),
+                i.getTradingStatus(), i.getMinPriceIncrement(), i.getLot(), i.getUid(),
+                i.getBuyAvailableFlag(), i.getSellAvailableFlag(), i.getApiTradeAvailableFlag()}) {
+            byte[] bytes = Objects.toString(field, "\u0000").getBytes(StandardCharsets.UTF_8);
+            for (byte b : bytes) {
+                h ^= (b & 0xff);
+                h *= 0x100000001b3L;
+            }
+            h ^= 0x1f; // разделитель полей
+            h *= 0x100000001b3L;
+        }
+        return h;
     }
 
     private Instrument mapShare(Share s) {
@@ -59,26 +261,13 @@ public class InstrumentSyncService {
         i.setCountryOfRisk(s.getCountryOfRisk());
         i.setCountryOfRiskName(s.getCountryOfRiskName());
         i.setInstrumentType("share");
-        i.setInstrumentKind(null);
-        i.setShareType(null);
-        i.setNominal(null);
-        i.setNominalCurrency(null);
         i.setTradingStatus(s.getTradingStatus().name());
-        i.setOtcFlag(null);
-        i.setBuyAvailableFlag(null);
-        i.setSellAvailableFlag(null);
-        i.setMinPriceIncrement(null);
-        i.setApiTradeAvailableFlag(null);
-        i.setUid(null);
-        i.setRealExchange(null);
-        i.setPositionUid(null);
-        i.setForIisFlag(null);
-        i.setForQualInvestorFlag(null);
-        i.setWeekendFlag(null);
-        i.setBlockedTcaFlag(null);
-        i.setFirst1minCandleDate(null);
-        i.setFirst1dayCandleDate(null);
-        i.setRiskLevel(null);
+        i.setMinPriceIncrement(toPlainString(s.getMinPriceIncrement()));
+        i.setLot(s.getLot());
+        i.setUid(s.getUid());
+        i.setBuyAvailableFlag(String.valueOf(s.getBuyAvailableFlag()));
+        i.setSellAvailableFlag(String.valueOf(s.getSellAvailableFlag()));
+        i.setApiTradeAvailableFlag(String.valueOf(s.getApiTradeAvailableFlag()));
         return i;
     }
 
@@ -94,25 +283,13 @@ public class InstrumentSyncService {
         i.setCountryOfRisk(b.getCountryOfRisk());
         i.setCountryOfRiskName(b.getCountryOfRiskName());
         i.setInstrumentType("bond");
-        i.setInstrumentKind(null);
-        i.setNominal(null);
-        i.setNominalCurrency(null);
         i.setTradingStatus(b.getTradingStatus().name());
-        i.setOtcFlag(null);
-        i.setBuyAvailableFlag(null);
-        i.setSellAvailableFlag(null);
-        i.setMinPriceIncrement(null);
-        i.setApiTradeAvailableFlag(null);
-        i.setUid(null);
-        i.setRealExchange(null);
-        i.setPositionUid(null);
-        i.setForIisFlag(null);
-        i.setForQualInvestorFlag(null);
-        i.setWeekendFlag(null);
-        i.setBlockedTcaFlag(null);
-        i.setFirst1minCandleDate(null);
-        i.setFirst1dayCandleDate(null);
-        i.setRiskLevel(null);
+        i.setMinPriceIncrement(toPlainString(b.getMinPriceIncrement()));
+        i.setLot(b.getLot());
+        i.setUid(b.getUid());
+        i.setBuyAvailableFlag(String.valueOf(b.getBuyAvailableFlag()));
+        i.setSellAvailableFlag(String.valueOf(b.getSellAvailableFlag()));
+        i.setApiTradeAvailableFlag(String.valueOf(b.getApiTradeAvailableFlag()));
         return i;
     }
 
@@ -128,27 +305,48 @@ public class InstrumentSyncService {
         i.setCountryOfRisk(e.getCountryOfRisk());
         i.setCountryOfRiskName(e.getCountryOfRiskName());
         i.setInstrumentType("etf");
-        i.setInstrumentKind(null);
-        i.setNominal(null);
-        i.setNominalCurrency(null);
         i.setTradingStatus(e.getTradingStatus().name());
-        i.setOtcFlag(null);
-        i.setBuyAvailableFlag(null);
-        i.setSellAvailableFlag(null);
-        i.setMinPriceIncrement(null);
-        i.setApiTradeAvailableFlag(null);
-        i.setUid(null);
-        i.setRealExchange(null);
-        i.setPositionUid(null);
-        i.setForIisFlag(null);
-        i.setForQualInvestorFlag(null);
-        i.setWeekendFlag(null);
-        i.setBlockedTcaFlag(null);
-        i.setFirst1minCandleDate(null);
-        i.setFirst1dayCandleDate(null);
-        i.setRiskLevel(null);
+        i.setMinPriceIncrement(toPlainString(e.getMinPriceIncrement()));
+        i.setLot(e.getLot());
+        i.setUid(e.getUid());
+        i.setBuyAvailableFlag(String.valueOf(e.getBuyAvailableFlag()));
+        i.setSellAvailableFlag(String.valueOf(e.getSellAvailableFlag()));
+        i.setApiTradeAvailableFlag(String.valueOf(e.getApiTradeAvailableFlag()));
         return i;
     }
-}
 
+    private static String toPlainString(Quotation q) {
+        return BigDecimal.valueOf(q.getUnits()).add(BigDecimal.valueOf(q.getNano(), 9)).stripTrailingZeros().toPlainString();
+    }
+
+    /**
+     * Итог одного прохода синхронизации
+     */
+    public static class SyncReport {
+        private final int fetched;
+        private final int added;
+        private final int changed;
+        private final int removed;
+        private final int unchanged;
+        private final long durationMs;
+        private final long finishedAtMs;
+
+        SyncReport(int fetched, int added, int changed, int removed, int unchanged, long durationMs, long finishedAtMs) {
+            this.fetched = fetched;
+            this.added = added;
+            this.changed = changed;
+            this.removed = removed;
+            this.unchanged = unchanged;
+            this.durationMs = durationMs;
+            this.finishedAtMs = finishedAtMs;
+        }
 
+        public int getFetched() { return fetched; }
+        public int getAdded() { return added; }
+        public int getChanged() { return changed; }
+        public int getRemoved() { return removed; }
+        public int getUnchanged() { return unchanged; }
+        public long getDurationMs() { return durationMs; }
+        public long getFinishedAtMs() { return finishedAtMs; }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.perminov.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+import ru.tinkoff.piapi.contract.v1.MarketDataResponse;
+import ru.tinkoff.piapi.core.InvestApi;
+import ru.tinkoff.piapi.core.stream.MarketDataSubscriptionService;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Поток рыночных данных через MarketDataStream Invest API.
+ * Поток привязан к экземпляру InvestApi: при смене режима хаб переоткрывает его.
+ */
+@Component
+@ConditionalOnProperty(prefix = "market-data.stream", name = "source", havingValue = "invest", matchIfMissing = true)
+@RequiredArgsConstructor
+@Slf4j
+public class InvestApiMarketDataStreamSource implements MarketDataStreamSource {
+
+    private static final String STREAM_ID = "tbot-market-data";
+
+    private final InvestApiManager investApiManager;
+
+    private volatile MarketDataSubscriptionService subscription;
+    private volatile InvestApi streamApi;
+
+    @Override
+    public synchronized void open(Consumer<MarketDataResponse> onMessage, Consumer<Throwable> onError) {
+        close();
+        InvestApi api = investApiManager.getCurrentInvestApi();
+        subscription = api.getMarketDataStreamService().newStream(STREAM_ID, onMessage::accept, onError);
+        streamApi = api;
+        log.info("📡 MarketDataStream открыт (mode={})", investApiManager.getCurrentMode());
+    }
+
+    @Override
+    public void subscribe(List<String> figis) {
+        MarketDataSubscriptionService s = subscription;
+        if (s == null || figis.isEmpty()) return;
+        s.subscribeLastPrices(figis);
+        s.subscribeOrderbook(figis);
+        s.subscribeCandles(figis);
+    }
+
+    @Override
+    public void unsubscribe(List<String> figis) {
+        MarketDataSubscriptionService s = subscription;
+        if (s == null || figis.isEmpty()) return;
+        s.unsubscribeLastPrices(figis);
+        s.unsubscribeOrderbook(figis);
+        s.unsubscribeCandles(figis);
+    }
+
+    @Override
+    public synchronized void close() {
+        if (subscription != null) {
+            try {
+                subscription.cancel();
+            } catch (Exception e) {
+                log.debug("Ошибка при закрытии MarketDataStream: {}", e.getMessage());
+            }
+            subscription = null;
+            streamApi = null;
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        // Поток, открытый на прежнем InvestApi (до смены режима), считаем закрытым
+        return subscription != null && streamApi == investApiManager.getCurrentInvestApi();
+    }
+}
@@ -6,14 +6,13 @@ import org.springframework.stereotype.Service;
 // import ru.tinkoff.piapi.core.InvestApi; // unused
 import ru.tinkoff.piapi.contract.v1.HistoricCandle;
 import ru.tinkoff.piapi.contract.v1.CandleInterval;
+import ru.tinkoff.piapi.contract.v1.GetOrderBookResponse;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 @RequiredArgsConstructor
@@ -24,85 +23,156 @@ public class MarketAnalysisService {
     @SuppressWarnings("unused")
     private final BotLogService botLogService;
     private final ApiRateLimiter apiRateLimiter;
-    private final Map<String, List<HistoricCandle>> candleCache = new ConcurrentHashMap<>();
+    private final CandleStore candleStore;
+    private final IndicatorEngine indicatorEngine;
+    private final MarketDataHub marketDataHub;
+    private final SingleFlight singleFlight;
+    private final AnalysisContext analysisContext;
     // private static final int NANO_SCALE = 9;
+    private static final long ORDER_BOOK_REUSE_MS = 250;
     
     /**
-     * Получение свечей для анализа
+     * Получение свечей для анализа.
+     * Каноническая серия по (figi, interval) хранится в {@link CandleStore}, окно по дням отдаётся срезом.
      */
     public List<HistoricCandle> getCandles(String figi, CandleInterval interval, int days) {
-        String cacheKey = figi + "_" + interval + "_" + days;
-        
-        return candleCache.computeIfAbsent(cacheKey, k -> {
-            // Ограничим период по правилам API для выбранного интервала
-            int safeDays = Math.min(days, getMaxDaysForInterval(interval));
-            Instant to = Instant.now();
-            Instant from = to.minus(safeDays, ChronoUnit.DAYS);
-            
-            try {
-                apiRateLimiter.acquire();
-                List<HistoricCandle> candles = investApiManager.getCurrentInvestApi().getMarketDataService()
-                    .getCandlesSync(figi, from, to, interval);
-                
-                // Если получили свечи успешно, возвращаем их
-                if (candles != null && !candles.isEmpty()) {
-                    return candles;
-                }
-                
-                // Если свечей нет, возвращаем пустой список
-                return List.of();
-            } catch (Exception e) {
-                String errorMsg = e.getMessage();
-                log.error("Ошибка при получении свечей: {}", errorMsg);
-                
-                // Если ошибка связана с превышением периода (30014), очищаем кэш для этого ключа
-                // и пробуем с меньшим периодом
-                if (errorMsg != null && (errorMsg.contains("30014") || errorMsg.contains("Превышен максимальный период"))) {
-                    log.warn("⚠️ Превышен максимальный период для интервала {}. Очищаем кэш и пробуем с меньшим периодом", interval);
-                    candleCache.remove(cacheKey);
-                    
-                    // Пробуем с минимальным периодом для данного интервала
-                    int minDays = getMinDaysForInterval(interval);
-                    if (safeDays > minDays) {
-                        log.info("🔄 Повторная попытка получения свечей для {} с периодом {} дней (вместо {})", 
-                                figi, minDays, safeDays);
-                        try {
-                            Instant retryTo = Instant.now();
-                            Instant retryFrom = retryTo.minus(minDays, ChronoUnit.DAYS);
-                            apiRateLimiter.acquire();
-                            List<HistoricCandle> retryCandles = investApiManager.getCurrentInvestApi().getMarketDataService()
-                                .getCandlesSync(figi, retryFrom, retryTo, interval);
-                            if (retryCandles != null && !retryCandles.isEmpty()) {
-                                // Сохраняем в кэш с новым ключом
-                                String newCacheKey = figi + "_" + interval + "_" + minDays;
-                                candleCache.put(newCacheKey, retryCandles);
-                                return retryCandles;
-                            }
-                        } catch (Exception retryEx) {
-                            log.warn("Повторная попытка также не удалась для {}: {}", figi, retryEx.getMessage());
+        return getSeries(figi, interval, days).asList();
+    }
+
+    /**
+     * Колоночная серия свечей для расчёта индикаторов (без разбора Quotation на каждом вызове)
+     */
+    public CandleSeries getSeries(String figi, CandleInterval interval, int days) {
+        // Ограничим период по правилам API для выбранного интервала
+        int safeDays = Math.min(days, getMaxDaysForInterval(interval));
+        CandleSeries cached = candleStore.get(figi, interval, safeDays);
+        if (cached != null) {
+            return cached;
+        }
+        // Параллельные промахи по серии (figi, interval) ждут одну загрузку: короткая догрузка хвоста
+        // и полная загрузка не идут одновременно и не затирают результат друг друга
+        String key = "candles:" + figi + ":" + interval;
+        SeriesLoad load = singleFlight.execute(key, 0, () -> new SeriesLoad(safeDays, loadSeries(figi, interval, safeDays)));
+        if (load.days() < safeDays) {
+            // Дождались загрузки более короткого окна — загружаем своё
+            load = singleFlight.execute(key, 0, () -> new SeriesLoad(safeDays, loadSeries(figi, interval, safeDays)));
+        }
+        return load.days() == safeDays ? load.series() : load.series().lastDays(safeDays);
+    }
+
+    private record SeriesLoad(int days, CandleSeries series) {
+    }
+
+    private CandleSeries loadSeries(String figi, CandleInterval interval, int safeDays) {
+        // Пока ждали очереди, серию мог загрузить другой запрос
+        CandleSeries cached = candleStore.get(figi, interval, safeDays);
+        if (cached != null) {
+            return cached;
+        }
+
+        // Устаревшая серия есть — догружаем только хвост с последней завершённой свечи
+        CandleStore.RefreshBase base = candleStore.getRefreshBase(figi, interval);
+        long knownBarSec = base != null ? base.getLastCompleteTime().getEpochSecond() : Long.MIN_VALUE;
+        if (base != null && base.getDays() >= safeDays) {
+            CandleSeries refreshed = refreshCandles(figi, interval, base);
+            if (refreshed != null) {
+                return refreshed.lastDays(safeDays);
+            }
+        }
+
+        // Загружаем окно не меньше уже закэшированного, чтобы не дробить серию
+        int loadDays = Math.max(safeDays, Math.min(candleStore.getCoveredDays(figi, interval), getMaxDaysForInterval(interval)));
+        Instant to = Instant.now();
+        Instant from = to.minus(loadDays, ChronoUnit.DAYS);
+
+        try {
+            List<HistoricCandle> candles = fetchCandles(figi, from, to, interval);
+
+            // Если свечей нет, кэшируем пустую серию до границы бара
+            CandleSeries loaded = candleStore.put(figi, interval, loadDays, candles);
+            invalidateOnNewBar(figi, interval, knownBarSec, loaded);
+            return loaded.lastDays(safeDays);
+        } catch (Exception e) {
+            String errorMsg = e.getMessage();
+            log.error("Ошибка при получении свечей: {}", errorMsg);
+
+            // Если ошибка связана с превышением периода (30014), пробуем с меньшим периодом
+            if (errorMsg != null && (errorMsg.contains("30014") || errorMsg.contains("Превышен максимальный период"))) {
+                log.warn("⚠️ Превышен максимальный период для интервала {}. Очищаем кэш и пробуем с меньшим периодом", interval);
+                candleStore.invalidate(figi, interval);
+
+                // Пробуем с минимальным периодом для данного интервала
+                int minDays = getMinDaysForInterval(interval);
+                if (loadDays > minDays) {
+                    log.info("🔄 Повторная попытка получения свечей для {} с периодом {} дней (вместо {})",
+                            figi, minDays, loadDays);
+                    try {
+                        Instant retryTo = Instant.now();
+                        Instant retryFrom = retryTo.minus(minDays, ChronoUnit.DAYS);
+                        List<HistoricCandle> retryCandles = fetchCandles(figi, retryFrom, retryTo, interval);
+                        if (retryCandles != null && !retryCandles.isEmpty()) {
+                            // Серия покрывает только minDays — более длинные окна снова пойдут в API
+                            CandleSeries loaded = candleStore.put(figi, interval, minDays, retryCandles);
+                            invalidateOnNewBar(figi, interval, knownBarSec, loaded);
+                            return loaded;
                         }
+                    } catch (Exception retryEx) {
+                        log.warn("Повторная попытка также не удалась для {}: {}", figi, retryEx.getMessage());
                     }
                 }
-                
-                return List.of();
             }
-        });
+
+            return CandleSeries.EMPTY;
+        }
     }
 
     /**
-     * Преобразование Quotation в BigDecimal
+     * Запрос свечей уходит из очереди лимитера без отдельного ждущего потока; ждём только ответ
      */
-    private BigDecimal quotationToBigDecimal(ru.tinkoff.piapi.contract.v1.Quotation quotation) {
-        return new BigDecimal(quotation.getUnits() + "." + String.format("%09d", quotation.getNano()));
+    private List<HistoricCandle> fetchCandles(String figi, Instant from, Instant to, CandleInterval interval) {
+        return apiRateLimiter.call(ApiRateLimiter.ApiClass.MARKET_DATA,
+                () -> investApiManager.getCurrentInvestApi().getMarketDataService().getCandles(figi, from, to, interval))
+            .join();
+    }
+
+    /**
+     * Инкрементальная догрузка: запрашиваем у API только [последняя завершённая свеча, now]
+     * и вливаем результат в кэшированную серию, заменяя незавершённый бар.
+     * null — догрузка невозможна (хвост длиннее допустимого периода или ошибка API), нужна полная загрузка.
+     */
+    private CandleSeries refreshCandles(String figi, CandleInterval interval, CandleStore.RefreshBase base) {
+        Instant from = base.getLastCompleteTime();
+        Instant to = Instant.now();
+        if (!from.isAfter(to.minus(getMaxDaysForInterval(interval), ChronoUnit.DAYS))) {
+            return null;
+        }
+        try {
+            List<HistoricCandle> tail = fetchCandles(figi, from, to, interval);
+            CandleSeries merged = candleStore.merge(figi, interval, base, tail);
+            invalidateOnNewBar(figi, interval, from.getEpochSecond(), merged);
+            return merged;
+        } catch (Exception e) {
+            log.warn("Не удалось догрузить свечи для {} ({}), выполняем полную загрузку: {}", figi, interval, e.getMessage());
+            return null;
+        }
     }
 
     /**
-     * Преобразование Quotation в BigDecimal (публичный метод)
+     * Значения циклов анализа по серии сбрасываются, только если появился новый завершённый бар:
+     * перезагрузка той же истории или обновление формирующегося бара их не трогает
      */
-    private BigDecimal toBigDecimal(ru.tinkoff.piapi.contract.v1.Quotation q) {
-        if (q == null) return BigDecimal.ZERO;
-        String nano = String.format("%09d", q.getNano());
-        return new BigDecimal(q.getUnits() + "." + nano);
+    private void invalidateOnNewBar(String figi, CandleInterval interval, long knownBarSec, CandleSeries loaded) {
+        int last = loaded.lastCompleteIndex();
+        if (last >= 0 && loaded.time(last) > knownBarSec) {
+            analysisContext.invalidate(figi, interval);
+        }
+    }
+
+    /**
+     * Преобразование Quotation в BigDecimal
+     */
+    private BigDecimal quotationToBigDecimal(ru.tinkoff.piapi.contract.v1.Quotation quotation) {
+        return CandleSeries.toBigDecimal(quotation);
     }
 
     /**
@@ -110,13 +180,17 @@ public class MarketAnalysisService {
      * Возвращает абсолютное значение ATR в тех же единицах, что и цена
      */
     public BigDecimal calculateATR(String figi, CandleInterval interval, int period) {
+        return analysisContext.memo(figi, interval, "atr", period, () -> computeATR(figi, interval, period));
+    }
+
+    private BigDecimal computeATR(String figi, CandleInterval interval, int period) {
         // Для минутных интервалов ограничиваем период запроса (максимум 1 день)
         int maxDays = getMaxDaysForInterval(interval);
         // Для минутных интервалов используем только доступные свечи (не более 1 дня)
         // Для других интервалов берем запас свечей для корректного TR (нужен prevClose)
         int requestDays = (maxDays == 1) ? 1 : Math.min(Math.max(period + 5, period * 2), maxDays);
         
-        List<HistoricCandle> candles = getCandles(figi, interval, requestDays);
+        CandleSeries candles = getSeries(figi, interval, requestDays);
         
         // Используем доступное количество свечей
         int actualPeriod = Math.min(period, candles.size() - 1);
@@ -124,24 +198,15 @@ public class MarketAnalysisService {
             return BigDecimal.ZERO;
         }
 
-        BigDecimal trSum = BigDecimal.ZERO;
-        for (int i = 1; i <= actualPeriod && i < candles.size(); i++) {
-            HistoricCandle cur = candles.get(i);
-            HistoricCandle prev = candles.get(i - 1);
-
-            BigDecimal high = toBigDecimal(cur.getHigh());
-            BigDecimal low = toBigDecimal(cur.getLow());
-            BigDecimal prevClose = toBigDecimal(prev.getClose());
-
-            BigDecimal highLow = high.subtract(low).abs();
-            BigDecimal highPrevClose = high.subtract(prevClose).abs();
-            BigDecimal lowPrevClose = low.subtract(prevClose).abs();
-
-            BigDecimal tr = highLow.max(highPrevClose).max(lowPrevClose);
-            trSum = trSum.add(tr);
+        double trSum = 0.0;
+        for (int i = 1; i <= actualPeriod; i++) {
+            double high = candles.high(i);
+            double low = candles.low(i);
+            double prevClose = candles.close(i - 1);
+            trSum += Math.max(high - low, Math.max(Math.abs(high - prevClose), Math.abs(low - prevClose)));
         }
 
-        return trSum.divide(BigDecimal.valueOf(actualPeriod), 6, RoundingMode.HALF_UP);
+        return toDecimal(trSum / actualPeriod, 6);
     }
 
     // Максимально допустимая глубина периода в днях для каждого интервала (по ограничениям Tinkoff Invest API)
@@ -181,13 +246,17 @@ public class MarketAnalysisService {
      * Расчет простой скользящей средней (SMA)
      */
     public BigDecimal calculateSMA(String figi, CandleInterval interval, int period) {
+        return analysisContext.memo(figi, interval, "sma", period, () -> computeSMA(figi, interval, period));
+    }
+
+    private BigDecimal computeSMA(String figi, CandleInterval interval, int period) {
         // Для минутных интервалов ограничиваем период запроса (максимум 1 день)
         int maxDays = getMaxDaysForInterval(interval);
         // Для минутных интервалов используем только доступные свечи (не более 1 дня)
         // Для других интервалов берем период + небольшой запас
         int requestDays = (maxDays == 1) ? 1 : Math.min(period + 10, maxDays);
         
-        List<HistoricCandle> candles = getCandles(figi, interval, requestDays);
+        CandleSeries candles = getSeries(figi, interval, requestDays);
         
         if (candles.isEmpty()) {
             return BigDecimal.ZERO;
@@ -199,69 +268,65 @@ public class MarketAnalysisService {
             return BigDecimal.ZERO;
         }
         
-        BigDecimal sum = candles.stream()
-            .limit(actualPeriod)
-            .map(candle -> new BigDecimal(candle.getClose().getUnits() + "." + 
-                String.format("%09d", candle.getClose().getNano())))
-            .reduce(BigDecimal.ZERO, BigDecimal::add);
+        double sum = 0.0;
+        for (int i = 0; i < actualPeriod; i++) {
+            sum += candles.close(i);
+        }
             
-        return sum.divide(BigDecimal.valueOf(actualPeriod), 4, RoundingMode.HALF_UP);
+        return toDecimal(sum / actualPeriod, 4);
     }
     
     /**
      * Расчет относительной силы (RSI)
      */
     public BigDecimal calculateRSI(String figi, CandleInterval interval, int period) {
+        return analysisContext.memo(figi, interval, "rsi", period, () -> computeRSI(figi, interval, period));
+    }
+
+    private BigDecimal computeRSI(String figi, CandleInterval interval, int period) {
         // Для минутных интервалов ограничиваем период запроса (максимум 1 день)
         int maxDays = getMaxDaysForInterval(interval);
         // Для минутных интервалов используем только доступные свечи (не более 1 дня)
         // Для других интервалов берем период * 2
         int requestDays = (maxDays == 1) ? 1 : Math.min(period * 2, maxDays);
         
-        List<HistoricCandle> candles = getCandles(figi, interval, requestDays);
+        CandleSeries candles = getSeries(figi, interval, requestDays);
         
-        if (candles.size() < Math.min(period + 1, candles.size())) {
+        // Нужна хотя бы period + 1 свеча для period изменений цены
+        if (candles.size() < period + 1) {
             return BigDecimal.ZERO;
         }
         
-        BigDecimal gains = BigDecimal.ZERO;
-        BigDecimal losses = BigDecimal.ZERO;
+        double gains = 0.0;
+        double losses = 0.0;
         
         for (int i = 1; i <= period; i++) {
-            BigDecimal currentPrice = new BigDecimal(candles.get(i).getClose().getUnits() + "." + 
-                String.format("%09d", candles.get(i).getClose().getNano()));
-            BigDecimal previousPrice = new BigDecimal(candles.get(i-1).getClose().getUnits() + "." + 
-                String.format("%09d", candles.get(i-1).getClose().getNano()));
-            
-            BigDecimal change = currentPrice.subtract(previousPrice);
-            if (change.compareTo(BigDecimal.ZERO) > 0) {
-                gains = gains.add(change);
+            double change = candles.close(i) - candles.close(i - 1);
+            if (change > 0) {
+                gains += change;
             } else {
-                losses = losses.add(change.abs());
+                losses -= change;
             }
         }
         
-        if (losses.equals(BigDecimal.ZERO)) {
+        if (losses == 0.0) {
             return BigDecimal.valueOf(100);
         }
         
-        BigDecimal avgGain = gains.divide(BigDecimal.valueOf(period), 4, RoundingMode.HALF_UP);
-        BigDecimal avgLoss = losses.divide(BigDecimal.valueOf(period), 4, RoundingMode.HALF_UP);
-        BigDecimal rs = avgGain.divide(avgLoss, 4, RoundingMode.HALF_UP);
-        
-        return BigDecimal.valueOf(100).subtract(
-            BigDecimal.valueOf(100).divide(BigDecimal.ONE.add(rs), 2, RoundingMode.HALF_UP)
-        );
+        double rs = gains / losses;
+        return toDecimal(100.0 - 100.0 / (1.0 + rs), 2);
     }
     
     /**
      * Получение актуальной рыночной цены через OrderBook
      */
     public BigDecimal getCurrentMarketPrice(String figi) {
+        MarketDataHub.Quote quote = marketDataHub.getQuote(figi);
+        if (quote != null) {
+            return quote.getBid().add(quote.getAsk()).divide(BigDecimal.valueOf(2), 4, RoundingMode.HALF_UP);
+        }
         try {
-            apiRateLimiter.acquire();
-            var orderBook = investApiManager.getCurrentInvestApi().getMarketDataService()
-                .getOrderBookSync(figi, 1); // Глубина 1 для получения лучших цен
+            var orderBook = fetchOrderBook(figi);
             
             if (orderBook != null && !orderBook.getBidsList().isEmpty() && !orderBook.getAsksList().isEmpty()) {
                 // Берем среднее между лучшими bid и ask
@@ -285,25 +350,24 @@ public class MarketAnalysisService {
      * 🚀 НОВЫЙ МЕТОД: Получение лучших bid/ask цен для правильного размещения ордеров
      */
     public BidAskPrices getBidAskPrices(String figi) {
+        MarketDataHub.Quote quote = marketDataHub.getQuote(figi);
+        if (quote != null) {
+            return toBidAskPrices(quote.getBid(), quote.getAsk());
+        }
         try {
-            apiRateLimiter.acquire();
-            var orderBook = investApiManager.getCurrentInvestApi().getMarketDataService()
-                .getOrderBookSync(figi, 1); // Глубина 1 для получения лучших цен
+            var orderBook = fetchOrderBook(figi);
             
             if (orderBook != null && !orderBook.getBidsList().isEmpty() && !orderBook.getAsksList().isEmpty()) {
                 var bestBid = orderBook.getBidsList().get(0);
                 var bestAsk = orderBook.getAsksList().get(0);
                 
-                BigDecimal bidPrice = quotationToBigDecimal(bestBid.getPrice());
-                BigDecimal askPrice = quotationToBigDecimal(bestAsk.getPrice());
-                BigDecimal midPrice = bidPrice.add(askPrice).divide(BigDecimal.valueOf(2), 6, RoundingMode.HALF_UP);
-                BigDecimal spread = askPrice.subtract(bidPrice);
-                BigDecimal spreadPct = spread.divide(midPrice, 6, RoundingMode.HALF_UP);
+                BidAskPrices prices = toBidAskPrices(quotationToBigDecimal(bestBid.getPrice()), quotationToBigDecimal(bestAsk.getPrice()));
                 
                 log.debug("💰 BID/ASK для {}: bid={}, ask={}, spread={} ({}%)", 
-                    figi, bidPrice, askPrice, spread, String.format("%.2f", spreadPct.multiply(BigDecimal.valueOf(100)).doubleValue()));
+                    figi, prices.getBid(), prices.getAsk(), prices.getSpread(),
+                    String.format("%.2f", prices.getSpreadPct().multiply(BigDecimal.valueOf(100)).doubleValue()));
                 
-                return new BidAskPrices(bidPrice, askPrice, midPrice, spread, spreadPct);
+                return prices;
             }
         } catch (Exception e) {
             log.warn("Не удалось получить bid/ask цены для {}: {}", figi, e.getMessage());
@@ -311,6 +375,25 @@ public class MarketAnalysisService {
         return null;
     }
 
+    /**
+     * Стакан глубины 1 через single-flight: одновременные запросы цены/спрэда по FIGI из разных сервисов
+     * превращаются в один вызов API, результат переиспользуется ORDER_BOOK_REUSE_MS
+     */
+    private GetOrderBookResponse fetchOrderBook(String figi) {
+        return singleFlight.execute("orderbook:" + figi, ORDER_BOOK_REUSE_MS, () ->
+            apiRateLimiter.call(ApiRateLimiter.ApiClass.MARKET_DATA,
+                    () -> investApiManager.getCurrentInvestApi().getMarketDataService()
+                        .getOrderBook(figi, 1)) // Глубина 1 для получения лучших цен
+                .join());
+    }
+
+    private static BidAskPrices toBidAskPrices(BigDecimal bidPrice, BigDecimal askPrice) {
+        BigDecimal midPrice = bidPrice.add(askPrice).divide(BigDecimal.valueOf(2), 6, RoundingMode.HALF_UP);
+        BigDecimal spread = askPrice.subtract(bidPrice);
+        BigDecimal spreadPct = spread.divide(midPrice, 6, RoundingMode.HALF_UP);
+        return new BidAskPrices(bidPrice, askPrice, midPrice, spread, spreadPct);
+    }
+
     /**
      * Класс для хранения bid/ask данных
      */
@@ -340,10 +423,12 @@ public class MarketAnalysisService {
      * Расчёт относительного спрэда по лучшим котировкам: (ask - bid) / mid
      */
     public BigDecimal getSpreadPct(String figi) {
+        MarketDataHub.Quote quote = marketDataHub.getQuote(figi);
+        if (quote != null) {
+            return toBidAskPrices(quote.getBid(), quote.getAsk()).getSpreadPct();
+        }
         try {
-            apiRateLimiter.acquire();
-            var orderBook = investApiManager.getCurrentInvestApi().getMarketDataService()
-                .getOrderBookSync(figi, 1);
+            var orderBook = fetchOrderBook(figi);
             if (orderBook != null && !orderBook.getBidsList().isEmpty() && !orderBook.getAsksList().isEmpty()) {
                 var bestBid = orderBook.getBidsList().get(0);
                 var bestAsk = orderBook.getAsksList().get(0);
@@ -366,10 +451,9 @@ public class MarketAnalysisService {
      */
     public long getLastDailyVolume(String figi) {
         try {
-            List<HistoricCandle> candles = getCandles(figi, CandleInterval.CANDLE_INTERVAL_DAY, 3);
-            if (candles == null || candles.isEmpty()) return 0L;
-            HistoricCandle last = candles.get(candles.size() - 1);
-            return last.getVolume();
+            CandleSeries candles = getSeries(figi, CandleInterval.CANDLE_INTERVAL_DAY, 3);
+            if (candles.isEmpty()) return 0L;
+            return candles.volume(candles.size() - 1);
         } catch (Exception e) {
             log.warn("Не удалось получить дневной объём для {}: {}", figi, e.getMessage());
             return 0L;
@@ -383,31 +467,29 @@ public class MarketAnalysisService {
     public long getMedianDailyVolume(String figi, int days, boolean excludeCurrentDayIfIncomplete) {
         try {
             int fetch = Math.max(days + 2, days);
-            List<HistoricCandle> candles = getCandles(figi, CandleInterval.CANDLE_INTERVAL_DAY, fetch);
-            if (candles == null || candles.isEmpty()) return 0L;
+            CandleSeries candles = getSeries(figi, CandleInterval.CANDLE_INTERVAL_DAY, fetch);
+            if (candles.isEmpty()) return 0L;
 
             // Собираем объёмы с конца, пропуская текущий незавершённый день при необходимости
-            java.util.List<Long> volumes = new java.util.ArrayList<>();
-            for (int i = candles.size() - 1; i >= 0 && volumes.size() < days; i--) {
-                HistoricCandle c = candles.get(i);
-                boolean isComplete = c.getIsComplete();
-                if (!isComplete && excludeCurrentDayIfIncomplete) {
+            long[] volumes = new long[Math.min(days, candles.size())];
+            int n = 0;
+            for (int i = candles.size() - 1; i >= 0 && n < volumes.length; i--) {
+                if (!candles.isComplete(i) && excludeCurrentDayIfIncomplete) {
                     continue; // пропускаем текущий день, если свеча не завершена
                 }
-                volumes.add(c.getVolume());
+                volumes[n++] = candles.volume(i);
             }
 
-            if (volumes.isEmpty()) {
-                return candles.get(candles.size() - 1).getVolume();
+            if (n == 0) {
+                return candles.volume(candles.size() - 1);
             }
 
-            java.util.Collections.sort(volumes);
-            int n = volumes.size();
+            java.util.Arrays.sort(volumes, 0, n);
             if (n % 2 == 1) {
-                return volumes.get(n / 2);
+                return volumes[n / 2];
             } else {
-                long a = volumes.get(n / 2 - 1);
-                long b = volumes.get(n / 2);
+                long a = volumes[n / 2 - 1];
+                long b = volumes[n / 2];
                 return (a + b) / 2L;
             }
         } catch (Exception e) {
@@ -417,30 +499,56 @@ public class MarketAnalysisService {
     }
 
     /**
-     * Анализ тренда
+     * Анализ тренда. В пределах торгового цикла классификация тренда по индикаторам считается один раз,
+     * а текущая цена подставляется на каждый вызов (мемоизируется не дольше analysis.context.price_max_age_ms)
      */
     public TrendAnalysis analyzeTrend(String figi, CandleInterval interval) {
-        BigDecimal sma20 = calculateSMA(figi, interval, 20);
-        BigDecimal sma50 = calculateSMA(figi, interval, 50);
-        BigDecimal rsi = calculateRSI(figi, interval, 14);
+        return analyzeTrend(figi, interval, null);
+    }
+
+    /**
+     * Анализ тренда с уже известной ценой (например, из пакетной предзагрузки сканирования):
+     * без запроса стакана по инструменту; при knownPrice == null — обычный анализ
+     */
+    public TrendAnalysis analyzeTrend(String figi, CandleInterval interval, BigDecimal knownPrice) {
+        TrendAnalysis classified = analysisContext.memo(figi, interval, "trend", 0, () -> computeTrend(figi, interval));
+        if (classified.getTrend() == TrendType.UNKNOWN) {
+            return classified;
+        }
+        BigDecimal currentPrice = knownPrice != null && knownPrice.signum() > 0 ? knownPrice : getLivePrice(figi);
+        if (currentPrice == null) {
+            // Рыночную цену получить не удалось — остаётся цена последней свечи
+            log.debug("🔍 Цена из последней свечи для {}: {}", figi, classified.getCurrentPrice());
+            return classified;
+        }
+        log.debug("🔍 Актуальная рыночная цена для {}: {}", figi, currentPrice);
+        return new TrendAnalysis(classified.getTrend(), currentPrice, classified.getSignal());
+    }
+
+    /**
+     * Текущая цена инструмента; внутри цикла переиспользуется не дольше короткого срока
+     */
+    private BigDecimal getLivePrice(String figi) {
+        return analysisContext.memoPrice(figi, () -> getCurrentMarketPrice(figi));
+    }
+
+    /**
+     * Классификация тренда по индикаторам; цена в результате — закрытие последней свечи
+     */
+    private TrendAnalysis computeTrend(String figi, CandleInterval interval) {
+        // SMA20/SMA50/RSI14 берём из потокового движка: досылаются только новые свечи
+        CandleSeries recentCandles = getSeries(figi, interval, getIndicatorLookbackDays(interval));
+        IndicatorEngine.IndicatorSnapshot indicators = indicatorEngine.update(figi, interval, recentCandles);
+        BigDecimal sma20 = toDecimal(indicators.getSmaFast(), 4);
+        BigDecimal sma50 = toDecimal(indicators.getSmaSlow(), 4);
+        BigDecimal rsi = toDecimal(indicators.getRsi(), 2);
         
-        List<HistoricCandle> recentCandles = getCandles(figi, interval, 5);
         if (recentCandles.isEmpty()) {
             return new TrendAnalysis(TrendType.UNKNOWN, BigDecimal.ZERO, "Недостаточно данных");
         }
         
-        // Пытаемся получить актуальную рыночную цену
-        BigDecimal currentPrice = getCurrentMarketPrice(figi);
-        
-        // Если не удалось получить рыночную цену, используем последнюю свечу
-        if (currentPrice == null) {
-            HistoricCandle lastCandle = recentCandles.get(recentCandles.size() - 1);
-            currentPrice = new BigDecimal(lastCandle.getClose().getUnits() + "." + 
-                String.format("%09d", lastCandle.getClose().getNano()));
-            log.debug("🔍 Цена из последней свечи для {}: {} (из {} свечей)", figi, currentPrice, recentCandles.size());
-        } else {
-            log.debug("🔍 Актуальная рыночная цена для {}: {} (через OrderBook)", figi, currentPrice);
-        }
+        HistoricCandle lastCandle = recentCandles.candle(recentCandles.size() - 1);
+        BigDecimal currentPrice = CandleSeries.toBigDecimal(lastCandle.getClose());
         
         TrendType trend;
         String signal;
@@ -459,11 +567,41 @@ public class MarketAnalysisService {
         return new TrendAnalysis(trend, currentPrice, signal);
     }
     
+    /**
+     * Снимок потоковых индикаторов (SMA, EMA, MACD, RSI, ATR, Bollinger, Stochastic) по серии
+     */
+    public IndicatorEngine.IndicatorSnapshot getIndicators(String figi, CandleInterval interval) {
+        return analysisContext.memo(figi, interval, "indicators", 0, () ->
+            indicatorEngine.update(figi, interval, getSeries(figi, interval, getIndicatorLookbackDays(interval))));
+    }
+
+    // Глубина истории, достаточная для затравки SMA50 (около 50+ баров) в пределах лимитов API
+    private int getIndicatorLookbackDays(CandleInterval interval) {
+        switch (interval) {
+            case CANDLE_INTERVAL_HOUR:
+                return 30;
+            case CANDLE_INTERVAL_DAY:
+                return 120;
+            default:
+                return getMaxDaysForInterval(interval);
+        }
+    }
+
+    private static BigDecimal toDecimal(double value, int scale) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return BigDecimal.ZERO;
+        }
+        return BigDecimal.valueOf(value).setScale(scale, RoundingMode.HALF_UP);
+    }
+    
     public enum TrendType {
         BULLISH, BEARISH, SIDEWAYS, UNKNOWN
     }
     
-    public static class TrendAnalysis {
+    /**
+     * Неизменяемый результат: один экземпляр разделяют все вызывающие торгового цикла
+     */
+    public static final class TrendAnalysis {
         private final TrendType trend;
         private final BigDecimal currentPrice;
         private final String signal;
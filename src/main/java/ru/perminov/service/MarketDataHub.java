@@ -0,0 +1,351 @@
+package ru.perminov.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.perminov.config.SchedulerLane;
+import ru.tinkoff.piapi.contract.v1.Candle;
+import ru.tinkoff.piapi.contract.v1.CandleInterval;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.MarketDataResponse;
+import ru.tinkoff.piapi.contract.v1.OrderBook;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Хаб рыночных данных на потоке MarketDataStream.
+ * Держит в памяти последние цены и лучшие bid/ask по активному набору инструментов; методы
+ * MarketAnalysisService читают этот снимок вместо unary-запросов стакана.
+ * Инструменты подписываются при первом запросе (пакетно, раз в секунду), поток переоткрывается
+ * после ошибки или смены режима API. Инструменты, которые давно никто не запрашивал, отписываются
+ * (market_data.stream.idle_evict_ms), а при заполненном лимите подписок место для новых освобождается
+ * за счёт наименее востребованных.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class MarketDataHub {
+
+    private final MarketDataStreamSource source;
+    private final TradingSettingsService settingsService;
+    private final IndicatorEngine indicatorEngine;
+
+    private final Map<String, Quote> quotes = new ConcurrentHashMap<>();
+    private final Set<String> subscribed = ConcurrentHashMap.newKeySet();
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+    // Время последнего запроса инструмента: по нему отписываем простаивающие и вытесняем при нехватке мест
+    private final Map<String, Long> lastRequestedMs = new ConcurrentHashMap<>();
+    private final List<QuoteListener> listeners = new CopyOnWriteArrayList<>();
+
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong streamHits = new AtomicLong();
+    private final AtomicLong streamMisses = new AtomicLong();
+    private final AtomicLong staleQuotes = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private volatile long lastMessageMs = 0;
+    private volatile String lastError;
+
+    /**
+     * Свежая котировка из потока или null (инструмент ставится в очередь на подписку)
+     */
+    public Quote getQuote(String figi) {
+        if (!isEnabled()) {
+            return null;
+        }
+        ensureSubscribed(figi);
+        Quote quote = quotes.get(figi);
+        if (quote == null || !quote.hasBook()) {
+            streamMisses.incrementAndGet();
+            return null;
+        }
+        // Поток присылает стакан только при изменении: при живой подписке снимок верен, пока по инструменту
+        // идут события (сделки или стакан) не реже live_max_age_ms. Без живого потока — не дольше max_age_ms.
+        long now = System.currentTimeMillis();
+        boolean live = subscribed.contains(figi) && source.isOpen();
+        boolean fresh = live
+            ? quote.isActive(now, settingsService.getInt("market_data.stream.live_max_age_ms", 60000))
+            : quote.isFresh(now, settingsService.getInt("market_data.stream.max_age_ms", 5000));
+        if (fresh) {
+            streamHits.incrementAndGet();
+            return quote;
+        }
+        if (live) {
+            staleQuotes.incrementAndGet();
+        }
+        streamMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Слушатель обновлений котировок. Вызывается в потоке чтения стрима, поэтому должен быть быстрым:
+     * тяжёлую работу (заявки, запросы к БД) слушатель обязан передавать в свой исполнитель.
+     */
+    public interface QuoteListener {
+        void onQuote(String figi, Quote quote);
+    }
+
+    public void addListener(QuoteListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Подписка набора инструментов (активная вселенная сканирования)
+     */
+    public void subscribe(Collection<String> figis) {
+        figis.forEach(this::ensureSubscribed);
+    }
+
+    private void ensureSubscribed(String figi) {
+        if (figi == null) {
+            return;
+        }
+        lastRequestedMs.put(figi, System.currentTimeMillis());
+        if (!subscribed.contains(figi)) {
+            pending.add(figi);
+        }
+    }
+
+    /**
+     * Пакетная подписка и контроль потока: переоткрываем после ошибки или смены режима API
+     */
+    @SchedulerLane(SchedulerLane.Lane.RISK_CRITICAL)
+    @Scheduled(fixedDelay = 1000)
+    public void maintainStream() {
+        if (!isEnabled()) {
+            if (source.isOpen()) {
+                closeStream();
+            }
+            return;
+        }
+        try {
+            if (!source.isOpen() && (!subscribed.isEmpty() || !pending.isEmpty())) {
+                if (!subscribed.isEmpty()) {
+                    reconnects.incrementAndGet();
+                    log.warn("📡 Переоткрываем поток рыночных данных, инструментов: {}", subscribed.size());
+                }
+                pending.addAll(subscribed);
+                subscribed.clear();
+                // Снимки до переподключения могли устареть — ждём новые сообщения
+                quotes.clear();
+                source.open(this::onMessage, this::onError);
+            }
+            evictIdle();
+            flushPending();
+        } catch (Exception e) {
+            log.warn("Ошибка обслуживания потока рыночных данных: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Отписка инструментов, которые не запрашивались дольше idle_evict_ms
+     */
+    private void evictIdle() {
+        long idleMs = settingsService.getInt("market_data.stream.idle_evict_ms", 300000);
+        long threshold = System.currentTimeMillis() - idleMs;
+        List<String> idle = new ArrayList<>();
+        for (String figi : subscribed) {
+            if (lastRequestedMs.getOrDefault(figi, 0L) < threshold) {
+                idle.add(figi);
+            }
+        }
+        pending.removeIf(figi -> lastRequestedMs.getOrDefault(figi, 0L) < threshold);
+        if (!idle.isEmpty()) {
+            evictions.addAndGet(idle.size());
+            unsubscribe(idle);
+            log.debug("📡 Отписка простаивающих инструментов: {} (осталось {})", idle.size(), subscribed.size());
+        }
+    }
+
+    /**
+     * Освобождение мест под ожидающие подписки: вытесняем наименее востребованные инструменты,
+     * но не те, что запрашивались последние min_hold_ms
+     */
+    private void makeRoom(int maxInstruments) {
+        int needed = subscribed.size() + pending.size() - maxInstruments;
+        if (needed <= 0) {
+            return;
+        }
+        long holdThreshold = System.currentTimeMillis() - settingsService.getInt("market_data.stream.min_hold_ms", 30000);
+        List<String> victims = subscribed.stream()
+            .filter(figi -> lastRequestedMs.getOrDefault(figi, 0L) < holdThreshold)
+            .sorted(Comparator.comparingLong(figi -> lastRequestedMs.getOrDefault(figi, 0L)))
+            .limit(needed)
+            .toList();
+        if (!victims.isEmpty()) {
+            evictions.addAndGet(victims.size());
+            unsubscribe(victims);
+            log.debug("📡 Вытеснено из подписки: {} (ожидают {})", victims.size(), pending.size());
+        }
+    }
+
+    private void flushPending() {
+        if (pending.isEmpty() || !source.isOpen()) {
+            return;
+        }
+        int maxInstruments = settingsService.getInt("market_data.stream.max_instruments", 300);
+        makeRoom(maxInstruments);
+        List<String> batch = new ArrayList<>();
+        for (String figi : pending) {
+            if (subscribed.size() + batch.size() >= maxInstruments) {
+                break;
+            }
+            batch.add(figi);
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        source.subscribe(batch);
+        subscribed.addAll(batch);
+        batch.forEach(pending::remove);
+        log.debug("📡 Подписка на поток: +{} (всего {})", batch.size(), subscribed.size());
+    }
+
+    public void unsubscribe(Collection<String> figis) {
+        List<String> list = new ArrayList<>();
+        for (String figi : figis) {
+            pending.remove(figi);
+            if (subscribed.remove(figi)) {
+                list.add(figi);
+            }
+            quotes.remove(figi);
+            lastRequestedMs.remove(figi);
+        }
+        if (!list.isEmpty() && source.isOpen()) {
+            source.unsubscribe(list);
+        }
+    }
+
+    void onMessage(MarketDataResponse response) {
+        messages.incrementAndGet();
+        lastMessageMs = System.currentTimeMillis();
+        if (response.hasLastPrice()) {
+            LastPrice lp = response.getLastPrice();
+            Quote updated = quotes.compute(lp.getFigi(), (k, q) -> (q != null ? q : Quote.EMPTY)
+                .withLastPrice(CandleSeries.toBigDecimal(lp.getPrice()), lastMessageMs));
+            notifyListeners(lp.getFigi(), updated);
+        } else if (response.hasOrderbook()) {
+            OrderBook ob = response.getOrderbook();
+            if (!ob.getBidsList().isEmpty() && !ob.getAsksList().isEmpty()) {
+                BigDecimal bid = CandleSeries.toBigDecimal(ob.getBids(0).getPrice());
+                BigDecimal ask = CandleSeries.toBigDecimal(ob.getAsks(0).getPrice());
+                Quote updated = quotes.compute(ob.getFigi(), (k, q) -> (q != null ? q : Quote.EMPTY)
+                    .withBook(bid, ask, lastMessageMs));
+                notifyListeners(ob.getFigi(), updated);
+            }
+        } else if (response.hasCandle()) {
+            Candle candle = response.getCandle();
+            indicatorEngine.onPrice(candle.getFigi(), CandleInterval.CANDLE_INTERVAL_1_MIN,
+                CandleSeries.toDouble(candle.getClose()));
+        }
+    }
+
+    private void notifyListeners(String figi, Quote quote) {
+        for (QuoteListener listener : listeners) {
+            try {
+                listener.onQuote(figi, quote);
+            } catch (Exception e) {
+                log.warn("Ошибка слушателя котировок для {}: {}", figi, e.getMessage());
+            }
+        }
+    }
+
+    void onError(Throwable t) {
+        lastError = t.getMessage();
+        log.warn("📡 Поток рыночных данных завершился с ошибкой: {}", t.getMessage());
+        // Следующий maintainStream переоткроет поток и переподпишет инструменты
+        source.close();
+    }
+
+    private boolean isEnabled() {
+        return settingsService.getBoolean("market_data.stream.enabled", true);
+    }
+
+    @PreDestroy
+    public void closeStream() {
+        source.close();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", isEnabled());
+        stats.put("open", source.isOpen());
+        stats.put("subscribed", subscribed.size());
+        stats.put("pending", pending.size());
+        stats.put("quotes", quotes.size());
+        stats.put("messages", messages.get());
+        stats.put("streamHits", streamHits.get());
+        stats.put("streamMisses", streamMisses.get());
+        stats.put("staleQuotes", staleQuotes.get());
+        stats.put("evictions", evictions.get());
+        stats.put("reconnects", reconnects.get());
+        stats.put("lastMessageAgeMs", lastMessageMs > 0 ? System.currentTimeMillis() - lastMessageMs : -1);
+        stats.put("lastError", lastError != null ? lastError : "");
+        return stats;
+    }
+
+    /**
+     * Неизменяемый снимок котировки инструмента
+     */
+    public static final class Quote {
+        static final Quote EMPTY = new Quote(null, 0, null, null, 0);
+
+        private final BigDecimal lastPrice;
+        private final long lastPriceMs;
+        private final BigDecimal bid;
+        private final BigDecimal ask;
+        private final long bookMs;
+
+        Quote(BigDecimal lastPrice, long lastPriceMs, BigDecimal bid, BigDecimal ask, long bookMs) {
+            this.lastPrice = lastPrice;
+            this.lastPriceMs = lastPriceMs;
+            this.bid = bid;
+            this.ask = ask;
+            this.bookMs = bookMs;
+        }
+
+        Quote withLastPrice(BigDecimal price, long ts) {
+            return new Quote(price, ts, bid, ask, bookMs);
+        }
+
+        Quote withBook(BigDecimal newBid, BigDecimal newAsk, long ts) {
+            return new Quote(lastPrice, lastPriceMs, newBid, newAsk, ts);
+        }
+
+        /**
+         * Котировка свежая, если стакан обновлялся не позже maxAgeMs назад
+         */
+        boolean isFresh(long nowMs, long maxAgeMs) {
+            return hasBook() && nowMs - bookMs <= maxAgeMs;
+        }
+
+        /**
+         * Котировка живая, если последняя сделка или обновление стакана были не позже maxAgeMs назад
+         */
+        boolean isActive(long nowMs, long maxAgeMs) {
+            return hasBook() && nowMs - Math.max(lastPriceMs, bookMs) <= maxAgeMs;
+        }
+
+        public boolean hasBook() {
+            return bid != null && ask != null && bid.signum() > 0 && ask.compareTo(bid) >= 0;
+        }
+
+        public BigDecimal getLastPrice() { return lastPrice; }
+        public long getLastPriceMs() { return lastPriceMs; }
+        public BigDecimal getBid() { return bid; }
+        public BigDecimal getAsk() { return ask; }
+        public long getBookMs() { return bookMs; }
+    }
+}
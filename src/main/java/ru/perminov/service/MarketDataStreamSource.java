@@ -0,0 +1,29 @@
+package ru.perminov.service;
+
+import ru.tinkoff.piapi.contract.v1.MarketDataResponse;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Источник потоковых рыночных данных для {@link MarketDataHub}.
+ * Боевая реализация — MarketDataStream Invest API, локальная — {@link FakeMarketDataStreamSource}.
+ */
+public interface MarketDataStreamSource {
+
+    /**
+     * Открывает поток; сообщения и ошибки доставляются в колбэки
+     */
+    void open(Consumer<MarketDataResponse> onMessage, Consumer<Throwable> onError);
+
+    /**
+     * Подписка на последние цены, стакан глубины 1 и минутные свечи
+     */
+    void subscribe(List<String> figis);
+
+    void unsubscribe(List<String> figis);
+
+    void close();
+
+    boolean isOpen();
+}
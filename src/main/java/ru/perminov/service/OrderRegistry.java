@@ -0,0 +1,299 @@
+package ru.perminov.service;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import ru.perminov.config.SchedulerLane;
+import ru.perminov.model.Order;
+import ru.perminov.repository.OrderRepository;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Реестр живых ордеров в памяти.
+ * Хранит только незавершённые ордера (MONITORING, NEW, PARTIALLY_FILLED, активные HARD_OCO_* и т.п.)
+ * с индексами по статусу, типу, аккаунту, FIGI и OCO-группе, поэтому мониторы не сканируют
+ * растущую таблицу orders. Отдельно хранятся ноги HARD_OCO, отменённые брокером и ещё не восстановленные
+ * (до перевода в RESTORED). Статус без значения, UNKNOWN, UNSPECIFIED и сырые конечные статусы брокера
+ * (EXECUTION_REPORT_STATUS_FILL/REJECTED/CANCELLED) считаются конечными. Обновляется при каждой записи ордера ({@link OrderRegistryListener}),
+ * при старте и периодически сверяется с БД. Наружу отдаются копии: изменения вызывающего
+ * попадают в реестр только через сохранение в репозиторий.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class OrderRegistry {
+
+    /** Конечные статусы; всё, что содержит CANCEL, и пустой статус тоже считаются конечными */
+    public static final List<String> TERMINAL_STATUSES =
+            List.of("FILLED", "EXECUTED", "REJECTED", "ERROR", "EXPIRED", "RESTORED", "UNKNOWN",
+                    "EXECUTION_REPORT_STATUS_FILL", "EXECUTION_REPORT_STATUS_REJECTED",
+                    "EXECUTION_REPORT_STATUS_CANCELLED", "EXECUTION_REPORT_STATUS_UNSPECIFIED");
+
+    /** Статусы ноги HARD_OCO, отменённой брокером: позицию нужно снова защитить */
+    public static final List<String> BROKER_CANCELLED_STATUSES = List.of("CANCELLED", "CANCELLED_BY_BROKER");
+
+    public static final List<String> HARD_OCO_TYPES = List.of("HARD_OCO_STOP_LOSS", "HARD_OCO_TAKE_PROFIT");
+
+    private static final Comparator<Order> NEWEST_FIRST = Comparator.comparing(Order::getOrderDate,
+            Comparator.nullsLast(Comparator.<LocalDateTime>naturalOrder().reversed()));
+
+    private final OrderRepository orderRepository;
+
+    private final Map<String, Order> byId = new HashMap<>();
+    private final Map<String, Set<String>> byStatus = new HashMap<>();
+    private final Map<String, Set<String>> byType = new HashMap<>();
+    private final Map<String, Set<String>> byAccount = new HashMap<>();
+    private final Map<String, Set<String>> byAccountFigi = new HashMap<>();
+    private final Map<String, Set<String>> byOcoGroup = new HashMap<>();
+    // Отменённые брокером ноги HARD_OCO по (аккаунт, FIGI), ожидающие восстановления
+    private final Map<String, Order> cancelledHardOcoById = new HashMap<>();
+    private final Map<String, Set<String>> cancelledHardOco = new HashMap<>();
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private volatile long lastRebuildMs = 0;
+    private volatile int lastRebuildDrift = 0;
+
+    @PostConstruct
+    public void init() {
+        try {
+            rebuild();
+        } catch (Exception e) {
+            log.warn("Реестр ордеров не загружен из БД: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Полная пересборка из БД (страховка от записей в обход JPA)
+     */
+    @SchedulerLane(SchedulerLane.Lane.HOUSEKEEPING)
+    @Scheduled(fixedDelay = 300000, initialDelay = 300000)
+    public void rebuild() {
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long writesBefore = writes.get();
+            List<Order> live = orderRepository.findLive(TERMINAL_STATUSES);
+            List<Order> cancelled = orderRepository.findByOrderTypeInAndStatusIn(HARD_OCO_TYPES, BROKER_CANCELLED_STATUSES);
+            synchronized (this) {
+                // Запись, применённая во время чтения, новее прочитанного снимка — перечитываем
+                if (writes.get() != writesBefore) {
+                    continue;
+                }
+                int before = byId.size();
+                clear();
+                for (Order order : live) {
+                    index(copyOf(order));
+                }
+                for (Order order : cancelled) {
+                    indexCancelled(copyOf(order));
+                }
+                lastRebuildDrift = Math.abs(byId.size() - before);
+            }
+            rebuilds.incrementAndGet();
+            lastRebuildMs = System.currentTimeMillis();
+            log.debug("Реестр ордеров пересобран: {} живых ордеров", live.size());
+            return;
+        }
+        log.debug("Пересборка реестра ордеров отложена: идут активные записи");
+    }
+
+    /**
+     * Применяет сохранённое состояние ордера: живой — (пере)индексируется, завершённый — удаляется
+     */
+    public synchronized void apply(Order order) {
+        if (order == null || order.getOrderId() == null) return;
+        writes.incrementAndGet();
+        unindex(order.getOrderId());
+        if (isLive(order.getStatus())) {
+            index(copyOf(order));
+        } else if (awaitsRestore(order)) {
+            indexCancelled(copyOf(order));
+        }
+    }
+
+    public synchronized void remove(String orderId) {
+        writes.incrementAndGet();
+        unindex(orderId);
+    }
+
+    public static boolean isLive(String status) {
+        return status != null && !TERMINAL_STATUSES.contains(status) && !status.contains("CANCEL");
+    }
+
+    public synchronized List<Order> getByStatus(String status) {
+        return collect(byStatus.get(status));
+    }
+
+    public synchronized List<Order> getByTypes(Collection<String> orderTypes) {
+        Set<String> ids = new LinkedHashSet<>();
+        for (String type : orderTypes) {
+            Set<String> typed = byType.get(type);
+            if (typed != null) ids.addAll(typed);
+        }
+        return collect(ids);
+    }
+
+    public synchronized List<Order> getByAccount(String accountId) {
+        return collect(byAccount.get(accountId));
+    }
+
+    public synchronized List<Order> getByAccountAndFigi(String accountId, String figi) {
+        return collect(byAccountFigi.get(accountFigiKey(accountId, figi)));
+    }
+
+    public synchronized List<Order> getByOcoGroup(String ocoGroupId) {
+        return collect(byOcoGroup.get(ocoGroupId));
+    }
+
+    /**
+     * Ноги HARD_OCO по позиции, отменённые брокером и ещё не восстановленные
+     */
+    public synchronized List<Order> getCancelledHardOco(String accountId, String figi) {
+        return collect(cancelledHardOco.get(accountFigiKey(accountId, figi)), cancelledHardOcoById);
+    }
+
+    public synchronized int size() {
+        return byId.size();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (this) {
+            stats.put("liveOrders", byId.size());
+            Map<String, Integer> statuses = new LinkedHashMap<>();
+            byStatus.forEach((status, ids) -> statuses.put(status, ids.size()));
+            stats.put("byStatus", statuses);
+            Map<String, Integer> types = new LinkedHashMap<>();
+            byType.forEach((type, ids) -> types.put(type, ids.size()));
+            stats.put("byType", types);
+            stats.put("accounts", byAccount.size());
+            stats.put("ocoGroups", byOcoGroup.size());
+            stats.put("cancelledHardOco", cancelledHardOcoById.size());
+        }
+        stats.put("writes", writes.get());
+        stats.put("rebuilds", rebuilds.get());
+        stats.put("lastRebuildMs", lastRebuildMs);
+        stats.put("lastRebuildDrift", lastRebuildDrift);
+        return stats;
+    }
+
+    /**
+     * ID OCO-группы из сообщения ордера ("OCO_GROUP:<id> | ...")
+     */
+    public static String extractOcoGroupId(String message) {
+        if (message == null) return null;
+        int idx = message.indexOf("OCO_GROUP:");
+        if (idx < 0) return null;
+        String rest = message.substring(idx + "OCO_GROUP:".length());
+        int bar = rest.indexOf('|');
+        String id = (bar >= 0 ? rest.substring(0, bar) : rest).trim();
+        return id.isEmpty() ? null : id;
+    }
+
+    private void index(Order order) {
+        String id = order.getOrderId();
+        byId.put(id, order);
+        add(byStatus, order.getStatus(), id);
+        add(byType, order.getOrderType(), id);
+        add(byAccount, order.getAccountId(), id);
+        add(byAccountFigi, accountFigiKey(order.getAccountId(), order.getFigi()), id);
+        add(byOcoGroup, extractOcoGroupId(order.getMessage()), id);
+    }
+
+    private void indexCancelled(Order order) {
+        cancelledHardOcoById.put(order.getOrderId(), order);
+        add(cancelledHardOco, accountFigiKey(order.getAccountId(), order.getFigi()), order.getOrderId());
+    }
+
+    private static boolean awaitsRestore(Order order) {
+        return HARD_OCO_TYPES.contains(order.getOrderType()) && BROKER_CANCELLED_STATUSES.contains(order.getStatus());
+    }
+
+    private void unindex(String orderId) {
+        Order cancelled = cancelledHardOcoById.remove(orderId);
+        if (cancelled != null) {
+            drop(cancelledHardOco, accountFigiKey(cancelled.getAccountId(), cancelled.getFigi()), orderId);
+        }
+        Order old = byId.remove(orderId);
+        if (old == null) return;
+        drop(byStatus, old.getStatus(), orderId);
+        drop(byType, old.getOrderType(), orderId);
+        drop(byAccount, old.getAccountId(), orderId);
+        drop(byAccountFigi, accountFigiKey(old.getAccountId(), old.getFigi()), orderId);
+        drop(byOcoGroup, extractOcoGroupId(old.getMessage()), orderId);
+    }
+
+    private void clear() {
+        byId.clear();
+        byStatus.clear();
+        byType.clear();
+        byAccount.clear();
+        byAccountFigi.clear();
+        byOcoGroup.clear();
+        cancelledHardOcoById.clear();
+        cancelledHardOco.clear();
+    }
+
+    private List<Order> collect(Set<String> ids) {
+        return collect(ids, byId);
+    }
+
+    private static List<Order> collect(Set<String> ids, Map<String, Order> orders) {
+        if (ids == null || ids.isEmpty()) return new ArrayList<>();
+        List<Order> result = new ArrayList<>(ids.size());
+        for (String id : ids) {
+            Order order = orders.get(id);
+            if (order != null) result.add(copyOf(order));
+        }
+        result.sort(NEWEST_FIRST);
+        return result;
+    }
+
+    private static void add(Map<String, Set<String>> index, String key, String id) {
+        if (key == null) return;
+        index.computeIfAbsent(key, k -> new LinkedHashSet<>()).add(id);
+    }
+
+    private static void drop(Map<String, Set<String>> index, String key, String id) {
+        if (key == null) return;
+        Set<String> ids = index.get(key);
+        if (ids != null) {
+            ids.remove(id);
+            if (ids.isEmpty()) index.remove(key);
+        }
+    }
+
+    private static String accountFigiKey(String accountId, String figi) {
+        return accountId + "|" + figi;
+    }
+
+    static Order copyOf(Order source) {
+        Order copy = new Order();
+        copy.setOrderId(source.getOrderId());
+        copy.setFigi(source.getFigi());
+        copy.setOperation(source.getOperation());
+        copy.setStatus(source.getStatus());
+        copy.setRequestedLots(source.getRequestedLots());
+        copy.setExecutedLots(source.getExecutedLots());
+        copy.setPrice(source.getPrice());
+        copy.setCurrency(source.getCurrency());
+        copy.setOrderDate(source.getOrderDate());
+        copy.setOrderType(source.getOrderType());
+        copy.setMessage(source.getMessage());
+        copy.setCommission(source.getCommission());
+        copy.setAccountId(source.getAccountId());
+        return copy;
+    }
+}
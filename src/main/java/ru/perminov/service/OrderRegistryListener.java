@@ -0,0 +1,75 @@
+package ru.perminov.service;
+
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.perminov.model.Order;
+
+/**
+ * JPA-слушатель сущности {@link Order}: каждая запись ордера (из OrderService и мониторов)
+ * сквозным образом применяется к {@link OrderRegistry}, {@link TradeHistoryIndex}, {@link PreTradeRiskGate}
+ * и {@link VirtualTriggerIndex}. Внутри транзакции
+ * изменение применяется после коммита, чтобы откат не оставил в индексах несуществующее состояние.
+ * Индексы берутся через ObjectProvider: слушатель создаётся вместе с EntityManagerFactory,
+ * раньше репозиториев, от которых они зависят.
+ */
+public class OrderRegistryListener {
+
+    private final ObjectProvider<OrderRegistry> registryProvider;
+    private final ObjectProvider<TradeHistoryIndex> tradeHistoryProvider;
+    private final ObjectProvider<PreTradeRiskGate> riskGateProvider;
+    private final ObjectProvider<VirtualTriggerIndex> triggerIndexProvider;
+
+    public OrderRegistryListener(ObjectProvider<OrderRegistry> registryProvider,
+                                 ObjectProvider<TradeHistoryIndex> tradeHistoryProvider,
+                                 ObjectProvider<PreTradeRiskGate> riskGateProvider,
+                                 ObjectProvider<VirtualTriggerIndex> triggerIndexProvider) {
+        this.registryProvider = registryProvider;
+        this.tradeHistoryProvider = tradeHistoryProvider;
+        this.riskGateProvider = riskGateProvider;
+        this.triggerIndexProvider = triggerIndexProvider;
+    }
+
+    @PostPersist
+    @PostUpdate
+    public void onSaved(Order order) {
+        Order snapshot = OrderRegistry.copyOf(order);
+        afterCommit(() -> {
+            OrderRegistry registry = registryProvider.getIfAvailable();
+            if (registry != null) registry.apply(snapshot);
+            TradeHistoryIndex tradeHistory = tradeHistoryProvider.getIfAvailable();
+            if (tradeHistory != null) tradeHistory.apply(snapshot);
+            PreTradeRiskGate riskGate = riskGateProvider.getIfAvailable();
+            if (riskGate != null) riskGate.apply(snapshot);
+            VirtualTriggerIndex triggerIndex = triggerIndexProvider.getIfAvailable();
+            if (triggerIndex != null) triggerIndex.apply(snapshot);
+        });
+    }
+
+    @PostRemove
+    public void onRemoved(Order order) {
+        String orderId = order.getOrderId();
+        afterCommit(() -> {
+            OrderRegistry registry = registryProvider.getIfAvailable();
+            if (registry != null) registry.remove(orderId);
+            VirtualTriggerIndex triggerIndex = triggerIndexProvider.getIfAvailable();
+            if (triggerIndex != null) triggerIndex.remove(orderId);
+        });
+    }
+
+    private static void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+}
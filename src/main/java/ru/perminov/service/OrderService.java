@@ -19,6 +19,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
 
 @Service
@@ -32,21 +33,35 @@ public class OrderService {
     private final PortfolioService portfolioService;
     private final LotSizeService lotSizeService;
     private final MarketAnalysisService marketAnalysisService;
+    private final VirtualTriggerIndex virtualTriggerIndex;
+    private final SingleFlight singleFlight;
 
     public List<OrderState> getOrders(String accountId) {
         try {
             log.info("Получение ордеров для аккаунта: {}", accountId);
-            apiRateLimiter.acquire();
-            CompletableFuture<List<OrderState>> future = investApiManager.getCurrentInvestApi().getOrdersService().getOrders(accountId);
-            List<OrderState> orders = future.get();
+            // Одновременные запросы заявок одного аккаунта (мониторы OCO, отмена лимиток) ждут один вызов API
+            List<OrderState> orders = singleFlight.execute("orders:" + accountId, 0, () ->
+                apiRateLimiter.call(ApiRateLimiter.ApiClass.ORDERS,
+                        () -> investApiManager.getCurrentInvestApi().getOrdersService().getOrders(accountId))
+                    .join());
             log.info("Получено {} ордеров для аккаунта {}", orders.size(), accountId);
             return orders;
-        } catch (InterruptedException | ExecutionException e) {
+        } catch (CompletionException e) {
             log.error("Ошибка при получении ордеров для аккаунта {}: {}", accountId, e.getMessage(), e);
             throw new RuntimeException("Ошибка при получении ордеров: " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Отправка заявки в очередь лимитера ORDERS: запрос уходит, как только выдано разрешение
+     */
+    private CompletableFuture<PostOrderResponse> postOrderAsync(String figi, int lots, Quotation price, OrderDirection direction,
+                                                                String accountId, OrderType orderType, String orderId) {
+        return apiRateLimiter.call(ApiRateLimiter.ApiClass.ORDERS,
+                () -> investApiManager.getCurrentInvestApi().getOrdersService()
+                    .postOrder(figi, lots, price, direction, accountId, orderType, orderId));
+    }
+
     public PostOrderResponse placeMarketOrder(String figi, int lots, OrderDirection direction, String accountId) {
         log.info("=== ВХОД В placeMarketOrder ===");
         log.info("Параметры: figi={}, lots={}, direction={}, accountId={}", figi, lots, direction, accountId);
@@ -86,8 +101,7 @@ public class OrderService {
                 .setNano(0)
                 .build();
             
-            apiRateLimiter.acquire();
-            CompletableFuture<PostOrderResponse> future = investApiManager.getCurrentInvestApi().getOrdersService().postOrder(
+            CompletableFuture<PostOrderResponse> future = postOrderAsync(
                 figi,
                 lots,
                 priceObj, // используем нулевую цену для рыночного ордера
@@ -406,8 +420,7 @@ public class OrderService {
             // В будущем можно заменить на настоящие стоп-ордера
             log.warn("⚠️ Используем лимитный ордер вместо стоп-ордера (API ограничения)");
             
-            apiRateLimiter.acquire();
-            CompletableFuture<PostOrderResponse> future = investApiManager.getCurrentInvestApi().getOrdersService().postOrder(
+            CompletableFuture<PostOrderResponse> future = postOrderAsync(
                 figi,
                 lots,
                 stopPriceObj,
@@ -497,6 +510,7 @@ public class OrderService {
                 virtualStop.setAccountId(accountId);
                 virtualStop.setMessage("Entry: " + entryPrice + ", StopLoss: " + stopLossPct * 100 + "%");
                 orderRepository.save(virtualStop);
+                virtualTriggerIndex.register(virtualStop);
                 
                 log.info("💾 Виртуальный стоп-лосс сохранен в БД: {} → {}", figi, stopPrice);
                 
@@ -552,6 +566,7 @@ public class OrderService {
             virtualTP.setAccountId(accountId);
             virtualTP.setMessage("OCO_GROUP:" + ocoGroupId + " | Entry: " + entryPrice + ", TP: " + takeProfitPct * 100 + "%");
             orderRepository.save(virtualTP);
+            virtualTriggerIndex.register(virtualTP);
             
             // Создаем виртуальный Stop-Loss
             Order virtualSL = new Order();
@@ -567,6 +582,7 @@ public class OrderService {
             virtualSL.setAccountId(accountId);
             virtualSL.setMessage("OCO_GROUP:" + ocoGroupId + " | Entry: " + entryPrice + ", SL: " + stopLossPct * 100 + "%");
             orderRepository.save(virtualSL);
+            virtualTriggerIndex.register(virtualSL);
             
             log.info("🎯 Виртуальный OCO создан: {} | TP: {} | SL: {} | Группа: {}", 
                 figi, takeProfitPrice, stopLossPrice, ocoGroupId);
@@ -897,13 +913,11 @@ public class OrderService {
             log.debug("🔍 Преобразование цены: исходная={}, нормализованная={}, units={}, nano={}", 
                     price, normalizedPriceStr, units, nano);
             
-            apiRateLimiter.acquire();
-            
             // Логируем все параметры перед отправкой для отладки
             log.debug("📤 Отправка запроса на размещение лимитного ордера: figi={}, lots={}, priceObj=[units={}, nano={}], direction={}, accountId={}, orderType={}, orderId={}", 
                     figi, lots, priceObj.getUnits(), priceObj.getNano(), direction, accountId, OrderType.ORDER_TYPE_LIMIT, orderId);
             
-            CompletableFuture<PostOrderResponse> future = investApiManager.getCurrentInvestApi().getOrdersService().postOrder(
+            CompletableFuture<PostOrderResponse> future = postOrderAsync(
                 figi,
                 lots,
                 priceObj,
@@ -1062,6 +1076,8 @@ public class OrderService {
         String s = statusName.toUpperCase();
         if (s.contains("FILL")) return "FILLED"; // EXECUTION_REPORT_STATUS_FILL / PARTIALLYFILL
         if (s.contains("REJECT")) return "REJECTED";
+        if (s.contains("CANCEL")) return "CANCELLED";
+        if (s.contains("UNSPECIFIED")) return "UNKNOWN";
         if (s.contains("PENDING") || s.endsWith("_NEW") || s.equals("NEW")) return "NEW";
         return s;
     }
@@ -1069,8 +1085,8 @@ public class OrderService {
     public void cancelOrder(String accountId, String orderId) {
         try {
             log.info("Отмена ордера: accountId={}, orderId={}", accountId, orderId);
-            apiRateLimiter.acquire();
-            CompletableFuture<java.time.Instant> future = investApiManager.getCurrentInvestApi().getOrdersService().cancelOrder(accountId, orderId);
+            CompletableFuture<java.time.Instant> future = apiRateLimiter.call(ApiRateLimiter.ApiClass.ORDERS,
+                    () -> investApiManager.getCurrentInvestApi().getOrdersService().cancelOrder(accountId, orderId));
             java.time.Instant cancelTime = future.get();
             log.info("Ордер успешно отменен: accountId={}, orderId={}, cancelTime={}", accountId, orderId, cancelTime);
         } catch (InterruptedException | ExecutionException e) {
@@ -9,15 +9,16 @@ import ru.tinkoff.piapi.core.models.Position;
 import ru.tinkoff.piapi.contract.v1.OrderDirection;
 import ru.tinkoff.piapi.contract.v1.PostOrderResponse;
 // import ru.tinkoff.piapi.contract.v1.MoneyValue; // unused
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.dto.ShareDto;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,20 +41,23 @@ public class PortfolioManagementService {
     private final AdvancedTradingStrategyService advancedTradingStrategyService;
     private final TradingSettingsService tradingSettingsService;
     private final InstrumentNameService instrumentNameService;
-    private final SectorManagementService sectorManagementService;
     private final CapitalManagementService capitalManagementService;
     private final CommissionCalculatorService commissionCalculatorService;
     private final AdaptiveDiversificationService adaptiveDiversificationService;
-    private final TradingCooldownService tradingCooldownService;
-    private final PositionHoldTimeService positionHoldTimeService;
     private final CommissionAwareTradingService commissionAwareTradingService;
     private final HardOcoMonitorService hardOcoMonitorService;
+    private final MarketDataHub marketDataHub;
+    private final InstrumentScanPipeline instrumentScanPipeline;
+    private final UniversePrefetchService universePrefetchService;
+    private final PortfolioStateService portfolioStateService;
+    private final PreTradeRiskGate preTradeRiskGate;
+    private final TradingDecisionPipeline decisionPipeline;
+    private final AnalysisContext analysisContext;
 
     // Защита: одна торговая операция на FIGI в короткое окно (например, один цикл/60 сек)
     private final java.util.concurrent.ConcurrentHashMap<String, Long> recentOperationsWindow = new java.util.concurrent.ConcurrentHashMap<>();
-    // Блокировка инструментов после провала ликвидности (управляется настройкой)
+    // Блокировка инструментов после провала ликвидности (управляется настройкой, хранится в PreTradeRiskGate)
     private static final long DEFAULT_LIQUIDITY_BLOCK_DURATION_MS = 24 * 60 * 60 * 1000L;
-    private final java.util.concurrent.ConcurrentHashMap<String, Long> liquidityBlockUntil = new java.util.concurrent.ConcurrentHashMap<>();
     private final ru.perminov.repository.InstrumentRepository instrumentRepository;
     
     // Целевые доли активов в портфеле
@@ -193,13 +197,7 @@ public class PortfolioManagementService {
      * Проверка активна ли суточная блокировка по ликвидности
      */
     public boolean isLiquidityBlocked(String figi) {
-        Long until = liquidityBlockUntil.get(figi);
-        if (until == null) return false;
-        long now = System.currentTimeMillis();
-        if (now <= until) return true;
-        // Срок истёк — очищаем запись
-        liquidityBlockUntil.remove(figi);
-        return false;
+        return preTradeRiskGate.isLiquidityBlocked(figi);
     }
 
     /**
@@ -257,11 +255,7 @@ public class PortfolioManagementService {
      * Остаток блокировки по ликвидности в минутах
      */
     public long getLiquidityBlockRemainingMinutes(String figi) {
-        Long until = liquidityBlockUntil.get(figi);
-        if (until == null) return 0;
-        long diff = until - System.currentTimeMillis();
-        if (diff <= 0) return 0;
-        return Duration.ofMillis(diff).toMinutes();
+        return preTradeRiskGate.getLiquidityBlockRemainingMinutes(figi);
     }
 
     /**
@@ -270,7 +264,7 @@ public class PortfolioManagementService {
     private void registerLiquidityBlock(String figi, String reason, Double healthPercent, boolean forceMonth) {
         long durationMs = getLiquidityBlockDurationMs(healthPercent, forceMonth);
         long until = System.currentTimeMillis() + durationMs;
-        liquidityBlockUntil.put(figi, until);
+        preTradeRiskGate.blockLiquidity(figi, until);
         LocalDateTime untilDateTime = LocalDateTime.ofInstant(Instant.ofEpochMilli(until), ZoneId.systemDefault());
         log.warn("⛔ Добавлена суточная блокировка ликвидности для {} до {}", displayOf(figi), untilDateTime);
         if (shouldLogLiquidityBlocks()) {
@@ -285,86 +279,14 @@ public class PortfolioManagementService {
      * Анализ текущего портфеля
      */
     public PortfolioAnalysis analyzePortfolio(String accountId) {
-        Portfolio portfolio = portfolioService.getPortfolio(accountId);
-        List<Position> positions = portfolio.getPositions();
-        
-        BigDecimal totalValue = BigDecimal.ZERO;
-        Map<String, BigDecimal> currentAllocations = new HashMap<>();
-        Map<String, BigDecimal> positionValues = new HashMap<>();
-        
-        // Расчет текущих значений позиций
-        for (Position position : positions) {
-            BigDecimal quantity = position.getQuantity();
-            BigDecimal currentPrice = BigDecimal.ZERO;
-            
-            if (position.getCurrentPrice() != null) {
-                try {
-                    // Пробуем использовать правильный метод для Money
-                    if (position.getCurrentPrice() instanceof ru.tinkoff.piapi.core.models.Money) {
-                        ru.tinkoff.piapi.core.models.Money money = (ru.tinkoff.piapi.core.models.Money) position.getCurrentPrice();
-                        currentPrice = money.getValue();
-                        log.debug("Цена через getValue(): {}", currentPrice);
-                    } else {
-                        // Фоллбек на парсинг строки
-                        String priceStr = position.getCurrentPrice().toString();
-                        log.debug("Price string: {}", priceStr);
-                        
-                        if (priceStr.contains("value=")) {
-                            String valuePart = priceStr.substring(priceStr.indexOf("value=") + 6);
-                            valuePart = valuePart.substring(0, valuePart.indexOf(","));
-                            currentPrice = new BigDecimal(valuePart);
-                        } else {
-                            String[] parts = priceStr.split("[^0-9.]");
-                            for (String part : parts) {
-                                if (!part.isEmpty() && part.matches("\\d+\\.?\\d*")) {
-                                    currentPrice = new BigDecimal(part);
-                                    break;
-                                }
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                                            log.warn("Не удалось получить цену для позиции: {}", e.getMessage());
-                    currentPrice = BigDecimal.ZERO;
-                }
-            } else {
-                currentPrice = BigDecimal.ZERO;
-            }
-            
-            BigDecimal positionValue;
-            
-            // Для валютных позиций используем количество как стоимость
-            if ("currency".equals(position.getInstrumentType())) {
-                positionValue = quantity;
-            } else {
-                positionValue = quantity.multiply(currentPrice);
-            }
-            
-            positionValues.put(position.getFigi(), positionValue);
-            totalValue = totalValue.add(positionValue);
-            
-            // Группировка по типам инструментов
-            String instrumentType = position.getInstrumentType();
-            currentAllocations.merge(instrumentType, positionValue, BigDecimal::add);
-        }
-        
-        // Расчет долей
-        Map<String, BigDecimal> allocationPercentages = new HashMap<>();
-        for (Map.Entry<String, BigDecimal> entry : currentAllocations.entrySet()) {
-            if (totalValue.compareTo(BigDecimal.ZERO) > 0) {
-                BigDecimal percentage = entry.getValue()
-                    .divide(totalValue, 4, RoundingMode.HALF_UP)
-                    .multiply(BigDecimal.valueOf(100));
-                allocationPercentages.put(entry.getKey(), percentage);
-            }
-        }
-        
+        // Стоимости и доли уже посчитаны в снимке портфеля
+        PortfolioStateService.Snapshot snapshot = portfolioStateService.getSnapshot(accountId);
         return new PortfolioAnalysis(
-            totalValue,
-            currentAllocations,
-            allocationPercentages,
-            positionValues,
-            positions
+            snapshot.getTotalValue(),
+            snapshot.getTypeValues(),
+            snapshot.getTypePercentages(),
+            snapshot.getPositionValues(),
+            snapshot.getPositions()
         );
     }
     
@@ -481,984 +403,881 @@ public class PortfolioManagementService {
     }
     
     /**
-     * Автоматическая торговля на основе анализа
+     * Автоматическая торговля на основе анализа.
+     * Решение проходит шаги допуска, сигнала и фильтров ({@link #decisionSteps}), затем ветку действия
+     * ({@link #routeSteps}); любой шаг может завершить решение досрочно.
      */
     public void executeTradingStrategy(String accountId, String figi) {
-        try {
+        TradingDecisionPipeline.Trace trace = decisionPipeline.start(figi);
+        // Цикл анализа: тренд, SMA/RSI/ATR и продвинутые индикаторы считаются один раз на решение
+        try (AnalysisContext.Cycle cycle = analysisContext.openCycle()) {
             log.info("=== ВЫПОЛНЕНИЕ ТОРГОВОЙ СТРАТЕГИИ ===");
             log.info("Аккаунт: {}, Инструмент: {}", accountId, displayOf(figi));
-            
-            // Проверяем доступность инструмента для торговли
-            if (!dynamicInstrumentService.isInstrumentAvailable(figi)) {
-                log.warn("Инструмент {} недоступен для торговли, пропускаем", displayOf(figi));
-                botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                    "Инструмент недоступен", displayOf(figi) + " — недоступен для торговли");
-                return;
+
+            TradeDecision decision = new TradeDecision(accountId, figi,
+                tradingSettingsService.getInt("decision.lookup.timeout_ms", 15000));
+            if (decisionPipeline.run(trace, decision, decisionSteps)) {
+                decisionPipeline.run(trace, decision, routeSteps(decision));
             }
+        } catch (Exception e) {
+            trace.fail();
+            log.error("Ошибка при выполнении торговой стратегии для {}: {}", displayOf(figi), e.getMessage());
+            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                                  "Ошибка выполнения торговой стратегии", displayOf(figi) + " - " + e.getMessage());
+            // НЕ останавливаем выполнение, продолжаем с другими инструментами
+        } finally {
+            trace.close();
+        }
+    }
 
-            // Суточная блокировка после провала ликвидности
-            if (isLiquidityBlocked(figi)) {
-                long minutesLeft = getLiquidityBlockRemainingMinutes(figi);
-                log.info("⏳ Суточная блокировка по ликвидности активна для {}. Осталось ~{} мин", displayOf(figi), minutesLeft);
-                return;
+    /**
+     * Состояние одного торгового решения, которое шаги передают друг другу
+     */
+    private static final class TradeDecision {
+        final String accountId;
+        final String figi;
+        final long lookupTimeoutMs;
+
+        // Независимые запросы, запущенные вместе с трендом
+        java.util.concurrent.CompletableFuture<PreTradeRiskGate.Limits> limitsFuture;
+        java.util.concurrent.CompletableFuture<BigDecimal> atrFuture;
+        java.util.concurrent.CompletableFuture<MarketAnalysisService.BidAskPrices> bidAskFuture;
+
+        MarketAnalysisService.TrendAnalysis trend;
+        PortfolioAnalysis portfolio;
+        BigDecimal atr;
+        PreTradeRiskGate.Limits limits;
+        String action;
+
+        // Ветка действия
+        Position position;
+        BigDecimal positionValue;
+        String instrumentType;
+        String actionDescription;
+        String prettyName;
+        String prettyTicker;
+        int lots;
+        BigDecimal totalCost;
+        OrderDirection ocoDirection;
+
+        TradeDecision(String accountId, String figi, long lookupTimeoutMs) {
+            this.accountId = accountId;
+            this.figi = figi;
+            this.lookupTimeoutMs = lookupTimeoutMs;
+        }
+
+        BigDecimal price() {
+            return trend.getCurrentPrice();
+        }
+    }
+
+    private static TradingDecisionPipeline.Step<TradeDecision> step(TradingDecisionPipeline.Stage stage, String name,
+                                                                    TradingDecisionPipeline.Check<TradeDecision> check) {
+        return TradingDecisionPipeline.step(stage, name, check);
+    }
+
+    // Допуск → сигнал → фильтры: общие для всех действий
+    private final List<TradingDecisionPipeline.Step<TradeDecision>> decisionSteps = List.of(
+        step(TradingDecisionPipeline.Stage.FILTERS, "допуск инструмента", this::admitInstrument),
+        step(TradingDecisionPipeline.Stage.SIGNAL, "тренд", this::analyzeTrendStep),
+        step(TradingDecisionPipeline.Stage.FILTERS, "предварительный cooldown", this::checkPreliminaryCooldown),
+        step(TradingDecisionPipeline.Stage.FILTERS, "ATR-фильтр", this::checkAtrRange),
+        step(TradingDecisionPipeline.Stage.SIGNAL, "сведение сигналов", this::resolveAction),
+        step(TradingDecisionPipeline.Stage.FILTERS, "финальные фильтры", this::checkFinalAction)
+    );
+
+    private final List<TradingDecisionPipeline.Step<TradeDecision>> closeShortSteps = List.of(
+        step(TradingDecisionPipeline.Stage.ROUTING, "закрытие шорта", this::closeShortOnSignal)
+    );
+
+    private final List<TradingDecisionPipeline.Step<TradeDecision>> buySteps = List.of(
+        step(TradingDecisionPipeline.Stage.SIZING, "размер покупки", this::sizeBuy),
+        step(TradingDecisionPipeline.Stage.RISK_GATE, "пре-трейд гейт покупки", this::checkBuyRisk),
+        step(TradingDecisionPipeline.Stage.ROUTING, "ордер на покупку", this::placeBuy),
+        step(TradingDecisionPipeline.Stage.POST_TRADE, "OCO лонга", this::placeProtectiveOrders)
+    );
+
+    // Открытый шорт по FIGI закрывается до покупки; если закрыть не удалось — обычная покупка
+    private final List<TradingDecisionPipeline.Step<TradeDecision>> closeShortThenBuySteps = java.util.stream.Stream.concat(
+        java.util.stream.Stream.of(step(TradingDecisionPipeline.Stage.ROUTING, "приоритетное закрытие шорта", this::closeShortBeforeBuy)),
+        buySteps.stream()).toList();
+
+    private final List<TradingDecisionPipeline.Step<TradeDecision>> sellSteps = List.of(
+        step(TradingDecisionPipeline.Stage.FILTERS, "наличие позиции", this::checkSellablePosition),
+        step(TradingDecisionPipeline.Stage.RISK_GATE, "проверки закрытия", this::checkCloseRisk),
+        step(TradingDecisionPipeline.Stage.ROUTING, "ордер на продажу", this::placeSell)
+    );
+
+    private final List<TradingDecisionPipeline.Step<TradeDecision>> openShortSteps = List.of(
+        step(TradingDecisionPipeline.Stage.FILTERS, "допуск шорта", this::checkShortAllowed),
+        step(TradingDecisionPipeline.Stage.SIZING, "размер шорта", this::sizeShort),
+        step(TradingDecisionPipeline.Stage.RISK_GATE, "маржа шорта", this::checkShortMargin),
+        step(TradingDecisionPipeline.Stage.ROUTING, "ордер на открытие шорта", this::placeShort),
+        step(TradingDecisionPipeline.Stage.POST_TRADE, "OCO шорта", this::placeProtectiveOrders)
+    );
+
+    private final List<TradingDecisionPipeline.Step<TradeDecision>> holdSteps = List.of(
+        step(TradingDecisionPipeline.Stage.FILTERS, "HOLD", this::logHold)
+    );
+
+    /**
+     * Ветка по финальному действию
+     */
+    private List<TradingDecisionPipeline.Step<TradeDecision>> routeSteps(TradeDecision d) {
+        d.position = d.portfolio.getPositions().stream()
+            .filter(p -> d.figi.equals(p.getFigi()))
+            .findFirst()
+            .orElse(null);
+        d.positionValue = d.portfolio.getPositionValues().get(d.figi);
+        if ("CLOSE_SHORT".equals(d.action)) {
+            return closeShortSteps;
+        }
+        if ("BUY".equals(d.action)) {
+            return isShortPosition(d.position) ? closeShortThenBuySteps : buySteps;
+        }
+        if ("SELL".equals(d.action)) {
+            log.info("🎯 ВЫПОЛНЯЕМ SELL для {}: проверяем позицию (НЕ зависит от buyingPower)", displayOf(d.figi));
+            log.debug("Значение позиции по {}: {}", displayOf(d.figi), d.positionValue);
+            // Позиции нет — рассматриваем открытие шорта
+            return d.positionValue != null && d.positionValue.compareTo(BigDecimal.ZERO) != 0 ? sellSteps : openShortSteps;
+        }
+        return holdSteps;
+    }
+
+    private static boolean isShortPosition(Position position) {
+        return position != null && position.getQuantity() != null && position.getQuantity().compareTo(BigDecimal.ZERO) < 0;
+    }
+
+    /**
+     * Доступность инструмента и пре-трейд допуск: суточная блокировка по ликвидности и класс актива для уровня портфеля
+     */
+    private boolean admitInstrument(TradeDecision d) {
+        if (!dynamicInstrumentService.isInstrumentAvailable(d.figi)) {
+            log.warn("Инструмент {} недоступен для торговли, пропускаем", displayOf(d.figi));
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Инструмент недоступен", displayOf(d.figi) + " — недоступен для торговли");
+            return false;
+        }
+        PreTradeRiskGate.Decision instrumentCheck = preTradeRiskGate.checkInstrument(d.accountId, d.figi, determineInstrumentType(d.figi));
+        if (instrumentCheck.isBlocked()) {
+            log.info("⛔ Пропускаем {}: {}", displayOf(d.figi), instrumentCheck.getReason());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Тренд и независимые запросы: лимиты аккаунта (портфель + маржинальные атрибуты), ATR и стакан
+     * запускаются параллельно тренду и дожидаются там, где нужны
+     */
+    private boolean analyzeTrendStep(TradeDecision d) throws Exception {
+        String figi = d.figi;
+        String accountId = d.accountId;
+        java.util.concurrent.CompletableFuture<MarketAnalysisService.TrendAnalysis> trendFuture = decisionPipeline.async(() ->
+            marketAnalysisService.analyzeTrend(figi, ru.tinkoff.piapi.contract.v1.CandleInterval.CANDLE_INTERVAL_DAY));
+        int atrPeriod = tradingSettingsService.getInt("atr.period", 14);
+        d.atrFuture = decisionPipeline.async(() ->
+            marketAnalysisService.calculateATR(figi, ru.tinkoff.piapi.contract.v1.CandleInterval.CANDLE_INTERVAL_DAY, atrPeriod));
+        d.limitsFuture = decisionPipeline.async(() -> preTradeRiskGate.getLimits(accountId));
+        d.bidAskFuture = decisionPipeline.async(() -> marketAnalysisService.getBidAskPrices(figi));
+
+        // Тренд считаем один раз: он нужен и для предварительного cooldown, и для финального решения
+        d.trend = TradingDecisionPipeline.join(trendFuture, d.lookupTimeoutMs);
+        if (d.trend == null) {
+            log.warn("Не удалось получить анализ тренда для {}", displayOf(figi));
+            return false;
+        }
+        log.info("Тренд: {}, текущая цена: {}", d.trend.getTrend(), d.price());
+        d.portfolio = analyzePortfolio(accountId);
+        return true;
+    }
+
+    /**
+     * 🚀 ПРЕДВАРИТЕЛЬНАЯ ПРОВЕРКА COOLDOWN: Защита от частых сделок
+     */
+    private boolean checkPreliminaryCooldown(TradeDecision d) {
+        String figi = d.figi;
+        Position preliminaryPosition = d.portfolio.getPositions().stream()
+            .filter(p -> figi.equals(p.getFigi()))
+            .findFirst()
+            .orElse(null);
+        boolean hasPreliminaryPosition = preliminaryPosition != null &&
+            preliminaryPosition.getQuantity() != null &&
+            preliminaryPosition.getQuantity().compareTo(BigDecimal.ZERO) != 0;
+
+        String preliminaryAction = determineRecommendedAction(d.trend,
+            d.price(), hasPreliminaryPosition, figi, d.accountId);
+        if (preliminaryAction == null || "HOLD".equals(preliminaryAction)) {
+            return true;
+        }
+        // Локальная защита: не более одной операции на FIGI за короткое окно (120 сек)
+        long nowMs = System.currentTimeMillis();
+        Long lastOp = recentOperationsWindow.get(figi);
+        if (lastOp != null && (nowMs - lastOp) < 120_000) {
+            log.warn("🚫 Блок: уже была операция по {} менее чем 2 минуты назад", displayOf(figi));
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Ограничение частоты по FIGI", displayOf(figi) + " — операция пропущена (окно 120 сек)");
+            return false;
+        }
+        recentOperationsWindow.put(figi, nowMs);
+
+        PreTradeRiskGate.Decision cooldownCheck =
+            preTradeRiskGate.checkCooldown(d.accountId, figi, preliminaryAction);
+
+        if (cooldownCheck.isBlocked()) {
+            log.warn("🚫 БЛОКИРОВКА OVERTRADING: {} для {}. Причина: {}",
+                preliminaryAction, displayOf(figi), cooldownCheck.getReason());
+
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Блокировка частых сделок", String.format("%s, Account: %s, Действие: %s, Причина: %s",
+                    displayOf(figi), d.accountId, preliminaryAction, cooldownCheck.getReason()));
+            return false;
+        }
+
+        log.info("✅ Cooldown проверка пройдена: {} для {}", preliminaryAction, displayOf(figi));
+        return true;
+    }
+
+    /**
+     * ATR-фильтр: отсекаем слишком низкую (шум) и экстремальную волатильность
+     */
+    private boolean checkAtrRange(TradeDecision d) throws Exception {
+        d.atr = TradingDecisionPipeline.join(d.atrFuture, d.lookupTimeoutMs);
+        if (d.price().compareTo(java.math.BigDecimal.ZERO) > 0) {
+            java.math.BigDecimal atrPct = d.atr.divide(d.price(), 6, java.math.RoundingMode.HALF_UP);
+            double minAtrPct = tradingSettingsService.getDouble("atr.min.pct", 0.002);
+            double maxAtrPct = tradingSettingsService.getDouble("atr.max.pct", 0.08);
+            log.debug("ATR анализ: ATR={}, ATR%={}, мин={}, макс={}", d.atr, atrPct, minAtrPct, maxAtrPct);
+            if (atrPct.compareTo(java.math.BigDecimal.valueOf(minAtrPct)) < 0 || atrPct.compareTo(java.math.BigDecimal.valueOf(maxAtrPct)) > 0) {
+                log.info("ATR-фильтр: пропускаем {} (ATR%={})", displayOf(d.figi), atrPct);
+                return false;
             }
-            
-            // 🚀 Быстрый отсев по типу инструмента (например, фонды)
-            try {
-                String type = determineInstrumentType(figi);
-                // Динамика: разрешения по классу актива на основе уровня портфеля
-                java.math.BigDecimal portfolioValue = analyzePortfolio(accountId).getTotalValue();
-                AdaptiveDiversificationService.PortfolioLevel level = adaptiveDiversificationService.getPortfolioLevel(portfolioValue);
-
-                // ETF доступны с уровня MEDIUM и выше (или явный override)
-                boolean etfAllowedAtLevel = (level != AdaptiveDiversificationService.PortfolioLevel.SMALL);
-                boolean overrideEtf = tradingSettingsService.getBoolean("allow.etf.trading.override", false);
-                if ("etf".equalsIgnoreCase(type) && !(etfAllowedAtLevel || overrideEtf)) {
-                    log.info("⛔ ETF отключены для уровня {} (баланс {}). Пропускаем {}", level, portfolioValue, displayOf(figi));
-                    return;
-                }
+        }
+        return true;
+    }
 
-                // Облигации также включаем динамически: для SMALL отключены (если цель не 'парковка кэша')
-                boolean bondsAllowedAtLevel = (level != AdaptiveDiversificationService.PortfolioLevel.SMALL);
-                boolean overrideBond = tradingSettingsService.getBoolean("allow.bond.trading.override", false);
-                if ("bond".equalsIgnoreCase(type) && !(bondsAllowedAtLevel || overrideBond)) {
-                    log.info("⛔ Облигации отключены для уровня {} (баланс {}). Пропускаем {}", level, portfolioValue, displayOf(figi));
-                    return;
-                }
-            } catch (Exception ignore) { }
-
-            // 🚀 ПРЕДВАРИТЕЛЬНАЯ ПРОВЕРКА COOLDOWN: Защита от частых сделок
-            // Получаем предварительный тренд для проверки
-            MarketAnalysisService.TrendAnalysis preliminaryTrend = 
-                marketAnalysisService.analyzeTrend(figi, ru.tinkoff.piapi.contract.v1.CandleInterval.CANDLE_INTERVAL_DAY);
-            if (preliminaryTrend == null) {
-                log.warn("Не удалось получить предварительный тренд для cooldown проверки {}", displayOf(figi));
-                return;
+    /**
+     * Сведение базового и продвинутого сигналов; продвинутый считается параллельно базовому
+     */
+    private boolean resolveAction(TradeDecision d) throws Exception {
+        String figi = d.figi;
+        String accountId = d.accountId;
+        java.util.concurrent.CompletableFuture<AdvancedTradingStrategyService.TradingSignal> advSignalFuture =
+            decisionPipeline.async(() -> advancedTradingStrategyService.analyzeTradingSignal(figi, accountId));
+
+        // Базовый оппортьюнити для логирования и метрик (сохранено)
+        TradingOpportunity opportunity = analyzeTradingOpportunity(figi, accountId);
+
+        // Получаем рекомендуемое действие из продвинутого анализа сигналов
+        AdvancedTradingStrategyService.TradingSignal advSignal = TradingDecisionPipeline.join(advSignalFuture, d.lookupTimeoutMs);
+        String actionByAdvanced = advSignal.getAction();
+        log.debug("Продвинутый сигнал: {} (сила: {})", actionByAdvanced, advSignal.getStrength());
+        if (opportunity == null) {
+            log.warn("Не удалось проанализировать торговую возможность для {}", displayOf(figi));
+            return false;
+        }
+
+        // Сведение решений: по умолчанию берём базовый сигнал
+        double minStrength = tradingSettingsService.getDouble("signal.min.strength", 50.0);
+        String baseAction = opportunity.getRecommendedAction();
+        String action = baseAction;
+        // Разрешаем продвинутому сигналу усиливать только то же направление, либо вытянуть из HOLD
+        if (actionByAdvanced != null && !"HOLD".equals(actionByAdvanced) &&
+            advSignal.getStrength() != null && advSignal.getStrength().compareTo(java.math.BigDecimal.valueOf(minStrength)) > 0) {
+            if ("HOLD".equals(baseAction) || isSameDirectionForDecision(actionByAdvanced, baseAction)) {
+                action = actionByAdvanced;
+            } else {
+                log.warn("⚠️ Продвинутый сигнал {} (strength={}) не переопределяет базовый {}: запрет смены направления",
+                    actionByAdvanced, advSignal.getStrength(), baseAction);
             }
-            
-            PortfolioAnalysis preliminaryPortfolio = analyzePortfolio(accountId);
-            Position preliminaryPosition = preliminaryPortfolio.getPositions().stream()
-                .filter(p -> figi.equals(p.getFigi()))
-                .findFirst()
-                .orElse(null);
-            boolean hasPreliminaryPosition = preliminaryPosition != null && 
-                preliminaryPosition.getQuantity() != null && 
-                preliminaryPosition.getQuantity().compareTo(BigDecimal.ZERO) != 0;
-            
-            String preliminaryAction = determineRecommendedAction(preliminaryTrend, 
-                preliminaryTrend.getCurrentPrice(), hasPreliminaryPosition, figi, accountId);
-            if (preliminaryAction != null && !"HOLD".equals(preliminaryAction)) {
-                // Локальная защита: не более одной операции на FIGI за короткое окно (120 сек)
-                long nowMs = System.currentTimeMillis();
-                Long lastOp = recentOperationsWindow.get(figi);
-                if (lastOp != null && (nowMs - lastOp) < 120_000) {
-                    log.warn("🚫 Блок: уже была операция по {} менее чем 2 минуты назад", displayOf(figi));
-                    botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                        "Ограничение частоты по FIGI", displayOf(figi) + " — операция пропущена (окно 120 сек)");
-                    return;
-                }
-                recentOperationsWindow.put(figi, nowMs);
+        }
+        log.info("🎯 ФИНАЛЬНОЕ РЕШЕНИЕ для {}: {} (продвинутый: {}, базовый: {})",
+            displayOf(figi), action, actionByAdvanced, baseAction);
+        d.action = action;
+        return true;
+    }
 
-                TradingCooldownService.CooldownResult cooldownCheck = 
-                    tradingCooldownService.canTrade(figi, preliminaryAction, accountId);
-                
-                if (cooldownCheck.isBlocked()) {
-                    log.warn("🚫 БЛОКИРОВКА OVERTRADING: {} для {}. Причина: {}", 
-                        preliminaryAction, displayOf(figi), cooldownCheck.getReason());
-                    
-                    botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                        "Блокировка частых сделок", String.format("%s, Account: %s, Действие: %s, Причина: %s", 
-                            displayOf(figi), accountId, preliminaryAction, cooldownCheck.getReason()));
-                    return;
-                }
-                
-                log.info("✅ Cooldown проверка пройдена: {} для {}. {}", 
-                    preliminaryAction, displayOf(figi), cooldownCheck.getReason());
+    /**
+     * 🚀 КРИТИЧЕСКАЯ ПРОВЕРКА: блокировка по ликвидности и повторный cooldown ПОСЛЕ сведения сигналов
+     */
+    private boolean checkFinalAction(TradeDecision d) {
+        String figi = d.figi;
+        // Это предотвращает переопределение HOLD на BUY продвинутым сигналом
+        if (!"HOLD".equals(d.action) && !passesDynamicLiquidityFilters(figi, d.accountId)) {
+            log.warn("🚫 КРИТИЧЕСКАЯ БЛОКИРОВКА: Продвинутый сигнал {} заблокирован по ликвидности для {}", d.action, displayOf(figi));
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Блокировка продвинутого сигнала", String.format("%s: сигнал %s заблокирован по ликвидности", displayOf(figi), d.action));
+            d.action = "HOLD"; // Принудительно блокируем
+        }
+
+        // Повторная проверка cooldown по финальному действию (после сведения решений)
+        if (d.action != null && !"HOLD".equals(d.action)) {
+            String actionForCooldown = normalizeActionDirection(d.action);
+            PreTradeRiskGate.Decision finalCooldown =
+                preTradeRiskGate.checkCooldown(d.accountId, figi, actionForCooldown);
+            if (finalCooldown.isBlocked()) {
+                log.warn("🚫 БЛОКИРОВКА OVERTRADING (финальное действие): {} для {}. Причина: {}",
+                    actionForCooldown, displayOf(figi), finalCooldown.getReason());
+                botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                    "Блокировка частых сделок (финальное решение)", String.format("%s, Account: %s, Действие: %s, Причина: %s",
+                        displayOf(figi), d.accountId, actionForCooldown, finalCooldown.getReason()));
+                return false;
             }
-            
-            // Анализ тренда + ATR
-            MarketAnalysisService.TrendAnalysis trend = 
-                marketAnalysisService.analyzeTrend(figi, ru.tinkoff.piapi.contract.v1.CandleInterval.CANDLE_INTERVAL_DAY);
-            if (trend == null) {
-                log.warn("Не удалось получить анализ тренда для {}", displayOf(figi));
-                return;
+            log.info("✅ Финальная cooldown‑проверка пройдена: {} для {}", actionForCooldown, displayOf(figi));
+        }
+        return true;
+    }
+
+    /**
+     * Лимиты аккаунта и стакан запрошены вместе с трендом — дожидаемся их перед расчётом размера.
+     * Стакан необязателен: при ошибке умный лимитный ордер запросит его сам.
+     */
+    private void joinSizingLookups(TradeDecision d) throws Exception {
+        d.limits = TradingDecisionPipeline.join(d.limitsFuture, d.lookupTimeoutMs);
+        try {
+            MarketAnalysisService.BidAskPrices bidAsk = TradingDecisionPipeline.join(d.bidAskFuture, d.lookupTimeoutMs);
+            if (bidAsk != null) {
+                log.debug("Стакан {}: bid={}, ask={}, спред={}", displayOf(d.figi), bidAsk.getBid(), bidAsk.getAsk(), bidAsk.getSpreadPct());
             }
-            log.info("Тренд: {}, текущая цена: {}", trend.getTrend(), trend.getCurrentPrice());
-            
-            int atrPeriod = tradingSettingsService.getInt("atr.period", 14);
-            java.math.BigDecimal atr = marketAnalysisService.calculateATR(figi, ru.tinkoff.piapi.contract.v1.CandleInterval.CANDLE_INTERVAL_DAY, atrPeriod);
-            if (trend.getCurrentPrice().compareTo(java.math.BigDecimal.ZERO) > 0) {
-                java.math.BigDecimal atrPct = atr.divide(trend.getCurrentPrice(), 6, java.math.RoundingMode.HALF_UP);
-                double minAtrPct = tradingSettingsService.getDouble("atr.min.pct", 0.002);
-                double maxAtrPct = tradingSettingsService.getDouble("atr.max.pct", 0.08);
-                log.debug("ATR анализ: ATR={}, ATR%={}, мин={}, макс={}", atr, atrPct, minAtrPct, maxAtrPct);
-                // Фильтр слишком низкой волатильности (шум) и экстремальной волатильности
-                if (atrPct.compareTo(java.math.BigDecimal.valueOf(minAtrPct)) < 0 || atrPct.compareTo(java.math.BigDecimal.valueOf(maxAtrPct)) > 0) {
-                    log.info("ATR-фильтр: пропускаем {} (ATR%={})", displayOf(figi), atrPct);
-                    return;
-                }
+        } catch (Exception e) {
+            log.debug("Стакан {} не получен параллельно решению: {}", displayOf(d.figi), e.getMessage());
+        }
+    }
+
+    /**
+     * Закрытие шорта по сигналу CLOSE_SHORT: отменяем активные ордера и откупаем позицию умным лимитом
+     */
+    private boolean closeShortOnSignal(TradeDecision d) {
+        log.info("🎯 ВЫПОЛНЯЕМ ЗАКРЫТИЕ ШОРТА для {}", displayOf(d.figi));
+        if (!isShortPosition(d.position)) {
+            log.warn("⚠️ Получен сигнал CLOSE_SHORT, но шорт-позиция не найдена для {}", displayOf(d.figi));
+            return false;
+        }
+        int lotsToClose = toLots(d.position, getLotSizeSafe(d.figi, d.position.getInstrumentType()));
+        if (lotsToClose <= 0) {
+            return false;
+        }
+        log.info("🎯 ЗАКРЫТИЕ ШОРТА [{}]: {} лотов по цене {} (специальное действие)",
+            displayOf(d.figi), lotsToClose, d.price());
+        botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                "💰 Размещение ордера на закрытие шорта", String.format("%s, Лотов: %d, Цена: %.2f",
+                        displayOf(d.figi), lotsToClose, d.price()));
+        // 🚀 Отменяем все активные ордера перед закрытием шорта (жесткие OCO + лимитные)
+        try {
+            hardOcoMonitorService.cancelAllOrdersForPosition(d.figi, d.accountId);
+        } catch (Exception e) {
+            log.warn("Не удалось отменить ордера для {}: {}", displayOf(d.figi), e.getMessage());
+        }
+
+        try {
+            PostOrderResponse response = orderService.placeSmartLimitOrder(d.figi, lotsToClose, OrderDirection.ORDER_DIRECTION_BUY, d.accountId, d.price());
+            log.info("✅ Умный лимитный ордер на закрытие шорта размещен успешно: orderId={}, status={}",
+                response.getOrderId(), response.getExecutionReportStatus());
+            botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                    "Шорт закрыт", String.format("%s, Лотов: %d, OrderId: %s", displayOf(d.figi), lotsToClose, response.getOrderId()));
+        } catch (Exception e) {
+            log.error("❌ Ошибка закрытия шорта [{}]: {}", displayOf(d.figi), e.getMessage(), e);
+            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                    "Ошибка закрытия шорта", e.getMessage());
+        }
+        return false;
+    }
+
+    /**
+     * Приоритет BUY: открытая шорт‑позиция по этому FIGI закрывается немедленно, без проверок BP.
+     * Если закрыть не получилось — продолжаем стандартную покупку.
+     */
+    private boolean closeShortBeforeBuy(TradeDecision d) {
+        int lotsToClose;
+        try {
+            lotsToClose = toLots(d.position, getLotSizeSafe(d.figi, d.position.getInstrumentType()));
+        } catch (Exception e) {
+            return true;
+        }
+        if (lotsToClose <= 0) {
+            return true;
+        }
+        log.info("🎯 НЕМЕДЛЕННОЕ ЗАКРЫТИЕ ШОРТА [{}]: {} лотов по цене {} (без проверок BP)",
+            displayOf(d.figi), lotsToClose, d.price());
+        botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                "Закрытие шорта (приоритет)", String.format("%s, Лотов: %d, Цена: %.4f",
+                        displayOf(d.figi), lotsToClose, d.price()));
+        // 🚀 Отменяем жесткие OCO ордера перед закрытием шорта
+        try {
+            hardOcoMonitorService.cancelAllOrdersForPosition(d.figi, d.accountId);
+        } catch (Exception e) {
+            log.warn("Не удалось отменить жесткие OCO ордера для {}: {}", displayOf(d.figi), e.getMessage());
+        }
+
+        try {
+            log.info("🎯 Размещаем умный лимитный ордер на закрытие шорта: {} лотов BUY по цене {}", lotsToClose, d.price());
+            PostOrderResponse response = orderService.placeSmartLimitOrder(d.figi, lotsToClose, OrderDirection.ORDER_DIRECTION_BUY, d.accountId, d.price());
+            log.info("✅ Умный лимитный ордер на закрытие шорта размещен успешно: orderId={}, status={}",
+                response.getOrderId(), response.getExecutionReportStatus());
+            botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                    "Шорт закрыт", String.format("%s, Лотов: %d, OrderId: %s", displayOf(d.figi), lotsToClose, response.getOrderId()));
+            return false;
+        } catch (Exception e) {
+            log.error("❌ Ошибка немедленного закрытия шорта [{}]: {}", displayOf(d.figi), e.getMessage(), e);
+            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                    "Ошибка закрытия шорта", String.format("%s, Лотов: %d, Ошибка: %s", displayOf(d.figi), lotsToClose, e.getMessage()));
+            return true;
+        }
+    }
+
+    /**
+     * Размер покупки: средства и покупательная способность (предрассчитаны гейтом на версию снимка портфеля),
+     * CapitalManagementService, ATR-кап и ограничения по стоп-риску
+     */
+    private boolean sizeBuy(TradeDecision d) throws Exception {
+        String figi = d.figi;
+        String accountId = d.accountId;
+        BigDecimal price = d.price();
+        log.debug("Проверяем доступные средства для {}", displayOf(figi));
+        joinSizingLookups(d);
+        BigDecimal availableCash = d.limits.getCash();
+        BigDecimal buyingPower = d.limits.getBuyingPower();
+        log.debug("Доступные средства: {}, Покупательная способность: {}", availableCash, buyingPower);
+
+        // Проверка средств: используем buyingPower вместо availableCash для маржинальных операций
+        boolean allowNegativeCash = tradingSettingsService.getBoolean("margin-trading.allow-negative-cash", false);
+        if (availableCash.compareTo(BigDecimal.ZERO) < 0 && !allowNegativeCash) {
+            log.warn("Реальные средства отрицательные ({}), блокируем покупки (маржинальная торговля отключена) [{} , accountId={}, price={}]",
+                availableCash, displayOf(figi), accountId, price);
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Блокировка покупок", String.format("%s, Account: %s, Price: %.4f, Отрицательные средства: %.2f (маржинальная торговля отключена)",
+                    displayOf(figi), accountId, price, availableCash));
+            return false;
+        } else if (availableCash.compareTo(BigDecimal.ZERO) < 0 && allowNegativeCash) {
+            log.info("Реальные средства отрицательные ({}), но маржинальная торговля разрешена. Используем плечо. [{} , accountId={}, price={}]",
+                availableCash, displayOf(figi), accountId, price);
+            botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Маржинальная покупка", String.format("%s, Account: %s, Price: %.4f, Отрицательные средства: %.2f — используем плечо",
+                    displayOf(figi), accountId, price, availableCash));
+        }
+
+        // Если маржа включена, но недоступна для аккаунта — продолжаем с фоллбек-логикой внутри MarginService
+        if (marginService.isMarginEnabled() && !d.limits.isMarginAttributesAvailable()) {
+            log.warn("Маржа включена в настройках, но недоступна для аккаунта {}. Используем расчеты по настройкам (без реальных атрибутов).", accountId);
+        }
+
+        // Дополнительная проверка для маржинальных операций
+        boolean marginBuy = allowNegativeCash && availableCash.compareTo(BigDecimal.ZERO) < 0;
+        if (marginBuy) {
+            double minBuyingPowerRatio = tradingSettingsService.getDouble("margin-trading.min-buying-power-ratio", 0.1);
+            BigDecimal minRequiredBuyingPower = price.multiply(BigDecimal.valueOf(minBuyingPowerRatio));
+
+            if (buyingPower.compareTo(minRequiredBuyingPower) < 0) {
+                log.warn("Недостаточная покупательная способность для маржинальной операции [{} , accountId={}, price={}, ratio={}]. Требуется: {}, доступно: {}",
+                        displayOf(figi), accountId, price, minBuyingPowerRatio, minRequiredBuyingPower, buyingPower);
+                botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                    "Недостаточная покупательная способность",
+                    String.format("%s, Account: %s, Price: %.4f, Ratio: %.3f, Требуется: %.2f, Доступно: %.2f",
+                        displayOf(figi), accountId, price, minBuyingPowerRatio, minRequiredBuyingPower, buyingPower));
+                return false;
             }
-            
-            // Анализ портфеля
-            PortfolioAnalysis portfolioAnalysis = analyzePortfolio(accountId);
-            
-            // Получаем рекомендуемое действие из продвинутого анализа сигналов
-            AdvancedTradingStrategyService.TradingSignal advSignal = advancedTradingStrategyService.analyzeTradingSignal(figi, accountId);
-            String actionByAdvanced = advSignal.getAction();
-            log.debug("Продвинутый сигнал: {} (сила: {})", actionByAdvanced, advSignal.getStrength());
+        }
 
-            // Базовый оппортьюнити для логирования и метрик (сохранено)
-            TradingOpportunity opportunity = analyzeTradingOpportunity(figi, accountId);
-            if (opportunity == null) {
-                log.warn("Не удалось проанализировать торговую возможность для {}", displayOf(figi));
-                return;
+        // Проверяем покупательную способность (включая плечо)
+        if (buyingPower.compareTo(BigDecimal.ZERO) <= 0) {
+            log.warn("❌ Нет свободных средств для покупки");
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Нет свободных средств", "Доступно: " + buyingPower);
+
+            // Дополнительная диагностика: почему buyingPower = 0?
+            log.info("🔍 Диагностика buyingPower = 0:");
+            log.info("  - availableCash: {}", availableCash);
+            log.info("  - marginEnabled: {}", marginService.isMarginEnabled());
+            log.info("  - marginOperational: {}", d.limits.isMarginAttributesAvailable());
+            log.info("  - allowNegativeCash: {}", allowNegativeCash);
+            return false;
+        }
+        log.info("✅ Покупательная способность доступна: {} (включая плечо)", buyingPower);
+        // Проверяем, есть ли уже позиция по этому инструменту
+        boolean hasPosition = d.portfolio.getPositionValues().containsKey(figi) &&
+                            d.portfolio.getPositionValues().get(figi).compareTo(BigDecimal.ZERO) > 0;
+
+        // Используем CapitalManagementService для расчета размера позиции
+        CapitalManagementService.SizingResult sizing = capitalManagementService.computeSizing(
+                accountId,
+                figi,
+                displayOf(figi),
+                hasPosition,
+                price,
+                buyingPower,
+                d.portfolio,
+                d.atr
+        );
+        if (sizing.isBlocked()) {
+            log.warn("Покупка заблокирована CapitalManagementService: {} [{} , accountId={}]", sizing.getBlockReason(), displayOf(figi), accountId);
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                    "Блокировка размера позиции",
+                    String.format("%s, Account: %s, Причина: %s", displayOf(figi), accountId, sizing.getBlockReason()));
+            return false;
+        }
+        int lots = sizing.getLots();
+        BigDecimal buyAmount = sizing.getBuyAmount();
+        log.info("🎯 Рассчитано CapitalManagement: lots={}, amount={}, price={}, value={}",
+                lots, buyAmount, price, price.multiply(BigDecimal.valueOf(lots)));
+
+        // ATR-кап размера позиции: ограничиваем стоимость позиции  по отношению к ATR
+        if (d.atr.compareTo(java.math.BigDecimal.ZERO) > 0) {
+            java.math.BigDecimal maxRiskPerTrade = d.portfolio.getTotalValue().multiply(java.math.BigDecimal.valueOf(riskRuleService.getRiskPerTradePct()));
+            // Если стоп ~ 1*ATR, то стоимость позиции <= maxRisk / ATR
+            java.math.BigDecimal allowedLotsByAtr = maxRiskPerTrade.divide(d.atr, 0, RoundingMode.DOWN);
+            java.math.BigDecimal allowedLotsByPrice = allowedLotsByAtr.divide(price, 0, RoundingMode.DOWN);
+            int capLots = allowedLotsByPrice.intValue();
+            if (capLots > 0 && lots > capLots) {
+                log.info("ATR-кап позиции: лоты {} -> {} (ATR={}, maxRisk={})", lots, capLots, d.atr, maxRiskPerTrade);
+                lots = capLots;
             }
-            
-            // Сведение решений: по умолчанию берём базовый сигнал
-            double minStrength = tradingSettingsService.getDouble("signal.min.strength", 50.0);
-            String baseAction = opportunity.getRecommendedAction();
-            String action = baseAction;
-            // Разрешаем продвинутому сигналу усиливать только то же направление, либо вытянуть из HOLD
-            if (actionByAdvanced != null && !"HOLD".equals(actionByAdvanced) &&
-                advSignal.getStrength() != null && advSignal.getStrength().compareTo(java.math.BigDecimal.valueOf(minStrength)) > 0) {
-                if ("HOLD".equals(baseAction) || isSameDirectionForDecision(actionByAdvanced, baseAction)) {
-                    action = actionByAdvanced;
-                } else {
-                    log.warn("⚠️ Продвинутый сигнал {} (strength={}) не переопределяет базовый {}: запрет смены направления", 
-                        actionByAdvanced, advSignal.getStrength(), baseAction);
+        }
+
+        log.info("🎯 Финальное количество лотов после ATR-капа: {}", lots);
+
+        // Дополнительная проверка: достаточно ли средств для покупки хотя бы 1 лота
+        if (buyingPower.compareTo(price) < 0) {
+            log.warn("Недостаточно средств для покупки даже 1 лота [{} , accountId={}]. Нужно: {}, Доступно: {}",
+                    displayOf(figi), accountId, price, buyingPower);
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Недостаточно средств для покупки 1 лота", String.format("%s, Account: %s, Price: %.4f, Нужно: %.2f, Доступно: %.2f",
+                    displayOf(figi), accountId, price, price, buyingPower));
+            return false;
+        }
+
+        if (lots <= 0) {
+            log.warn("Не удалось рассчитать количество лотов для покупки. Сумма: {}, Цена: {}, Лотов: {}",
+                buyAmount, price, lots);
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Ошибка расчета лотов", String.format("Сумма: %.2f, Цена: %.2f, Лотов: %d",
+                    buyAmount, price, lots));
+            return false;
+        }
+
+        // Применяем стоп-правила если заданы (обрезаем размер позиции до стоп-риска)
+        PortfolioAnalysis finalAnalysis = d.portfolio;
+        final int lotsBeforeRisk = lots;
+        java.util.concurrent.atomic.AtomicInteger adjustedLots = new java.util.concurrent.atomic.AtomicInteger(lotsBeforeRisk);
+        riskRuleService.findByFigi(figi).ifPresent(rule -> {
+            if (rule.getStopLossPct() != null) {
+                // мягкое ограничение: не превышать 1% портфеля на сделку при заданном SL
+                BigDecimal maxRiskPerTrade = finalAnalysis.getTotalValue().multiply(new BigDecimal("0.01"));
+                BigDecimal allowedCost = maxRiskPerTrade.divide(new BigDecimal(rule.getStopLossPct()), 0, RoundingMode.DOWN);
+                BigDecimal allowedLots = allowedCost.divide(price, 0, RoundingMode.DOWN);
+                if (allowedLots.compareTo(BigDecimal.valueOf(adjustedLots.get())) < 0) {
+                    log.info("Ограничение по риску: сокращаем лоты {} -> {}", adjustedLots.get(), allowedLots);
+                    adjustedLots.set(allowedLots.intValue());
                 }
             }
-            log.info("🎯 ФИНАЛЬНОЕ РЕШЕНИЕ для {}: {} (продвинутый: {}, базовый: {})", 
-                displayOf(figi), action, actionByAdvanced, baseAction);
-            
-            // 🚀 КРИТИЧЕСКАЯ ПРОВЕРКА: Финальная блокировка по ликвидности ПОСЛЕ сведения сигналов
-            // Это предотвращает переопределение HOLD на BUY продвинутым сигналом
-            if (!"HOLD".equals(action) && !passesDynamicLiquidityFilters(figi, accountId)) {
-                log.warn("🚫 КРИТИЧЕСКАЯ БЛОКИРОВКА: Продвинутый сигнал {} заблокирован по ликвидности для {}", action, displayOf(figi));
-                botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                    "Блокировка продвинутого сигнала", String.format("%s: сигнал %s заблокирован по ликвидности", displayOf(figi), action));
-                action = "HOLD"; // Принудительно блокируем
+        });
+        // Если явного правила нет — применяем дефолты из настроек
+        if (adjustedLots.get() == lotsBeforeRisk) {
+            double slDefault = riskRuleService.getDefaultStopLossPct();
+            BigDecimal maxRiskPerTrade = finalAnalysis.getTotalValue().multiply(BigDecimal.valueOf(riskRuleService.getRiskPerTradePct()));
+            BigDecimal allowedCost = maxRiskPerTrade.divide(BigDecimal.valueOf(slDefault), 0, RoundingMode.DOWN);
+            BigDecimal allowedLots = allowedCost.divide(price, 0, RoundingMode.DOWN);
+            if (allowedLots.compareTo(BigDecimal.valueOf(adjustedLots.get())) < 0) {
+                adjustedLots.set(allowedLots.intValue());
+                log.info("Дефолтное ограничение по риску: лоты {} -> {}", lotsBeforeRisk, adjustedLots.get());
             }
+        }
+        d.lots = adjustedLots.get();
+        d.totalCost = price.multiply(BigDecimal.valueOf(d.lots));
+        // Определяем тип операции (маржинальная или обычная)
+        d.actionDescription = (marginBuy ? "маржинальная " : "") + (hasPosition ? "докупка" : "покупка");
+        return true;
+    }
 
-            // Повторная проверка cooldown по финальному действию (после сведения решений)
-            if (action != null && !"HOLD".equals(action)) {
-                String actionForCooldown = normalizeActionDirection(action);
-                TradingCooldownService.CooldownResult finalCooldown = 
-                    tradingCooldownService.canTrade(figi, actionForCooldown, accountId);
-                if (finalCooldown.isBlocked()) {
-                    log.warn("🚫 БЛОКИРОВКА OVERTRADING (финальное действие): {} для {}. Причина: {}", 
-                        actionForCooldown, displayOf(figi), finalCooldown.getReason());
-                    botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                        "Блокировка частых сделок (финальное решение)", String.format("%s, Account: %s, Действие: %s, Причина: %s", 
-                            displayOf(figi), accountId, actionForCooldown, finalCooldown.getReason()));
-                    return;
-                }
-                log.info("✅ Финальная cooldown‑проверка пройдена: {} для {}. {}", 
-                    actionForCooldown, displayOf(figi), finalCooldown.getReason());
-            }
-            
-            if ("CLOSE_SHORT".equals(action)) {
-                // Специальная обработка закрытия шорта
-                log.info("🎯 ВЫПОЛНЯЕМ ЗАКРЫТИЕ ШОРТА для {}", displayOf(figi));
-                
-                Position shortPosition = portfolioAnalysis.getPositions().stream()
-                    .filter(p -> figi.equals(p.getFigi()))
-                    .findFirst()
-                    .orElse(null);
-                    
-                if (shortPosition != null && shortPosition.getQuantity() != null && shortPosition.getQuantity().compareTo(BigDecimal.ZERO) < 0) {
-                    int lotSize = getLotSizeSafe(figi, shortPosition.getInstrumentType());
-                    int lotsToClose = toLots(shortPosition, lotSize);
-                    if (lotsToClose > 0) {
-                        log.info("🎯 ЗАКРЫТИЕ ШОРТА [{}]: {} лотов по цене {} (специальное действие)",
-                            displayOf(figi), lotsToClose, trend.getCurrentPrice());
-                        botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING,
-                                "💰 Размещение ордера на закрытие шорта", String.format("%s, Лотов: %d, Цена: %.2f",
-                                        displayOf(figi), lotsToClose, trend.getCurrentPrice()));
-                        // 🚀 Отменяем все активные ордера перед закрытием шорта (жесткие OCO + лимитные)
-                        try {
-                            hardOcoMonitorService.cancelAllOrdersForPosition(figi, accountId);
-                        } catch (Exception e) {
-                            log.warn("Не удалось отменить ордера для {}: {}", displayOf(figi), e.getMessage());
-                        }
-                        
-                        try {
-                            PostOrderResponse response = orderService.placeSmartLimitOrder(figi, lotsToClose, OrderDirection.ORDER_DIRECTION_BUY, accountId, trend.getCurrentPrice());
-                            log.info("✅ Умный лимитный ордер на закрытие шорта размещен успешно: orderId={}, status={}", 
-                                response.getOrderId(), response.getExecutionReportStatus());
-                            botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING,
-                                    "Шорт закрыт", String.format("%s, Лотов: %d, OrderId: %s", displayOf(figi), lotsToClose, response.getOrderId()));
-                            return;
-                        } catch (Exception e) {
-                            log.error("❌ Ошибка закрытия шорта [{}]: {}", displayOf(figi), e.getMessage(), e);
-                            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING,
-                                    "Ошибка закрытия шорта", e.getMessage());
-                            return;
-                        }
-                    }
-                } else {
-                    log.warn("⚠️ Получен сигнал CLOSE_SHORT, но шорт-позиция не найдена для {}", displayOf(figi));
-                    return;
-                }
-            } else if ("BUY".equals(action)) {
-                // Приоритет: если есть открытая шорт‑позиция по этому FIGI — закрываем её немедленно, без проверок BP
-                try {
-                    Position shortPosition = portfolioAnalysis.getPositions().stream()
-                        .filter(p -> figi.equals(p.getFigi()))
-                        .findFirst()
-                        .orElse(null);
-                    if (shortPosition != null && shortPosition.getQuantity() != null && shortPosition.getQuantity().compareTo(BigDecimal.ZERO) < 0) {
-                        int lotSize = getLotSizeSafe(figi, shortPosition.getInstrumentType());
-                        int lotsToClose = toLots(shortPosition, lotSize);
-                        if (lotsToClose > 0) {
-                            String prettyName = instrumentNameService != null ? instrumentNameService.getInstrumentName(figi, "share") : figi;
-                            String prettyTicker = instrumentNameService != null ? instrumentNameService.getTicker(figi, "share") : figi;
-                            log.info("🎯 НЕМЕДЛЕННОЕ ЗАКРЫТИЕ ШОРТА [{}]: {} лотов по цене {} (без проверок BP)",
-                                displayOf(figi), lotsToClose, trend.getCurrentPrice());
-                            botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING,
-                                    "Закрытие шорта (приоритет)", String.format("%s, Лотов: %d, Цена: %.4f",
-                                            displayOf(figi), lotsToClose, trend.getCurrentPrice()));
-                            // 🚀 Отменяем жесткие OCO ордера перед закрытием шорта
-                            try {
-                                hardOcoMonitorService.cancelAllOrdersForPosition(figi, accountId);
-                            } catch (Exception e) {
-                                log.warn("Не удалось отменить жесткие OCO ордера для {}: {}", displayOf(figi), e.getMessage());
-                            }
-                            
-                            try {
-                                log.info("🎯 Размещаем умный лимитный ордер на закрытие шорта: {} лотов BUY по цене {}", lotsToClose, trend.getCurrentPrice());
-                                PostOrderResponse response = orderService.placeSmartLimitOrder(figi, lotsToClose, OrderDirection.ORDER_DIRECTION_BUY, accountId, trend.getCurrentPrice());
-                                log.info("✅ Умный лимитный ордер на закрытие шорта размещен успешно: orderId={}, status={}", 
-                                    response.getOrderId(), response.getExecutionReportStatus());
-                                botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING,
-                                        "Шорт закрыт", String.format("%s, Лотов: %d, OrderId: %s", displayOf(figi), lotsToClose, response.getOrderId()));
-                                return;
-                            } catch (Exception e) {
-                                log.error("❌ Ошибка немедленного закрытия шорта [{}]: {}", displayOf(figi), e.getMessage(), e);
-                                botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING,
-                                        "Ошибка закрытия шорта", String.format("%s, Лотов: %d, Ошибка: %s", displayOf(figi), lotsToClose, e.getMessage()));
-                                // Если не получилось — продолжаем стандартные проверки
-                            }
-                        }
-                    }
-                } catch (Exception ignore) { }
-
-                // Проверяем, есть ли свободные средства
-                log.debug("Проверяем доступные средства для {}", displayOf(figi));
-                BigDecimal availableCash = getAvailableCash(portfolioAnalysis);
-                BigDecimal buyingPower = marginService.getAvailableBuyingPower(accountId, portfolioAnalysis);
-                log.debug("Доступные средства: {}, Покупательная способность: {}", availableCash, buyingPower);
-
-                // Проверка средств: используем buyingPower вместо availableCash для маржинальных операций
-                boolean allowNegativeCash = tradingSettingsService.getBoolean("margin-trading.allow-negative-cash", false);
-                if (availableCash.compareTo(BigDecimal.ZERO) < 0 && !allowNegativeCash) {
-                    log.warn("Реальные средства отрицательные ({}), блокируем покупки (маржинальная торговля отключена) [{} , accountId={}, price={}]", 
-                        availableCash, displayOf(figi), accountId, trend.getCurrentPrice());
-                    botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                        "Блокировка покупок", String.format("%s, Account: %s, Price: %.4f, Отрицательные средства: %.2f (маржинальная торговля отключена)", 
-                            displayOf(figi), accountId, trend.getCurrentPrice(), availableCash));
-                    return;
-                } else if (availableCash.compareTo(BigDecimal.ZERO) < 0 && allowNegativeCash) {
-                    log.info("Реальные средства отрицательные ({}), но маржинальная торговля разрешена. Используем плечо. [{} , accountId={}, price={}]", 
-                        availableCash, displayOf(figi), accountId, trend.getCurrentPrice());
-                    botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                        "Маржинальная покупка", String.format("%s, Account: %s, Price: %.4f, Отрицательные средства: %.2f — используем плечо", 
-                            displayOf(figi), accountId, trend.getCurrentPrice(), availableCash));
-                }
+    /**
+     * 🚀 ПРЕ-ТРЕЙД ГЕЙТ: средства, маржинальные лимиты, адаптивные лимиты класса активов и сектора
+     */
+    private boolean checkBuyRisk(TradeDecision d) {
+        d.instrumentType = determineInstrumentType(d.figi);
+        PreTradeRiskGate.Decision buyCheck = preTradeRiskGate.checkBuy(
+            d.accountId, d.figi, d.instrumentType, d.price(), d.totalCost);
+        if (buyCheck.isBlocked()) {
+            log.warn("🚨 Покупка заблокирована пре-трейд гейтом [{} , accountId={}]: {}",
+                displayOf(d.figi), d.accountId, buyCheck.getReason());
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Блокировка пре-трейд риск-гейтом", String.format("%s, Account: %s, Лотов: %d, Стоимость: %.2f, Причины: %s",
+                    displayOf(d.figi), d.accountId, d.lots, d.totalCost, buyCheck.getReason()));
+            return false;
+        }
+        log.info("✅ Пре-трейд проверки пройдены для {} за {} мкс", displayOf(d.figi), buyCheck.getCheckNanos() / 1000);
+        return true;
+    }
 
-                // Если маржа включена, но недоступна для аккаунта — продолжаем с фоллбек-логикой внутри MarginService
-                if (marginService.isMarginEnabled() && !marginService.isMarginOperationalForAccount(accountId)) {
-                    log.warn("Маржа включена в настройках, но недоступна для аккаунта {}. Используем расчеты по настройкам (без реальных атрибутов).", accountId);
-                }
-                
-                // Дополнительная проверка для маржинальных операций
-                if (allowNegativeCash && availableCash.compareTo(BigDecimal.ZERO) < 0) {
-                    double minBuyingPowerRatio = tradingSettingsService.getDouble("margin-trading.min-buying-power-ratio", 0.1);
-                    BigDecimal minRequiredBuyingPower = trend.getCurrentPrice().multiply(BigDecimal.valueOf(minBuyingPowerRatio));
-                    
-                    if (buyingPower.compareTo(minRequiredBuyingPower) < 0) {
-                        log.warn("Недостаточная покупательная способность для маржинальной операции [{} , accountId={}, price={}, ratio={}]. Требуется: {}, доступно: {}", 
-                                displayOf(figi), accountId, trend.getCurrentPrice(), minBuyingPowerRatio, minRequiredBuyingPower, buyingPower);
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                            "Недостаточная покупательная способность", 
-                            String.format("%s, Account: %s, Price: %.4f, Ratio: %.3f, Требуется: %.2f, Доступно: %.2f", 
-                                displayOf(figi), accountId, trend.getCurrentPrice(), minBuyingPowerRatio, minRequiredBuyingPower, buyingPower));
-                        return;
-                    }
-                }
-                
-                // Проверяем покупательную способность (включая плечо)
-                if (buyingPower.compareTo(BigDecimal.ZERO) > 0) {
-                    log.info("✅ Покупательная способность доступна: {} (включая плечо)", buyingPower);
-                    // Проверяем, есть ли уже позиция по этому инструменту
-                    boolean hasPosition = portfolioAnalysis.getPositionValues().containsKey(figi) && 
-                                        portfolioAnalysis.getPositionValues().get(figi).compareTo(BigDecimal.ZERO) > 0;
-                    
-                    // Используем CapitalManagementService для расчета размера позиции
-                    CapitalManagementService.SizingResult sizing = capitalManagementService.computeSizing(
-                            accountId,
-                            figi,
-                            displayOf(figi),
-                            hasPosition,
-                            trend.getCurrentPrice(),
-                            buyingPower,
-                            portfolioAnalysis,
-                            atr
-                    );
-                    if (sizing.isBlocked()) {
-                        log.warn("Покупка заблокирована CapitalManagementService: {} [{} , accountId={}]", sizing.getBlockReason(), displayOf(figi), accountId);
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                                "Блокировка размера позиции",
-                                String.format("%s, Account: %s, Причина: %s", displayOf(figi), accountId, sizing.getBlockReason()));
-                        return;
-                    }
-                    int lots = sizing.getLots();
-                    BigDecimal buyAmount = sizing.getBuyAmount();
-                    log.info("🎯 Рассчитано CapitalManagement: lots={}, amount={}, price={}, value={}",
-                            lots, buyAmount, trend.getCurrentPrice(), trend.getCurrentPrice().multiply(BigDecimal.valueOf(lots)));
-
-                    // ATR-кап размера позиции: ограничиваем стоимость позиции  по отношению к ATR
-                    if (atr.compareTo(java.math.BigDecimal.ZERO) > 0) {
-                        java.math.BigDecimal maxRiskPerTrade = portfolioAnalysis.getTotalValue().multiply(java.math.BigDecimal.valueOf(riskRuleService.getRiskPerTradePct()));
-                        // Если стоп ~ 1*ATR, то стоимость позиции <= maxRisk / ATR
-                        java.math.BigDecimal allowedLotsByAtr = maxRiskPerTrade.divide(atr, 0, RoundingMode.DOWN);
-                        java.math.BigDecimal allowedLotsByPrice = allowedLotsByAtr.divide(trend.getCurrentPrice(), 0, RoundingMode.DOWN);
-                        int capLots = allowedLotsByPrice.intValue();
-                        if (capLots > 0 && lots > capLots) {
-                            log.info("ATR-кап позиции: лоты {} -> {} (ATR={}, maxRisk={})", lots, capLots, atr, maxRiskPerTrade);
-                            lots = capLots;
-                        }
-                    }
-                    
-                    log.info("🎯 Финальное количество лотов после ATR-капа: {}", lots);
-                    
-                    // Дополнительная проверка: достаточно ли средств для покупки хотя бы 1 лота
-                    if (buyingPower.compareTo(trend.getCurrentPrice()) < 0) {
-                        log.warn("Недостаточно средств для покупки даже 1 лота [{} , accountId={}]. Нужно: {}, Доступно: {}", 
-                                displayOf(figi), accountId, trend.getCurrentPrice(), buyingPower);
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                            "Недостаточно средств для покупки 1 лота", String.format("%s, Account: %s, Price: %.4f, Нужно: %.2f, Доступно: %.2f", 
-                                displayOf(figi), accountId, trend.getCurrentPrice(), trend.getCurrentPrice(), buyingPower));
-                        return;
-                    }
-                    
-                    // Дополнительная проверка реальной доступности средств через API
-                    try {
-                        BigDecimal realAvailableCash = getAvailableCash(portfolioAnalysis);
-                        BigDecimal requiredAmount = trend.getCurrentPrice().multiply(BigDecimal.valueOf(lots));
-                        
-                        // Для маржинальной торговли используем buyingPower вместо realAvailableCash
-                        BigDecimal availableForTrade = (allowNegativeCash && realAvailableCash.compareTo(BigDecimal.ZERO) < 0) 
-                            ? buyingPower : realAvailableCash;
-                        
-                        // Дополнительные проверки для маржинальной торговли
-                        if (allowNegativeCash && realAvailableCash.compareTo(BigDecimal.ZERO) < 0) {
-                            // Получаем текущие маржинальные атрибуты для проверки лимитов
-                            try {
-                                var marginAttributes = marginService.getAccountMarginAttributes(accountId);
-                                if (marginAttributes != null) {
-                                    BigDecimal currentLiquid = new BigDecimal(marginAttributes.getLiquidPortfolio().getUnits() + "." + String.format("%09d", marginAttributes.getLiquidPortfolio().getNano()).replaceFirst("0+$", ""));
-                                    BigDecimal currentMinimal = new BigDecimal(marginAttributes.getMinimalMargin().getUnits() + "." + String.format("%09d", marginAttributes.getMinimalMargin().getNano()).replaceFirst("0+$", ""));
-                                    BigDecimal currentMissing = new BigDecimal(marginAttributes.getAmountOfMissingFunds().getUnits() + "." + String.format("%09d", marginAttributes.getAmountOfMissingFunds().getNano()).replaceFirst("0+$", ""));
-                                    
-                                    // Проверяем, не превысит ли новая позиция минимальный уровень маржи
-                                    BigDecimal estimatedNewLiquid = currentLiquid.subtract(requiredAmount);
-                                    if (estimatedNewLiquid.compareTo(currentMinimal) < 0) {
-                                        log.warn("🚨 МАРЖИНАЛЬНЫЙ ЛИМИТ: новая позиция превысит минимальный уровень маржи [{} , accountId={}]. Текущий liquid: {}, минимальный: {}, после сделки: {}", 
-                                            displayOf(figi), accountId, currentLiquid, currentMinimal, estimatedNewLiquid);
-                            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                                            "Превышение минимального уровня маржи", String.format("%s, Account: %s, Текущий liquid: %.2f, Минимальный: %.2f, После сделки: %.2f", 
-                                                displayOf(figi), accountId, currentLiquid, currentMinimal, estimatedNewLiquid));
-                            return;
-                                    }
-                                    
-                                    // Проверяем, не увеличит ли сделка недостаток средств
-                                    if (currentMissing.compareTo(BigDecimal.ZERO) < 0) {
-                                        BigDecimal newMissing = currentMissing.subtract(requiredAmount);
-                                        if (newMissing.compareTo(currentMissing) < 0) {
-                                            log.warn("🚨 МАРЖИНАЛЬНЫЙ РИСК: сделка увеличит недостаток средств [{} , accountId={}]. Текущий missing: {}, после сделки: {}", 
-                                                displayOf(figi), accountId, currentMissing, newMissing);
-                                            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                                                "Увеличение недостатка средств", String.format("%s, Account: %s, Текущий missing: %.2f, После сделки: %.2f", 
-                                                    displayOf(figi), accountId, currentMissing, newMissing));
-                                            return;
-                                        }
-                                    }
-                                    
-                                    // Дополнительная проверка: не превышаем ли максимальное использование маржи
-                                    BigDecimal maxUtilization = portfolioAnalysis.getTotalValue().multiply(marginService.getMaxUtilizationPct());
-                                    if (currentLiquid.subtract(requiredAmount).compareTo(maxUtilization) < 0) {
-                                        log.warn("🚨 МАРЖИНАЛЬНЫЙ ЛИМИТ: превышение максимального использования маржи [{} , accountId={}]. Максимум: {}, после сделки: {}", 
-                                            displayOf(figi), accountId, maxUtilization, currentLiquid.subtract(requiredAmount));
-                                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                                            "Превышение максимального использования маржи", String.format("%s, Account: %s, Максимум: %.2f, После сделки: %.2f", 
-                                                displayOf(figi), accountId, maxUtilization, currentLiquid.subtract(requiredAmount)));
-                                        return;
-                                    }
-                                    
-                                    // Проверка концентрации риска: не превышаем ли максимальную долю на один инструмент
-                                    BigDecimal currentPositionValue = portfolioAnalysis.getPositionValues().getOrDefault(figi, BigDecimal.ZERO);
-                                    BigDecimal newPositionValue = currentPositionValue.add(requiredAmount);
-                                    BigDecimal maxPositionValue = portfolioAnalysis.getTotalValue().multiply(new BigDecimal("0.05")); // Максимум 5% на один инструмент
-                                    
-                                    if (newPositionValue.compareTo(maxPositionValue) > 0) {
-                                        log.warn("🚨 КОНЦЕНТРАЦИЯ РИСКА: превышение максимальной доли на инструмент [{} , accountId={}]. Текущая позиция: {}, новая: {}, максимум: {}", 
-                                            displayOf(figi), accountId, currentPositionValue, newPositionValue, maxPositionValue);
-                                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                                            "Превышение максимальной доли на инструмент", String.format("%s, Account: %s, Текущая: %.2f, Новая: %.2f, Максимум: %.2f", 
-                                                displayOf(figi), accountId, currentPositionValue, newPositionValue, maxPositionValue));
-                                        return;
-                                    }
-                                    
-                                    log.info("✅ Маржинальные лимиты соблюдены: liquid={}, minimal={}, missing={}, maxUtilization={}, концентрация риска в норме", 
-                                        currentLiquid, currentMinimal, currentMissing, maxUtilization);
-                                    
-                                    // 🚀 АДАПТИВНАЯ ДИВЕРСИФИКАЦИЯ: лимиты зависят от размера портфеля
-                                    AdaptiveDiversificationService.DiversificationSettings diversificationSettings = 
-                                        adaptiveDiversificationService.getDiversificationSettings(portfolioAnalysis.getTotalValue());
-                                    
-                                    long totalPositions = portfolioAnalysis.getPositions().size();
-                                    int maxPositions = diversificationSettings.getMaxTotalPositions();
-                                    
-                                    if (totalPositions >= maxPositions) {
-                                        log.warn("🚨 АДАПТИВНАЯ ДИВЕРСИФИКАЦИЯ: превышение лимита на количество позиций [{} , accountId={}]. Текущих позиций: {}, максимум: {} ({})", 
-                                            displayOf(figi), accountId, totalPositions, maxPositions, diversificationSettings.getReason());
-                                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                                            "Превышение адаптивного лимита позиций", String.format("%s, Account: %s, Текущих: %d, Максимум: %d, Причина: %s", 
-                                                displayOf(figi), accountId, totalPositions, maxPositions, diversificationSettings.getReason()));
-                                        return;
-                                    }
-                                    
-                                    log.info("✅ Адаптивная диверсификация в норме: текущих позиций {}, максимум {} ({})", 
-                                        totalPositions, maxPositions, diversificationSettings.getReason());
-                        }
-                    } catch (Exception e) {
-                                log.warn("Ошибка проверки маржинальных лимитов для {}: {}", displayOf(figi), e.getMessage());
-                                // Продолжаем выполнение, но с осторожностью
-                            }
-                        }
-                        
-                        if (availableForTrade.compareTo(requiredAmount) < 0) {
-                            log.warn("Реальная проверка: недостаточно средств [{} , accountId={}] для покупки {} лотов. Нужно: {}, Доступно: {} (buyingPower: {})", 
-                                displayOf(figi), accountId, lots, requiredAmount, availableForTrade, buyingPower);
-                            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                                "Недостаточно реальных средств", String.format("%s, Account: %s, Price: %.4f, Лотов: %d, Нужно: %.2f, Доступно: %.2f, Плечо: %.2f", 
-                                    displayOf(figi), accountId, trend.getCurrentPrice(), lots, requiredAmount, availableForTrade, buyingPower));
-                            return;
-                        }
-                        
-                        log.info("✅ Проверка средств пройдена: требуется {}, доступно {} (включая плечо: {})", 
-                            requiredAmount, availableForTrade, buyingPower);
-                    } catch (Exception e) {
-                        log.warn("Ошибка проверки реальных средств для {}: {}", displayOf(figi), e.getMessage());
-                        // Продолжаем выполнение, но с осторожностью
-                    }
-                    
-                    if (lots > 0) {
-                        // Применяем стоп-правила если заданы (обрезаем размер позиции до стоп-риска)
-                        PortfolioAnalysis finalAnalysis = portfolioAnalysis;
-                        final int lotsBeforeRisk = lots;
-                        java.util.concurrent.atomic.AtomicInteger adjustedLots = new java.util.concurrent.atomic.AtomicInteger(lotsBeforeRisk);
-                        riskRuleService.findByFigi(figi).ifPresent(rule -> {
-                            if (rule.getStopLossPct() != null) {
-                                // мягкое ограничение: не превышать 1% портфеля на сделку при заданном SL
-                                BigDecimal maxRiskPerTrade = finalAnalysis.getTotalValue().multiply(new BigDecimal("0.01"));
-                                BigDecimal allowedCost = maxRiskPerTrade.divide(new BigDecimal(rule.getStopLossPct()), 0, RoundingMode.DOWN);
-                                BigDecimal allowedLots = allowedCost.divide(trend.getCurrentPrice(), 0, RoundingMode.DOWN);
-                                if (allowedLots.compareTo(BigDecimal.valueOf(adjustedLots.get())) < 0) {
-                                    log.info("Ограничение по риску: сокращаем лоты {} -> {}", adjustedLots.get(), allowedLots);
-                                    adjustedLots.set(allowedLots.intValue());
-                                }
-                            }
-                        });
-                        // Если явного правила нет — применяем дефолты из настроек
-                        if (adjustedLots.get() == lotsBeforeRisk) {
-                            double slDefault = riskRuleService.getDefaultStopLossPct();
-                            BigDecimal maxRiskPerTrade = finalAnalysis.getTotalValue().multiply(BigDecimal.valueOf(riskRuleService.getRiskPerTradePct()));
-                            BigDecimal allowedCost = maxRiskPerTrade.divide(BigDecimal.valueOf(slDefault), 0, RoundingMode.DOWN);
-                            BigDecimal allowedLots = allowedCost.divide(trend.getCurrentPrice(), 0, RoundingMode.DOWN);
-                            if (allowedLots.compareTo(BigDecimal.valueOf(adjustedLots.get())) < 0) {
-                                adjustedLots.set(allowedLots.intValue());
-                                log.info("Дефолтное ограничение по риску: лоты {} -> {}", lotsBeforeRisk, adjustedLots.get());
-                            }
-                        }
-                        lots = adjustedLots.get();
-
-                        String actionType = hasPosition ? "докупка" : "покупка";
-                        BigDecimal totalCost = trend.getCurrentPrice().multiply(BigDecimal.valueOf(lots));
-                        
-                        // Определяем тип операции (маржинальная или обычная)
-                        String operationType = (allowNegativeCash && availableCash.compareTo(BigDecimal.ZERO) < 0) ? "маржинальная " : "";
-                        String fullActionType = operationType + actionType;
-                        
-                        // 🚀 АДАПТИВНОЕ ОГРАНИЧЕНИЕ ДОЛИ КЛАССА АКТИВОВ
-                        try {
-                            String instrType = determineInstrumentType(figi);
-                            
-                            // Получаем адаптивный лимит для данного класса активов
-                            BigDecimal adaptiveLimit = adaptiveDiversificationService.getMaxAssetClassPercentage(
-                                portfolioAnalysis.getTotalValue(), instrType);
-                            
-                            // Проверяем текущую долю класса активов
-                            BigDecimal currentClassValue = portfolioAnalysis.getCurrentAllocations().getOrDefault(instrType, BigDecimal.ZERO);
-                            BigDecimal newClassValue = currentClassValue.add(totalCost);
-                            
-                                if (portfolioAnalysis.getTotalValue().compareTo(BigDecimal.ZERO) > 0) {
-                                BigDecimal newClassShare = newClassValue.divide(portfolioAnalysis.getTotalValue(), 4, RoundingMode.HALF_UP);
-                                
-                                if (newClassShare.compareTo(adaptiveLimit) > 0) {
-                                    String assetClassName = getAssetClassName(instrType);
-                                    String msg = String.format("Покупка %s превысит адаптивный лимит %.2f%%: новая доля %.2f%%",
-                                            assetClassName, adaptiveLimit.multiply(BigDecimal.valueOf(100)), 
-                                            newClassShare.multiply(BigDecimal.valueOf(100)));
-                                    
-                                    AdaptiveDiversificationService.PortfolioLevel level = 
-                                        adaptiveDiversificationService.getPortfolioLevel(portfolioAnalysis.getTotalValue());
-                                    
-                                    log.warn("🚀 Адаптивная блокировка по классу активов ({}): {} [{} , accountId={}]", 
-                                        level, msg, displayOf(figi), accountId);
-                                    
-                                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                                            "Адаптивная блокировка класса активов",
-                                            String.format("%s, Account: %s, Уровень портфеля: %s, Причина: %s", 
-                                                displayOf(figi), accountId, level, msg));
-                                        return;
-                                } else {
-                                    log.info("✅ Адаптивный лимит класса активов соблюден: {} доля {}% < {}% ({})", 
-                                        getAssetClassName(instrType), 
-                                        String.format("%.2f", newClassShare.multiply(BigDecimal.valueOf(100)).doubleValue()), 
-                                        String.format("%.2f", adaptiveLimit.multiply(BigDecimal.valueOf(100)).doubleValue()),
-                                        adaptiveDiversificationService.getPortfolioLevel(portfolioAnalysis.getTotalValue()));
-                                }
-                            }
-                        } catch (Exception e) {
-                            log.warn("Ошибка проверки адаптивного лимита по классу активов для {}: {}", displayOf(figi), e.getMessage());
-                        }
-                        
-                        // 🚀 АДАПТИВНАЯ ПРОВЕРКА ДИВЕРСИФИКАЦИИ ПО СЕКТОРАМ
-                        try {
-                            // Проверяем, нужна ли диверсификация для данного размера портфеля
-                            boolean diversificationRequired = adaptiveDiversificationService.isDiversificationRequired(portfolioAnalysis.getTotalValue());
-                            
-                            if (diversificationRequired) {
-                                // Применяем адаптивные лимиты к сектору
-                                AdaptiveDiversificationService.DiversificationSettings settings = 
-                                    adaptiveDiversificationService.getDiversificationSettings(portfolioAnalysis.getTotalValue());
-                                
-                            ru.perminov.service.SectorManagementService.SectorValidationResult sectorValidation = 
-                                    sectorManagementService.validateAdaptiveSectorDiversification(
-                                    figi, 
-                                    totalCost, 
-                                    portfolioAnalysis.getTotalValue(),
-                                        portfolioAnalysis.getPositions(),
-                                        settings
-                                );
-                            
-                            if (!sectorValidation.isValid()) {
-                                    log.warn("🚨 НАРУШЕНИЕ АДАПТИВНОЙ ДИВЕРСИФИКАЦИИ: {} [{} , accountId={}]", 
-                                    String.join("; ", sectorValidation.getViolations()), displayOf(figi), accountId);
-                                
-                                botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                                        "Нарушение адаптивной диверсификации", String.format("%s, Account: %s, Сектор: %s, Нарушения: %s", 
-                                        displayOf(figi), accountId, sectorValidation.getSectorName(), 
-                                        String.join("; ", sectorValidation.getViolations())));
-                                
-                                    return; // Блокируем покупку при нарушении диверсификации
-                                }
-                                
-                                log.info("✅ Адаптивная диверсификация по секторам в норме: {}", settings.getReason());
-                            } else {
-                                log.info("🚀 ДИВЕРСИФИКАЦИЯ ОТКЛЮЧЕНА для малого портфеля ({}₽) - фокус на росте", 
-                                    portfolioAnalysis.getTotalValue());
-                            }
-                            
-                        } catch (Exception e) {
-                            log.warn("Ошибка проверки диверсификации секторов для {}: {}", displayOf(figi), e.getMessage());
-                            // Продолжаем выполнение, но с осторожностью
-                        }
-                        
-                        log.info("Размещение ордера на {} по {}: {} лотов по цене {} (общая стоимость: {}, доступные средства: {})", 
-                            fullActionType, displayOf(figi), lots, trend.getCurrentPrice(), totalCost, availableCash);
-                        botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                            "Размещение ордера на " + fullActionType, String.format("%s, Лотов: %d, Цена: %.2f, Стоимость: %.2f, Средства: %.2f", 
-                                displayOf(figi), lots, trend.getCurrentPrice(), totalCost, availableCash));
-                        
-                        // УБИРАЕМ дублирующую проверку ликвидности - она уже выполнена в analyzeTradingOpportunity()
-                        // Двойная проверка приводит к принятию решения BUY, а затем его блокировке
-                        log.debug("Пропускаем финальную проверку ликвидности - уже выполнена на этапе анализа для {}", displayOf(figi));
-
-                        // 🚀 ИСПОЛЬЗУЕМ УМНЫЙ ЛИМИТНЫЙ ОРДЕР вместо рыночного
-                        try {
-                            orderService.placeSmartLimitOrder(figi, lots, OrderDirection.ORDER_DIRECTION_BUY, accountId, trend.getCurrentPrice());
-                            botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                                "Ордер на " + fullActionType + " размещен", String.format("%s, Лотов: %d", displayOf(figi), lots));
-                            
-                            // 🚀 НОВОЕ: Автоматическое размещение OCO (TP + SL) после входа
-                            try {
-                                double sl = riskRuleService.findByFigi(figi)
-                                    .map(rule -> rule.getStopLossPct())
-                                    .orElse(riskRuleService.getDefaultStopLossPct());
-                                double tp = riskRuleService.findByFigi(figi)
-                                    .map(rule -> rule.getTakeProfitPct())
-                                    .orElse(riskRuleService.getDefaultTakeProfitPct());
-                                
-                                if (isHardStopsEnabledForProduction()) {
-                                    orderService.placeHardOCO(figi, lots, OrderDirection.ORDER_DIRECTION_BUY,
-                                            accountId, trend.getCurrentPrice(), tp, sl);
-                                    boolean trailing = tradingSettingsService.getBoolean("hard_stops.trailing.enabled", true);
-                                    if (trailing) {
-                                        log.warn("Trailing для HARD OCO пока не реализован, работает базовый OCO без переустановки");
-                                    }
-                                    log.info("🎯 Запланирован HARD OCO (prod) для ЛОНГА {}: TP={}%, SL={}% от цены {}", 
-                                            displayOf(figi), tp * 100, sl * 100, trend.getCurrentPrice());
-                                } else {
-                                    orderService.placeVirtualOCO(figi, lots, OrderDirection.ORDER_DIRECTION_BUY,
-                                        accountId, trend.getCurrentPrice(), tp, sl);
-                                    log.info("🎯 Запланирован виртуальный OCO для ЛОНГА {}: TP={}%, SL={}% от цены {}",
-                                            displayOf(figi), tp * 100, sl * 100, trend.getCurrentPrice());
-                                }
-                                
-                            } catch (Exception e) {
-                                log.warn("❌ Не удалось запланировать OCO для {}: {}", displayOf(figi), e.getMessage());
-                            }
-                            
-                            // Авто-установка SL/TP по дефолтным настройкам, если для FIGI ещё нет правил
-                            try {
-                                if (riskRuleService.findByFigi(figi).isEmpty()) {
-                                    double sl = riskRuleService.getDefaultStopLossPct();
-                                    double tp = riskRuleService.getDefaultTakeProfitPct();
-                                    riskRuleService.upsert(figi, sl, tp, true);
-                                    log.info("Установлены уровни SL/TP для {}: SL={}%, TP={}%, активированы", displayOf(figi), sl * 100, tp * 100);
-                                    botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.RISK_MANAGEMENT,
-                                        "Установлены SL/TP",
-                                        String.format("%s, SL: %.2f%%, TP: %.2f%%", displayOf(figi), sl * 100, tp * 100));
-                                }
-                            } catch (Exception e) {
-                                log.warn("Не удалось установить правила SL/TP для {}: {}", displayOf(figi), e.getMessage());
-                            }
-                        } catch (Exception e) {
-                            log.error("Ошибка размещения ордера на {}: {}", actionType, e.getMessage());
-                            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                                "Ошибка размещения ордера на " + actionType, e.getMessage());
-                            // НЕ останавливаем выполнение, продолжаем с другими инструментами
-                        }
-                    } else {
-                        log.warn("Не удалось рассчитать количество лотов для покупки. Сумма: {}, Цена: {}, Лотов: {}", 
-                            buyAmount, trend.getCurrentPrice(), lots);
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                            "Ошибка расчета лотов", String.format("Сумма: %.2f, Цена: %.2f, Лотов: %d", 
-                                buyAmount, trend.getCurrentPrice(), lots));
-                    }
-                } else {
-                    log.warn("❌ Нет свободных средств для покупки");
-                    botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                        "Нет свободных средств", "Доступно: " + buyingPower);
-                    
-                    // Дополнительная диагностика: почему buyingPower = 0?
-                    log.info("🔍 Диагностика buyingPower = 0:");
-                    log.info("  - availableCash: {}", availableCash);
-                    log.info("  - marginEnabled: {}", marginService.isMarginEnabled());
-                    log.info("  - marginOperational: {}", marginService.isMarginOperationalForAccount(accountId));
-                    log.info("  - allowNegativeCash: {}", tradingSettingsService.getBoolean("margin-trading.allow-negative-cash", false));
-                }
-            } else if ("SELL".equals(action)) {
-                log.info("🎯 ВЫПОЛНЯЕМ SELL для {}: проверяем позицию (НЕ зависит от buyingPower)", displayOf(figi));
-                // Проверяем, есть ли позиция по этому инструменту
-                BigDecimal positionValue = portfolioAnalysis.getPositionValues().get(figi);
-                log.debug("Значение позиции по {}: {}", displayOf(figi), positionValue);
-                if (positionValue != null && positionValue.compareTo(BigDecimal.ZERO) != 0) {
-                    // Находим позицию для получения количества лотов
-                    Position position = portfolioAnalysis.getPositions().stream()
-                        .filter(p -> p.getFigi().equals(figi))
-                        .findFirst()
-                        .orElse(null);
-                    
-                    if (position != null && position.getQuantity().compareTo(BigDecimal.ZERO) != 0) {
-                        int lotSize = getLotSizeSafe(figi, position.getInstrumentType());
-                        int lots = toLots(position, lotSize);
-                        boolean isShortPosition = position.getQuantity().compareTo(BigDecimal.ZERO) < 0;
-                        
-                        String actionDescription = isShortPosition ? "закрытие шорта" : "продажа";
-                        log.info("Размещение ордера на {} по {}: {} лотов по цене {}", actionDescription, displayOf(figi), lots, trend.getCurrentPrice());
-                        
-                        botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                            "Размещение ордера на " + actionDescription, String.format("%s, Лотов: %d, Цена: %.2f", 
-                                displayOf(figi), lots, trend.getCurrentPrice()));
-                        
-                        // УБИРАЕМ дублирующую проверку ликвидности для продажи - она уже выполнена в analyzeTradingOpportunity()
-                        log.debug("Пропускаем финальную проверку ликвидности для {} - уже выполнена на этапе анализа", displayOf(figi));
-                        
-                        // 🚀 НОВАЯ ПРОВЕРКА: Минимальное время удержания позиции
-                        PositionHoldTimeService.HoldTimeResult holdTimeCheck = positionHoldTimeService.canClosePosition(figi, accountId);
-                        if (holdTimeCheck.isBlocked()) {
-                            log.warn("⏰ Блокировка по минимальному времени удержания для {}: {}", displayOf(figi), holdTimeCheck.getReason());
-                            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                                "Блокировка по времени удержания", String.format("%s: %s", displayOf(figi), holdTimeCheck.getReason()));
-                            return;
-                        }
-                        log.info("✅ Проверка времени удержания пройдена для {}: {}", displayOf(figi), holdTimeCheck.getReason());
-                        
-                        // 🚀 НОВАЯ ПРОВЕРКА: Прибыльность с учётом комиссий
-                        BigDecimal entryPrice = trend.getCurrentPrice(); // временно используем текущую цену
-                        try {
-                            if (position.getAveragePositionPrice() != null) {
-                                entryPrice = extractMoneyValue(position.getAveragePositionPrice());
-                            } else if (position.getAveragePositionPriceFifo() != null) {
-                                entryPrice = extractMoneyValue(position.getAveragePositionPriceFifo());
-                            }
-                        } catch (Exception e) {
-                            log.warn("Ошибка получения цены входа для {}: {}, используем текущую цену", displayOf(figi), e.getMessage());
-                        }
-                        CommissionAwareTradingService.CommissionResult commissionCheck = 
-                            commissionAwareTradingService.shouldClosePosition(entryPrice, trend.getCurrentPrice(), positionValue.abs(), figi);
-                        if (commissionCheck.isBlocked()) {
-                            log.warn("💰 Блокировка закрытия по комиссиям для {}: {}", displayOf(figi), commissionCheck.getReason());
-                            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                                "Блокировка по комиссиям", String.format("%s: %s", displayOf(figi), commissionCheck.getReason()));
-                            return;
-                        }
-                        log.info("✅ Проверка прибыльности пройдена для {}: {}", displayOf(figi), commissionCheck.getReason());
-
-                        // 🚀 Отменяем все активные ордера перед закрытием позиции (жесткие OCO + лимитные)
-                        try {
-                            hardOcoMonitorService.cancelAllOrdersForPosition(figi, accountId);
-                        } catch (Exception e) {
-                            log.warn("Не удалось отменить ордера для {}: {}", displayOf(figi), e.getMessage());
-                        }
-                        
-                        // 🚀 ИСПОЛЬЗУЕМ УМНЫЙ ЛИМИТНЫЙ ОРДЕР вместо рыночного
-                        try {
-                            orderService.placeSmartLimitOrder(figi, lots, OrderDirection.ORDER_DIRECTION_SELL, accountId, trend.getCurrentPrice());
-                            botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                                "Ордер на " + actionDescription + " размещен", String.format("%s, Лотов: %d", displayOf(figi), lots));
-                        } catch (Exception e) {
-                            log.error("Ошибка размещения ордера на {}: {}", actionDescription, e.getMessage());
-                            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                                "Ошибка размещения ордера на " + actionDescription, e.getMessage());
-                            // НЕ останавливаем выполнение, продолжаем с другими инструментами
-                        }
-                    } else {
-                        log.warn("Нет позиции для продажи по инструменту {}", displayOf(figi));
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                            "Нет позиции для продажи", displayOf(figi));
-                    }
-                } else {
-                    log.info("🎯 ПОЗИЦИИ НЕТ - проверяем возможность открытия шорта для {}", displayOf(figi));
-                    // Позиции нет. Рассматриваем открытие шорта, если это разрешено и доступно
-                    String prettyName = instrumentNameService != null ? instrumentNameService.getInstrumentName(figi, "share") : figi;
-                    String prettyTicker = instrumentNameService != null ? instrumentNameService.getTicker(figi, "share") : figi;
-                    botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.RISK_MANAGEMENT,
-                        "Проверка возможности шорта",
-                        String.format("%s (%s), Account: %s, Price: %.4f — позиции нет, оцениваем шорт", prettyName, prettyTicker, accountId, trend.getCurrentPrice()));
-                    boolean marginEnabled = marginService.isMarginEnabled();
-                    boolean shortAllowed = marginService.isShortAllowed();
-                    boolean shortFlag = false;
-                    try { shortFlag = marginService.canOpenShort(figi); } catch (Exception ignore) {}
-                    boolean marginOperational = marginService.isMarginOperationalForAccount(accountId);
-                    log.info("Проверка шорта [{} {}] [accountId={}]: marginEnabled={}, shortAllowed={}, shortFlag={}, marginOperational={}, mode={}",
-                            prettyTicker, prettyName, accountId, marginEnabled, shortAllowed, shortFlag, marginOperational, investApiManager.getCurrentMode());
-
-                    if (shortFlag && marginOperational) {
-                        BigDecimal targetShortAmount = marginService.calculateTargetShortAmount(accountId, portfolioAnalysis);
-                        log.info("Расчет лимита шорта [{} {}] [accountId={}]: targetShortAmount={}, price={}", prettyTicker, prettyName, accountId, targetShortAmount, trend.getCurrentPrice());
-                        botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.RISK_MANAGEMENT,
-                            "Лимит шорта рассчитан",
-                            String.format("%s (%s), Account: %s, Target: %.2f, Price: %.4f", prettyName, prettyTicker, accountId, targetShortAmount, trend.getCurrentPrice()));
-                        if (targetShortAmount.compareTo(trend.getCurrentPrice()) >= 0) {
-                            int lotSize = getLotSizeSafe(figi, "share");
-                            int shares = targetShortAmount.divide(trend.getCurrentPrice(), 0, RoundingMode.DOWN).intValue();
-                            int lots = Math.max(shares / Math.max(lotSize, 1), 1);
-                            
-                            // Проверяем рентабельность шорта с учетом комиссий
-                            BigDecimal tradeAmount = trend.getCurrentPrice().multiply(BigDecimal.valueOf(lots));
-                            BigDecimal minPriceMove = commissionCalculatorService.calculateBreakevenPriceMove(
-                                trend.getCurrentPrice(), lots, "share");
-                            
-                            log.info("💰 Анализ рентабельности шорта: {} лотов по {}₽, нужно падение минимум на {}₽", 
-                                lots, trend.getCurrentPrice(), minPriceMove);
-                            
-                            // Дополнительная проверка реальной доступности маржи для шорта
-                            try {
-                                var marginAttrs = marginService.getAccountMarginAttributes(accountId);
-                                if (marginAttrs != null) {
-                                    BigDecimal liquid = marginService.toBigDecimal(marginAttrs.getLiquidPortfolio());
-                                    BigDecimal minimal = marginService.toBigDecimal(marginAttrs.getMinimalMargin());
-                                    BigDecimal availableMargin = liquid.subtract(minimal);
-                                    BigDecimal requiredMargin = trend.getCurrentPrice().multiply(BigDecimal.valueOf(lots));
-                                    
-                                    if (availableMargin.compareTo(requiredMargin) < 0) {
-                                        log.warn("❌ Реальная проверка маржи: недостаточно для шорта {} лотов. Нужно: {}, Доступно: {}", 
-                                            lots, requiredMargin, availableMargin);
-                                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                                            "Недостаточно маржи для шорта", String.format("Лотов: %d, Нужно: %.2f, Доступно: %.2f", 
-                                                lots, requiredMargin, availableMargin));
-                                        return;
-                                    }
-                                }
-                            } catch (Exception e) {
-                                log.warn("Ошибка проверки маржи для шорта {}: {}", displayOf(figi), e.getMessage());
-                                // Продолжаем выполнение, но с осторожностью
-                            }
-                            
-                            log.info("🎯 ОТКРЫВАЕМ ШОРТ по {}: {} лотов по цене {}", displayOf(figi), lots, trend.getCurrentPrice());
-                            botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING,
-                                "Открытие шорта", String.format("%s, Лотов: %d", displayOf(figi), lots));
-                            try {
-                                log.info("🎯 Размещаем ордер на открытие шорта: {} лотов SELL по цене {}", lots, trend.getCurrentPrice());
-                                PostOrderResponse response = orderService.placeSmartLimitOrder(figi, lots, OrderDirection.ORDER_DIRECTION_SELL, accountId, trend.getCurrentPrice());
-                                log.info("🎯 Ордер на открытие шорта размещен успешно: orderId={}, status={}", 
-                                    response.getOrderId(), response.getExecutionReportStatus());
-                                botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING,
-                                    "Шорт открыт", String.format("%s, Лотов: %d, OrderId: %s", displayOf(figi), lots, response.getOrderId()));
-                                
-                                // 🚀 НОВОЕ: Автоматический OCO для шорта
-                                try {
-                                    double sl = riskRuleService.findByFigi(figi)
-                                        .map(rule -> rule.getStopLossPct())
-                                        .orElse(riskRuleService.getDefaultStopLossPct());
-                                    double tp = riskRuleService.findByFigi(figi)
-                                        .map(rule -> rule.getTakeProfitPct())
-                                        .orElse(riskRuleService.getDefaultTakeProfitPct());
-                                    
-                                    if (isHardStopsEnabledForProduction()) {
-                                        orderService.placeHardOCO(figi, lots, OrderDirection.ORDER_DIRECTION_SELL,
-                                                accountId, trend.getCurrentPrice(), tp, sl);
-                                        boolean trailing = tradingSettingsService.getBoolean("hard_stops.trailing.enabled", true);
-                                        if (trailing) {
-                                            log.warn("Trailing для HARD OCO пока не реализован, работает базовый OCO без переустановки");
-                                        }
-                                        log.info("🎯 Запланирован HARD OCO (prod) для ШОРТА {}: TP={}%, SL={}% от цены {}", 
-                                                displayOf(figi), tp * 100, sl * 100, trend.getCurrentPrice());
-                                    } else {
-                                        orderService.placeVirtualOCO(figi, lots, OrderDirection.ORDER_DIRECTION_SELL,
-                                            accountId, trend.getCurrentPrice(), tp, sl);
-                                        
-                                        log.info("🎯 Запланирован виртуальный OCO для ШОРТА {}: TP={}%, SL={}% от цены {}", 
-                                            displayOf(figi), tp * 100, sl * 100, trend.getCurrentPrice());
-                                    }
-                                    
-                                } catch (Exception e) {
-                                    log.warn("❌ Не удалось запланировать OCO для шорта {}: {}", displayOf(figi), e.getMessage());
-                                }
-                                // Авто-установка SL/TP по дефолтным настройкам, если для FIGI ещё нет правил
-                                try {
-                                    if (riskRuleService.findByFigi(figi).isEmpty()) {
-                                        double sl = riskRuleService.getDefaultStopLossPct();
-                                        double tp = riskRuleService.getDefaultTakeProfitPct();
-                                        riskRuleService.upsert(figi, sl, tp, true);
-                                        log.info("Установлены уровни SL/TP для {}: SL={}%, TP={}%, активированы (шорт)", displayOf(figi), sl * 100, tp * 100);
-                                        botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.RISK_MANAGEMENT,
-                                            "Установлены SL/TP (шорт)",
-                                String.format("%s, SL: %.2f%%, TP: %.2f%%", displayOf(figi), sl * 100, tp * 100));
-                                    }
-                                } catch (Exception e) {
-                                    log.warn("Не удалось установить правила SL/TP для {} (шорт): {}", displayOf(figi), e.getMessage());
-                                }
-                            } catch (Exception e) {
-                                log.error("❌ Ошибка открытия шорта: {}", e.getMessage(), e);
-                                botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING,
-                                    "Ошибка открытия шорта", e.getMessage());
-                            }
-                        } else {
-                            log.warn("❌ Недостаточно лимита для шорта по [{} {}]: targetShortAmount {} < price {}", prettyTicker, prettyName, targetShortAmount, trend.getCurrentPrice());
-                            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                                "Недостаточно лимита для шорта",
-                                String.format("%s (%s), Target: %.2f < Price: %.4f", prettyName, prettyTicker, targetShortAmount, trend.getCurrentPrice()));
-                        }
-                    } else if (shortFlag && !marginOperational) {
-                        log.warn("❌ Шорт-флаг инструмента=TRUE, но маржа недоступна для аккаунта {} (песочница/нет маржинальных атрибутов)", accountId);
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
-                            "Шорт недоступен для аккаунта",
-                            String.format("%s (%s), Account: %s, Mode: %s — нет маржинальных атрибутов", prettyName, prettyTicker, accountId, investApiManager.getCurrentMode()));
-                    } else {
-                        log.warn("❌ Шорт невозможен [{} {}]: marginEnabled={}, shortAllowed={}, shortFlag={} — пропускаем", prettyTicker, prettyName, marginEnabled, shortAllowed, shortFlag);
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                            "Шорт невозможен",
-                            String.format("%s (%s), marginEnabled=%s, allowShort=%s, shortFlag=%s", prettyName, prettyTicker, marginEnabled, shortAllowed, shortFlag));
-                    }
-                }
-            } else if ("BUY".equals(action)) {
-                // Проверяем, есть ли шорт-позиция для закрытия
-                BigDecimal positionValue = portfolioAnalysis.getPositionValues().get(figi);
-                if (positionValue != null && positionValue.compareTo(BigDecimal.ZERO) < 0) {
-                                            log.info("Обнаружена шорт-позиция для закрытия: {} (значение: {})", displayOf(figi), positionValue);
-                    // Находим шорт-позицию для получения количества лотов
-                    Position position = portfolioAnalysis.getPositions().stream()
-                        .filter(p -> p.getFigi().equals(figi))
-                        .findFirst()
-                        .orElse(null);
-                    
-                    if (position != null && position.getQuantity().compareTo(BigDecimal.ZERO) < 0) {
-                        int lotSize = getLotSizeSafe(figi, position.getInstrumentType());
-                        int lots = toLots(position, lotSize);
-                        log.info("Закрытие шорта: {} лотов по цене {}", lots, trend.getCurrentPrice());
-                        
-                        botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                            "Закрытие шорта", String.format("%s, Лотов: %d, Цена: %.2f", 
-                                displayOf(figi), lots, trend.getCurrentPrice()));
-                        
-                        // Размещаем реальный ордер на покупку для закрытия шорта
-                        // ВАЖНО: При закрытии шортов НЕ проверяем отрицательные средства,
-                        // так как это может привести к неконтролируемым убыткам
-                        try {
-                            orderService.placeSmartLimitOrder(figi, lots, OrderDirection.ORDER_DIRECTION_BUY, accountId, trend.getCurrentPrice());
-                            botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                                "Шорт закрыт умным лимитом", String.format("%s, Лотов: %d", displayOf(figi), lots));
-                        } catch (Exception e) {
-                            log.error("Ошибка закрытия шорта: {}", e.getMessage());
-                            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                                "Ошибка закрытия шорта", e.getMessage());
-                            // НЕ останавливаем выполнение, продолжаем с другими инструментами
-                        }
-                    } else {
-                        log.warn("Нет шорт-позиции для закрытия по инструменту {}", displayOf(figi));
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                                                          "Нет шорт-позиции для закрытия", displayOf(figi));
-                    }
-                } else {
-                    // Нет шорт-позиции, но есть сигнал на покупку - это обычная покупка
-                                            log.info("Обычная покупка (не закрытие шорта): {} (позиция: {})", displayOf(figi), positionValue);
-                    // Проверяем, есть ли свободные средства
-                    BigDecimal availableCash = getAvailableCash(portfolioAnalysis);
-                    BigDecimal buyingPower = marginService.getAvailableBuyingPower(accountId, portfolioAnalysis);
-                    
-                    // Дополнительная проверка: если реальные средства отрицательные, блокируем покупки
-                    if (availableCash.compareTo(BigDecimal.ZERO) < 0) {
-                        log.warn("Реальные средства отрицательные ({}), блокируем покупки", availableCash);
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                            "Блокировка покупок", String.format("Отрицательные средства: %.2f", availableCash));
-                        return;
-                    }
-                    
-                    if (buyingPower.compareTo(BigDecimal.ZERO) > 0) {
-                        // Логика покупки (аналогично BUY выше)
-                        // ... (можно вынести в отдельный метод)
-                        log.info("Покупка нового инструмента: {} (покупательная способность: {})", displayOf(figi), buyingPower);
-                        botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                                                          "Покупка нового инструмента", String.format("%s, Покупательная способность: %.2f", displayOf(figi), buyingPower));
-                    } else {
-                        log.warn("Нет свободных средств для покупки нового инструмента {}", displayOf(figi));
-                        botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT, 
-                            "Нет средств для покупки", displayOf(figi));
-                    }
+    /**
+     * 🚀 УМНЫЙ ЛИМИТНЫЙ ОРДЕР на покупку и резерв средств под него до исполнения
+     */
+    private boolean placeBuy(TradeDecision d) {
+        log.info("Размещение ордера на {} по {}: {} лотов по цене {} (общая стоимость: {}, доступные средства: {})",
+            d.actionDescription, displayOf(d.figi), d.lots, d.price(), d.totalCost, d.limits.getCash());
+        botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING,
+            "Размещение ордера на " + d.actionDescription, String.format("%s, Лотов: %d, Цена: %.2f, Стоимость: %.2f, Средства: %.2f",
+                displayOf(d.figi), d.lots, d.price(), d.totalCost, d.limits.getCash()));
+        // Ликвидность уже проверена финальными фильтрами — повторная проверка здесь блокировала бы принятый BUY
+        try {
+            PostOrderResponse placed = orderService.placeSmartLimitOrder(d.figi, d.lots, OrderDirection.ORDER_DIRECTION_BUY, d.accountId, d.price());
+            preTradeRiskGate.reserve(d.accountId, placed != null ? placed.getOrderId() : null,
+                placed != null ? placed.getExecutionReportStatus().name() : null, d.figi, d.instrumentType, d.totalCost);
+            botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                "Ордер на " + d.actionDescription + " размещен", String.format("%s, Лотов: %d", displayOf(d.figi), d.lots));
+        } catch (Exception e) {
+            log.error("Ошибка размещения ордера на {}: {}", d.actionDescription, e.getMessage());
+            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                "Ошибка размещения ордера на " + d.actionDescription, e.getMessage());
+            // НЕ останавливаем выполнение, продолжаем с другими инструментами
+            return false;
+        }
+        d.ocoDirection = OrderDirection.ORDER_DIRECTION_BUY;
+        return true;
+    }
+
+    /**
+     * 🚀 После входа: OCO (TP + SL) в направлении входа и SL/TP по умолчанию, если для FIGI ещё нет правил
+     */
+    private boolean placeProtectiveOrders(TradeDecision d) {
+        boolean isLong = d.ocoDirection == OrderDirection.ORDER_DIRECTION_BUY;
+        String side = isLong ? "ЛОНГА" : "ШОРТА";
+        try {
+            double sl = riskRuleService.findByFigi(d.figi)
+                .map(rule -> rule.getStopLossPct())
+                .orElse(riskRuleService.getDefaultStopLossPct());
+            double tp = riskRuleService.findByFigi(d.figi)
+                .map(rule -> rule.getTakeProfitPct())
+                .orElse(riskRuleService.getDefaultTakeProfitPct());
+
+            if (isHardStopsEnabledForProduction()) {
+                orderService.placeHardOCO(d.figi, d.lots, d.ocoDirection,
+                        d.accountId, d.price(), tp, sl);
+                boolean trailing = tradingSettingsService.getBoolean("hard_stops.trailing.enabled", true);
+                if (trailing) {
+                    log.warn("Trailing для HARD OCO пока не реализован, работает базовый OCO без переустановки");
                 }
+                log.info("🎯 Запланирован HARD OCO (prod) для {} {}: TP={}%, SL={}% от цены {}",
+                        side, displayOf(d.figi), tp * 100, sl * 100, d.price());
             } else {
-                String prettyName = instrumentNameService.getInstrumentName(figi, determineInstrumentType(figi).toUpperCase());
-                String prettyTicker = instrumentNameService.getTicker(figi, determineInstrumentType(figi).toUpperCase());
-                String msg = String.format("HOLD: %s (%s) — сделок нет", prettyName, prettyTicker);
-                log.info(msg);
-                botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                    "Действие: HOLD", msg);
+                orderService.placeVirtualOCO(d.figi, d.lots, d.ocoDirection,
+                    d.accountId, d.price(), tp, sl);
+                log.info("🎯 Запланирован виртуальный OCO для {} {}: TP={}%, SL={}% от цены {}",
+                        side, displayOf(d.figi), tp * 100, sl * 100, d.price());
             }
-            
+
         } catch (Exception e) {
-                                    log.error("Ошибка при выполнении торговой стратегии для {}: {}", displayOf(figi), e.getMessage());
-            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING, 
-                                  "Ошибка выполнения торговой стратегии", displayOf(figi) + " - " + e.getMessage());
+            log.warn("❌ Не удалось запланировать OCO для {}{}: {}", isLong ? "" : "шорта ", displayOf(d.figi), e.getMessage());
+        }
+
+        // Авто-установка SL/TP по дефолтным настройкам, если для FIGI ещё нет правил
+        String suffix = isLong ? "" : " (шорт)";
+        try {
+            if (riskRuleService.findByFigi(d.figi).isEmpty()) {
+                double sl = riskRuleService.getDefaultStopLossPct();
+                double tp = riskRuleService.getDefaultTakeProfitPct();
+                riskRuleService.upsert(d.figi, sl, tp, true);
+                log.info("Установлены уровни SL/TP для {}: SL={}%, TP={}%, активированы{}", displayOf(d.figi), sl * 100, tp * 100, suffix);
+                botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.RISK_MANAGEMENT,
+                    "Установлены SL/TP" + suffix,
+                    String.format("%s, SL: %.2f%%, TP: %.2f%%", displayOf(d.figi), sl * 100, tp * 100));
+            }
+        } catch (Exception e) {
+            log.warn("Не удалось установить правила SL/TP для {}{}: {}", displayOf(d.figi), suffix, e.getMessage());
+        }
+        return true;
+    }
+
+    private boolean checkSellablePosition(TradeDecision d) {
+        if (d.position == null || d.position.getQuantity().compareTo(BigDecimal.ZERO) == 0) {
+            log.warn("Нет позиции для продажи по инструменту {}", displayOf(d.figi));
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Нет позиции для продажи", displayOf(d.figi));
+            return false;
+        }
+        d.lots = toLots(d.position, getLotSizeSafe(d.figi, d.position.getInstrumentType()));
+        d.actionDescription = d.position.getQuantity().compareTo(BigDecimal.ZERO) < 0 ? "закрытие шорта" : "продажа";
+        log.info("Размещение ордера на {} по {}: {} лотов по цене {}", d.actionDescription, displayOf(d.figi), d.lots, d.price());
+        botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING,
+            "Размещение ордера на " + d.actionDescription, String.format("%s, Лотов: %d, Цена: %.2f",
+                displayOf(d.figi), d.lots, d.price()));
+        return true;
+    }
+
+    /**
+     * 🚀 Перед закрытием: минимальное время удержания и прибыльность с учётом комиссий
+     */
+    private boolean checkCloseRisk(TradeDecision d) {
+        String figi = d.figi;
+        PreTradeRiskGate.Decision holdTimeCheck = preTradeRiskGate.checkClose(d.accountId, figi);
+        if (holdTimeCheck.isBlocked()) {
+            log.warn("⏰ Блокировка по минимальному времени удержания для {}: {}", displayOf(figi), holdTimeCheck.getReason());
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Блокировка по времени удержания", String.format("%s: %s", displayOf(figi), holdTimeCheck.getReason()));
+            return false;
+        }
+        log.info("✅ Проверка времени удержания пройдена для {}", displayOf(figi));
+
+        BigDecimal entryPrice = d.price(); // временно используем текущую цену
+        try {
+            if (d.position.getAveragePositionPrice() != null) {
+                entryPrice = extractMoneyValue(d.position.getAveragePositionPrice());
+            } else if (d.position.getAveragePositionPriceFifo() != null) {
+                entryPrice = extractMoneyValue(d.position.getAveragePositionPriceFifo());
+            }
+        } catch (Exception e) {
+            log.warn("Ошибка получения цены входа для {}: {}, используем текущую цену", displayOf(figi), e.getMessage());
+        }
+        CommissionAwareTradingService.CommissionResult commissionCheck =
+            commissionAwareTradingService.shouldClosePosition(entryPrice, d.price(), d.positionValue.abs(), figi);
+        if (commissionCheck.isBlocked()) {
+            log.warn("💰 Блокировка закрытия по комиссиям для {}: {}", displayOf(figi), commissionCheck.getReason());
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Блокировка по комиссиям", String.format("%s: %s", displayOf(figi), commissionCheck.getReason()));
+            return false;
+        }
+        log.info("✅ Проверка прибыльности пройдена для {}: {}", displayOf(figi), commissionCheck.getReason());
+        return true;
+    }
+
+    /**
+     * Закрытие позиции: отменяем активные ордера (жесткие OCO + лимитные) и продаём умным лимитом
+     */
+    private boolean placeSell(TradeDecision d) {
+        try {
+            hardOcoMonitorService.cancelAllOrdersForPosition(d.figi, d.accountId);
+        } catch (Exception e) {
+            log.warn("Не удалось отменить ордера для {}: {}", displayOf(d.figi), e.getMessage());
+        }
+
+        try {
+            orderService.placeSmartLimitOrder(d.figi, d.lots, OrderDirection.ORDER_DIRECTION_SELL, d.accountId, d.price());
+            botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                "Ордер на " + d.actionDescription + " размещен", String.format("%s, Лотов: %d", displayOf(d.figi), d.lots));
+        } catch (Exception e) {
+            log.error("Ошибка размещения ордера на {}: {}", d.actionDescription, e.getMessage());
+            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                "Ошибка размещения ордера на " + d.actionDescription, e.getMessage());
             // НЕ останавливаем выполнение, продолжаем с другими инструментами
         }
+        return false;
     }
-    
+
+    /**
+     * Позиции нет: шорт возможен, если он разрешён для инструмента и маржа доступна аккаунту
+     */
+    private boolean checkShortAllowed(TradeDecision d) {
+        String figi = d.figi;
+        log.info("🎯 ПОЗИЦИИ НЕТ - проверяем возможность открытия шорта для {}", displayOf(figi));
+        d.prettyName = instrumentNameService != null ? instrumentNameService.getInstrumentName(figi, "share") : figi;
+        d.prettyTicker = instrumentNameService != null ? instrumentNameService.getTicker(figi, "share") : figi;
+        botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.RISK_MANAGEMENT,
+            "Проверка возможности шорта",
+            String.format("%s (%s), Account: %s, Price: %.4f — позиции нет, оцениваем шорт", d.prettyName, d.prettyTicker, d.accountId, d.price()));
+        boolean marginEnabled = marginService.isMarginEnabled();
+        boolean shortAllowed = marginService.isShortAllowed();
+        boolean shortFlag = false;
+        try { shortFlag = marginService.canOpenShort(figi); } catch (Exception ignore) {}
+        boolean marginOperational = marginService.isMarginOperationalForAccount(d.accountId);
+        log.info("Проверка шорта [{} {}] [accountId={}]: marginEnabled={}, shortAllowed={}, shortFlag={}, marginOperational={}, mode={}",
+                d.prettyTicker, d.prettyName, d.accountId, marginEnabled, shortAllowed, shortFlag, marginOperational, investApiManager.getCurrentMode());
+
+        if (shortFlag && marginOperational) {
+            return true;
+        }
+        if (shortFlag) {
+            log.warn("❌ Шорт-флаг инструмента=TRUE, но маржа недоступна для аккаунта {} (песочница/нет маржинальных атрибутов)", d.accountId);
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Шорт недоступен для аккаунта",
+                String.format("%s (%s), Account: %s, Mode: %s — нет маржинальных атрибутов", d.prettyName, d.prettyTicker, d.accountId, investApiManager.getCurrentMode()));
+        } else {
+            log.warn("❌ Шорт невозможен [{} {}]: marginEnabled={}, shortAllowed={}, shortFlag={} — пропускаем", d.prettyTicker, d.prettyName, marginEnabled, shortAllowed, shortFlag);
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Шорт невозможен",
+                String.format("%s (%s), marginEnabled=%s, allowShort=%s, shortFlag=%s", d.prettyName, d.prettyTicker, marginEnabled, shortAllowed, shortFlag));
+        }
+        return false;
+    }
+
+    /**
+     * Размер шорта по лимиту MarginService и точка безубыточности с учетом комиссий
+     */
+    private boolean sizeShort(TradeDecision d) throws Exception {
+        joinSizingLookups(d);
+        BigDecimal price = d.price();
+        BigDecimal targetShortAmount = marginService.calculateTargetShortAmount(d.accountId, d.portfolio);
+        log.info("Расчет лимита шорта [{} {}] [accountId={}]: targetShortAmount={}, price={}", d.prettyTicker, d.prettyName, d.accountId, targetShortAmount, price);
+        botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.RISK_MANAGEMENT,
+            "Лимит шорта рассчитан",
+            String.format("%s (%s), Account: %s, Target: %.2f, Price: %.4f", d.prettyName, d.prettyTicker, d.accountId, targetShortAmount, price));
+        if (targetShortAmount.compareTo(price) < 0) {
+            log.warn("❌ Недостаточно лимита для шорта по [{} {}]: targetShortAmount {} < price {}", d.prettyTicker, d.prettyName, targetShortAmount, price);
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Недостаточно лимита для шорта",
+                String.format("%s (%s), Target: %.2f < Price: %.4f", d.prettyName, d.prettyTicker, targetShortAmount, price));
+            return false;
+        }
+        int lotSize = getLotSizeSafe(d.figi, "share");
+        int shares = targetShortAmount.divide(price, 0, RoundingMode.DOWN).intValue();
+        d.lots = Math.max(shares / Math.max(lotSize, 1), 1);
+        d.totalCost = price.multiply(BigDecimal.valueOf(d.lots));
+
+        // Проверяем рентабельность шорта с учетом комиссий
+        BigDecimal minPriceMove = commissionCalculatorService.calculateBreakevenPriceMove(price, d.lots, "share");
+        log.info("💰 Анализ рентабельности шорта: {} лотов по {}₽, нужно падение минимум на {}₽",
+            d.lots, price, minPriceMove);
+        return true;
+    }
+
+    /**
+     * Реальная доступность маржи для шорта по маржинальным атрибутам, запрошенным параллельно решению
+     */
+    private boolean checkShortMargin(TradeDecision d) {
+        if (d.limits == null || !d.limits.isMarginAttributesAvailable()) {
+            return true; // атрибутов нет — продолжаем, как и раньше
+        }
+        BigDecimal availableMargin = d.limits.getLiquid().subtract(d.limits.getMinimalMargin());
+        BigDecimal requiredMargin = d.totalCost;
+        if (availableMargin.compareTo(requiredMargin) < 0) {
+            log.warn("❌ Реальная проверка маржи: недостаточно для шорта {} лотов. Нужно: {}, Доступно: {}",
+                d.lots, requiredMargin, availableMargin);
+            botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.RISK_MANAGEMENT,
+                "Недостаточно маржи для шорта", String.format("Лотов: %d, Нужно: %.2f, Доступно: %.2f",
+                    d.lots, requiredMargin, availableMargin));
+            return false;
+        }
+        return true;
+    }
+
+    private boolean placeShort(TradeDecision d) {
+        log.info("🎯 ОТКРЫВАЕМ ШОРТ по {}: {} лотов по цене {}", displayOf(d.figi), d.lots, d.price());
+        botLogService.addLogEntry(BotLogService.LogLevel.TRADE, BotLogService.LogCategory.AUTOMATIC_TRADING,
+            "Открытие шорта", String.format("%s, Лотов: %d", displayOf(d.figi), d.lots));
+        try {
+            log.info("🎯 Размещаем ордер на открытие шорта: {} лотов SELL по цене {}", d.lots, d.price());
+            PostOrderResponse response = orderService.placeSmartLimitOrder(d.figi, d.lots, OrderDirection.ORDER_DIRECTION_SELL, d.accountId, d.price());
+            log.info("🎯 Ордер на открытие шорта размещен успешно: orderId={}, status={}",
+                response.getOrderId(), response.getExecutionReportStatus());
+            botLogService.addLogEntry(BotLogService.LogLevel.SUCCESS, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                "Шорт открыт", String.format("%s, Лотов: %d, OrderId: %s", displayOf(d.figi), d.lots, response.getOrderId()));
+        } catch (Exception e) {
+            log.error("❌ Ошибка открытия шорта: {}", e.getMessage(), e);
+            botLogService.addLogEntry(BotLogService.LogLevel.ERROR, BotLogService.LogCategory.AUTOMATIC_TRADING,
+                "Ошибка открытия шорта", e.getMessage());
+            return false;
+        }
+        d.ocoDirection = OrderDirection.ORDER_DIRECTION_SELL;
+        return true;
+    }
+
+    private boolean logHold(TradeDecision d) {
+        String prettyName = instrumentNameService.getInstrumentName(d.figi, determineInstrumentType(d.figi).toUpperCase());
+        String prettyTicker = instrumentNameService.getTicker(d.figi, determineInstrumentType(d.figi).toUpperCase());
+        String msg = String.format("HOLD: %s (%s) — сделок нет", prettyName, prettyTicker);
+        log.info(msg);
+        botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.AUTOMATIC_TRADING,
+            "Действие: HOLD", msg);
+        return false;
+    }
+
     private BigDecimal getAvailableCash(PortfolioAnalysis analysis) {
         log.debug("Вход в getAvailableCash, позиций: {}", analysis.getPositions().size());
         
@@ -1553,13 +1372,8 @@ public class PortfolioManagementService {
             botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.MARKET_ANALYSIS, 
                 "Получен список инструментов", "Количество: " + availableShares.size());
             
+            List<ShareDto> liquidShares = new ArrayList<>();
             for (ShareDto share : availableShares) {
-                // Дополнительная проверка статуса торговли
-                if (!"SECURITY_TRADING_STATUS_NORMAL_TRADING".equals(share.getTradingStatus())) {
-                                            log.debug("Пропускаем инструмент {} - статус торговли: {}", displayOf(share.getFigi()), share.getTradingStatus());
-                    continue;
-                }
-                
                 // Пропускаем заблокированные по ликвидности инструменты
                 if (isLiquidityBlocked(share.getFigi())) {
                     long minutesLeft = getLiquidityBlockRemainingMinutes(share.getFigi());
@@ -1567,29 +1381,56 @@ public class PortfolioManagementService {
                         displayOf(share.getFigi()), minutesLeft);
                     continue;
                 }
-                
+                liquidShares.add(share);
+            }
+            
+            // Актуальные статусы и последние цены всей вселенной — несколькими пакетными вызовами до загрузки свечей
+            UniversePrefetchService.Prefetch prefetch = universePrefetchService.prefetch(
+                liquidShares.stream().map(ShareDto::getFigi).collect(Collectors.toList()));
+            List<String> candidates = new ArrayList<>();
+            for (ShareDto share : liquidShares) {
+                if (prefetch.isAvailable()) {
+                    if (!prefetch.accepts(share.getFigi())) {
+                        log.debug("Пропускаем инструмент {} - {}", displayOf(share.getFigi()), prefetch.getDropReason(share.getFigi()));
+                        continue;
+                    }
+                } else if (!"SECURITY_TRADING_STATUS_NORMAL_TRADING".equals(share.getTradingStatus())) {
+                    // Предзагрузка недоступна — проверяем статус из справочника
+                    log.debug("Пропускаем инструмент {} - статус торговли: {}", displayOf(share.getFigi()), share.getTradingStatus());
+                    continue;
+                }
+                candidates.add(share.getFigi());
+            }
+            
+            // Подписываем кандидатов на поток заранее: стаканы приходят, пока грузятся свечи
+            marketDataHub.subscribe(candidates);
+            
+            // Параллельный анализ: темп запросов ограничивает ApiRateLimiter, а не задержки между инструментами
+            Comparator<TradingOpportunity> byScore = Comparator.comparing(TradingOpportunity::getScore);
+            InstrumentScanPipeline.ScanResult<TradingOpportunity> scan = instrumentScanPipeline.scan(candidates, figi -> {
                 try {
-                    TradingOpportunity opportunity = analyzeTradingOpportunity(share.getFigi(), accountId);
+                    // Цена из пакетной предзагрузки; запрос по инструменту — только если её там нет
+                    TradingOpportunity opportunity = analyzeTradingOpportunity(figi, accountId, prefetch.getLastPrice(figi));
                     if (opportunity != null) {
-                        opportunities.add(opportunity);
                         botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.TECHNICAL_INDICATORS, 
                             "Анализ инструмента завершен", String.format("%s, Score: %.1f, Действие: %s", 
-                                displayOf(share.getFigi()), opportunity.getScore(), opportunity.getRecommendedAction()));
+                                displayOf(figi), opportunity.getScore(), opportunity.getRecommendedAction()));
                     }
-                    
-                    // Добавляем задержку между запросами для избежания лимитов API
-                    Thread.sleep(100); // 100ms задержка
-                    
+                    return opportunity;
                 } catch (Exception e) {
-                                            log.warn("Ошибка анализа инструмента {}: {}", displayOf(share.getFigi()), e.getMessage());
+                    log.warn("Ошибка анализа инструмента {}: {}", displayOf(figi), e.getMessage());
                     botLogService.addLogEntry(BotLogService.LogLevel.WARNING, BotLogService.LogCategory.TECHNICAL_INDICATORS, 
-                                                  "Ошибка анализа инструмента", displayOf(share.getFigi()) + ", Ошибка: " + e.getMessage());
-                    // Продолжаем с следующим инструментом, не останавливаем выполнение
+                        "Ошибка анализа инструмента", displayOf(figi) + ", Ошибка: " + e.getMessage());
+                    // Продолжаем с остальными инструментами, не останавливаем выполнение
+                    return null;
                 }
-            }
+            }, byScore, 10);
+            log.info("Сканирование {} инструментов за {} мс (готово: {}, ошибок: {}, отменено по дедлайну: {})",
+                scan.getTotal(), scan.getDurationMs(), scan.getCompleted(), scan.getFailed(), scan.getCancelled());
+            opportunities.addAll(scan.getTop());
             
-            // Сортируем по приоритету (лучшие возможности первыми)
-            opportunities.sort((o1, o2) -> o2.getScore().compareTo(o1.getScore()));
+            // Сортируем по приоритету (лучшие возможности первыми): сюда попадают только позиции и топ-10 сканирования
+            opportunities.sort(byScore.reversed());
             
             // Возвращаем топ-10 возможностей
             List<TradingOpportunity> result = opportunities.stream().limit(10).collect(Collectors.toList());
@@ -1621,69 +1462,32 @@ public class PortfolioManagementService {
             botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.PORTFOLIO_MANAGEMENT, 
                 "Анализ существующих позиций", "Количество позиций: " + positions.size());
             
+            List<Position> toAnalyze = new ArrayList<>();
             for (Position position : positions) {
                 // Пропускаем валютные позиции
                 if ("currency".equals(position.getInstrumentType())) {
                     continue;
                 }
-                
                 // Анализируем позиции с количеством != 0 (включая шорты)
-                if (position.getQuantity().compareTo(BigDecimal.ZERO) != 0) {
-                    // Пропускаем заблокированные по ликвидности инструменты
-                    if (isLiquidityBlocked(position.getFigi())) {
-                        long minutesLeft = getLiquidityBlockRemainingMinutes(position.getFigi());
-                        log.debug("Пропускаем позицию {} из анализа - заблокирована по ликвидности (осталось ~{} мин)", 
-                            displayOf(position.getFigi()), minutesLeft);
-                        continue;
-                    }
-                    
-                    try {
-                        TradingOpportunity opportunity = analyzeTradingOpportunity(position.getFigi(), accountId);
-                        
-                        // Определяем, является ли позиция шортом
-                        boolean isShortPosition = position.getQuantity().compareTo(BigDecimal.ZERO) < 0;
-                        
-                        // Для шортов логика обратная: если рекомендуют SELL, то нужно закрыть шорт (BUY)
-                        // Для длинных позиций: если рекомендуют SELL, то продаем
-                        String actionForPosition = isShortPosition ? 
-                            ("SELL".equals(opportunity.getRecommendedAction()) ? "BUY" : opportunity.getRecommendedAction()) :
-                            opportunity.getRecommendedAction();
-                        
-                        if (opportunity != null && ("SELL".equals(actionForPosition) || "BUY".equals(actionForPosition))) {
-                            // Увеличиваем score для позиций, которые нужно закрыть
-                            opportunity = new TradingOpportunity(
-                                opportunity.getFigi(),
-                                opportunity.getCurrentPrice(),
-                                opportunity.getTrend(),
-                                opportunity.getRsi(),
-                                opportunity.getSma20(),
-                                opportunity.getSma50(),
-                                opportunity.getScore().add(BigDecimal.valueOf(10)), // Бонус за существующую позицию
-                                actionForPosition
-                            );
-                            sellOpportunities.add(opportunity);
-                            
-                            String actionDescription = isShortPosition ? 
-                                ("BUY".equals(actionForPosition) ? "закрытия шорта" : "действия с шортом") :
-                                ("SELL".equals(actionForPosition) ? "продажи" : "действия с позицией");
-                            
-                            log.info("Найдена возможность {}: {} (Score: {}, Позиция: {})", 
-                                actionDescription, position.getFigi(), opportunity.getScore(), 
-                                isShortPosition ? "ШОРТ" : "ДЛИННАЯ");
-                            botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.PORTFOLIO_MANAGEMENT, 
-                                "Найдена возможность " + actionDescription, String.format("%s, Score: %.1f, Тип: %s", 
-                                    displayOf(position.getFigi()), opportunity.getScore(), isShortPosition ? "ШОРТ" : "ДЛИННАЯ"));
-                        }
-                        
-                        // Добавляем задержку между запросами
-                        Thread.sleep(200); // 200ms задержка для анализа позиций
-                        
-                    } catch (Exception e) {
-                        log.warn("Ошибка анализа позиции {}: {}", displayOf(position.getFigi()), e.getMessage());
-                    }
+                if (position.getQuantity() == null || position.getQuantity().compareTo(BigDecimal.ZERO) == 0) {
+                    continue;
                 }
+                // Пропускаем заблокированные по ликвидности инструменты
+                if (isLiquidityBlocked(position.getFigi())) {
+                    long minutesLeft = getLiquidityBlockRemainingMinutes(position.getFigi());
+                    log.debug("Пропускаем позицию {} из анализа - заблокирована по ликвидности (осталось ~{} мин)", 
+                        displayOf(position.getFigi()), minutesLeft);
+                    continue;
+                }
+                toAnalyze.add(position);
             }
-            
+
+            // Позиции анализируются параллельно, как и кандидаты скана: темп задаёт ApiRateLimiter, а не паузы
+            InstrumentScanPipeline.ScanResult<TradingOpportunity> scan = instrumentScanPipeline.scan(toAnalyze,
+                position -> analyzePositionForExit(position, accountId),
+                Comparator.comparing(TradingOpportunity::getScore), toAnalyze.size());
+            sellOpportunities.addAll(scan.getTop());
+
             log.info("Найдено {} возможностей для продажи", sellOpportunities.size());
             botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.PORTFOLIO_MANAGEMENT, 
                 "Анализ позиций завершен", "Возможностей продажи: " + sellOpportunities.size());
@@ -1697,10 +1501,68 @@ public class PortfolioManagementService {
         return sellOpportunities;
     }
     
+    /**
+     * Возможность закрытия одной позиции (null — действовать не нужно или анализ не удался)
+     */
+    private TradingOpportunity analyzePositionForExit(Position position, String accountId) {
+        try {
+            TradingOpportunity opportunity = analyzeTradingOpportunity(position.getFigi(), accountId);
+            if (opportunity == null) {
+                return null;
+            }
+            
+            // Определяем, является ли позиция шортом
+            boolean isShortPosition = position.getQuantity().compareTo(BigDecimal.ZERO) < 0;
+            
+            // Для шортов логика обратная: если рекомендуют SELL, то нужно закрыть шорт (BUY)
+            // Для длинных позиций: если рекомендуют SELL, то продаем
+            String actionForPosition = isShortPosition ? 
+                ("SELL".equals(opportunity.getRecommendedAction()) ? "BUY" : opportunity.getRecommendedAction()) :
+                opportunity.getRecommendedAction();
+            
+            if (!"SELL".equals(actionForPosition) && !"BUY".equals(actionForPosition)) {
+                return null;
+            }
+            // Увеличиваем score для позиций, которые нужно закрыть
+            opportunity = new TradingOpportunity(
+                opportunity.getFigi(),
+                opportunity.getCurrentPrice(),
+                opportunity.getTrend(),
+                opportunity.getRsi(),
+                opportunity.getSma20(),
+                opportunity.getSma50(),
+                opportunity.getScore().add(BigDecimal.valueOf(10)), // Бонус за существующую позицию
+                actionForPosition
+            );
+            
+            String actionDescription = isShortPosition ? 
+                ("BUY".equals(actionForPosition) ? "закрытия шорта" : "действия с шортом") :
+                ("SELL".equals(actionForPosition) ? "продажи" : "действия с позицией");
+            
+            log.info("Найдена возможность {}: {} (Score: {}, Позиция: {})", 
+                actionDescription, position.getFigi(), opportunity.getScore(), 
+                isShortPosition ? "ШОРТ" : "ДЛИННАЯ");
+            botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.PORTFOLIO_MANAGEMENT, 
+                "Найдена возможность " + actionDescription, String.format("%s, Score: %.1f, Тип: %s", 
+                    displayOf(position.getFigi()), opportunity.getScore(), isShortPosition ? "ШОРТ" : "ДЛИННАЯ"));
+            return opportunity;
+        } catch (Exception e) {
+            log.warn("Ошибка анализа позиции {}: {}", displayOf(position.getFigi()), e.getMessage());
+            return null;
+        }
+    }
+    
     /**
      * Анализ торговой возможности для конкретного инструмента
      */
     private TradingOpportunity analyzeTradingOpportunity(String figi, String accountId) {
+        return analyzeTradingOpportunity(figi, accountId, null);
+    }
+
+    /**
+     * Анализ торговой возможности с уже известной текущей ценой (null — цена запрашивается по инструменту)
+     */
+    private TradingOpportunity analyzeTradingOpportunity(String figi, String accountId, BigDecimal knownPrice) {
         try {
             log.debug("=== АНАЛИЗ ТОРГОВОЙ ВОЗМОЖНОСТИ ДЛЯ {} ===", displayOf(figi));
             
@@ -1722,7 +1584,7 @@ public class PortfolioManagementService {
             
             // Получаем технический анализ
             MarketAnalysisService.TrendAnalysis trendAnalysis = 
-                marketAnalysisService.analyzeTrend(figi, ru.tinkoff.piapi.contract.v1.CandleInterval.CANDLE_INTERVAL_DAY);
+                marketAnalysisService.analyzeTrend(figi, ru.tinkoff.piapi.contract.v1.CandleInterval.CANDLE_INTERVAL_DAY, knownPrice);
             
             if (trendAnalysis == null) {
                 log.warn("Не удалось получить анализ тренда для {}", displayOf(figi));
@@ -2317,7 +2179,8 @@ public class PortfolioManagementService {
      * Автоматическое выполнение торговых операций
      */
     public void executeAutomaticTrading(String accountId) {
-        try {
+        // Один цикл анализа на скан и исполнение лучшей возможности: индикаторы скана переиспользуются
+        try (AnalysisContext.Cycle cycle = analysisContext.openCycle()) {
             String mode = investApiManager != null ? investApiManager.getCurrentMode() : null;
             log.info("Запуск автоматической торговли для аккаунта: {} (mode={})", accountId, mode);
             botLogService.addLogEntry(BotLogService.LogLevel.INFO, BotLogService.LogCategory.AUTOMATIC_TRADING, 
@@ -2499,6 +2362,7 @@ public class PortfolioManagementService {
     /**
      * Автоматический мониторинг каждые 5 минут
      */
+    @SchedulerLane(SchedulerLane.Lane.ANALYTICS)
     @Scheduled(fixedRate = 300000) // 5 минут = 300000 мс
     public void autoMonitoringTask() {
         if (!autoMonitoringEnabled || monitoredAccountId == null) {
@@ -2527,6 +2391,7 @@ public class PortfolioManagementService {
     /**
      * Быстрый мониторинг каждую минуту (анализ + торговля при хороших возможностях)
      */
+    @SchedulerLane(SchedulerLane.Lane.TRADING)
     @Scheduled(fixedRate = 60000) // 1 минута = 60000 мс
     public void quickMonitoringTask() {
         if (!autoMonitoringEnabled || monitoredAccountId == null) {
@@ -2534,7 +2399,7 @@ public class PortfolioManagementService {
             return;
         }
         
-        try {
+        try (AnalysisContext.Cycle cycle = analysisContext.openCycle()) {
             log.debug("=== БЫСТРЫЙ МОНИТОРИНГ === (аккаунт: {})", monitoredAccountId);
             // Анализируем возможности
             List<TradingOpportunity> opportunities = findBestTradingOpportunities(monitoredAccountId);
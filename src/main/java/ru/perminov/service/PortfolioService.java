@@ -3,7 +3,6 @@ package ru.perminov.service;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
-import ru.tinkoff.piapi.core.InvestApi;
 import ru.tinkoff.piapi.core.models.Portfolio;
 import ru.perminov.dto.PortfolioDto;
 
@@ -12,38 +11,15 @@ import ru.perminov.dto.PortfolioDto;
 @Slf4j
 public class PortfolioService {
     private final InvestApiManager investApiManager;
-    private final ApiRateLimiter apiRateLimiter;
-    private final java.util.Map<String, CacheEntry> portfolioCache = new java.util.concurrent.ConcurrentHashMap<>();
-    private final TradingSettingsService tradingSettingsService;
+    private final PortfolioStateService portfolioStateService;
     // private final InstrumentService instrumentService;
 
+    /**
+     * Портфель из живого снимка {@link PortfolioStateService} (поток портфеля, при его отсутствии — запрос с TTL)
+     */
     public Portfolio getPortfolio(String accountId) {
         try {
-            String mode = investApiManager.getCurrentMode();
-            log.info("Запрос портфеля для accountId: {} (mode={})", accountId, mode);
-            
-            InvestApi api = investApiManager.getCurrentInvestApi();
-            if (api == null) {
-                log.error("InvestApi не инициализирован");
-                throw new RuntimeException("InvestApi не инициализирован");
-            }
-            
-            // Кэш с TTL
-            long ttlMs = tradingSettingsService.getInt("portfolio.cache.ttl_ms", 5000);
-            CacheEntry cached = portfolioCache.get(accountId);
-            long now = System.currentTimeMillis();
-            if (cached != null && (now - cached.timestampMs) < ttlMs) {
-                return cached.portfolio;
-            }
-
-            // Глобальный лимитер API
-            apiRateLimiter.acquire();
-            Portfolio portfolio = api.getOperationsService().getPortfolio(accountId).join();
-            portfolioCache.put(accountId, new CacheEntry(portfolio, now));
-            log.info("Портфель успешно загружен для accountId: {} (mode={}), позиций: {}", 
-                    accountId, mode, portfolio.getPositions() != null ? portfolio.getPositions().size() : 0);
-            
-            return portfolio;
+            return portfolioStateService.getSnapshot(accountId).getPortfolio();
         } catch (Exception e) {
             log.error("Ошибка при получении портфеля для accountId: {} (mode={})", accountId, investApiManager.getCurrentMode(), e);
             throw new RuntimeException("Ошибка при получении портфеля: " + e.getMessage(), e);
@@ -73,13 +49,4 @@ public class PortfolioService {
             throw new RuntimeException("Ошибка при получении портфеля с названиями: " + e.getMessage(), e);
         }
     }
-} 
-
-class CacheEntry {
-    final ru.tinkoff.piapi.core.models.Portfolio portfolio;
-    final long timestampMs;
-    CacheEntry(ru.tinkoff.piapi.core.models.Portfolio p, long t) {
-        this.portfolio = p;
-        this.timestampMs = t;
-    }
-}
\ No newline at end of file
+}
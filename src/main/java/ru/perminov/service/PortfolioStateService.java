@@ -0,0 +1,360 @@
+package ru.perminov.service;
+
+import io.grpc.Context;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import ru.perminov.config.SchedulerLane;
+import ru.tinkoff.piapi.contract.v1.PortfolioStreamResponse;
+import ru.tinkoff.piapi.contract.v1.PositionsStreamResponse;
+import ru.tinkoff.piapi.core.InvestApi;
+import ru.tinkoff.piapi.core.models.Money;
+import ru.tinkoff.piapi.core.models.Portfolio;
+import ru.tinkoff.piapi.core.models.Position;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Живое состояние портфелей.
+ * По каждому запрошенному аккаунту открываются потоки PortfolioStream и PositionsStream Invest API:
+ * сообщение портфельного потока заменяет снимок аккаунта, событие позиционного потока помечает снимок
+ * устаревшим (следующее чтение перечитывает портфель одним запросом). Снимок неизменяемый, с номером
+ * версии и заранее посчитанными стоимостями позиций, разбивкой по типам инструментов и долями,
+ * поэтому потребители не пересобирают эти карты на каждый вызов.
+ * Без живого потока снимок действует portfolio.cache.ttl_ms, с живым — до portfolio.stream.max_age_ms.
+ * Каждый поток открывается в собственном отменяемом gRPC-контексте: после ошибки переоткрывается только
+ * упавший поток, а при смене InvestApi все прежние потоки отменяются, чтобы обновления не применялись дважды.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class PortfolioStateService {
+
+    private final InvestApiManager investApiManager;
+    private final ApiRateLimiter apiRateLimiter;
+    private final SingleFlight singleFlight;
+    private final TradingSettingsService settingsService;
+
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    // Аккаунты, которые кто-либо читал: для них держим потоки
+    private final Set<String> accounts = ConcurrentHashMap.newKeySet();
+    private final Map<String, StreamHandle> portfolioStreams = new ConcurrentHashMap<>();
+    private final Map<String, StreamHandle> positionStreams = new ConcurrentHashMap<>();
+    private final Set<String> stale = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong versions = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong polls = new AtomicLong();
+    private final AtomicLong portfolioMessages = new AtomicLong();
+    private final AtomicLong positionMessages = new AtomicLong();
+    private final AtomicLong streamErrors = new AtomicLong();
+    private final AtomicLong streamsCancelled = new AtomicLong();
+    private volatile InvestApi streamApi;
+    private volatile long lastMessageMs = 0;
+
+    /**
+     * Актуальный снимок портфеля аккаунта: из потока, а при его отсутствии или устаревании — одним запросом
+     */
+    public Snapshot getSnapshot(String accountId) {
+        accounts.add(accountId);
+        InvestApi api = investApiManager.getCurrentInvestApi();
+        if (api == null) {
+            log.error("InvestApi не инициализирован");
+            throw new RuntimeException("InvestApi не инициализирован");
+        }
+        Snapshot snapshot = snapshots.get(accountId);
+        if (snapshot != null && snapshot.api == api && !stale.contains(accountId)) {
+            long maxAgeMs = isStreaming(accountId, api)
+                ? settingsService.getInt("portfolio.stream.max_age_ms", 60000)
+                : settingsService.getInt("portfolio.cache.ttl_ms", 5000);
+            if (System.currentTimeMillis() - snapshot.createdAtMs <= maxAgeMs) {
+                hits.incrementAndGet();
+                return snapshot;
+            }
+        }
+        return poll(accountId, api);
+    }
+
+    /**
+     * Снимок аккаунта устарел (например, после исполнения ордера): следующее чтение перечитает портфель
+     */
+    public void invalidate(String accountId) {
+        stale.add(accountId);
+    }
+
+    /**
+     * Поддержка потоков: подписка новых аккаунтов, переподписка после ошибки или смены режима API
+     */
+    @SchedulerLane(SchedulerLane.Lane.TRADING)
+    @Scheduled(fixedDelay = 5000)
+    public void maintainStreams() {
+        if (!settingsService.getBoolean("portfolio.stream.enabled", true)) {
+            cancelAll();
+            return;
+        }
+        InvestApi api = investApiManager.getCurrentInvestApi();
+        if (api == null) {
+            return;
+        }
+        if (api != streamApi) {
+            // Потоки прежнего InvestApi закрываем, а не просто перестаём слушать
+            cancelAll();
+            streamApi = api;
+        }
+        for (String accountId : accounts) {
+            if (!portfolioStreams.containsKey(accountId)) {
+                subscribePortfolio(api, accountId);
+            }
+            if (!positionStreams.containsKey(accountId)) {
+                subscribePositions(api, accountId);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        cancelAll();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("accounts", accounts.size());
+        stats.put("portfolioStreams", portfolioStreams.size());
+        stats.put("positionStreams", positionStreams.size());
+        stats.put("snapshots", snapshots.size());
+        stats.put("hits", hits.get());
+        stats.put("polls", polls.get());
+        stats.put("portfolioMessages", portfolioMessages.get());
+        stats.put("positionMessages", positionMessages.get());
+        stats.put("streamErrors", streamErrors.get());
+        stats.put("streamsCancelled", streamsCancelled.get());
+        stats.put("lastMessageMs", lastMessageMs);
+        Map<String, Object> versionsByAccount = new LinkedHashMap<>();
+        snapshots.forEach((accountId, s) -> versionsByAccount.put(accountId,
+            Map.of("version", s.version, "source", s.source, "ageMs", System.currentTimeMillis() - s.createdAtMs)));
+        stats.put("snapshotsByAccount", versionsByAccount);
+        return stats;
+    }
+
+    private Snapshot poll(String accountId, InvestApi api) {
+        String mode = investApiManager.getCurrentMode();
+        log.info("Запрос портфеля для accountId: {} (mode={})", accountId, mode);
+        // Событие позиций, пришедшее во время запроса, снова пометит снимок устаревшим
+        stale.remove(accountId);
+        // Одновременные запросы портфеля одного аккаунта схлопываются в один вызов API
+        Snapshot snapshot = singleFlight.execute("portfolio:" + mode + ":" + accountId, 0, () -> {
+            polls.incrementAndGet();
+            apiRateLimiter.acquire(ApiRateLimiter.ApiClass.OPERATIONS);
+            Portfolio portfolio = api.getOperationsService().getPortfolio(accountId).join();
+            return publish(accountId, portfolio, api, "poll");
+        });
+        log.debug("Портфель получен для accountId: {} (mode={}), позиций: {}",
+            accountId, mode, snapshot.portfolio.getPositions() != null ? snapshot.portfolio.getPositions().size() : 0);
+        return snapshot;
+    }
+
+    private void subscribePortfolio(InvestApi api, String accountId) {
+        StreamHandle handle = new StreamHandle(api);
+        portfolioStreams.put(accountId, handle);
+        try {
+            // Вызов gRPC запоминает текущий контекст: его отмена закрывает именно этот поток
+            handle.context.run(() -> api.getOperationsStreamService().subscribePortfolio(
+                response -> onPortfolio(response, api, handle),
+                error -> onStreamError(portfolioStreams, "портфеля", accountId, handle, error),
+                List.of(accountId)));
+            log.info("📡 Подписка на поток портфеля для {}", accountId);
+        } catch (Exception e) {
+            streamErrors.incrementAndGet();
+            release(portfolioStreams, accountId, handle);
+            log.warn("Не удалось подписаться на поток портфеля для {}: {}", accountId, e.getMessage());
+        }
+    }
+
+    private void subscribePositions(InvestApi api, String accountId) {
+        StreamHandle handle = new StreamHandle(api);
+        positionStreams.put(accountId, handle);
+        try {
+            handle.context.run(() -> api.getOperationsStreamService().subscribePositions(
+                response -> onPositions(response, handle),
+                error -> onStreamError(positionStreams, "позиций", accountId, handle, error),
+                List.of(accountId)));
+            log.info("📡 Подписка на поток позиций для {}", accountId);
+        } catch (Exception e) {
+            streamErrors.incrementAndGet();
+            release(positionStreams, accountId, handle);
+            log.warn("Не удалось подписаться на поток позиций для {}: {}", accountId, e.getMessage());
+        }
+    }
+
+    private void onPortfolio(PortfolioStreamResponse response, InvestApi api, StreamHandle handle) {
+        if (handle.isCancelled()) return;
+        lastMessageMs = System.currentTimeMillis();
+        if (response.hasPortfolio()) {
+            portfolioMessages.incrementAndGet();
+            Portfolio portfolio = Portfolio.fromResponse(response.getPortfolio());
+            String accountId = response.getPortfolio().getAccountId();
+            publish(accountId, portfolio, api, "stream");
+            stale.remove(accountId);
+        }
+    }
+
+    private void onPositions(PositionsStreamResponse response, StreamHandle handle) {
+        if (handle.isCancelled()) return;
+        lastMessageMs = System.currentTimeMillis();
+        if (response.hasPosition()) {
+            positionMessages.incrementAndGet();
+            stale.add(response.getPosition().getAccountId());
+        }
+    }
+
+    private void onStreamError(Map<String, StreamHandle> streams, String kind, String accountId,
+                               StreamHandle handle, Throwable error) {
+        if (handle.isCancelled()) return;
+        streamErrors.incrementAndGet();
+        // Переоткрывается только упавший поток; парный продолжает работать
+        release(streams, accountId, handle);
+        log.warn("📡 Поток {} {} прерван: {}", kind, accountId, error != null ? error.getMessage() : "unknown");
+    }
+
+    private void release(Map<String, StreamHandle> streams, String accountId, StreamHandle handle) {
+        streams.remove(accountId, handle);
+        handle.cancel();
+    }
+
+    private void cancelAll() {
+        for (Map<String, StreamHandle> streams : List.of(portfolioStreams, positionStreams)) {
+            streams.forEach((accountId, handle) -> {
+                if (streams.remove(accountId, handle) && handle.cancel()) {
+                    streamsCancelled.incrementAndGet();
+                }
+            });
+        }
+    }
+
+    private boolean isStreaming(String accountId, InvestApi api) {
+        StreamHandle portfolio = portfolioStreams.get(accountId);
+        StreamHandle positions = positionStreams.get(accountId);
+        return portfolio != null && positions != null && portfolio.api == api && positions.api == api;
+    }
+
+    private Snapshot publish(String accountId, Portfolio portfolio, InvestApi api, String source) {
+        Snapshot snapshot = Snapshot.of(versions.incrementAndGet(), accountId, portfolio, api, source);
+        snapshots.put(accountId, snapshot);
+        return snapshot;
+    }
+
+    /**
+     * Открытый поток: InvestApi, на котором он создан, и gRPC-контекст для его отмены
+     */
+    private static final class StreamHandle {
+        final InvestApi api;
+        final Context.CancellableContext context = Context.current().withCancellation();
+
+        StreamHandle(InvestApi api) {
+            this.api = api;
+        }
+
+        boolean isCancelled() {
+            return context.isCancelled();
+        }
+
+        /**
+         * @return true, если поток был открыт и отменён этим вызовом
+         */
+        boolean cancel() {
+            return context.cancel(null);
+        }
+    }
+
+    /**
+     * Неизменяемый снимок портфеля с посчитанными стоимостями и долями
+     */
+    public static final class Snapshot {
+        private final long version;
+        private final String accountId;
+        private final Portfolio portfolio;
+        private final InvestApi api;
+        private final String source;
+        private final long createdAtMs;
+        private final BigDecimal totalValue;
+        private final Map<String, BigDecimal> positionValues;
+        private final Map<String, BigDecimal> typeValues;
+        private final Map<String, BigDecimal> typePercentages;
+
+        private Snapshot(long version, String accountId, Portfolio portfolio, InvestApi api, String source,
+                         BigDecimal totalValue, Map<String, BigDecimal> positionValues,
+                         Map<String, BigDecimal> typeValues, Map<String, BigDecimal> typePercentages) {
+            this.version = version;
+            this.accountId = accountId;
+            this.portfolio = portfolio;
+            this.api = api;
+            this.source = source;
+            this.createdAtMs = System.currentTimeMillis();
+            this.totalValue = totalValue;
+            this.positionValues = positionValues;
+            this.typeValues = typeValues;
+            this.typePercentages = typePercentages;
+        }
+
+        static Snapshot of(long version, String accountId, Portfolio portfolio, InvestApi api, String source) {
+            BigDecimal total = BigDecimal.ZERO;
+            Map<String, BigDecimal> positionValues = new HashMap<>();
+            Map<String, BigDecimal> typeValues = new HashMap<>();
+            List<Position> positions = portfolio.getPositions() != null ? portfolio.getPositions() : List.of();
+            for (Position position : positions) {
+                BigDecimal quantity = position.getQuantity() != null ? position.getQuantity() : BigDecimal.ZERO;
+                // Для валютных позиций используем количество как стоимость
+                BigDecimal value = "currency".equals(position.getInstrumentType())
+                    ? quantity
+                    : quantity.multiply(moneyValue(position.getCurrentPrice()));
+                positionValues.put(position.getFigi(), value);
+                typeValues.merge(position.getInstrumentType(), value, BigDecimal::add);
+                total = total.add(value);
+            }
+            Map<String, BigDecimal> typePercentages = new HashMap<>();
+            if (total.compareTo(BigDecimal.ZERO) > 0) {
+                for (Map.Entry<String, BigDecimal> entry : typeValues.entrySet()) {
+                    typePercentages.put(entry.getKey(), entry.getValue()
+                        .divide(total, 4, RoundingMode.HALF_UP)
+                        .multiply(BigDecimal.valueOf(100)));
+                }
+            }
+            return new Snapshot(version, accountId, portfolio, api, source, total,
+                Collections.unmodifiableMap(positionValues),
+                Collections.unmodifiableMap(typeValues),
+                Collections.unmodifiableMap(typePercentages));
+        }
+
+        private static BigDecimal moneyValue(Object price) {
+            if (price instanceof Money money && money.getValue() != null) {
+                return money.getValue();
+            }
+            return BigDecimal.ZERO;
+        }
+
+        public long getVersion() { return version; }
+        public String getAccountId() { return accountId; }
+        public Portfolio getPortfolio() { return portfolio; }
+        public List<Position> getPositions() { return portfolio.getPositions(); }
+        public String getSource() { return source; }
+        public long getCreatedAtMs() { return createdAtMs; }
+        public BigDecimal getTotalValue() { return totalValue; }
+        /** Стоимость позиций по FIGI */
+        public Map<String, BigDecimal> getPositionValues() { return positionValues; }
+        /** Стоимость по типам инструментов */
+        public Map<String, BigDecimal> getTypeValues() { return typeValues; }
+        /** Доли типов инструментов в процентах */
+        public Map<String, BigDecimal> getTypePercentages() { return typePercentages; }
+    }
+}
@@ -4,11 +4,9 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import ru.perminov.model.Order;
-import ru.perminov.repository.OrderRepository;
 
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
-import java.util.List;
 import java.util.Optional;
 
 /**
@@ -20,7 +18,7 @@ import java.util.Optional;
 @Slf4j
 public class PositionHoldTimeService {
     
-    private final OrderRepository orderRepository;
+    private final TradeHistoryIndex tradeHistoryIndex;
     private final TradingSettingsService tradingSettingsService;
     
     /**
@@ -34,11 +32,8 @@ public class PositionHoldTimeService {
             // Настройки минимального времени удержания
             int minHoldTimeMinutes = tradingSettingsService.getInt("position.min_hold_time_minutes", 10);
             
-            // Ищем последний ордер на открытие позиции (BUY)
-            List<Order> orders = orderRepository.findByFigiAndAccountIdOrderByOrderDateDesc(figi, accountId);
-            Optional<Order> lastOpenOrder = orders.stream()
-                .filter(order -> "ORDER_DIRECTION_BUY".equals(order.getOperation()))
-                .findFirst();
+            // Ищем последнее исполнение на открытие позиции (BUY)
+            Optional<Order> lastOpenOrder = tradeHistoryIndex.getLastFill(accountId, figi, "BUY");
             
             if (lastOpenOrder.isEmpty()) {
                 log.debug("Нет ордеров на открытие позиции для {}, разрешаем закрытие", figi);
@@ -1,141 +1,241 @@
 package ru.perminov.service;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-import org.springframework.transaction.annotation.Transactional;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.model.PositionRiskState;
 import ru.perminov.model.RiskEvent;
 import ru.perminov.repository.PositionRiskStateRepository;
 import ru.perminov.repository.RiskEventRepository;
 
 import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Состояние рисков позиций (SL/TP/трейлинг).
+ * Авторитетная копия живёт в памяти: надзор за позициями читает и меняет её без запросов к БД.
+ * Изменения пишутся в БД отложенно (write-behind): позиция помечается «грязной», и раз в flush-интервал
+ * все изменившиеся позиции уходят одним пакетным upsert, закрытые — пакетным удалением, события
+ * рисков — пакетной вставкой. Позиция, состояние которой не изменилось, в БД не пишется вовсе.
+ * После сбоя теряется не более одного интервала изменений; при старте состояние читается из БД,
+ * а уровни пересчитываются надзором на первом же проходе.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class PositionRiskStateService {
 
+    private static final String UPSERT_STATE_SQL =
+        "INSERT INTO position_risk_state (account_id, figi, side, sl_pct, tp_pct, trailing_pct, sl_level, tp_level, " +
+        "high_watermark, low_watermark, entry_price, avg_price_snapshot, qty_snapshot, trailing_type, min_step_ticks, " +
+        "updated_at, source) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?) " +
+        "ON CONFLICT (account_id, figi, side) DO UPDATE SET sl_pct = EXCLUDED.sl_pct, tp_pct = EXCLUDED.tp_pct, " +
+        "trailing_pct = EXCLUDED.trailing_pct, sl_level = EXCLUDED.sl_level, tp_level = EXCLUDED.tp_level, " +
+        "high_watermark = EXCLUDED.high_watermark, low_watermark = EXCLUDED.low_watermark, " +
+        "entry_price = EXCLUDED.entry_price, avg_price_snapshot = EXCLUDED.avg_price_snapshot, " +
+        "qty_snapshot = EXCLUDED.qty_snapshot, trailing_type = EXCLUDED.trailing_type, " +
+        "min_step_ticks = EXCLUDED.min_step_ticks, updated_at = EXCLUDED.updated_at, source = EXCLUDED.source";
+
+    private static final String DELETE_STATE_SQL =
+        "DELETE FROM position_risk_state WHERE account_id = ? AND figi = ? AND side = ?";
+
+    private static final String INSERT_EVENT_SQL =
+        "INSERT INTO risk_events (account_id, figi, event_type, side, old_value, new_value, current_price, watermark, " +
+        "reason, details, created_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
     private final PositionRiskStateRepository positionRiskStateRepository;
     private final RiskEventRepository riskEventRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TradingSettingsService settingsService;
+
+    // accountId|figi|side -> состояние; мутации и копирование — под монитором самого состояния
+    private final Map<String, PositionRiskState> states = new ConcurrentHashMap<>();
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+    // Закрытые позиции, ещё не удалённые из БД
+    private final Map<String, PositionRiskState> closed = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<RiskEvent> pendingEvents = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingEventCount = new AtomicInteger();
+
+    private final AtomicLong updates = new AtomicLong();
+    private final AtomicLong flushes = new AtomicLong();
+    private final AtomicLong statesWritten = new AtomicLong();
+    private final AtomicLong statesDeleted = new AtomicLong();
+    private final AtomicLong eventsWritten = new AtomicLong();
+    private final AtomicLong eventsDropped = new AtomicLong();
+    private final AtomicLong flushFailures = new AtomicLong();
+    private volatile long lastFlushMs = 0;
+    private volatile long lastFlushDurationMs = 0;
+
+    @PostConstruct
+    public void init() {
+        try {
+            reloadFromDatabase();
+        } catch (Exception e) {
+            log.warn("Состояние рисков не загружено из БД: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * Загрузка состояния из БД (при старте)
+     */
+    public synchronized void reloadFromDatabase() {
+        List<PositionRiskState> rows = positionRiskStateRepository.findAll();
+        states.clear();
+        dirty.clear();
+        closed.clear();
+        for (PositionRiskState row : rows) {
+            states.put(key(row.getAccountId(), row.getFigi(), row.getSide()), row);
+        }
+        log.info("🛡️ Загружено {} состояний рисков из БД", rows.size());
+    }
 
-    @Transactional
     public PositionRiskState createOrUpdateRiskState(String accountId, String figi,
                                                      PositionRiskState.PositionSide side,
                                                      BigDecimal stopLossPct, BigDecimal takeProfitPct,
                                                      BigDecimal trailingPct, BigDecimal currentPrice,
                                                      BigDecimal averagePrice, BigDecimal quantity) {
+        String key = key(accountId, figi, side);
+        boolean[] rulesChanged = {false};
+        boolean[] changed = {false};
+        PositionRiskState[] result = new PositionRiskState[1];
+        // Создание и изменение — в одном compute по ключу: closePosition не может удалить состояние между ними
+        states.compute(key, (k, existing) -> {
+            PositionRiskState riskState = existing;
+            if (riskState == null) {
+                log.debug("Создание нового состояния рисков для {} {} {}", accountId, figi, side);
+                closed.remove(k);
+                riskState = PositionRiskState.builder()
+                        .accountId(accountId)
+                        .figi(figi)
+                        .side(side)
+                        .entryPrice(currentPrice)
+                        .highWatermark(currentPrice)
+                        .lowWatermark(currentPrice)
+                        .trailingType(PositionRiskState.TrailingType.PERCENT)
+                        .minStepTicks(BigDecimal.valueOf(0.01))
+                        .source("MANUAL")
+                        .build();
+            }
+            synchronized (riskState) {
+                List<Object> before = persistedFields(riskState);
 
-        Optional<PositionRiskState> existing = positionRiskStateRepository
-                .findByAccountIdAndFigiAndSide(accountId, figi, side);
-
-        PositionRiskState riskState;
-        if (existing.isPresent()) {
-            riskState = existing.get();
-            log.debug("Обновление существующего состояния рисков для {} {} {}", accountId, figi, side);
-        } else {
-            riskState = PositionRiskState.builder()
-                    .accountId(accountId)
-                    .figi(figi)
-                    .side(side)
-                    .entryPrice(currentPrice)
-                    .highWatermark(currentPrice)
-                    .lowWatermark(currentPrice)
-                    .trailingType(PositionRiskState.TrailingType.PERCENT)
-                    .minStepTicks(BigDecimal.valueOf(0.01))
-                    .source("MANUAL")
-                    .build();
-            log.debug("Создание нового состояния рисков для {} {} {}", accountId, figi, side);
-        }
-
-        // Обновляем правила
-        boolean rulesChanged = false;
-        if (stopLossPct != null && !stopLossPct.equals(riskState.getStopLossPct())) {
-            riskState.setStopLossPct(stopLossPct);
-            rulesChanged = true;
-        }
-        if (takeProfitPct != null && !takeProfitPct.equals(riskState.getTakeProfitPct())) {
-            riskState.setTakeProfitPct(takeProfitPct);
-            rulesChanged = true;
-        }
-        if (trailingPct != null && !trailingPct.equals(riskState.getTrailingPct())) {
-            riskState.setTrailingPct(trailingPct);
-            rulesChanged = true;
-        }
+                // Обновляем правила
+                if (stopLossPct != null && !stopLossPct.equals(riskState.getStopLossPct())) {
+                    riskState.setStopLossPct(stopLossPct);
+                    rulesChanged[0] = true;
+                }
+                if (takeProfitPct != null && !takeProfitPct.equals(riskState.getTakeProfitPct())) {
+                    riskState.setTakeProfitPct(takeProfitPct);
+                    rulesChanged[0] = true;
+                }
+                if (trailingPct != null && !trailingPct.equals(riskState.getTrailingPct())) {
+                    riskState.setTrailingPct(trailingPct);
+                    rulesChanged[0] = true;
+                }
 
-        // Обновляем снимки позиции
-        riskState.setAveragePriceSnapshot(averagePrice);
-        riskState.setQuantitySnapshot(quantity);
-        riskState.setUpdatedAt(LocalDateTime.now());
+                // Обновляем снимки позиции
+                riskState.setAveragePriceSnapshot(averagePrice);
+                riskState.setQuantitySnapshot(quantity);
 
-        // Пересчитываем уровни
-        recalculateRiskLevels(riskState, currentPrice);
+                // Пересчитываем уровни
+                recalculateRiskLevels(riskState, currentPrice);
 
-        PositionRiskState saved = positionRiskStateRepository.save(riskState);
+                if (!before.equals(persistedFields(riskState))) {
+                    riskState.setUpdatedAt(LocalDateTime.now());
+                    updates.incrementAndGet();
+                    changed[0] = true;
+                }
+                result[0] = copyOf(riskState);
+            }
+            return riskState;
+        });
+        // Пометка — после публикации нового состояния в карте, иначе flush может её снять, не найдя состояния
+        if (changed[0]) {
+            dirty.add(key);
+        }
 
-        if (rulesChanged) {
+        if (rulesChanged[0]) {
             logRiskEvent(accountId, figi, side.toString(), null, null, currentPrice, null,
                     "Правила рисков обновлены", String.format("SL: %s%%, TP: %s%%, Trailing: %s%%",
                             stopLossPct, takeProfitPct, trailingPct));
         }
 
-        return saved;
+        return result[0];
     }
 
-    @Transactional
     public void updateWatermark(String accountId, String figi, PositionRiskState.PositionSide side,
                                 BigDecimal currentPrice) {
+        String key = key(accountId, figi, side);
+        PositionRiskState riskState = states.get(key);
 
-        Optional<PositionRiskState> existing = positionRiskStateRepository
-                .findByAccountIdAndFigiAndSide(accountId, figi, side);
-
-        if (existing.isEmpty()) {
+        if (riskState == null) {
             log.warn("Попытка обновить watermark для несуществующего состояния рисков: {} {} {}",
                     accountId, figi, side);
             return;
         }
 
-        PositionRiskState riskState = existing.get();
-        boolean watermarkUpdated = false;
-        BigDecimal oldWatermark = null;
+        synchronized (riskState) {
+            boolean watermarkUpdated = false;
+            BigDecimal oldWatermark = null;
 
-        // Обновляем watermark в зависимости от стороны позиции
-        if (side == PositionRiskState.PositionSide.LONG) {
-            if (currentPrice.compareTo(riskState.getHighWatermark()) > 0) {
-                oldWatermark = riskState.getHighWatermark();
-                riskState.setHighWatermark(currentPrice);
-                watermarkUpdated = true;
-            }
-        } else { // SHORT
-            if (currentPrice.compareTo(riskState.getLowWatermark()) < 0) {
-                oldWatermark = riskState.getLowWatermark();
-                riskState.setLowWatermark(currentPrice);
-                watermarkUpdated = true;
+            // Обновляем watermark в зависимости от стороны позиции
+            if (side == PositionRiskState.PositionSide.LONG) {
+                if (currentPrice.compareTo(riskState.getHighWatermark()) > 0) {
+                    oldWatermark = riskState.getHighWatermark();
+                    riskState.setHighWatermark(currentPrice);
+                    watermarkUpdated = true;
+                }
+            } else { // SHORT
+                if (currentPrice.compareTo(riskState.getLowWatermark()) < 0) {
+                    oldWatermark = riskState.getLowWatermark();
+                    riskState.setLowWatermark(currentPrice);
+                    watermarkUpdated = true;
+                }
             }
-        }
 
-        if (watermarkUpdated) {
-            // Пересчитываем trailing stop
-            BigDecimal oldStopLoss = riskState.getStopLossLevel();
-            recalculateRiskLevels(riskState, currentPrice);
-
-            // Логируем событие
-            logRiskEvent(accountId, figi, side.toString(), oldWatermark, currentPrice, currentPrice,
-                    currentPrice, "Watermark обновлен",
-                    String.format("Старый: %s, Новый: %s", oldWatermark, currentPrice));
-
-            // Логируем изменение SL если произошло
-            if (oldStopLoss != null && riskState.getStopLossLevel() != null &&
-                    !oldStopLoss.equals(riskState.getStopLossLevel())) {
-                logRiskEvent(accountId, figi, side.toString(), oldStopLoss, riskState.getStopLossLevel(),
-                        currentPrice, currentPrice, "Trailing SL обновлен",
-                        String.format("Старый SL: %s, Новый SL: %s", oldStopLoss, riskState.getStopLossLevel()));
-            }
+            if (watermarkUpdated) {
+                // Пересчитываем trailing stop
+                BigDecimal oldStopLoss = riskState.getStopLossLevel();
+                recalculateRiskLevels(riskState, currentPrice);
+
+                // Логируем событие
+                logRiskEvent(accountId, figi, side.toString(), oldWatermark, currentPrice, currentPrice,
+                        currentPrice, "Watermark обновлен",
+                        String.format("Старый: %s, Новый: %s", oldWatermark, currentPrice));
+
+                // Логируем изменение SL если произошло
+                if (oldStopLoss != null && riskState.getStopLossLevel() != null &&
+                        !oldStopLoss.equals(riskState.getStopLossLevel())) {
+                    logRiskEvent(accountId, figi, side.toString(), oldStopLoss, riskState.getStopLossLevel(),
+                            currentPrice, currentPrice, "Trailing SL обновлен",
+                            String.format("Старый SL: %s, Новый SL: %s", oldStopLoss, riskState.getStopLossLevel()));
+                }
 
-            positionRiskStateRepository.save(riskState);
+                markDirty(key, riskState);
+            }
         }
     }
 
@@ -215,47 +315,189 @@ public class PositionRiskStateService {
     }
 
     public List<PositionRiskState> getActiveRiskStates(String accountId) {
-        return positionRiskStateRepository.findByAccountId(accountId);
+        return snapshot(state -> accountId.equals(state.getAccountId()));
     }
 
     public Optional<PositionRiskState> getRiskState(String accountId, String figi, PositionRiskState.PositionSide side) {
         if (side != null) {
-            return positionRiskStateRepository.findByAccountIdAndFigiAndSide(accountId, figi, side);
+            PositionRiskState state = states.get(key(accountId, figi, side));
+            if (state == null) return Optional.empty();
+            synchronized (state) {
+                return Optional.of(copyOf(state));
+            }
         } else {
-            List<PositionRiskState> states = positionRiskStateRepository.findByAccountIdAndFigi(accountId, figi);
-            return states.isEmpty() ? Optional.empty() : Optional.of(states.get(0));
+            List<PositionRiskState> found = snapshot(state -> accountId.equals(state.getAccountId()) && figi.equals(state.getFigi()));
+            return found.isEmpty() ? Optional.empty() : Optional.of(found.get(0));
         }
     }
 
     public List<RiskEvent> getRiskEventsByPosition(String accountId, String figi, LocalDateTime since) {
+        flush();
         return riskEventRepository.findRecentEventsByPosition(accountId, figi, since);
     }
 
     public List<RiskEvent> getRecentRiskEvents(LocalDateTime since) {
+        flush();
         return riskEventRepository.findRecentEvents(since);
     }
 
     public List<PositionRiskState> getPositionsWithActiveStopLoss() {
-        return positionRiskStateRepository.findActiveStopLosses();
+        return snapshot(state -> state.getStopLossLevel() != null && state.getStopLossLevel().signum() > 0);
     }
 
     public List<PositionRiskState> getPositionsWithActiveTakeProfit() {
-        return positionRiskStateRepository.findActiveTakeProfits();
+        return snapshot(state -> state.getTakeProfitLevel() != null && state.getTakeProfitLevel().signum() > 0);
     }
 
-    @Transactional
     public void closePosition(String accountId, String figi, PositionRiskState.PositionSide side) {
-        Optional<PositionRiskState> existing = positionRiskStateRepository
-                .findByAccountIdAndFigiAndSide(accountId, figi, side);
+        String key = key(accountId, figi, side);
+        PositionRiskState riskState = states.remove(key);
 
-        if (existing.isPresent()) {
-            PositionRiskState riskState = existing.get();
+        if (riskState != null) {
+            dirty.remove(key);
+            closed.put(key, riskState);
 
             logRiskEvent(accountId, figi, side.toString(), null, null, null, null,
                     "Позиция закрыта", "Состояние рисков удалено");
+        }
+    }
 
-            positionRiskStateRepository.delete(riskState);
+    /**
+     * Массовое изменение состояний (миграции правил): mutator возвращает true, если изменил состояние
+     */
+    public int updateStates(Predicate<PositionRiskState> mutator) {
+        int updated = 0;
+        for (Map.Entry<String, PositionRiskState> entry : states.entrySet()) {
+            PositionRiskState state = entry.getValue();
+            synchronized (state) {
+                if (mutator.test(state)) {
+                    markDirty(entry.getKey(), state);
+                    updated++;
+                }
+            }
         }
+        return updated;
+    }
+
+    /**
+     * Отложенная запись: изменившиеся состояния, закрытые позиции и накопленные события — пакетами
+     */
+    @SchedulerLane(SchedulerLane.Lane.STATE)
+    @Scheduled(fixedDelay = 5000, initialDelay = 5000)
+    public synchronized void flush() {
+        if (dirty.isEmpty() && closed.isEmpty() && pendingEventCount.get() == 0) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        int batchSize = Math.max(1, settingsService.getInt("risk.state.flush_batch_size", 500));
+        flushes.incrementAndGet();
+
+        // 1. Закрытые позиции
+        List<PositionRiskState> toDelete = new ArrayList<>(closed.values());
+        if (!toDelete.isEmpty()) {
+            try {
+                jdbcTemplate.batchUpdate(DELETE_STATE_SQL, toDelete, batchSize, (ps, state) -> {
+                    ps.setString(1, state.getAccountId());
+                    ps.setString(2, state.getFigi());
+                    ps.setString(3, state.getSide().name());
+                });
+                for (PositionRiskState state : toDelete) {
+                    closed.remove(key(state.getAccountId(), state.getFigi(), state.getSide()), state);
+                }
+                statesDeleted.addAndGet(toDelete.size());
+            } catch (Exception e) {
+                flushFailures.incrementAndGet();
+                log.warn("⚠️ Не удалось удалить {} закрытых состояний рисков: {}", toDelete.size(), e.getMessage());
+            }
+        }
+
+        // 2. Изменившиеся состояния: снимаем пометку до копирования, чтобы изменение во время записи не потерялось
+        List<String> keys = new ArrayList<>(dirty);
+        List<PositionRiskState> toWrite = new ArrayList<>(keys.size());
+        boolean hasNew = false;
+        for (String key : keys) {
+            dirty.remove(key);
+            PositionRiskState state = states.get(key);
+            if (state == null) continue;
+            synchronized (state) {
+                toWrite.add(copyOf(state));
+                hasNew |= state.getId() == null;
+            }
+        }
+        if (!toWrite.isEmpty()) {
+            try {
+                upsertStates(toWrite, batchSize, hasNew);
+                statesWritten.addAndGet(toWrite.size());
+            } catch (Exception e) {
+                dirty.addAll(keys);
+                flushFailures.incrementAndGet();
+                log.warn("⚠️ Не удалось записать {} состояний рисков, повтор на следующем такте: {}", toWrite.size(), e.getMessage());
+            }
+        }
+
+        // 3. События рисков
+        List<RiskEvent> events = new ArrayList<>();
+        RiskEvent event;
+        while ((event = pendingEvents.poll()) != null) {
+            pendingEventCount.decrementAndGet();
+            events.add(event);
+        }
+        if (!events.isEmpty()) {
+            try {
+                jdbcTemplate.batchUpdate(INSERT_EVENT_SQL, events, batchSize, (ps, e) -> {
+                    ps.setString(1, e.getAccountId());
+                    ps.setString(2, e.getFigi());
+                    ps.setString(3, e.getEventType().name());
+                    ps.setString(4, e.getSide());
+                    ps.setBigDecimal(5, e.getOldValue());
+                    ps.setBigDecimal(6, e.getNewValue());
+                    ps.setBigDecimal(7, e.getCurrentPrice());
+                    ps.setBigDecimal(8, e.getWatermark());
+                    ps.setString(9, e.getReason());
+                    ps.setString(10, e.getDetails());
+                    ps.setTimestamp(11, Timestamp.valueOf(e.getCreatedAt()));
+                });
+                eventsWritten.addAndGet(events.size());
+            } catch (Exception e) {
+                for (RiskEvent failed : events) {
+                    enqueueEvent(failed);
+                }
+                flushFailures.incrementAndGet();
+                log.warn("⚠️ Не удалось записать {} событий рисков, повтор на следующем такте: {}", events.size(), e.getMessage());
+            }
+        }
+
+        lastFlushMs = System.currentTimeMillis();
+        lastFlushDurationMs = lastFlushMs - start;
+        log.debug("Запись рисков: {} состояний, {} удалений, {} событий за {} мс",
+                toWrite.size(), toDelete.size(), events.size(), lastFlushDurationMs);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.warn("Финальная запись состояния рисков не удалась: {}", e.getMessage());
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("positions", states.size());
+        stats.put("dirty", dirty.size());
+        stats.put("pendingDeletes", closed.size());
+        stats.put("pendingEvents", pendingEventCount.get());
+        stats.put("updates", updates.get());
+        stats.put("flushes", flushes.get());
+        stats.put("statesWritten", statesWritten.get());
+        stats.put("statesDeleted", statesDeleted.get());
+        stats.put("eventsWritten", eventsWritten.get());
+        stats.put("eventsDropped", eventsDropped.get());
+        stats.put("flushFailures", flushFailures.get());
+        stats.put("lastFlushMs", lastFlushMs);
+        stats.put("lastFlushDurationMs", lastFlushDurationMs);
+        return stats;
     }
 
     private void logRiskEvent(String accountId, String figi, String side, BigDecimal oldValue,
@@ -276,12 +518,141 @@ public class PositionRiskStateService {
                     .createdAt(LocalDateTime.now())
                     .build();
 
-            riskEventRepository.save(event);
+            enqueueEvent(event);
         } catch (Exception e) {
             log.error("Ошибка при логировании события риска: {}", e.getMessage(), e);
         }
     }
 
+    private void enqueueEvent(RiskEvent event) {
+        int maxPending = settingsService.getInt("risk.events.max_pending", 10000);
+        // Очередь ограничена: при долгой недоступности БД вытесняются самые старые события
+        while (pendingEventCount.get() >= maxPending && pendingEvents.poll() != null) {
+            pendingEventCount.decrementAndGet();
+            eventsDropped.incrementAndGet();
+        }
+        pendingEvents.add(event);
+        pendingEventCount.incrementAndGet();
+    }
+
+    private void markDirty(String key, PositionRiskState state) {
+        state.setUpdatedAt(LocalDateTime.now());
+        updates.incrementAndGet();
+        dirty.add(key);
+    }
+
+    /**
+     * Пакетный upsert состояний. Если среди них есть новые, id берутся из RETURNING id того же пакета,
+     * без перечитывания таблицы
+     */
+    private void upsertStates(List<PositionRiskState> rows, int batchSize, boolean assignIds) {
+        if (!assignIds) {
+            jdbcTemplate.batchUpdate(UPSERT_STATE_SQL, rows, batchSize, PositionRiskStateService::bindState);
+            return;
+        }
+        jdbcTemplate.execute((ConnectionCallback<Void>) con -> {
+            try (PreparedStatement ps = con.prepareStatement(UPSERT_STATE_SQL, new String[] {"id"})) {
+                for (int from = 0; from < rows.size(); from += batchSize) {
+                    List<PositionRiskState> chunk = rows.subList(from, Math.min(rows.size(), from + batchSize));
+                    for (PositionRiskState row : chunk) {
+                        bindState(ps, row);
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    try (ResultSet ids = ps.getGeneratedKeys()) {
+                        for (int i = 0; i < chunk.size() && ids.next(); i++) {
+                            assignId(chunk.get(i), ids.getLong(1));
+                        }
+                    }
+                }
+            }
+            return null;
+        });
+    }
+
+    private static void bindState(PreparedStatement ps, PositionRiskState s) throws SQLException {
+        ps.setString(1, s.getAccountId());
+        ps.setString(2, s.getFigi());
+        ps.setString(3, s.getSide().name());
+        ps.setBigDecimal(4, s.getStopLossPct());
+        ps.setBigDecimal(5, s.getTakeProfitPct());
+        ps.setBigDecimal(6, s.getTrailingPct());
+        ps.setBigDecimal(7, s.getStopLossLevel());
+        ps.setBigDecimal(8, s.getTakeProfitLevel());
+        ps.setBigDecimal(9, s.getHighWatermark());
+        ps.setBigDecimal(10, s.getLowWatermark());
+        ps.setBigDecimal(11, s.getEntryPrice());
+        ps.setBigDecimal(12, s.getAveragePriceSnapshot());
+        ps.setBigDecimal(13, s.getQuantitySnapshot());
+        ps.setString(14, s.getTrailingType() != null ? s.getTrailingType().name() : null);
+        ps.setBigDecimal(15, s.getMinStepTicks());
+        ps.setTimestamp(16, s.getUpdatedAt() != null ? Timestamp.valueOf(s.getUpdatedAt()) : null);
+        ps.setString(17, s.getSource());
+    }
+
+    /**
+     * Проставляет id живому состоянию по записанной копии
+     */
+    private void assignId(PositionRiskState written, long id) {
+        PositionRiskState state = states.get(key(written.getAccountId(), written.getFigi(), written.getSide()));
+        if (state != null) {
+            synchronized (state) {
+                if (state.getId() == null) {
+                    state.setId(id);
+                }
+            }
+        }
+    }
+
+    private List<PositionRiskState> snapshot(Predicate<PositionRiskState> filter) {
+        List<PositionRiskState> result = new ArrayList<>();
+        for (PositionRiskState state : states.values()) {
+            synchronized (state) {
+                if (filter.test(state)) {
+                    result.add(copyOf(state));
+                }
+            }
+        }
+        result.sort(Comparator.comparing(PositionRiskState::getFigi).thenComparing(PositionRiskState::getSide));
+        return result;
+    }
+
+    private static String key(String accountId, String figi, PositionRiskState.PositionSide side) {
+        return accountId + "|" + figi + "|" + side;
+    }
+
+    /**
+     * Поля, которые пишутся в БД (кроме updated_at): по ним определяется, изменилось ли состояние
+     */
+    private static List<Object> persistedFields(PositionRiskState s) {
+        return Arrays.asList(s.getStopLossPct(), s.getTakeProfitPct(), s.getTrailingPct(), s.getStopLossLevel(),
+                s.getTakeProfitLevel(), s.getHighWatermark(), s.getLowWatermark(), s.getEntryPrice(),
+                s.getAveragePriceSnapshot(), s.getQuantitySnapshot(), s.getTrailingType(), s.getMinStepTicks(), s.getSource());
+    }
+
+    private static PositionRiskState copyOf(PositionRiskState s) {
+        return PositionRiskState.builder()
+                .id(s.getId())
+                .accountId(s.getAccountId())
+                .figi(s.getFigi())
+                .side(s.getSide())
+                .stopLossPct(s.getStopLossPct())
+                .takeProfitPct(s.getTakeProfitPct())
+                .trailingPct(s.getTrailingPct())
+                .stopLossLevel(s.getStopLossLevel())
+                .takeProfitLevel(s.getTakeProfitLevel())
+                .highWatermark(s.getHighWatermark())
+                .lowWatermark(s.getLowWatermark())
+                .entryPrice(s.getEntryPrice())
+                .averagePriceSnapshot(s.getAveragePriceSnapshot())
+                .quantitySnapshot(s.getQuantitySnapshot())
+                .trailingType(s.getTrailingType())
+                .minStepTicks(s.getMinStepTicks())
+                .updatedAt(s.getUpdatedAt())
+                .source(s.getSource())
+                .build();
+    }
+
     private RiskEvent.EventType determineEventType(BigDecimal oldValue, BigDecimal newValue, String reason) {
         if (reason.contains("SL")) return RiskEvent.EventType.SL_UPDATED;
         if (reason.contains("TP")) return RiskEvent.EventType.TP_UPDATED;
@@ -2,57 +2,218 @@ package ru.perminov.service;
 
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.repository.PositionRepository;
 import ru.perminov.model.Position;
 
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Синхронизация таблицы positions со снимком портфеля брокера.
+ * Строки аккаунта читаются одним запросом и сравниваются со снимком по паре (аккаунт, FIGI);
+ * в БД пакетным upsert (INSERT ... ON CONFLICT) уходят только новые и изменившиеся позиции,
+ * закрытые позиции удаляются пакетом. Если версия снимка портфеля с прошлого прохода не менялась
+ * или в снимке нет списка позиций, аккаунт пропускается без обращения к БД.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
 public class PositionSyncService {
 
+    // Масштаб колонок NUMERIC(20,4): сравниваем в нём, иначе лишние знаки брокера дают вечный diff
+    private static final int DB_SCALE = 4;
+
+    private static final String UPSERT_SQL =
+        "INSERT INTO positions (account_id, figi, instrument_type, lots, average_position_price) " +
+        "VALUES (?, ?, ?, ?, ?) " +
+        "ON CONFLICT (account_id, figi) DO UPDATE SET instrument_type = EXCLUDED.instrument_type, " +
+        "lots = EXCLUDED.lots, average_position_price = EXCLUDED.average_position_price";
+
+    private static final String DELETE_SQL = "DELETE FROM positions WHERE id = ?";
+
     private final AccountService accountService;
-    private final PortfolioService portfolioService;
+    private final PortfolioStateService portfolioStateService;
     private final PositionRepository positionRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TradingSettingsService settingsService;
 
+    // Версия снимка портфеля, с которой аккаунт последний раз успешно синхронизирован
+    private final Map<String, Long> syncedVersions = new ConcurrentHashMap<>();
+
+    private volatile SyncReport lastReport;
+    private volatile long runs = 0;
+    private volatile long failures = 0;
+
+    @SchedulerLane(SchedulerLane.Lane.HOUSEKEEPING)
     @Scheduled(fixedRate = 60_000)
     public void syncPositions() {
         try {
-            List<String> accountIds = accountService.getAccounts().stream().map(a -> a.getId()).toList();
-            for (String accountId : accountIds) {
-                var portfolio = portfolioService.getPortfolio(accountId);
-                if (portfolio.getPositions() == null) continue;
-                for (ru.tinkoff.piapi.core.models.Position p : portfolio.getPositions()) {
-                    if (p.getFigi() == null || p.getFigi().isEmpty()) continue;
-                    if (p.getQuantity() == null || p.getQuantity().compareTo(BigDecimal.ZERO) == 0) continue;
-                    Position entity = positionRepository.findByFigi(p.getFigi()).orElseGet(Position::new);
-                    entity.setFigi(p.getFigi());
-                    entity.setTicker(null);
-                    entity.setIsin(null);
-                    entity.setInstrumentType(p.getInstrumentType());
-                    entity.setBalance(null);
-                    entity.setBlocked(null);
-                    entity.setLots(p.getQuantity());
-                    entity.setAveragePositionPrice(extractDecimal(p.getAveragePositionPrice()));
-                    entity.setAveragePositionPriceNoNkd(null);
-                    entity.setName(null);
-                    entity.setCurrency(null);
-                    entity.setCurrentPrice(null);
-                    entity.setAveragePositionPriceFifo(null);
-                    entity.setQuantityLots(null);
-                    positionRepository.save(entity);
-                }
-                log.info("Синхронизация позиций завершена (accountId={})", accountId);
+            SyncReport report = sync();
+            if (report.getAdded() + report.getChanged() + report.getRemoved() > 0) {
+                log.info("Синхронизация позиций: добавлено {}, изменено {}, удалено {}, без изменений {}, аккаунтов пропущено {} за {} мс",
+                    report.getAdded(), report.getChanged(), report.getRemoved(), report.getUnchanged(),
+                    report.getSkippedAccounts(), report.getDurationMs());
+            } else {
+                log.debug("Синхронизация позиций: изменений нет ({} позиций, {} мс)",
+                    report.getUnchanged(), report.getDurationMs());
             }
         } catch (Exception e) {
+            failures++;
             log.warn("Ошибка синхронизации позиций: {}", e.getMessage());
         }
     }
 
+    /**
+     * Проход по всем аккаунтам; проходы сериализованы
+     */
+    synchronized SyncReport sync() {
+        long start = System.currentTimeMillis();
+        runs++;
+        int batchSize = Math.max(1, settingsService.getInt("positions.sync.batch_size", 500));
+        int accounts = 0;
+        int skipped = 0;
+        int added = 0;
+        int changed = 0;
+        int unchanged = 0;
+        int removed = 0;
+
+        List<String> accountIds = accountService.getAccounts().stream().map(a -> a.getId()).toList();
+        for (String accountId : accountIds) {
+            accounts++;
+            PortfolioStateService.Snapshot snapshot = portfolioStateService.getSnapshot(accountId);
+            if (Objects.equals(syncedVersions.get(accountId), snapshot.getVersion())) {
+                skipped++;
+                continue;
+            }
+            if (snapshot.getPositions() == null) {
+                // Без списка позиций снимок неполный: сравнение с ним удалило бы все строки аккаунта
+                log.warn("Снимок портфеля {} без списка позиций — аккаунт пропущен", accountId);
+                skipped++;
+                continue;
+            }
+
+            Map<String, Position> stored = new HashMap<>();
+            for (Position row : positionRepository.findByAccountId(accountId)) {
+                stored.put(row.getFigi(), row);
+            }
+
+            Map<String, Position> fetched = new LinkedHashMap<>();
+            for (ru.tinkoff.piapi.core.models.Position p : snapshot.getPositions()) {
+                if (p.getFigi() == null || p.getFigi().isEmpty()) continue;
+                if (p.getQuantity() == null || p.getQuantity().compareTo(BigDecimal.ZERO) == 0) continue;
+                Position row = new Position();
+                row.setAccountId(accountId);
+                row.setFigi(p.getFigi());
+                row.setInstrumentType(p.getInstrumentType());
+                row.setLots(toDbScale(p.getQuantity()));
+                row.setAveragePositionPrice(toDbScale(extractDecimal(p.getAveragePositionPrice())));
+                fetched.put(row.getFigi(), row);
+            }
+
+            List<Position> dirty = new ArrayList<>();
+            for (Position row : fetched.values()) {
+                Position existing = stored.get(row.getFigi());
+                if (existing == null) {
+                    added++;
+                    dirty.add(row);
+                } else if (!sameSyncedFields(existing, row)) {
+                    changed++;
+                    dirty.add(row);
+                } else {
+                    unchanged++;
+                }
+            }
+
+            List<Long> closedIds = new ArrayList<>();
+            for (Position row : stored.values()) {
+                if (!fetched.containsKey(row.getFigi())) {
+                    closedIds.add(row.getId());
+                }
+            }
+            removed += closedIds.size();
+
+            upsert(dirty, batchSize);
+            delete(closedIds, batchSize);
+            syncedVersions.put(accountId, snapshot.getVersion());
+        }
+
+        SyncReport report = new SyncReport(accounts, skipped, added, changed, removed, unchanged,
+            System.currentTimeMillis() - start, System.currentTimeMillis());
+        lastReport = report;
+        return report;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("runs", runs);
+        stats.put("failures", failures);
+        SyncReport report = lastReport;
+        if (report != null) {
+            stats.put("lastAccounts", report.getAccounts());
+            stats.put("lastSkippedAccounts", report.getSkippedAccounts());
+            stats.put("lastAdded", report.getAdded());
+            stats.put("lastChanged", report.getChanged());
+            stats.put("lastRemoved", report.getRemoved());
+            stats.put("lastUnchanged", report.getUnchanged());
+            stats.put("lastDurationMs", report.getDurationMs());
+            stats.put("lastFinishedAtMs", report.getFinishedAtMs());
+        }
+        return stats;
+    }
+
+    private void upsert(List<Position> rows, int batchSize) {
+        if (rows.isEmpty()) return;
+        jdbcTemplate.batchUpdate(UPSERT_SQL, rows, batchSize, (ps, p) -> {
+            ps.setString(1, p.getAccountId());
+            ps.setString(2, p.getFigi());
+            ps.setString(3, p.getInstrumentType());
+            setDecimal(ps, 4, p.getLots());
+            setDecimal(ps, 5, p.getAveragePositionPrice());
+        });
+    }
+
+    private void delete(List<Long> ids, int batchSize) {
+        if (ids.isEmpty()) return;
+        jdbcTemplate.batchUpdate(DELETE_SQL, ids, batchSize, (ps, id) -> ps.setLong(1, id));
+    }
+
+    private static void setDecimal(PreparedStatement ps, int index, BigDecimal value) throws SQLException {
+        if (value != null) {
+            ps.setBigDecimal(index, value);
+        } else {
+            ps.setNull(index, Types.NUMERIC);
+        }
+    }
+
+    private static boolean sameSyncedFields(Position stored, Position fetched) {
+        return Objects.equals(stored.getInstrumentType(), fetched.getInstrumentType())
+            && sameDecimal(stored.getLots(), fetched.getLots())
+            && sameDecimal(stored.getAveragePositionPrice(), fetched.getAveragePositionPrice());
+    }
+
+    private static boolean sameDecimal(BigDecimal a, BigDecimal b) {
+        if (a == null || b == null) return a == b;
+        return a.compareTo(b) == 0;
+    }
+
+    private static BigDecimal toDbScale(BigDecimal value) {
+        return value != null ? value.setScale(DB_SCALE, RoundingMode.HALF_UP) : null;
+    }
+
     private BigDecimal extractDecimal(Object moneyLike) {
         try {
             if (moneyLike == null) return null;
@@ -71,6 +232,39 @@ public class PositionSyncService {
             return null;
         }
     }
-}
 
+    /**
+     * Итог прохода синхронизации позиций
+     */
+    public static class SyncReport {
+        private final int accounts;
+        private final int skippedAccounts;
+        private final int added;
+        private final int changed;
+        private final int removed;
+        private final int unchanged;
+        private final long durationMs;
+        private final long finishedAtMs;
+
+        SyncReport(int accounts, int skippedAccounts, int added, int changed, int removed, int unchanged,
+                   long durationMs, long finishedAtMs) {
+            this.accounts = accounts;
+            this.skippedAccounts = skippedAccounts;
+            this.added = added;
+            this.changed = changed;
+            this.removed = removed;
+            this.unchanged = unchanged;
+            this.durationMs = durationMs;
+            this.finishedAtMs = finishedAtMs;
+        }
 
+        public int getAccounts() { return accounts; }
+        public int getSkippedAccounts() { return skippedAccounts; }
+        public int getAdded() { return added; }
+        public int getChanged() { return changed; }
+        public int getRemoved() { return removed; }
+        public int getUnchanged() { return unchanged; }
+        public long getDurationMs() { return durationMs; }
+        public long getFinishedAtMs() { return finishedAtMs; }
+    }
+}
@@ -7,6 +7,7 @@ import org.springframework.stereotype.Service;
 import ru.tinkoff.piapi.core.models.Portfolio;
 import ru.tinkoff.piapi.core.models.Position;
 import ru.tinkoff.piapi.core.models.Money;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.model.RiskRule;
 import ru.perminov.model.PositionRiskState;
 
@@ -32,6 +33,7 @@ public class PositionWatcherService {
     private final HardOcoMonitorService hardOcoMonitorService;
 
     // Периодический контроль позиций: SL/TP/трейлинг
+    @SchedulerLane(SchedulerLane.Lane.RISK_CRITICAL)
     @Scheduled(fixedRate = 15000) // каждые 15 секунд
     public void watchPositions() {
         try {
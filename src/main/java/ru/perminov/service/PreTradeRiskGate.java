@@ -0,0 +1,543 @@
+package ru.perminov.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.perminov.model.Order;
+import ru.tinkoff.piapi.contract.v1.GetMarginAttributesResponse;
+import ru.tinkoff.piapi.core.models.Position;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Пре-трейд риск-гейт: одно решение «разрешить/запретить» с причинами перед отправкой ордера.
+ * Все лимиты аккаунта (кэш, покупательная способность, маржинальные атрибуты, доли классов активов,
+ * экспозиции и число позиций по секторам, адаптивные лимиты диверсификации) считаются один раз
+ * на версию снимка портфеля ({@link PortfolioStateService}) и держатся в памяти; проверка — арифметика
+ * над готовыми картами без обращений к БД и API. Исполнение ордера сбрасывает лимиты аккаунта и снимок
+ * портфеля. Размещённые покупки резервируются по аккаунту независимо от лимитов и держатся, пока ордер
+ * не исполнится или не перейдёт в конечный статус ({@link #apply}); резерв без такого обновления
+ * снимается через pretrade.reservation.max_age_ms. Ошибка получения лимитов при допуске инструмента
+ * не блокирует торговлю: проверяется только то, что известно без лимитов.
+ * Пересчёт лимитов сериализуется по аккаунту через ReentrantLock: он обращается к API маржи и не должен
+ * закреплять виртуальные потоки за несущими. Здесь же живут блокировки инструментов по ликвидности.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class PreTradeRiskGate {
+
+    // Максимальная доля одного инструмента при маржинальной покупке
+    private static final BigDecimal MAX_MARGIN_POSITION_SHARE = new BigDecimal("0.05");
+
+    private final PortfolioStateService portfolioStateService;
+    private final MarginService marginService;
+    private final AdaptiveDiversificationService adaptiveDiversificationService;
+    private final SectorManagementService sectorManagementService;
+    private final TradingCooldownService tradingCooldownService;
+    private final PositionHoldTimeService positionHoldTimeService;
+    private final TradingSettingsService settingsService;
+
+    private final Map<String, Limits> limitsByAccount = new ConcurrentHashMap<>();
+    private final Map<String, Reservations> reservationsByAccount = new ConcurrentHashMap<>();
+    private final Map<String, ReentrantLock> rebuildLocks = new ConcurrentHashMap<>();
+    private final Map<String, Long> liquidityBlockUntil = new ConcurrentHashMap<>();
+
+    private final AtomicLong checks = new AtomicLong();
+    private final AtomicLong denials = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+    private final AtomicLong fillInvalidations = new AtomicLong();
+    private final AtomicLong checkNanosTotal = new AtomicLong();
+    private final AtomicLong checkNanosMax = new AtomicLong();
+
+    /**
+     * Актуальные лимиты аккаунта: пересчитываются только при смене версии снимка портфеля
+     * или по истечении pretrade.limits.max_age_ms (маржинальные атрибуты меняются вместе с ценами)
+     */
+    public Limits getLimits(String accountId) {
+        PortfolioStateService.Snapshot snapshot = portfolioStateService.getSnapshot(accountId);
+        Limits current = limitsByAccount.get(accountId);
+        if (current != null && isFresh(current, snapshot)) {
+            return current;
+        }
+        return rebuild(accountId, snapshot);
+    }
+
+    /**
+     * Допуск инструмента к торговле: блокировка по ликвидности и разрешение класса актива для уровня портфеля
+     */
+    public Decision checkInstrument(String accountId, String figi, String instrumentType) {
+        long start = System.nanoTime();
+        List<String> reasons = new ArrayList<>(1);
+        if (isLiquidityBlocked(figi)) {
+            reasons.add(String.format("Блокировка по ликвидности, осталось ~%d мин", getLiquidityBlockRemainingMinutes(figi)));
+        }
+        Limits limits;
+        try {
+            limits = getLimits(accountId);
+        } catch (Exception e) {
+            // Как и раньше: временная ошибка лимитов не запрещает инструмент, ордер пройдёт checkBuy
+            log.warn("Лимиты {} недоступны при допуске {}: {}", accountId, figi, e.getMessage());
+            return finish(reasons, start);
+        }
+        boolean smallPortfolio = limits.level == AdaptiveDiversificationService.PortfolioLevel.SMALL;
+        if ("etf".equalsIgnoreCase(instrumentType) && smallPortfolio
+                && !settingsService.getBoolean("allow.etf.trading.override", false)) {
+            reasons.add(String.format("ETF отключены для уровня %s (баланс %s)", limits.level, limits.totalValue));
+        }
+        if ("bond".equalsIgnoreCase(instrumentType) && smallPortfolio
+                && !settingsService.getBoolean("allow.bond.trading.override", false)) {
+            reasons.add(String.format("Облигации отключены для уровня %s (баланс %s)", limits.level, limits.totalValue));
+        }
+        return finish(reasons, start);
+    }
+
+    /**
+     * Cooldown по инструменту для действия BUY/SELL (по индексу исполнений)
+     */
+    public Decision checkCooldown(String accountId, String figi, String action) {
+        long start = System.nanoTime();
+        TradingCooldownService.CooldownResult cooldown = tradingCooldownService.canTrade(figi, action, accountId);
+        return finish(cooldown.isBlocked() ? List.of(cooldown.getReason()) : List.of(), start);
+    }
+
+    /**
+     * Закрытие позиции: минимальное время удержания
+     */
+    public Decision checkClose(String accountId, String figi) {
+        long start = System.nanoTime();
+        PositionHoldTimeService.HoldTimeResult holdTime = positionHoldTimeService.canClosePosition(figi, accountId);
+        return finish(holdTime.isBlocked() ? List.of(holdTime.getReason()) : List.of(), start);
+    }
+
+    /**
+     * Покупка на сумму amount: средства и покупательная способность, маржинальные лимиты,
+     * адаптивные лимиты класса активов и сектора. Возвращает все нарушения сразу.
+     */
+    public Decision checkBuy(String accountId, String figi, String instrumentType, BigDecimal price, BigDecimal amount) {
+        long start = System.nanoTime();
+        Limits limits = getLimits(accountId);
+        List<String> reasons = new ArrayList<>();
+        Reservations reserved = limits.reservations;
+        BigDecimal reservedTotal = reserved.total();
+
+        boolean allowNegativeCash = settingsService.getBoolean("margin-trading.allow-negative-cash", false);
+        BigDecimal cash = limits.cash.subtract(reservedTotal);
+        BigDecimal buyingPower = limits.buyingPower.subtract(reservedTotal).max(BigDecimal.ZERO);
+        boolean marginBuy = allowNegativeCash && cash.compareTo(BigDecimal.ZERO) < 0;
+
+        if (cash.compareTo(BigDecimal.ZERO) < 0 && !allowNegativeCash) {
+            reasons.add(String.format("Отрицательные средства: %.2f (маржинальная торговля отключена)", cash));
+        }
+        if (buyingPower.compareTo(BigDecimal.ZERO) <= 0) {
+            reasons.add("Нет свободных средств: покупательная способность " + buyingPower);
+        }
+
+        if (marginBuy) {
+            double minBuyingPowerRatio = settingsService.getDouble("margin-trading.min-buying-power-ratio", 0.1);
+            BigDecimal minRequired = price.multiply(BigDecimal.valueOf(minBuyingPowerRatio));
+            if (buyingPower.compareTo(minRequired) < 0) {
+                reasons.add(String.format("Недостаточная покупательная способность для маржинальной операции: требуется %.2f, доступно %.2f",
+                    minRequired, buyingPower));
+            }
+            if (limits.marginAttributes) {
+                BigDecimal liquidAfter = limits.liquid.subtract(reservedTotal).subtract(amount);
+                if (liquidAfter.compareTo(limits.minimalMargin) < 0) {
+                    reasons.add(String.format("Превышение минимального уровня маржи: liquid после сделки %.2f < %.2f",
+                        liquidAfter, limits.minimalMargin));
+                }
+                if (limits.missingFunds.compareTo(BigDecimal.ZERO) < 0 && amount.signum() > 0) {
+                    reasons.add(String.format("Сделка увеличит недостаток средств: %.2f -> %.2f",
+                        limits.missingFunds, limits.missingFunds.subtract(amount)));
+                }
+                if (liquidAfter.compareTo(limits.maxUtilization) < 0) {
+                    reasons.add(String.format("Превышение максимального использования маржи: максимум %.2f, после сделки %.2f",
+                        limits.maxUtilization, liquidAfter));
+                }
+                BigDecimal newPositionValue = limits.positionValue(figi).add(reserved.byFigi(figi)).add(amount);
+                BigDecimal maxPositionValue = limits.totalValue.multiply(MAX_MARGIN_POSITION_SHARE);
+                if (newPositionValue.compareTo(maxPositionValue) > 0) {
+                    reasons.add(String.format("Превышение максимальной доли на инструмент: новая %.2f, максимум %.2f",
+                        newPositionValue, maxPositionValue));
+                }
+                int positions = limits.positionsCount + reserved.newFigis(limits);
+                if (positions >= limits.diversification.getMaxTotalPositions()) {
+                    reasons.add(String.format("Превышение адаптивного лимита позиций: %d, максимум %d (%s)",
+                        positions, limits.diversification.getMaxTotalPositions(), limits.diversification.getReason()));
+                }
+            }
+        }
+
+        BigDecimal availableForTrade = marginBuy ? buyingPower : cash;
+        if (availableForTrade.compareTo(amount) < 0) {
+            reasons.add(String.format("Недостаточно реальных средств: нужно %.2f, доступно %.2f (покупательная способность %.2f)",
+                amount, availableForTrade, buyingPower));
+        }
+
+        if (limits.totalValue.compareTo(BigDecimal.ZERO) > 0) {
+            String type = instrumentType != null ? instrumentType.toLowerCase() : "share";
+            BigDecimal classLimit = adaptiveDiversificationService.getMaxAssetClassPercentage(limits.totalValue, type);
+            BigDecimal newClassValue = limits.classValues.getOrDefault(type, BigDecimal.ZERO)
+                .add(reserved.byClass(type)).add(amount);
+            BigDecimal newClassShare = newClassValue.divide(limits.totalValue, 4, RoundingMode.HALF_UP);
+            if (newClassShare.compareTo(classLimit) > 0) {
+                reasons.add(String.format("Покупка превысит адаптивный лимит класса %s %.2f%%: новая доля %.2f%% (%s)",
+                    type, classLimit.multiply(BigDecimal.valueOf(100)), newClassShare.multiply(BigDecimal.valueOf(100)), limits.level));
+            }
+
+            if (limits.diversification.isDiversificationEnabled()) {
+                String sector = sectorManagementService.getSectorForInstrument(figi);
+                BigDecimal newSectorValue = limits.sectorValues.getOrDefault(sector, BigDecimal.ZERO)
+                    .add(reserved.bySector(sector)).add(amount);
+                BigDecimal newSectorShare = newSectorValue.divide(limits.totalValue, 4, RoundingMode.HALF_UP);
+                if (newSectorShare.compareTo(limits.diversification.getMaxSectorExposurePct()) > 0) {
+                    reasons.add(String.format("Превышение адаптивного лимита сектора %s: %.2f%% > %.2f%%",
+                        sectorManagementService.getSectorName(sector), newSectorShare.multiply(BigDecimal.valueOf(100)),
+                        limits.diversification.getMaxSectorExposurePct().multiply(BigDecimal.valueOf(100))));
+                }
+                int newSectorPositions = limits.sectorCounts.getOrDefault(sector, 0) + 1;
+                if (newSectorPositions > limits.diversification.getMaxPositionsPerSector()) {
+                    reasons.add(String.format("Превышение адаптивного лимита позиций в секторе %s: %d > %d",
+                        sectorManagementService.getSectorName(sector), newSectorPositions,
+                        limits.diversification.getMaxPositionsPerSector()));
+                }
+            }
+        }
+        return finish(reasons, start);
+    }
+
+    /**
+     * Резерв под размещённую покупку: учитывается в проверках, пока ордер orderId жив.
+     * Ордер, уже исполненный или отклонённый в ответе на размещение, не резервируется
+     */
+    public void reserve(String accountId, String orderId, String status, String figi, String instrumentType, BigDecimal amount) {
+        if (accountId == null || amount == null || amount.signum() <= 0) return;
+        if (status != null && (TradeHistoryIndex.isFill(status) || status.contains("REJECT") || status.contains("CANCEL"))) return;
+        String type = instrumentType != null ? instrumentType.toLowerCase() : "share";
+        reservationsFor(accountId).add(orderId, figi, type, sectorManagementService.getSectorForInstrument(figi), amount);
+    }
+
+    /**
+     * Сохранённое состояние ордера: исполнение или конечный статус снимают его резерв;
+     * исполнение сбрасывает лимиты аккаунта и снимок портфеля — они пересчитываются при следующей проверке
+     */
+    public void apply(Order order) {
+        if (order == null || order.getAccountId() == null) {
+            return;
+        }
+        boolean fill = TradeHistoryIndex.isFill(order.getStatus());
+        if (fill || !OrderRegistry.isLive(order.getStatus())) {
+            Reservations reservations = reservationsByAccount.get(order.getAccountId());
+            if (reservations != null) {
+                reservations.release(order.getOrderId());
+            }
+        }
+        if (!fill) {
+            return;
+        }
+        if (limitsByAccount.remove(order.getAccountId()) != null) {
+            fillInvalidations.incrementAndGet();
+        }
+        portfolioStateService.invalidate(order.getAccountId());
+    }
+
+    public boolean isLiquidityBlocked(String figi) {
+        Long until = liquidityBlockUntil.get(figi);
+        if (until == null) return false;
+        if (System.currentTimeMillis() <= until) return true;
+        // Срок истёк — очищаем запись
+        liquidityBlockUntil.remove(figi, until);
+        return false;
+    }
+
+    public long getLiquidityBlockRemainingMinutes(String figi) {
+        Long until = liquidityBlockUntil.get(figi);
+        if (until == null) return 0;
+        long diff = until - System.currentTimeMillis();
+        if (diff <= 0) return 0;
+        return Duration.ofMillis(diff).toMinutes();
+    }
+
+    public void blockLiquidity(String figi, long untilMs) {
+        liquidityBlockUntil.put(figi, untilMs);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long total = checks.get();
+        stats.put("checks", total);
+        stats.put("denials", denials.get());
+        stats.put("rebuilds", rebuilds.get());
+        stats.put("fillInvalidations", fillInvalidations.get());
+        stats.put("avgCheckMicros", total > 0 ? checkNanosTotal.get() / total / 1000.0 : 0.0);
+        stats.put("maxCheckMicros", checkNanosMax.get() / 1000.0);
+        stats.put("liquidityBlocks", liquidityBlockUntil.size());
+        Map<String, Object> accounts = new LinkedHashMap<>();
+        limitsByAccount.forEach((accountId, l) -> {
+            Map<String, Object> a = new LinkedHashMap<>();
+            a.put("snapshotVersion", l.snapshotVersion);
+            a.put("ageMs", System.currentTimeMillis() - l.builtAtMs);
+            a.put("level", l.level.name());
+            a.put("cash", l.cash);
+            a.put("buyingPower", l.buyingPower);
+            a.put("reserved", l.reservations.total());
+            a.put("reservations", l.reservations.size());
+            a.put("positions", l.positionsCount);
+            accounts.put(accountId, a);
+        });
+        stats.put("accounts", accounts);
+        return stats;
+    }
+
+    private boolean isFresh(Limits limits, PortfolioStateService.Snapshot snapshot) {
+        long maxAgeMs = settingsService.getInt("pretrade.limits.max_age_ms", 30000);
+        return limits.snapshotVersion == snapshot.getVersion()
+            && System.currentTimeMillis() - limits.builtAtMs <= maxAgeMs;
+    }
+
+    private Reservations reservationsFor(String accountId) {
+        return reservationsByAccount.computeIfAbsent(accountId, id -> new Reservations());
+    }
+
+    private Limits rebuild(String accountId, PortfolioStateService.Snapshot snapshot) {
+        ReentrantLock lock = rebuildLocks.computeIfAbsent(accountId, id -> new ReentrantLock());
+        lock.lock();
+        try {
+            Limits current = limitsByAccount.get(accountId);
+            if (current != null && isFresh(current, snapshot)) {
+                return current;
+            }
+            return build(accountId, snapshot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Limits build(String accountId, PortfolioStateService.Snapshot snapshot) {
+        rebuilds.incrementAndGet();
+        BigDecimal total = snapshot.getTotalValue();
+        List<Position> positions = snapshot.getPositions() != null ? snapshot.getPositions() : List.of();
+        PortfolioManagementService.PortfolioAnalysis analysis = new PortfolioManagementService.PortfolioAnalysis(
+            total, snapshot.getTypeValues(), snapshot.getTypePercentages(), snapshot.getPositionValues(), positions);
+
+        BigDecimal cash = BigDecimal.ZERO;
+        boolean cashFound = false;
+        Map<String, BigDecimal> sectorValues = new HashMap<>();
+        Map<String, Integer> sectorCounts = new HashMap<>();
+        for (Position position : positions) {
+            String figi = position.getFigi();
+            if ("currency".equals(position.getInstrumentType()) || "RUB000UTSTOM".equals(figi)) {
+                // Первая валютная позиция (даже нулевая) — свободные средства; в сектора валюта не входит
+                if (!cashFound && position.getQuantity() != null) {
+                    cash = position.getQuantity();
+                    cashFound = true;
+                }
+                continue;
+            }
+            if (figi == null || figi.isEmpty() || position.getCurrentPrice() == null || position.getQuantity() == null) {
+                continue;
+            }
+            String sector = sectorManagementService.getSectorForInstrument(figi);
+            sectorValues.merge(sector, snapshot.getPositionValues().getOrDefault(figi, BigDecimal.ZERO), BigDecimal::add);
+            sectorCounts.merge(sector, 1, Integer::sum);
+        }
+
+        // Обращения к API маржи — один раз на пересчёт, а не на каждую проверку
+        BigDecimal buyingPower = marginService.getAvailableBuyingPower(accountId, analysis);
+        GetMarginAttributesResponse attrs = marginService.isMarginEnabled()
+            ? marginService.getAccountMarginAttributes(accountId) : null;
+
+        // Резерв без обновления статуса ордера (потерянное событие) не держим вечно
+        Reservations reservations = reservationsFor(accountId);
+        reservations.expireOlderThan(System.currentTimeMillis() - settingsService.getInt("pretrade.reservation.max_age_ms", 600000));
+        Limits limits = new Limits(snapshot.getVersion(), total, cash, buyingPower,
+            attrs != null,
+            attrs != null ? marginService.toBigDecimal(attrs.getLiquidPortfolio()) : BigDecimal.ZERO,
+            attrs != null ? marginService.toBigDecimal(attrs.getMinimalMargin()) : BigDecimal.ZERO,
+            attrs != null ? marginService.toBigDecimal(attrs.getAmountOfMissingFunds()) : BigDecimal.ZERO,
+            total.multiply(marginService.getMaxUtilizationPct()),
+            adaptiveDiversificationService.getPortfolioLevel(total),
+            adaptiveDiversificationService.getDiversificationSettings(total),
+            positions.size(),
+            snapshot.getPositionValues(),
+            snapshot.getTypeValues(),
+            Collections.unmodifiableMap(sectorValues),
+            Collections.unmodifiableMap(sectorCounts),
+            reservations);
+        limitsByAccount.put(accountId, limits);
+        log.debug("Пре-трейд лимиты {} пересчитаны: версия снимка {}, cash={}, buyingPower={}, позиций {}",
+            accountId, snapshot.getVersion(), cash, buyingPower, positions.size());
+        return limits;
+    }
+
+    private Decision finish(List<String> reasons, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        checks.incrementAndGet();
+        checkNanosTotal.addAndGet(nanos);
+        checkNanosMax.accumulateAndGet(nanos, Math::max);
+        if (!reasons.isEmpty()) {
+            denials.incrementAndGet();
+        }
+        return new Decision(reasons, nanos);
+    }
+
+    /**
+     * Решение гейта: разрешено, если нарушений нет
+     */
+    public static final class Decision {
+        private final List<String> reasons;
+        private final long checkNanos;
+
+        private Decision(List<String> reasons, long checkNanos) {
+            this.reasons = List.copyOf(reasons);
+            this.checkNanos = checkNanos;
+        }
+
+        public boolean isAllowed() { return reasons.isEmpty(); }
+        public boolean isBlocked() { return !reasons.isEmpty(); }
+        public List<String> getReasons() { return reasons; }
+        public String getReason() { return String.join("; ", reasons); }
+        public long getCheckNanos() { return checkNanos; }
+    }
+
+    /**
+     * Предрассчитанные лимиты аккаунта на версию снимка портфеля
+     */
+    public static final class Limits {
+        private final long snapshotVersion;
+        private final long builtAtMs;
+        private final BigDecimal totalValue;
+        private final BigDecimal cash;
+        private final BigDecimal buyingPower;
+        private final boolean marginAttributes;
+        private final BigDecimal liquid;
+        private final BigDecimal minimalMargin;
+        private final BigDecimal missingFunds;
+        private final BigDecimal maxUtilization;
+        private final AdaptiveDiversificationService.PortfolioLevel level;
+        private final AdaptiveDiversificationService.DiversificationSettings diversification;
+        private final int positionsCount;
+        private final Map<String, BigDecimal> positionValues;
+        private final Map<String, BigDecimal> classValues;
+        private final Map<String, BigDecimal> sectorValues;
+        private final Map<String, Integer> sectorCounts;
+        private final Reservations reservations;
+
+        private Limits(long snapshotVersion, BigDecimal totalValue, BigDecimal cash, BigDecimal buyingPower,
+                       boolean marginAttributes, BigDecimal liquid, BigDecimal minimalMargin, BigDecimal missingFunds,
+                       BigDecimal maxUtilization, AdaptiveDiversificationService.PortfolioLevel level,
+                       AdaptiveDiversificationService.DiversificationSettings diversification, int positionsCount,
+                       Map<String, BigDecimal> positionValues, Map<String, BigDecimal> classValues,
+                       Map<String, BigDecimal> sectorValues, Map<String, Integer> sectorCounts,
+                       Reservations reservations) {
+            this.snapshotVersion = snapshotVersion;
+            this.builtAtMs = System.currentTimeMillis();
+            this.totalValue = totalValue;
+            this.cash = cash;
+            this.buyingPower = buyingPower;
+            this.marginAttributes = marginAttributes;
+            this.liquid = liquid;
+            this.minimalMargin = minimalMargin;
+            this.missingFunds = missingFunds;
+            this.maxUtilization = maxUtilization;
+            this.level = level;
+            this.diversification = diversification;
+            this.positionsCount = positionsCount;
+            this.positionValues = positionValues;
+            this.classValues = classValues;
+            this.sectorValues = sectorValues;
+            this.sectorCounts = sectorCounts;
+            this.reservations = reservations;
+        }
+
+        BigDecimal positionValue(String figi) {
+            return positionValues.getOrDefault(figi, BigDecimal.ZERO);
+        }
+
+        public long getSnapshotVersion() { return snapshotVersion; }
+        public BigDecimal getTotalValue() { return totalValue; }
+        /** Свободные средства за вычетом резервов под размещённые покупки */
+        public BigDecimal getCash() { return cash.subtract(reservations.total()); }
+        /** Покупательная способность за вычетом резервов */
+        public BigDecimal getBuyingPower() { return buyingPower.subtract(reservations.total()).max(BigDecimal.ZERO); }
+        public boolean isMarginAttributesAvailable() { return marginAttributes; }
+        public BigDecimal getLiquid() { return liquid; }
+        public BigDecimal getMinimalMargin() { return minimalMargin; }
+        public AdaptiveDiversificationService.PortfolioLevel getLevel() { return level; }
+        public AdaptiveDiversificationService.DiversificationSettings getDiversification() { return diversification; }
+        public int getPositionsCount() { return positionsCount; }
+    }
+
+    /**
+     * Резервы аккаунта под размещённые и ещё не исполненные покупки.
+     * Резервов единицы, поэтому суммы считаются проходом по списку.
+     */
+    private static final class Reservations {
+        private final List<Reservation> items = new ArrayList<>();
+
+        synchronized void add(String orderId, String figi, String type, String sector, BigDecimal amount) {
+            items.add(new Reservation(orderId, figi, type, sector, amount, System.currentTimeMillis()));
+        }
+
+        /** Снимает резерв ордера: он исполнен или завершён */
+        synchronized void release(String orderId) {
+            if (orderId != null) {
+                items.removeIf(r -> orderId.equals(r.orderId));
+            }
+        }
+
+        synchronized void expireOlderThan(long reservedBeforeMs) {
+            items.removeIf(r -> r.reservedAtMs < reservedBeforeMs);
+        }
+
+        synchronized int size() { return items.size(); }
+
+        synchronized BigDecimal total() {
+            BigDecimal sum = BigDecimal.ZERO;
+            for (Reservation r : items) sum = sum.add(r.amount);
+            return sum;
+        }
+
+        synchronized BigDecimal byFigi(String figi) {
+            BigDecimal sum = BigDecimal.ZERO;
+            for (Reservation r : items) if (Objects.equals(r.figi, figi)) sum = sum.add(r.amount);
+            return sum;
+        }
+
+        synchronized BigDecimal byClass(String type) {
+            BigDecimal sum = BigDecimal.ZERO;
+            for (Reservation r : items) if (r.type.equals(type)) sum = sum.add(r.amount);
+            return sum;
+        }
+
+        synchronized BigDecimal bySector(String sector) {
+            BigDecimal sum = BigDecimal.ZERO;
+            for (Reservation r : items) if (Objects.equals(r.sector, sector)) sum = sum.add(r.amount);
+            return sum;
+        }
+
+        /** Число зарезервированных инструментов, которых ещё нет в портфеле */
+        synchronized int newFigis(Limits limits) {
+            Set<String> figis = new HashSet<>();
+            for (Reservation r : items) figis.add(r.figi);
+            figis.removeIf(limits.positionValues::containsKey);
+            return figis.size();
+        }
+    }
+
+    private record Reservation(String orderId, String figi, String type, String sector, BigDecimal amount, long reservedAtMs) { }
+}
@@ -4,6 +4,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.model.RiskRule;
 import ru.tinkoff.piapi.core.models.Portfolio;
 import ru.tinkoff.piapi.core.models.Position;
@@ -29,6 +30,7 @@ public class RiskMonitorService {
     private static final String INSTRUMENT_TYPE_CURRENCY = "currency";
 
     // Каждые 60 секунд проверяем триггеры SL/TP
+    @SchedulerLane(SchedulerLane.Lane.RISK_CRITICAL)
     @Scheduled(fixedRate = 60000)
     public void monitorStops() {
         try {
@@ -5,14 +5,11 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 import ru.perminov.model.Order;
-import ru.perminov.model.PositionRiskState;
 import ru.perminov.model.RiskRule;
 import ru.perminov.repository.OrderRepository;
-import ru.perminov.repository.PositionRiskStateRepository;
 import ru.perminov.repository.RiskRuleRepository;
 
 import java.math.BigDecimal;
-import java.time.LocalDateTime;
 import java.util.List;
 
 /**
@@ -24,8 +21,9 @@ import java.util.List;
 public class RiskRuleMigrationService {
     
     private final RiskRuleRepository riskRuleRepository;
-    private final PositionRiskStateRepository positionRiskStateRepository;
+    private final PositionRiskStateService positionRiskStateService;
     private final OrderRepository orderRepository;
+    private final OrderRegistry orderRegistry;
     private final RiskRuleService riskRuleService;
     private final BotLogService botLogService;
     
@@ -95,6 +93,7 @@ public class RiskRuleMigrationService {
                 updated++;
             }
         }
+        riskRuleService.invalidateCache();
         
         log.info("✅ Обновлено {} RiskRule записей", updated);
         return updated;
@@ -104,10 +103,8 @@ public class RiskRuleMigrationService {
      * Обновление PositionRiskState записей
      */
     private int updatePositionRiskStates() {
-        List<PositionRiskState> allStates = positionRiskStateRepository.findAll();
-        int updated = 0;
-        
-        for (PositionRiskState state : allStates) {
+        // Состояние рисков авторитетно в памяти — меняем через сервис, в БД оно уйдёт отложенной записью
+        int updated = positionRiskStateService.updateStates(state -> {
             boolean changed = false;
             
             // Обновляем только если текущие значения = старым дефолтам
@@ -130,14 +127,11 @@ public class RiskRuleMigrationService {
             }
             
             if (changed) {
-                state.setUpdatedAt(LocalDateTime.now());
-                positionRiskStateRepository.save(state);
-                updated++;
-                
                 log.debug("📊 Обновляем позицию {}: SL/TP/Trailing → 2%/6%/3%", 
                     state.getFigi());
             }
-        }
+            return changed;
+        });
         
         log.info("✅ Обновлено {} PositionRiskState записей", updated);
         return updated;
@@ -148,7 +142,7 @@ public class RiskRuleMigrationService {
      */
     private int updateVirtualOrders() {
         // Находим активные виртуальные ордера
-        List<Order> virtualOrders = orderRepository.findByStatus("MONITORING").stream()
+        List<Order> virtualOrders = orderRegistry.getByStatus("MONITORING").stream()
             .filter(order -> "VIRTUAL_STOP_LOSS".equals(order.getOrderType()) || 
                            "VIRTUAL_TAKE_PROFIT".equals(order.getOrderType()))
             .toList();
@@ -204,16 +198,13 @@ public class RiskRuleMigrationService {
             riskRuleService.upsert(figi, NEW_SL_PCT, NEW_TP_PCT, true);
             
             // Обновляем PositionRiskState если есть (для всех аккаунтов с этим FIGI)
-            List<PositionRiskState> states = positionRiskStateRepository.findAll().stream()
-                .filter(state -> figi.equals(state.getFigi()))
-                .toList();
-            for (PositionRiskState state : states) {
+            positionRiskStateService.updateStates(state -> {
+                if (!figi.equals(state.getFigi())) return false;
                 state.setStopLossPct(BigDecimal.valueOf(NEW_SL_PCT));
                 state.setTakeProfitPct(BigDecimal.valueOf(NEW_TP_PCT));
                 state.setTrailingPct(BigDecimal.valueOf(NEW_TRAILING_PCT));
-                state.setUpdatedAt(LocalDateTime.now());
-                positionRiskStateRepository.save(state);
-            }
+                return true;
+            });
             
             log.info("✅ Миграция для {} завершена успешно", figi);
             return true;
@@ -4,18 +4,22 @@ import lombok.RequiredArgsConstructor;
 import org.springframework.stereotype.Service;
 import ru.perminov.model.RiskRule;
 import ru.perminov.repository.RiskRuleRepository;
-import ru.perminov.repository.TradingSettingsRepository;
 
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 @RequiredArgsConstructor
 public class RiskRuleService {
     private final RiskRuleRepository repository;
-    private final TradingSettingsRepository settingsRepository;
+    private final TradingSettingsService settingsService;
+
+    // Правила по FIGI (в том числе отсутствие правила); сбрасываются при записи через сервис
+    private final Map<String, Optional<RiskRule>> cache = new ConcurrentHashMap<>();
 
     public Optional<RiskRule> findByFigi(String figi) {
-        return repository.findByFigi(figi);
+        return cache.computeIfAbsent(figi, repository::findByFigi);
     }
 
     public RiskRule upsert(String figi, Double sl, Double tp, Boolean active) {
@@ -24,22 +28,31 @@ public class RiskRuleService {
         if (sl != null) rule.setStopLossPct(sl);
         if (tp != null) rule.setTakeProfitPct(tp);
         if (active != null) rule.setActive(active);
-        return repository.save(rule);
+        RiskRule saved = repository.save(rule);
+        cache.put(figi, Optional.of(saved));
+        return saved;
+    }
+
+    /**
+     * Сброс кэша правил после записи в обход сервиса
+     */
+    public void invalidateCache() {
+        cache.clear();
     }
 
     public double getDefaultStopLossPct() {
         // 🚀 ИСПРАВЛЕНО: Смягчаем SL с 2% до 5% чтобы избежать преждевременных закрытий
-        return settingsRepository.findByKey("risk_default_sl_pct").map(s -> Double.parseDouble(s.getValue())).orElse(0.05);
+        return settingsService.getDouble("risk_default_sl_pct", 0.05);
     }
 
     public double getDefaultTakeProfitPct() {
         // 🚀 ИСПРАВЛЕНО: Увеличиваем TP с 6% до 12% для лучшего соотношения риск/доходность
-        return settingsRepository.findByKey("risk_default_tp_pct").map(s -> Double.parseDouble(s.getValue())).orElse(0.12);
+        return settingsService.getDouble("risk_default_tp_pct", 0.12);
     }
 
     public double getRiskPerTradePct() {
         // 🚀 ИСПРАВЛЕНО: Используем новые оптимизированные значения по умолчанию
-        return settingsRepository.findByKey("risk_per_trade_pct").map(s -> Double.parseDouble(s.getValue())).orElse(0.005);
+        return settingsService.getDouble("risk_per_trade_pct", 0.005);
     }
 
     /**
@@ -47,7 +60,7 @@ public class RiskRuleService {
      */
     public double getDefaultTrailingStopPct() {
         // 🚀 ИСПРАВЛЕНО: Используем новые оптимизированные значения по умолчанию
-        return settingsRepository.findByKey("risk_default_trailing_pct").map(s -> Double.parseDouble(s.getValue())).orElse(0.03);
+        return settingsService.getDouble("risk_default_trailing_pct", 0.03);
     }
 }
 
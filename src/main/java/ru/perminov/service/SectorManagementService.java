@@ -2,18 +2,14 @@ package ru.perminov.service;
 
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
-import ru.tinkoff.piapi.core.models.Position;
-import ru.perminov.repository.InstrumentRepository;
-import ru.perminov.model.Instrument;
-import ru.tinkoff.piapi.core.InvestApi;
-import ru.tinkoff.piapi.contract.v1.Share;
 import ru.tinkoff.piapi.contract.v1.Bond;
 import ru.tinkoff.piapi.contract.v1.Etf;
+import ru.tinkoff.piapi.contract.v1.Share;
+import ru.tinkoff.piapi.core.models.Position;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 @Slf4j
@@ -22,17 +18,14 @@ public class SectorManagementService {
     // Убираем статический блок с log, так как log еще не инициализирован
     
     private final BotLogService botLogService;
-    private final InstrumentRepository instrumentRepository;
-    private final InvestApiManager investApiManager;
-    private final Map<String, String> sectorCache = new ConcurrentHashMap<>();
+    private final InstrumentCatalog instrumentCatalog;
     
     // Российские ограничения для неквалифицированных инвесторов
     private BigDecimal maxSectorExposurePct = new BigDecimal("0.15");
     
     // Конструктор с логированием
     public SectorManagementService(BotLogService botLogService,
-                                   InstrumentRepository instrumentRepository,
-                                   InvestApiManager investApiManager) {
+                                   InstrumentCatalog instrumentCatalog) {
         try {
             System.out.println("🚀 SectorManagementService конструктор начал выполнение...");
             
@@ -42,8 +35,7 @@ public class SectorManagementService {
             }
             
             this.botLogService = botLogService;
-            this.instrumentRepository = instrumentRepository;
-            this.investApiManager = investApiManager;
+            this.instrumentCatalog = instrumentCatalog;
             System.out.println("✅ BotLogService успешно установлен");
             
             // Проверяем статические карты
@@ -511,75 +503,22 @@ public class SectorManagementService {
             return "OTHER";
         }
         
-        // 0) Кэш
-        String cached = sectorCache.get(figi);
-        if (cached != null) return cached;
-
-        // 1) Локальная БД инструментов
-        try {
-            Optional<Instrument> opt = instrumentRepository.findById(figi);
-            if (opt.isPresent()) {
-                String raw = opt.get().getSector();
-                String normalized = normalizeSector(raw);
-                if (normalized != null) {
-                    sectorCache.put(figi, normalized);
-                    return normalized;
-                }
-            }
-        } catch (Exception e) {
-            log.debug("Не удалось получить сектор из БД для {}: {}", figi, e.getMessage());
-        }
-
-        // 2) Invest API (share → bond → etf)
+        // 1) Справочник инструментов (таблица instruments + синхронизация с API); вне снимка — дозапрос из API
         try {
-            InvestApi api = investApiManager.getCurrentInvestApi();
-            try {
-                Share share = api.getInstrumentsService().getShareByFigiSync(figi);
-                if (share != null && share.getSector() != null && !share.getSector().isEmpty()) {
-                    log.info("🔍 Получен сектор из API для {}: '{}' (акция: {})", figi, share.getSector(), share.getName());
-                    String normalized = normalizeSector(share.getSector());
-                    if (normalized != null) {
-                        log.info("✅ Нормализованный сектор для {}: {} -> {}", figi, share.getSector(), normalized);
-                        sectorCache.put(figi, normalized);
-                        return normalized;
-                    }
-                }
-            } catch (Exception e) {
-                log.debug("Не удалось получить акцию для {}: {}", figi, e.getMessage());
+            InstrumentCatalog.Entry entry = instrumentCatalog.resolve(figi);
+            String normalized = normalizeSector(entry != null && entry.getSector() != null
+                ? entry.getSector() : describedSector(figi));
+            if (normalized != null) {
+                return normalized;
             }
-            try {
-                Bond bond = api.getInstrumentsService().getBondByFigiSync(figi);
-                if (bond != null && bond.getSector() != null && !bond.getSector().isEmpty()) {
-                    log.info("🔍 Получен сектор из API для {}: '{}' (облигация: {})", figi, bond.getSector(), bond.getName());
-                    String normalized = normalizeSector(bond.getSector());
-                    if (normalized != null) {
-                        log.info("✅ Нормализованный сектор для {}: {} -> {}", figi, bond.getSector(), normalized);
-                        sectorCache.put(figi, normalized);
-                        return normalized;
-                    }
-                }
-            } catch (Exception e) {
-                log.debug("Не удалось получить облигацию для {}: {}", figi, e.getMessage());
-            }
-            try {
-                Etf etf = api.getInstrumentsService().getEtfByFigiSync(figi);
-                if (etf != null && etf.getSector() != null && !etf.getSector().isEmpty()) {
-                    String normalized = normalizeSector(etf.getSector());
-                    if (normalized != null) {
-                        sectorCache.put(figi, normalized);
-                        return normalized;
-                    }
-                }
-            } catch (Exception ignore) {}
         } catch (Exception e) {
-            log.debug("Не удалось получить сектор из Invest API для {}: {}", figi, e.getMessage());
+            log.debug("Не удалось получить сектор из справочника для {}: {}", figi, e.getMessage());
         }
 
-        // 3) Статический маппинг как последний фолбэк
+        // 2) Статический маппинг как последний фолбэк
         String mapped = FIGI_TO_SECTOR.get(figi);
         if (mapped != null) {
-            log.info("✅ Использован статический маппинг для {}: {}", figi, mapped);
-            sectorCache.put(figi, mapped);
+            log.debug("✅ Использован статический маппинг для {}: {}", figi, mapped);
             return mapped;
         }
 
@@ -587,6 +526,19 @@ public class SectorManagementService {
         return "OTHER";
     }
 
+    /**
+     * Сектор из полного описания (share → bond → etf): GetInstrumentBy сектор не возвращает
+     */
+    private String describedSector(String figi) {
+        Share share = instrumentCatalog.resolveShare(figi);
+        if (share != null && !share.getSector().isEmpty()) return share.getSector();
+        Bond bond = instrumentCatalog.resolveBond(figi);
+        if (bond != null && !bond.getSector().isEmpty()) return bond.getSector();
+        Etf etf = instrumentCatalog.resolveEtf(figi);
+        if (etf != null && !etf.getSector().isEmpty()) return etf.getSector();
+        return null;
+    }
+
     private String normalizeSector(String rawSector) {
         if (rawSector == null) return null;
         String s = rawSector.trim().toLowerCase();
@@ -641,15 +593,11 @@ public class SectorManagementService {
     }
     
     /**
-     * Принудительное обновление сектора через API
+     * Повторное определение сектора (данные справочника обновляет синхронизация инструментов)
      */
     public void refreshSectorFromApi(String figi) {
         log.info("🔄 Принудительное обновление сектора для {}", figi);
         
-        // Очищаем кэш
-        sectorCache.remove(figi);
-        
-        // Получаем сектор заново (с логированием)
         String sector = getSectorForInstrument(figi);
         log.info("✅ Обновлен сектор для {}: {}", figi, sector);
     }
@@ -663,7 +611,6 @@ public class SectorManagementService {
         for (String figi : figis) {
             try {
                 refreshSectorFromApi(figi);
-                Thread.sleep(100); // Небольшая задержка между запросами
             } catch (Exception e) {
                 log.warn("⚠️ Ошибка обновления сектора для {}: {}", figi, e.getMessage());
             }
@@ -0,0 +1,97 @@
+package ru.perminov.service;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.stereotype.Component;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+
+/**
+ * Слушатель PostgreSQL NOTIFY по каналу trading_settings_changed (триггер из V006).
+ * Держит отдельное соединение с LISTEN и при уведомлении перечитывает изменённый ключ в снимке
+ * {@link TradingSettingsService}. Соединение открывается напрямую через драйвер, мимо пула Hikari:
+ * постоянно занятое соединение не отнимает место у рабочих запросов. При обрыве соединения переподключается с нарастающей паузой;
+ * на время обрыва изменения подхватывает страховочный опрос самого сервиса.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class SettingsChangeListener {
+
+    static final String CHANNEL = "trading_settings_changed";
+    private static final int POLL_TIMEOUT_MS = 5000;
+    private static final long MAX_BACKOFF_MS = 60_000L;
+
+    private final DataSourceProperties dataSourceProperties;
+    private final TradingSettingsService settingsService;
+
+    private volatile boolean running;
+    private Thread worker;
+
+    @PostConstruct
+    public void start() {
+        running = true;
+        worker = new Thread(this::listenLoop, "settings-listener");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    private void listenLoop() {
+        long backoffMs = 1000L;
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(dataSourceProperties.determineUrl(),
+                    dataSourceProperties.determineUsername(), dataSourceProperties.determinePassword())) {
+                try (Statement st = connection.createStatement()) {
+                    st.execute("LISTEN " + CHANNEL);
+                }
+                PGConnection pg = connection.unwrap(PGConnection.class);
+                log.info("🔔 Подписка на изменения настроек ({}) установлена", CHANNEL);
+                // Изменения, сделанные пока слушатель был отключён, могли потеряться — перечитываем всё
+                settingsService.reload();
+                backoffMs = 1000L;
+                while (running) {
+                    PGNotification[] notifications = pg.getNotifications(POLL_TIMEOUT_MS);
+                    if (notifications == null) {
+                        continue;
+                    }
+                    for (PGNotification n : notifications) {
+                        String key = n.getParameter();
+                        if (key == null || key.isEmpty()) {
+                            settingsService.reload();
+                        } else {
+                            log.debug("🔔 Изменена настройка {}", key);
+                            settingsService.reloadKey(key);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                if (!running) {
+                    break;
+                }
+                log.warn("Соединение LISTEN для настроек потеряно: {}. Повтор через {} мс", e.getMessage(), backoffMs);
+                try {
+                    Thread.sleep(backoffMs);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                backoffMs = Math.min(MAX_BACKOFF_MS, backoffMs * 2);
+            }
+        }
+    }
+}
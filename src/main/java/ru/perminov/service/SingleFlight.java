@@ -0,0 +1,126 @@
+package ru.perminov.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Схлопывание одинаковых запросов к брокеру (single-flight).
+ * Параллельные вызовы с одним ключом ждут один запрос в полёте; готовый результат переиспользуется
+ * ещё {@code reuseMs}. Сам запрос выполняется вне любых блокировок карты: в карту кладётся только
+ * future, поэтому медленный ключ не тормозит остальные.
+ */
+@Component
+@Slf4j
+public class SingleFlight {
+
+    private static final int SWEEP_THRESHOLD = 4096;
+
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong executions = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Выполняет загрузку для ключа или присоединяется к уже выполняющейся/недавно завершённой.
+     * Ошибка загрузки доставляется всем ожидающим и не кэшируется.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, long reuseMs, Supplier<T> loader) {
+        calls.incrementAndGet();
+        while (true) {
+            long now = System.currentTimeMillis();
+            Flight current = flights.get(key);
+            if (current != null) {
+                if (!current.future.isDone()) {
+                    coalesced.incrementAndGet();
+                    return (T) await(current);
+                }
+                if (current.isReusable(now, reuseMs)) {
+                    reused.incrementAndGet();
+                    return (T) await(current);
+                }
+            }
+            Flight mine = new Flight();
+            boolean won = current == null
+                ? flights.putIfAbsent(key, mine) == null
+                : flights.replace(key, current, mine);
+            if (!won) {
+                continue; // другой поток успел поставить свой запрос — присоединяемся к нему
+            }
+            executions.incrementAndGet();
+            try {
+                T value = loader.get();
+                mine.completedAtMs = System.currentTimeMillis();
+                mine.future.complete(value);
+                if (reuseMs <= 0) {
+                    flights.remove(key, mine);
+                } else if (flights.size() > SWEEP_THRESHOLD) {
+                    sweep(reuseMs);
+                }
+                return value;
+            } catch (RuntimeException | Error e) {
+                failures.incrementAndGet();
+                flights.remove(key, mine);
+                mine.future.completeExceptionally(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Сбрасывает переиспользуемый результат (например, портфель после выставления заявки)
+     */
+    public void invalidate(String key) {
+        Flight flight = flights.get(key);
+        if (flight != null && flight.future.isDone()) {
+            flights.remove(key, flight);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("keys", flights.size());
+        stats.put("calls", calls.get());
+        stats.put("executions", executions.get());
+        stats.put("coalesced", coalesced.get());
+        stats.put("reused", reused.get());
+        stats.put("failures", failures.get());
+        return stats;
+    }
+
+    private Object await(Flight flight) {
+        try {
+            return flight.future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException re) throw re;
+            if (cause instanceof Error err) throw err;
+            throw e;
+        }
+    }
+
+    private void sweep(long reuseMs) {
+        long now = System.currentTimeMillis();
+        flights.entrySet().removeIf(entry -> entry.getValue().future.isDone() && !entry.getValue().isReusable(now, reuseMs));
+    }
+
+    private static final class Flight {
+        final CompletableFuture<Object> future = new CompletableFuture<>();
+        volatile long completedAtMs;
+
+        boolean isReusable(long now, long reuseMs) {
+            return future.isDone() && !future.isCompletedExceptionally() && now - completedAtMs <= reuseMs;
+        }
+    }
+}
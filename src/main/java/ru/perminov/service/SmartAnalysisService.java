@@ -20,6 +20,7 @@ public class SmartAnalysisService {
     private final PortfolioManagementService portfolioManagementService;
     private final MarketAnalysisService marketAnalysisService;
     private final BotLogService botLogService;
+    private final UniversePrefetchService universePrefetchService;
     
     // Индекс для ротации инструментов
     private int rotationIndex = 0;
@@ -29,6 +30,9 @@ public class SmartAnalysisService {
     private final Map<String, Integer> instrumentPriorities = new ConcurrentHashMap<>();
     private final Map<String, Long> lastAnalysisTime = new ConcurrentHashMap<>();
     
+    // Последняя пакетная предзагрузка цен/статусов: цены переиспользуются при анализе тренда
+    private volatile UniversePrefetchService.Prefetch lastPrefetch;
+    
     // Настройки анализа
     private static final int QUICK_ANALYSIS_LIMIT = 10; // Быстрый анализ
     private static final int FULL_ANALYSIS_LIMIT = 30;  // Полный анализ
@@ -71,10 +75,14 @@ public class SmartAnalysisService {
                     }
                     return true;
                 })
+                .collect(Collectors.toList());
+            
+            // Неторгуемые и без свежей цены отсеиваем пакетной предзагрузкой до анализа свечей
+            instruments = filterByPrefetch(instruments, "быстрого").stream()
                 .limit(QUICK_ANALYSIS_LIMIT)
                 .collect(Collectors.toList());
             
-            log.info("Итого для быстрого анализа: {} инструментов (заблокированные по ликвидности исключены)", instruments.size());
+            log.info("Итого для быстрого анализа: {} инструментов (заблокированные по ликвидности и неторгуемые исключены)", instruments.size());
             
         } catch (Exception e) {
             log.error("Ошибка при получении инструментов для быстрого анализа: {}", e.getMessage());
@@ -119,10 +127,14 @@ public class SmartAnalysisService {
                     }
                     return true;
                 })
+                .collect(Collectors.toList());
+            
+            // Неторгуемые и без свежей цены отсеиваем пакетной предзагрузкой до анализа свечей
+            instruments = filterByPrefetch(instruments, "полного").stream()
                 .limit(FULL_ANALYSIS_LIMIT)
                 .collect(Collectors.toList());
             
-            log.info("Итого для полного анализа: {} инструментов (заблокированные по ликвидности исключены)", instruments.size());
+            log.info("Итого для полного анализа: {} инструментов (заблокированные по ликвидности и неторгуемые исключены)", instruments.size());
             
         } catch (Exception e) {
             log.error("Ошибка при получении инструментов для полного анализа: {}", e.getMessage());
@@ -132,6 +144,36 @@ public class SmartAnalysisService {
         return instruments;
     }
     
+    /**
+     * Цена инструмента из последней пакетной предзагрузки (null — нет свежей цены, нужен запрос по инструменту)
+     */
+    public BigDecimal getPrefetchedPrice(String figi) {
+        UniversePrefetchService.Prefetch prefetch = lastPrefetch;
+        return prefetch != null ? prefetch.getLastPrice(figi) : null;
+    }
+
+    /**
+     * Отсев по пакетно загруженным торговым статусам и последним ценам
+     */
+    private List<ShareDto> filterByPrefetch(List<ShareDto> instruments, String analysisKind) {
+        UniversePrefetchService.Prefetch prefetch = universePrefetchService.prefetch(
+            instruments.stream().map(ShareDto::getFigi).collect(Collectors.toList()));
+        lastPrefetch = prefetch;
+        if (!prefetch.isAvailable()) {
+            return instruments;
+        }
+        return instruments.stream()
+            .filter(instrument -> {
+                if (!prefetch.accepts(instrument.getFigi())) {
+                    log.debug("Пропускаем {} из {} анализа - {}", 
+                        instrument.getFigi(), analysisKind, prefetch.getDropReason(instrument.getFigi()));
+                    return false;
+                }
+                return true;
+            })
+            .collect(Collectors.toList());
+    }
+    
     /**
      * Получение существующих позиций
      */
@@ -0,0 +1,374 @@
+package ru.perminov.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.catalina.connector.ClientAbortException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.function.ToLongFunction;
+
+/**
+ * Рассылка живой ленты по SSE с объединением событий и защитой от медленных клиентов.
+ * У каждого подписчика своя ограниченная очередь; раз в flushIntervalMs накопленное уходит одним
+ * SSE-кадром, id кадра — номер последнего события (по нему клиент переподключается через Last-Event-ID).
+ * Переполнение очереди не блокирует публикацию: лишние события отбрасываются, а клиенту вместо них
+ * уходит сводка "dropped". Клиент, переполнявший очередь несколько кадров подряд или зависший
+ * на отправке дольше stallTimeoutMs, отключается. Значения-состояния (статистика и т.п.) в очередь
+ * не ставятся: каждому клиенту отправляется только последнее.
+ * На каждую ленту — свой экземпляр. Таймер кадров и проверка зависаний работают в отдельном потоке,
+ * а сами записи — на виртуальных потоках (не более одной отправки на подписчика одновременно),
+ * поэтому зависшие клиенты не останавливают рассылку остальным. Зависшая отправка прерывается,
+ * соединение закрывается с ошибкой. Если при переподключении история не смыкается с курсором
+ * клиента, перед ней уходит кадр "reset" с диапазоном пропущенных номеров.
+ */
+@Slf4j
+public class SseBroadcaster<T> {
+
+    private final String name;
+    private final String batchEventName;
+    private final ToLongFunction<T> sequenceOf;
+    private final int queueCapacity;
+    private final int maxOverflowFrames;
+    private final long stallTimeoutMs;
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService sender;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private final Map<String, State> states = new ConcurrentHashMap<>();
+
+    private final AtomicLong subscriberIds = new AtomicLong();
+    private final AtomicLong stateVersions = new AtomicLong();
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong framesSent = new AtomicLong();
+    private final AtomicLong droppedTotal = new AtomicLong();
+    private final AtomicLong slowDisconnects = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private volatile long lastSequence = 0;
+
+    public SseBroadcaster(String name, String batchEventName, ToLongFunction<T> sequenceOf,
+                          int queueCapacity, long flushIntervalMs, int maxOverflowFrames, long stallTimeoutMs) {
+        this.name = name;
+        this.batchEventName = batchEventName;
+        this.sequenceOf = sequenceOf;
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.maxOverflowFrames = Math.max(1, maxOverflowFrames);
+        this.stallTimeoutMs = stallTimeoutMs;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "sse-" + name + "-flush");
+            t.setDaemon(true);
+            return t;
+        });
+        this.sender = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sse-" + name + "-send-", 0).factory());
+        long interval = Math.max(20, flushIntervalMs);
+        scheduler.scheduleWithFixedDelay(this::flush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Подключение клиента. Подписчик регистрируется до чтения replay, поэтому события между чтением
+     * истории и регистрацией не теряются, а повторы отсекаются по номеру.
+     *
+     * @param replayEventName имя события для начальной пачки
+     * @param replay          история для начальной пачки (читается после регистрации)
+     */
+    public void subscribe(SseEmitter emitter, String replayEventName, Supplier<List<T>> replay) {
+        subscribe(emitter, replayEventName, replay, -1);
+    }
+
+    /**
+     * Подключение клиента с курсором (номер последнего полученного события). Если история с номерами
+     * после курсора неполна (вытеснена из буфера или обрезана лимитом), сначала уходит кадр "reset"
+     * с пропущенным диапазоном — клиент перечитывает ленту, а не продолжает её с дырой.
+     *
+     * @param cursor номер последнего события у клиента; отрицательный — без проверки непрерывности
+     */
+    public void subscribe(SseEmitter emitter, String replayEventName, Supplier<List<T>> replay, long cursor) {
+        Subscriber subscriber = new Subscriber(subscriberIds.incrementAndGet(), emitter);
+        emitter.onCompletion(() -> remove(subscriber, "завершено"));
+        emitter.onTimeout(() -> remove(subscriber, "таймаут"));
+        emitter.onError(ex -> remove(subscriber, isClientDisconnected(ex) ? "закрыто клиентом" : ex.getMessage()));
+
+        // Пока идёт начальная отправка, плановые кадры этому подписчику не уходят
+        subscriber.sending.set(true);
+        subscriber.sendStartedMs = System.currentTimeMillis();
+        subscribers.add(subscriber);
+        // Всё, что новее этого номера, попадёт в очередь подписчика; остальное должна покрыть история
+        long registeredAt = lastSequence;
+        try {
+            List<T> history = replay.get();
+            long minSequence = Long.MAX_VALUE;
+            long maxSequence = 0;
+            for (T item : history) {
+                long sequence = sequenceOf.applyAsLong(item);
+                minSequence = Math.min(minSequence, sequence);
+                maxSequence = Math.max(maxSequence, sequence);
+            }
+            if (cursor >= 0 && registeredAt > cursor) {
+                long missedFrom = cursor + 1;
+                long missedTo = history.isEmpty() ? registeredAt : minSequence - 1;
+                if (missedTo < missedFrom && maxSequence < registeredAt) {
+                    missedFrom = maxSequence + 1;
+                    missedTo = registeredAt;
+                }
+                if (missedTo >= missedFrom) {
+                    resets.incrementAndGet();
+                    Map<String, Object> gap = new LinkedHashMap<>();
+                    gap.put("missedFrom", missedFrom);
+                    gap.put("missedTo", missedTo);
+                    gap.put("lastSequence", registeredAt);
+                    emitter.send(SseEmitter.event().name("reset").data(gap));
+                }
+            }
+            if (!history.isEmpty()) {
+                emitter.send(SseEmitter.event().id(String.valueOf(maxSequence)).name(replayEventName).data(history));
+                subscriber.sentSequence = maxSequence;
+                framesSent.incrementAndGet();
+            }
+        } catch (IOException | IllegalStateException e) {
+            if (!isClientDisconnected(e)) {
+                log.debug("SSE [{}]: ошибка начальной отправки подписчику {}: {}", name, subscriber.id, e.getMessage());
+            }
+            remove(subscriber, "ошибка начальной отправки");
+        } finally {
+            subscriber.lastFrameMs = System.currentTimeMillis();
+            subscriber.sending.set(false);
+        }
+    }
+
+    /**
+     * Публикация события ленты. Не блокируется: при полной очереди подписчика событие для него отбрасывается.
+     */
+    public void publish(T item) {
+        published.incrementAndGet();
+        lastSequence = Math.max(lastSequence, sequenceOf.applyAsLong(item));
+        for (Subscriber subscriber : subscribers) {
+            if (!subscriber.queue.offer(item)) {
+                subscriber.pendingDropped.incrementAndGet();
+                subscriber.droppedTotal.incrementAndGet();
+                droppedTotal.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Публикация состояния: до клиента доходит только последнее значение с этим именем события
+     */
+    public void publishState(String eventName, Object value) {
+        states.put(eventName, new State(stateVersions.incrementAndGet(), value));
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Метрики ленты и отставание каждого подписчика (в событиях и миллисекундах)
+     */
+    public Map<String, Object> getStats() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("feed", name);
+        stats.put("subscribers", subscribers.size());
+        stats.put("published", published.get());
+        stats.put("lastSequence", lastSequence);
+        stats.put("framesSent", framesSent.get());
+        stats.put("dropped", droppedTotal.get());
+        stats.put("slowDisconnects", slowDisconnects.get());
+        stats.put("resets", resets.get());
+        List<Map<String, Object>> clients = new ArrayList<>();
+        for (Subscriber subscriber : subscribers) {
+            Map<String, Object> s = new LinkedHashMap<>();
+            s.put("id", subscriber.id);
+            s.put("connectedSec", (now - subscriber.connectedAtMs) / 1000);
+            s.put("queued", subscriber.queue.size());
+            s.put("lagEvents", Math.max(0, lastSequence - subscriber.sentSequence));
+            s.put("msSinceLastFrame", now - subscriber.lastFrameMs);
+            s.put("sending", subscriber.sending.get());
+            s.put("dropped", subscriber.droppedTotal.get());
+            s.put("overflowFrames", subscriber.overflowFrames);
+            clients.add(s);
+        }
+        stats.put("clients", clients);
+        return stats;
+    }
+
+    public void close() {
+        scheduler.shutdownNow();
+        sender.shutdownNow();
+        for (Subscriber subscriber : subscribers) {
+            try {
+                subscriber.emitter.complete();
+            } catch (Exception ignore) {
+                // соединение уже закрыто
+            }
+        }
+        subscribers.clear();
+    }
+
+    private void flush() {
+        long now = System.currentTimeMillis();
+        long stateVersion = stateVersions.get();
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.sending.get()) {
+                if (now - subscriber.sendStartedMs > stallTimeoutMs) {
+                    disconnectSlow(subscriber, "отправка зависла на " + (now - subscriber.sendStartedMs) + " мс");
+                }
+                continue;
+            }
+            boolean hasWork = !subscriber.queue.isEmpty() || subscriber.pendingDropped.get() > 0
+                || subscriber.sentStateVersion < stateVersion;
+            if (!hasWork || !subscriber.sending.compareAndSet(false, true)) {
+                continue;
+            }
+            subscriber.sendStartedMs = now;
+            try {
+                subscriber.sendTask = sender.submit(() -> sendFrame(subscriber));
+            } catch (Exception e) {
+                subscriber.sending.set(false);
+            }
+        }
+    }
+
+    private void sendFrame(Subscriber subscriber) {
+        try {
+            List<T> batch = new ArrayList<>(subscriber.queue.size());
+            subscriber.queue.drainTo(batch);
+            int dropped = subscriber.pendingDropped.getAndSet(0);
+
+            if (dropped > 0) {
+                subscriber.overflowFrames++;
+                if (subscriber.overflowFrames >= maxOverflowFrames) {
+                    disconnectSlow(subscriber, "очередь переполнялась " + subscriber.overflowFrames + " кадров подряд");
+                    return;
+                }
+                Map<String, Object> summary = new LinkedHashMap<>();
+                summary.put("dropped", dropped);
+                summary.put("lastSequence", lastSequence);
+                subscriber.emitter.send(SseEmitter.event().name("dropped").data(summary));
+            } else {
+                subscriber.overflowFrames = 0;
+            }
+
+            // Повторы начальной пачки (события, попавшие и в историю, и в очередь) отсекаем по номеру
+            List<T> fresh = new ArrayList<>(batch.size());
+            long maxSequence = subscriber.sentSequence;
+            for (T item : batch) {
+                long sequence = sequenceOf.applyAsLong(item);
+                if (sequence > subscriber.sentSequence) {
+                    fresh.add(item);
+                    maxSequence = Math.max(maxSequence, sequence);
+                }
+            }
+            if (!fresh.isEmpty()) {
+                subscriber.emitter.send(SseEmitter.event().id(String.valueOf(maxSequence)).name(batchEventName).data(fresh));
+                subscriber.sentSequence = maxSequence;
+                framesSent.incrementAndGet();
+            }
+
+            long sentVersion = subscriber.sentStateVersion;
+            for (Map.Entry<String, State> state : states.entrySet()) {
+                if (state.getValue().version > sentVersion) {
+                    subscriber.emitter.send(SseEmitter.event().name(state.getKey()).data(state.getValue().value));
+                    subscriber.sentStateVersion = Math.max(subscriber.sentStateVersion, state.getValue().version);
+                }
+            }
+            subscriber.lastFrameMs = System.currentTimeMillis();
+        } catch (IOException | IllegalStateException e) {
+            if (!isClientDisconnected(e)) {
+                log.debug("SSE [{}]: ошибка отправки подписчику {}: {}", name, subscriber.id, e.getMessage());
+            }
+            remove(subscriber, "ошибка отправки");
+        } finally {
+            subscriber.sending.set(false);
+        }
+    }
+
+    private void disconnectSlow(Subscriber subscriber, String reason) {
+        if (subscribers.remove(subscriber)) {
+            slowDisconnects.incrementAndGet();
+            log.warn("🐢 SSE [{}]: медленный клиент {} отключён: {}", name, subscriber.id, reason);
+            // complete() не снимает уже зависшую запись: прерываем поток отправки и закрываем
+            // асинхронный запрос с ошибкой — контейнер рвёт соединение, запись завершается исключением
+            Future<?> task = subscriber.sendTask;
+            if (task != null) {
+                task.cancel(true);
+            }
+            try {
+                subscriber.emitter.completeWithError(new TimeoutException(reason));
+            } catch (Exception ignore) {
+                // соединение уже закрыто
+            }
+        }
+    }
+
+    private void remove(Subscriber subscriber, String reason) {
+        if (subscribers.remove(subscriber)) {
+            log.debug("SSE [{}]: подписчик {} отключён ({}), осталось {}", name, subscriber.id, reason, subscribers.size());
+        }
+    }
+
+    /**
+     * Проверка, является ли исключение следствием закрытия соединения клиентом
+     * (Broken pipe, ClientAbortException и т.д.)
+     */
+    public static boolean isClientDisconnected(Throwable e) {
+        if (e == null) {
+            return false;
+        }
+        String message = e.getMessage();
+        if (message != null) {
+            String lowerMessage = message.toLowerCase();
+            if (lowerMessage.contains("broken pipe") ||
+                lowerMessage.contains("connection reset") ||
+                lowerMessage.contains("connection aborted")) {
+                return true;
+            }
+        }
+        if (e instanceof ClientAbortException) {
+            return true;
+        }
+        return isClientDisconnected(e.getCause());
+    }
+
+    private record State(long version, Object value) {
+    }
+
+    private final class Subscriber {
+        final long id;
+        final SseEmitter emitter;
+        final ArrayBlockingQueue<T> queue = new ArrayBlockingQueue<>(queueCapacity);
+        final AtomicBoolean sending = new AtomicBoolean();
+        final AtomicInteger pendingDropped = new AtomicInteger();
+        final AtomicLong droppedTotal = new AtomicLong();
+        final long connectedAtMs = System.currentTimeMillis();
+
+        // Пишутся только отправляющим потоком (под флагом sending)
+        volatile long sentSequence = 0;
+        volatile long sentStateVersion = 0;
+        volatile int overflowFrames = 0;
+        volatile long sendStartedMs;
+        volatile long lastFrameMs = connectedAtMs;
+        volatile Future<?> sendTask;
+
+        Subscriber(long id, SseEmitter emitter) {
+            this.id = id;
+            this.emitter = emitter;
+        }
+    }
+}
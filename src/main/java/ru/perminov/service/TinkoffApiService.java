@@ -19,7 +19,7 @@ public class TinkoffApiService {
      */
     public Mono<String> getInstruments() {
         return Mono.fromCallable(() -> {
-            apiRateLimiter.acquire();
+            apiRateLimiter.acquire(ApiRateLimiter.ApiClass.INSTRUMENTS);
             var response = investApiManager.getCurrentInvestApi().getInstrumentsService().getSharesSync(InstrumentStatus.INSTRUMENT_STATUS_ALL);
             log.info("Получен список инструментов");
             return response.toString();
@@ -42,7 +42,7 @@ public class TinkoffApiService {
      */
     public Mono<String> getPortfolio(String accountId) {
         return Mono.fromCallable(() -> {
-            apiRateLimiter.acquire();
+            apiRateLimiter.acquire(ApiRateLimiter.ApiClass.OPERATIONS);
             var response = investApiManager.getCurrentInvestApi().getOperationsService().getPortfolioSync(accountId);
             log.info("Получен портфель для аккаунта: {}", accountId);
             return response.toString();
@@ -54,7 +54,7 @@ public class TinkoffApiService {
      */
     public Mono<String> getAccounts() {
         return Mono.fromCallable(() -> {
-            apiRateLimiter.acquire();
+            apiRateLimiter.acquire(ApiRateLimiter.ApiClass.OPERATIONS);
             var response = investApiManager.getCurrentInvestApi().getUserService().getAccountsSync();
             log.info("Получен список аккаунтов");
             return response.toString();
@@ -66,7 +66,7 @@ public class TinkoffApiService {
      */
     public Mono<String> getMarketData(String figi) {
         return Mono.fromCallable(() -> {
-            apiRateLimiter.acquire();
+            apiRateLimiter.acquire(ApiRateLimiter.ApiClass.MARKET_DATA);
             var response = investApiManager.getCurrentInvestApi().getMarketDataService().getLastPricesSync(java.util.List.of(figi));
             log.info("Получены рыночные данные");
             return response.toString();
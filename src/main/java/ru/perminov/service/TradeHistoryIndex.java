@@ -0,0 +1,183 @@
+package ru.perminov.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+import ru.perminov.model.Order;
+import ru.perminov.repository.OrderRepository;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Индекс недавних исполнений по паре (аккаунт, FIGI): последнее исполнение в каждом направлении
+ * и небольшое окно последних исполнений, упорядоченное по времени.
+ * Пополняется при каждой записи ордера ({@link OrderRegistryListener}); при первом обращении
+ * к паре окно один раз дочитывается из БД ограниченным запросом (последние N ордеров).
+ * Проверки cooldown и времени удержания стоят O(1) и не зависят от длины истории ордеров.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class TradeHistoryIndex {
+
+    private static final int DB_FALLBACK_ORDERS = 50;
+
+    private final OrderRepository orderRepository;
+    private final TradingSettingsService settingsService;
+
+    private final Map<String, History> histories = new ConcurrentHashMap<>();
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong dbLoads = new AtomicLong();
+    private final AtomicLong fillsIndexed = new AtomicLong();
+
+    /**
+     * Учитывает сохранённый ордер, если он исполнен (полностью или частично)
+     */
+    public void apply(Order order) {
+        if (order == null || order.getAccountId() == null || order.getFigi() == null
+                || order.getOrderDate() == null || !isFill(order.getStatus())) {
+            return;
+        }
+        History history = histories.computeIfAbsent(key(order.getAccountId(), order.getFigi()), k -> new History());
+        history.add(order, windowSize());
+        fillsIndexed.incrementAndGet();
+    }
+
+    /**
+     * Исполнения по паре новее cutoff, новые первыми (не больше limit)
+     */
+    public List<Order> getRecentFills(String accountId, String figi, LocalDateTime cutoff, int limit) {
+        return history(accountId, figi).recent(cutoff, limit);
+    }
+
+    /**
+     * Последнее исполнение в направлении BUY или SELL
+     */
+    public Optional<Order> getLastFill(String accountId, String figi, String direction) {
+        History history = history(accountId, figi);
+        return Optional.ofNullable("BUY".equals(normalizeDirection(direction)) ? history.lastBuy() : history.lastSell());
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("pairs", histories.size());
+        stats.put("windowSize", windowSize());
+        stats.put("lookups", lookups.get());
+        stats.put("dbLoads", dbLoads.get());
+        stats.put("fillsIndexed", fillsIndexed.get());
+        return stats;
+    }
+
+    /**
+     * Статус исполнения: учитываем несколько вариантов статусов из API
+     */
+    public static boolean isFill(String status) {
+        String s = status != null ? status.toUpperCase() : "";
+        return s.contains("FILL") ||
+               s.equals("EXECUTED") ||
+               s.equals("PARTIALLYFILL") ||
+               s.equals("PARTIAL_FILL");
+    }
+
+    /**
+     * BUY/SELL по направлению ордера (ORDER_DIRECTION_BUY, BUY и т.п.)
+     */
+    public static String normalizeDirection(String direction) {
+        if (direction == null) return "UNKNOWN";
+        return switch (direction.toUpperCase()) {
+            case "ORDER_DIRECTION_BUY", "BUY" -> "BUY";
+            case "ORDER_DIRECTION_SELL", "SELL" -> "SELL";
+            default -> "UNKNOWN";
+        };
+    }
+
+    private History history(String accountId, String figi) {
+        lookups.incrementAndGet();
+        History history = histories.computeIfAbsent(key(accountId, figi), k -> new History());
+        if (!history.loaded) {
+            loadFromDatabase(accountId, figi, history);
+        }
+        return history;
+    }
+
+    private void loadFromDatabase(String accountId, String figi, History history) {
+        synchronized (history) {
+            if (history.loaded) return;
+            dbLoads.incrementAndGet();
+            int window = windowSize();
+            List<Order> orders = orderRepository.findByFigiAndAccountIdOrderByOrderDateDesc(
+                    figi, accountId, PageRequest.of(0, DB_FALLBACK_ORDERS));
+            for (Order order : orders) {
+                if (order.getOrderDate() != null && isFill(order.getStatus())) {
+                    history.add(order, window);
+                }
+            }
+            history.loaded = true;
+            log.debug("История исполнений {} {} загружена из БД: {} ордеров", accountId, figi, orders.size());
+        }
+    }
+
+    private int windowSize() {
+        return Math.max(1, settingsService.getInt("trade_history.window_size", 10));
+    }
+
+    private static String key(String accountId, String figi) {
+        return accountId + "|" + figi;
+    }
+
+    /**
+     * Исполнения одной пары: окно новые первыми и последние BUY/SELL (могут быть старше окна)
+     */
+    private static final class History {
+        private final List<Order> window = new ArrayList<>();
+        private Order lastBuy;
+        private Order lastSell;
+        volatile boolean loaded;
+
+        synchronized void add(Order order, int windowSize) {
+            Order fill = OrderRegistry.copyOf(order);
+            // Повторная запись того же ордера (частичное → полное исполнение) заменяет прежнюю
+            window.removeIf(o -> o.getOrderId() != null && o.getOrderId().equals(fill.getOrderId()));
+            int pos = 0;
+            while (pos < window.size() && !window.get(pos).getOrderDate().isBefore(fill.getOrderDate())) {
+                pos++;
+            }
+            window.add(pos, fill);
+            while (window.size() > windowSize) {
+                window.remove(window.size() - 1);
+            }
+            String direction = normalizeDirection(fill.getOperation());
+            if ("BUY".equals(direction) && (lastBuy == null || !fill.getOrderDate().isBefore(lastBuy.getOrderDate()))) {
+                lastBuy = fill;
+            } else if ("SELL".equals(direction) && (lastSell == null || !fill.getOrderDate().isBefore(lastSell.getOrderDate()))) {
+                lastSell = fill;
+            }
+        }
+
+        synchronized List<Order> recent(LocalDateTime cutoff, int limit) {
+            List<Order> result = new ArrayList<>(Math.min(limit, window.size()));
+            for (Order order : window) {
+                if (result.size() >= limit || !order.getOrderDate().isAfter(cutoff)) break;
+                result.add(order);
+            }
+            return result;
+        }
+
+        synchronized Order lastBuy() {
+            return lastBuy;
+        }
+
+        synchronized Order lastSell() {
+            return lastSell;
+        }
+    }
+}
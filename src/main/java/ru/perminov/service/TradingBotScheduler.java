@@ -8,6 +8,7 @@ import ru.tinkoff.piapi.contract.v1.CandleInterval;
 
 import java.util.List;
 import java.util.Map;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.dto.ShareDto;
 
 @Service
@@ -34,6 +35,7 @@ public class TradingBotScheduler {
      * Умный быстрый мониторинг каждые 5 минут (ОПТИМИЗАЦИЯ ДЛЯ СНИЖЕНИЯ КОМИССИЙ)
      * Использует умную стратегию анализа для выбора инструментов
      */
+    @SchedulerLane(SchedulerLane.Lane.TRADING)
     @Scheduled(fixedRate = 300000) // 5 минут (было 30 сек)
     public void smartQuickMonitoring() {
         log.info("Запуск умного быстрого мониторинга (5 мин)");
@@ -73,7 +75,8 @@ public class TradingBotScheduler {
                         
                         // Быстрый анализ тренда (15-минутные свечи)
                         MarketAnalysisService.TrendAnalysis trend = 
-                            marketAnalysisService.analyzeTrend(figi, CandleInterval.CANDLE_INTERVAL_15_MIN);
+                            marketAnalysisService.analyzeTrend(figi, CandleInterval.CANDLE_INTERVAL_15_MIN,
+                                smartAnalysisService.getPrefetchedPrice(figi));
                         
                         log.info("Быстрый анализ {}: тренд = {}, сигнал = {}, цена = {}", 
                             figi, trend.getTrend(), trend.getSignal(), trend.getCurrentPrice());
@@ -106,6 +109,7 @@ public class TradingBotScheduler {
      * Умный полный мониторинг каждые 15 минут (ОПТИМИЗАЦИЯ ДЛЯ СНИЖЕНИЯ КОМИССИЙ)
      * Использует умную стратегию анализа для выбора инструментов
      */
+    @SchedulerLane(SchedulerLane.Lane.ANALYTICS)
     @Scheduled(fixedRate = 900000) // 15 минут (было 2 мин)
     public void smartFullMonitoring() {
         log.info("Запуск умного полного мониторинга (15 мин)");
@@ -142,7 +146,8 @@ public class TradingBotScheduler {
                         
                         // Полный анализ тренда (часовые свечи)
                         MarketAnalysisService.TrendAnalysis trend = 
-                            marketAnalysisService.analyzeTrend(figi, CandleInterval.CANDLE_INTERVAL_HOUR);
+                            marketAnalysisService.analyzeTrend(figi, CandleInterval.CANDLE_INTERVAL_HOUR,
+                                smartAnalysisService.getPrefetchedPrice(figi));
                         
                         log.info("Полный анализ {}: тренд = {}, сигнал = {}, цена = {}", 
                             figi, trend.getTrend(), trend.getSignal(), trend.getCurrentPrice());
@@ -175,6 +180,7 @@ public class TradingBotScheduler {
      * Ежедневная проверка портфеля и ребалансировка
      * Выполняется каждый день в 9:00
      */
+    @SchedulerLane(SchedulerLane.Lane.ANALYTICS)
     @Scheduled(cron = "0 0 9 * * ?")
     public void dailyPortfolioCheck() {
         log.info("Запуск ежедневной проверки портфеля");
@@ -209,6 +215,7 @@ public class TradingBotScheduler {
      * Еженедельная оптимизация стратегии
      * Выполняется каждое воскресенье в 20:00
      */
+    @SchedulerLane(SchedulerLane.Lane.ANALYTICS)
     @Scheduled(cron = "0 0 20 * * SUN")
     public void weeklyStrategyOptimization() {
         log.info("Запуск еженедельной оптимизации стратегии");
@@ -4,7 +4,6 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import ru.perminov.model.Order;
-import ru.perminov.repository.OrderRepository;
 
 import java.time.LocalDateTime;
 import java.util.List;
@@ -19,7 +18,7 @@ import java.util.Map;
 @Slf4j
 public class TradingCooldownService {
     
-    private final OrderRepository orderRepository;
+    private final TradeHistoryIndex tradeHistoryIndex;
     private final BotLogService botLogService;
     private final TradingSettingsService tradingSettingsService;
     
@@ -85,29 +84,11 @@ public class TradingCooldownService {
     }
     
     /**
-     * Получение последних ордеров по инструменту
+     * Получение последних исполненных ордеров по инструменту (из индекса исполнений)
      */
     private List<Order> getRecentOrders(String figi, String accountId) {
         LocalDateTime cutoff = LocalDateTime.now().minusHours(2); // Последние 2 часа
-        
-        return orderRepository.findByFigi(figi).stream()
-            .filter(order -> order.getAccountId().equals(accountId))
-            .filter(order -> {
-                LocalDateTime orderDate = order.getOrderDate();
-                return orderDate != null && orderDate.isAfter(cutoff);
-            })
-            // Учитываем несколько вариантов статусов из API
-            .filter(order -> {
-                String s = order.getStatus() != null ? order.getStatus().toUpperCase() : "";
-                return s.contains("FILL") ||
-                       s.equals("FILLED") ||
-                       s.equals("EXECUTED") ||
-                       s.equals("PARTIALLYFILL") ||
-                       s.equals("PARTIAL_FILL");
-            })
-            .sorted((o1, o2) -> o2.getOrderDate().compareTo(o1.getOrderDate())) // Сортируем по убыванию
-            .limit(5) // Берем последние 5 сделок
-            .toList();
+        return tradeHistoryIndex.getRecentFills(accountId, figi, cutoff, 5); // Берем последние 5 сделок
     }
     
     /**
@@ -134,18 +115,7 @@ public class TradingCooldownService {
      * Определение типа действия по направлению ордера
      */
     private String getActionType(String direction) {
-        if (direction == null) return "UNKNOWN";
-        
-        switch (direction.toUpperCase()) {
-            case "ORDER_DIRECTION_BUY":
-            case "BUY":
-                return "BUY";
-            case "ORDER_DIRECTION_SELL":
-            case "SELL":
-                return "SELL";
-            default:
-                return "UNKNOWN";
-        }
+        return TradeHistoryIndex.normalizeDirection(direction);
     }
     
     /**
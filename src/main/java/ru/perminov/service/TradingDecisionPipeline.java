@@ -0,0 +1,260 @@
+package ru.perminov.service;
+
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Supplier;
+
+/**
+ * Каркас торгового решения: этапы signal → filters → sizing → risk gate → routing → post-trade OCO.
+ * Решение описывается списком шагов {@link Step}; {@link #run} выполняет их по порядку и останавливается
+ * на первом шаге, завершившем решение. Каждое решение ведёт {@link Trace}: время копится по этапам
+ * (дешёвые фильтры идут и до, и после сигнала) и по завершении решения пишется в гистограммы этапов —
+ * по одному замеру на этап; этап, на котором решение завершилось (отсев, HOLD, ордер), учитывается отдельно.
+ * Независимые обращения (тренд, ATR, лимиты и маржа, стакан, продвинутый сигнал) запускаются параллельно
+ * на виртуальных потоках через {@link #async} и дожидаются шагом, которому нужен результат.
+ */
+@Component
+@Slf4j
+public class TradingDecisionPipeline {
+
+    public enum Stage {
+        SIGNAL, FILTERS, SIZING, RISK_GATE, ROUTING, POST_TRADE
+    }
+
+    private final AnalysisContext analysisContext;
+
+    private final ExecutorService lookupExecutor = Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("decision-lookup-", 0).factory());
+
+    private final Map<Stage, LatencyHistogram> stageLatency = new EnumMap<>(Stage.class);
+    private final Map<Stage, AtomicLong> exits = new EnumMap<>(Stage.class);
+    private final LatencyHistogram totalLatency = new LatencyHistogram();
+    private final AtomicLong decisions = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    public TradingDecisionPipeline(AnalysisContext analysisContext) {
+        this.analysisContext = analysisContext;
+        for (Stage stage : Stage.values()) {
+            stageLatency.put(stage, new LatencyHistogram());
+            exits.put(stage, new AtomicLong());
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        lookupExecutor.shutdownNow();
+    }
+
+    /**
+     * Начало решения по инструменту: трассировка стартует с дешёвых фильтров допуска
+     */
+    public Trace start(String figi) {
+        decisions.incrementAndGet();
+        return new Trace(figi);
+    }
+
+    /**
+     * Независимый запрос параллельно текущему этапу; выполняется в цикле анализа вызывающего потока
+     */
+    public <T> CompletableFuture<T> async(Supplier<T> lookup) {
+        return CompletableFuture.supplyAsync(analysisContext.bind(lookup), lookupExecutor);
+    }
+
+    /**
+     * Логика шага над состоянием решения; false — решение на этом шаге завершено
+     * (отсев, блокировка, ордер размещён)
+     */
+    @FunctionalInterface
+    public interface Check<C> {
+        boolean proceed(C decision) throws Exception;
+    }
+
+    /**
+     * Шаг решения: этап, в который идёт его время, и его логика
+     */
+    public record Step<C>(Stage stage, String name, Check<C> check) {
+    }
+
+    public static <C> Step<C> step(Stage stage, String name, Check<C> check) {
+        return new Step<>(stage, name, check);
+    }
+
+    /**
+     * Прогон шагов по порядку до первого отказа; true — все шаги пройдены
+     */
+    public <C> boolean run(Trace trace, C decision, List<Step<C>> steps) throws Exception {
+        for (Step<C> step : steps) {
+            trace.enter(step.stage());
+            if (!step.check().proceed(decision)) {
+                log.debug("Решение по {} завершено на шаге {} ({})", trace.figi, step.name(), step.stage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Результат параллельного запроса; ошибка запроса пробрасывается как есть
+     */
+    public static <T> T join(CompletableFuture<T> future, long timeoutMs) throws Exception {
+        try {
+            return future.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception cause) throw cause;
+            throw e;
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw e;
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("decisions", decisions.get());
+        stats.put("failures", failures.get());
+        stats.put("total", totalLatency.toStats());
+        Map<String, Object> stages = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            Map<String, Object> s = stageLatency.get(stage).toStats();
+            s.put("exits", exits.get(stage).get());
+            stages.put(stage.name(), s);
+        }
+        stats.put("stages", stages);
+        return stats;
+    }
+
+    /**
+     * Трассировка одного решения; используется из одного потока
+     */
+    public final class Trace implements AutoCloseable {
+        private final String figi;
+        private final long startNanos = System.nanoTime();
+        private final long[] stageNanos = new long[Stage.values().length];
+        private final boolean[] visited = new boolean[Stage.values().length];
+        private Stage stage = Stage.FILTERS;
+        private long stageStartNanos = startNanos;
+        private boolean failed;
+        private boolean closed;
+
+        private Trace(String figi) {
+            this.figi = figi;
+        }
+
+        /**
+         * Переход к этапу: время текущего этапа добавляется к его сумме за решение
+         */
+        public void enter(Stage next) {
+            if (closed || next == stage) return;
+            long now = System.nanoTime();
+            accumulate(now);
+            stage = next;
+            stageStartNanos = now;
+        }
+
+        private void accumulate(long now) {
+            stageNanos[stage.ordinal()] += now - stageStartNanos;
+            visited[stage.ordinal()] = true;
+        }
+
+        public void fail() {
+            failed = true;
+        }
+
+        public Stage getStage() { return stage; }
+
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            long now = System.nanoTime();
+            accumulate(now);
+            for (Stage s : Stage.values()) {
+                if (visited[s.ordinal()]) {
+                    stageLatency.get(s).record(stageNanos[s.ordinal()]);
+                }
+            }
+            totalLatency.record(now - startNanos);
+            exits.get(stage).incrementAndGet();
+            if (failed) failures.incrementAndGet();
+            long totalMs = TimeUnit.NANOSECONDS.toMillis(now - startNanos);
+            if (totalMs >= 5000) {
+                log.warn("🐢 Решение по {} заняло {} мс (завершено на этапе {})", figi, totalMs, stage);
+            } else {
+                log.debug("Решение по {}: {} мс, этап завершения {}", figi, totalMs, stage);
+            }
+        }
+    }
+
+    /**
+     * Гистограмма задержек с фиксированными границами корзин (мс), без блокировок
+     */
+    static final class LatencyHistogram {
+        private static final long[] BOUNDS_MS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000};
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BOUNDS_MS.length + 1);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sumNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos) {
+            long ms = TimeUnit.NANOSECONDS.toMillis(nanos);
+            int i = 0;
+            while (i < BOUNDS_MS.length && ms >= BOUNDS_MS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            count.incrementAndGet();
+            sumNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * Верхняя граница корзины, в которую попадает квантиль q
+         */
+        private String quantile(double q, long total) {
+            long target = (long) Math.ceil(q * total);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return i < BOUNDS_MS.length ? "<" + BOUNDS_MS[i] + "ms" : ">=" + BOUNDS_MS[BOUNDS_MS.length - 1] + "ms";
+                }
+            }
+            return "n/a";
+        }
+
+        Map<String, Object> toStats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            long total = count.get();
+            stats.put("count", total);
+            stats.put("avgMs", total > 0 ? sumNanos.get() / total / 1_000_000.0 : 0.0);
+            stats.put("maxMs", maxNanos.get() / 1_000_000.0);
+            if (total > 0) {
+                stats.put("p50", quantile(0.50, total));
+                stats.put("p90", quantile(0.90, total));
+                stats.put("p99", quantile(0.99, total));
+            }
+            Map<String, Long> histogram = new LinkedHashMap<>();
+            for (int i = 0; i < buckets.length(); i++) {
+                String label = i < BOUNDS_MS.length ? "<" + BOUNDS_MS[i] + "ms" : ">=" + BOUNDS_MS[BOUNDS_MS.length - 1] + "ms";
+                histogram.put(label, buckets.get(i));
+            }
+            stats.put("histogram", histogram);
+            return stats;
+        }
+    }
+}
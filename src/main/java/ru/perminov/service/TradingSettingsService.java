@@ -1,14 +1,31 @@
 package ru.perminov.service;
 
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.model.TradingSettings;
 import ru.perminov.repository.TradingSettingsRepository;
 
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 
+/**
+ * Настройки торгового бота.
+ * Чтение идёт из неизменяемого in-memory снимка с заранее разобранными значениями (без запросов к БД
+ * и без аллокаций на вызов). Снимок загружается при старте, атомарно заменяется после upsert, а изменения,
+ * сделанные в обход сервиса, подхватываются по PostgreSQL NOTIFY ({@link SettingsChangeListener})
+ * и страховочным опросом отпечатка таблицы.
+ */
 @Service
 @RequiredArgsConstructor
 @Slf4j
@@ -16,57 +33,34 @@ public class TradingSettingsService {
 
     private final TradingSettingsRepository repository;
 
+    private volatile Map<String, SettingValue> snapshot = Map.of();
+    private volatile long loadedCount = -1;
+    private volatile LocalDateTime loadedMaxUpdatedAt;
+
+    @PostConstruct
+    public void init() {
+        reload();
+    }
+
     public String getString(String key, String defaultValue) {
-        try {
-            Optional<TradingSettings> opt = repository.findByKey(key);
-            if (opt.isPresent()) {
-                TradingSettings setting = opt.get();
-                String value = setting.getValue();
-                log.info("getString: key={}, found in DB: id={}, value='{}', valueLength={}, valueIsNull={}, valueIsEmpty={}, defaultValue='{}'", 
-                    key, setting.getId(), value, value != null ? value.length() : 0, 
-                    value == null, value != null && value.trim().isEmpty(), defaultValue);
-                
-                // Возвращаем значение как есть, даже если оно пустое (это может быть валидное значение "false")
-                // Только если значение null, возвращаем defaultValue
-                if (value == null) {
-                    log.warn("⚠️ getString: key={} has NULL value in DB, returning defaultValue='{}'", key, defaultValue);
-                    return defaultValue;
-                }
-                
-                // Возвращаем значение как есть (даже пустую строку - это валидное значение)
-                return value;
-            } else {
-                log.info("getString: key={}, NOT FOUND in DB, using defaultValue='{}'", key, defaultValue);
-                return defaultValue;
-            }
-        } catch (Exception e) {
-            log.error("❌ getString ERROR: key={}, error={}", key, e.getMessage(), e);
-            return defaultValue;
-        }
+        SettingValue v = snapshot.get(key);
+        // Пустая строка — валидное значение; только отсутствие/NULL даёт defaultValue
+        return v != null && v.raw != null ? v.raw : defaultValue;
     }
 
     public double getDouble(String key, double defaultValue) {
-        try {
-            return repository.findByKey(key).map(TradingSettings::getValue).map(Double::parseDouble).orElse(defaultValue);
-        } catch (Exception e) {
-            return defaultValue;
-        }
+        SettingValue v = snapshot.get(key);
+        return v != null && v.doubleValid ? v.doubleValue : defaultValue;
     }
 
     public int getInt(String key, int defaultValue) {
-        try {
-            return repository.findByKey(key).map(TradingSettings::getValue).map(Integer::parseInt).orElse(defaultValue);
-        } catch (Exception e) {
-            return defaultValue;
-        }
+        SettingValue v = snapshot.get(key);
+        return v != null && v.intValid ? v.intValue : defaultValue;
     }
 
     public boolean getBoolean(String key, boolean defaultValue) {
-        try {
-            return repository.findByKey(key).map(TradingSettings::getValue).map(Boolean::parseBoolean).orElse(defaultValue);
-        } catch (Exception e) {
-            return defaultValue;
-        }
+        SettingValue v = snapshot.get(key);
+        return v != null && v.raw != null ? v.boolValue : defaultValue;
     }
 
     /**
@@ -87,14 +81,119 @@ public class TradingSettingsService {
             s.setValue(newValue);
             s.setDescription(description != null ? description : "");
             TradingSettings saved = repository.saveAndFlush(s); // Используем saveAndFlush для немедленного сохранения
-            log.info("upsert SUCCESS: key={}, oldValue={}, newValue={}, savedId={}, savedValue={}, savedValueLength={}", 
+            log.info("upsert SUCCESS: key={}, oldValue={}, newValue={}, savedId={}, savedValue={}, savedValueLength={}",
                 key, oldValue, newValue, saved.getId(), saved.getValue(), saved.getValue() != null ? saved.getValue().length() : 0);
+            applyAfterCommit(saved.getKey(), saved.getValue());
         } catch (Exception e) {
             log.error("❌ upsert ERROR: key={}, value={}, error={}", key, value, e.getMessage(), e);
             e.printStackTrace();
             throw e; // Пробрасываем исключение дальше
         }
     }
-}
 
+    /**
+     * Полная перезагрузка снимка из БД.
+     * Под той же блокировкой, что и точечное применение ключа: иначе перезагрузка, начатая до NOTIFY,
+     * могла бы записать снимок поверх уже применённого изменения.
+     */
+    public synchronized void reload() {
+        try {
+            List<TradingSettings> all = repository.findAll();
+            Map<String, SettingValue> next = new HashMap<>(all.size() * 2);
+            LocalDateTime maxUpdatedAt = null;
+            for (TradingSettings s : all) {
+                next.put(s.getKey(), new SettingValue(s.getValue()));
+                if (s.getUpdatedAt() != null && (maxUpdatedAt == null || s.getUpdatedAt().isAfter(maxUpdatedAt))) {
+                    maxUpdatedAt = s.getUpdatedAt();
+                }
+            }
+            snapshot = Map.copyOf(next);
+            loadedCount = all.size();
+            loadedMaxUpdatedAt = maxUpdatedAt;
+            log.debug("Снимок настроек загружен: {} ключей", all.size());
+        } catch (Exception e) {
+            log.error("❌ Не удалось загрузить настройки, используется прежний снимок: {}", e.getMessage());
+        }
+    }
 
+    /**
+     * Перечитывает один ключ (по уведомлению NOTIFY)
+     */
+    public void reloadKey(String key) {
+        try {
+            Optional<TradingSettings> opt = repository.findByKey(key);
+            applyToSnapshot(key, opt.map(TradingSettings::getValue).orElse(null), opt.isPresent());
+        } catch (Exception e) {
+            log.warn("Не удалось перечитать настройку {}: {}", key, e.getMessage());
+        }
+    }
+
+    /**
+     * Страховочный опрос: если число строк или максимальный updated_at изменились, перезагружаем снимок.
+     * Ловит правки в обход сервиса, если LISTEN-соединение недоступно.
+     */
+    @SchedulerLane(SchedulerLane.Lane.HOUSEKEEPING)
+    @Scheduled(fixedDelay = 30000)
+    public void pollForExternalChanges() {
+        try {
+            long count = repository.count();
+            LocalDateTime maxUpdatedAt = repository.findMaxUpdatedAt();
+            if (count != loadedCount || !Objects.equals(maxUpdatedAt, loadedMaxUpdatedAt)) {
+                log.info("Обнаружены внешние изменения настроек, перезагружаем снимок");
+                reload();
+            }
+        } catch (Exception e) {
+            log.debug("Опрос изменений настроек не удался: {}", e.getMessage());
+        }
+    }
+
+    private void applyAfterCommit(String key, String value) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    applyToSnapshot(key, value, true);
+                }
+            });
+        } else {
+            applyToSnapshot(key, value, true);
+        }
+    }
+
+    private synchronized void applyToSnapshot(String key, String value, boolean present) {
+        Map<String, SettingValue> next = new HashMap<>(snapshot);
+        if (present) {
+            next.put(key, new SettingValue(value));
+        } else {
+            next.remove(key);
+        }
+        snapshot = Map.copyOf(next);
+    }
+
+    /**
+     * Значение настройки, разобранное один раз при загрузке снимка
+     */
+    private static final class SettingValue {
+        final String raw;
+        final boolean intValid;
+        final int intValue;
+        final boolean doubleValid;
+        final double doubleValue;
+        final boolean boolValue;
+
+        SettingValue(String raw) {
+            this.raw = raw;
+            Integer i = null;
+            Double d = null;
+            if (raw != null) {
+                try { i = Integer.parseInt(raw); } catch (NumberFormatException ignored) { }
+                try { d = Double.parseDouble(raw); } catch (NumberFormatException ignored) { }
+            }
+            this.intValid = i != null;
+            this.intValue = i != null ? i : 0;
+            this.doubleValid = d != null;
+            this.doubleValue = d != null ? d : 0.0;
+            this.boolValue = Boolean.parseBoolean(raw);
+        }
+    }
+}
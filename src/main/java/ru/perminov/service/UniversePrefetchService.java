@@ -0,0 +1,191 @@
+package ru.perminov.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import ru.tinkoff.piapi.contract.v1.GetTradingStatusResponse;
+import ru.tinkoff.piapi.contract.v1.LastPrice;
+import ru.tinkoff.piapi.contract.v1.SecurityTradingStatus;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Пакетная предзагрузка последних цен и торговых статусов для всей вселенной сканирования.
+ * Вместо запроса стакана и устаревшего статуса из справочника по каждому инструменту — несколько
+ * списочных вызовов GetLastPrices/GetTradingStatuses в начале цикла. Неторгуемые инструменты
+ * и инструменты без свежей цены отсеиваются до загрузки свечей.
+ * При ошибке API результат помечается недоступным, и вызывающий использует прежние проверки.
+ */
+@Service
+@RequiredArgsConstructor
+@Slf4j
+public class UniversePrefetchService {
+
+    private static final String NORMAL_TRADING = SecurityTradingStatus.SECURITY_TRADING_STATUS_NORMAL_TRADING.name();
+
+    private final InvestApiManager investApiManager;
+    private final ApiRateLimiter apiRateLimiter;
+    private final TradingSettingsService settingsService;
+
+    private final AtomicLong runs = new AtomicLong();
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong accepted = new AtomicLong();
+    private final AtomicLong apiCalls = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final Map<String, AtomicLong> droppedByReason = new ConcurrentHashMap<>();
+    private volatile long lastDurationMs = 0;
+    private volatile int lastSize = 0;
+
+    /**
+     * Загружает цены и статусы для набора FIGI пачками по scan.prefetch.batch_size
+     */
+    public Prefetch prefetch(Collection<String> figis) {
+        List<String> unique = new ArrayList<>(new LinkedHashSet<>(figis));
+        if (unique.isEmpty() || !settingsService.getBoolean("scan.prefetch.enabled", true)) {
+            return Prefetch.unavailable();
+        }
+        int batchSize = Math.max(1, settingsService.getInt("scan.prefetch.batch_size", 300));
+        long maxPriceAgeMs = settingsService.getInt("scan.prefetch.max_price_age_min", 1440) * 60_000L;
+        long priceReuseMs = settingsService.getInt("scan.prefetch.price_reuse_sec", 300) * 1000L;
+        long start = System.currentTimeMillis();
+        runs.incrementAndGet();
+        requested.addAndGet(unique.size());
+
+        Map<String, BigDecimal> prices = new HashMap<>();
+        Map<String, Long> priceTimes = new HashMap<>();
+        Map<String, GetTradingStatusResponse> statuses = new HashMap<>();
+        try {
+            var marketData = investApiManager.getCurrentInvestApi().getMarketDataService();
+            for (int from = 0; from < unique.size(); from += batchSize) {
+                List<String> batch = unique.subList(from, Math.min(from + batchSize, unique.size()));
+
+                // Цены и статусы пачки запрашиваются параллельно, каждый запрос — по своему разрешению лимитера
+                var lastPrices = apiRateLimiter.call(ApiRateLimiter.ApiClass.MARKET_DATA, () -> marketData.getLastPrices(batch));
+                var tradingStatuses = apiRateLimiter.call(ApiRateLimiter.ApiClass.MARKET_DATA, () -> marketData.getTradingStatuses(batch));
+                apiCalls.addAndGet(2);
+                for (LastPrice lastPrice : lastPrices.join()) {
+                    BigDecimal price = CandleSeries.toBigDecimal(lastPrice.getPrice());
+                    if (price.signum() > 0) {
+                        prices.put(lastPrice.getFigi(), price);
+                        priceTimes.put(lastPrice.getFigi(), lastPrice.getTime().getSeconds() * 1000L);
+                    }
+                }
+
+                for (GetTradingStatusResponse status : tradingStatuses.join().getTradingStatusesList()) {
+                    statuses.put(status.getFigi(), status);
+                }
+            }
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            log.warn("⚠️ Пакетная предзагрузка цен/статусов для {} инструментов не удалась: {}", unique.size(), e.getMessage());
+            return Prefetch.unavailable();
+        }
+
+        long now = System.currentTimeMillis();
+        Map<String, String> dropped = new HashMap<>();
+        for (String figi : unique) {
+            String reason = dropReason(statuses.get(figi), prices.get(figi), priceTimes.get(figi), now, maxPriceAgeMs);
+            if (reason != null) {
+                dropped.put(figi, reason);
+                droppedByReason.computeIfAbsent(reason.split(":")[0], r -> new AtomicLong()).incrementAndGet();
+            }
+        }
+        accepted.addAndGet(unique.size() - dropped.size());
+        lastDurationMs = now - start;
+        lastSize = unique.size();
+        log.info("📦 Предзагрузка {} инструментов: {} вызовов API за {} мс, отсеяно {}",
+            unique.size(), 2 * ((unique.size() + batchSize - 1) / batchSize), lastDurationMs, dropped.size());
+        return new Prefetch(true, prices, priceTimes, priceReuseMs, dropped);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("runs", runs.get());
+        stats.put("requested", requested.get());
+        stats.put("accepted", accepted.get());
+        stats.put("apiCalls", apiCalls.get());
+        stats.put("failures", failures.get());
+        Map<String, Long> dropped = new LinkedHashMap<>();
+        droppedByReason.forEach((reason, count) -> dropped.put(reason, count.get()));
+        stats.put("droppedByReason", dropped);
+        stats.put("lastSize", lastSize);
+        stats.put("lastDurationMs", lastDurationMs);
+        return stats;
+    }
+
+    private static String dropReason(GetTradingStatusResponse status, BigDecimal price, Long priceTimeMs,
+                                     long nowMs, long maxPriceAgeMs) {
+        if (status == null) {
+            return "no_status";
+        }
+        if (!NORMAL_TRADING.equals(status.getTradingStatus().name())) {
+            return "status:" + status.getTradingStatus().name();
+        }
+        if (!status.getApiTradeAvailableFlag()) {
+            return "api_trade_unavailable";
+        }
+        if (price == null) {
+            return "no_price";
+        }
+        if (priceTimeMs != null && nowMs - priceTimeMs > maxPriceAgeMs) {
+            return "stale_price";
+        }
+        return null;
+    }
+
+    /**
+     * Результат предзагрузки одного цикла
+     */
+    public static class Prefetch {
+        private final boolean available;
+        private final Map<String, BigDecimal> lastPrices;
+        private final Map<String, Long> priceTimes;
+        private final long priceReuseMs;
+        private final Map<String, String> dropReasons;
+
+        Prefetch(boolean available, Map<String, BigDecimal> lastPrices, Map<String, Long> priceTimes,
+                 long priceReuseMs, Map<String, String> dropReasons) {
+            this.available = available;
+            this.lastPrices = lastPrices;
+            this.priceTimes = priceTimes;
+            this.priceReuseMs = priceReuseMs;
+            this.dropReasons = dropReasons;
+        }
+
+        static Prefetch unavailable() {
+            return new Prefetch(false, Map.of(), Map.of(), 0, Map.of());
+        }
+
+        /**
+         * Инструмент можно анализировать. Если предзагрузка недоступна — не отсеиваем ничего.
+         */
+        public boolean accepts(String figi) {
+            return !available || !dropReasons.containsKey(figi);
+        }
+
+        public boolean isAvailable() { return available; }
+        public String getDropReason(String figi) { return dropReasons.get(figi); }
+
+        /**
+         * Последняя цена из пакета, если сделка не старше scan.prefetch.price_reuse_sec;
+         * иначе null — вызывающий запрашивает цену по инструменту сам
+         */
+        public BigDecimal getLastPrice(String figi) {
+            BigDecimal price = lastPrices.get(figi);
+            Long time = priceTimes.get(figi);
+            if (price == null || time == null || System.currentTimeMillis() - time > priceReuseMs) {
+                return null;
+            }
+            return price;
+        }
+    }
+}
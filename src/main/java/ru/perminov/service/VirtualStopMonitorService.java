@@ -1,9 +1,12 @@
 package ru.perminov.service;
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import ru.perminov.config.SchedulerLane;
 import ru.perminov.model.Order;
 import ru.perminov.repository.OrderRepository;
 import ru.tinkoff.piapi.contract.v1.OrderDirection;
@@ -16,11 +19,15 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.stream.Collectors;
 
 /**
  * 🚀 НОВЫЙ СЕРВИС: Мониторинг виртуальных стоп-лоссов
- * Проверяет цены и автоматически исполняет стопы при достижении уровней
+ * Проверяет цены и автоматически исполняет стопы при достижении уровней.
+ * Уровни проверяются событийно на каждой котировке из {@link MarketDataHub} через {@link VirtualTriggerIndex};
+ * периодический проход только сверяет индекс с БД и страхует инструменты без живого потока.
  */
 @Service
 @RequiredArgsConstructor
@@ -28,6 +35,7 @@ import java.util.stream.Collectors;
 public class VirtualStopMonitorService {
     
     private final OrderRepository orderRepository;
+    private final OrderRegistry orderRegistry;
     private final MarketAnalysisService marketAnalysisService;
     private final OrderService orderService;
     private final BotLogService botLogService;
@@ -37,32 +45,101 @@ public class VirtualStopMonitorService {
     private final TradingCooldownService tradingCooldownService;
     private final MarginService marginService;
 
-    // Анти-ложные срабатывания: счетчики подтверждений
-    private final Map<String, Integer> touchCounters = new ConcurrentHashMap<>();
-    private final Map<String, LocalDateTime> lastTouch = new ConcurrentHashMap<>();
-    
+    private final VirtualTriggerIndex triggerIndex;
+    private final MarketDataHub marketDataHub;
+
+    // Анти-ложные срабатывания: подтверждения, разнесённые во времени
+    private final Map<String, Touch> touches = new ConcurrentHashMap<>();
+
+    // Исполнение сработавших триггеров вне потока стрима: заявки и БД не блокируют чтение котировок
+    private final ExecutorService triggerExecutor = Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("virtual-stop-", 0).factory());
+
+    @PostConstruct
+    public void init() {
+        marketDataHub.addListener(this::onQuote);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        triggerExecutor.shutdownNow();
+    }
+
     /**
-     * Мониторинг виртуальных стопов и OCO ордеров каждые 30 секунд
+     * Событийная проверка: вызывается на каждое обновление котировки из потока рыночных данных.
+     * Поиск пересечённых уровней идёт по in-memory индексу, исполнение — в отдельном виртуальном потоке.
      */
+    void onQuote(String figi, MarketDataHub.Quote quote) {
+        if (!triggerIndex.hasTriggers(figi)) {
+            return;
+        }
+        double bid = quote.hasBook() ? quote.getBid().doubleValue() : Double.NaN;
+        double ask = quote.hasBook() ? quote.getAsk().doubleValue() : Double.NaN;
+        double last = quote.getLastPrice() != null ? quote.getLastPrice().doubleValue()
+            : (quote.hasBook() ? (bid + ask) / 2.0 : Double.NaN);
+        List<VirtualTriggerIndex.Trigger> crossed = triggerIndex.collectCrossed(figi, bid, ask, last, System.currentTimeMillis());
+        for (VirtualTriggerIndex.Trigger trigger : crossed) {
+            triggerExecutor.execute(() -> handleCrossedTrigger(trigger, quote));
+        }
+    }
+
+    private void handleCrossedTrigger(VirtualTriggerIndex.Trigger trigger, MarketDataHub.Quote quote) {
+        try {
+            // Состояние ордера берём из индекса: он обновляется при каждой записи ордера, БД не читаем
+            Order cached = trigger.getOrder();
+            Order order = cached != null ? OrderRegistry.copyOf(cached) : null;
+            if (order == null || !"MONITORING".equals(order.getStatus())) {
+                // Ордер уже исполнен/отменён в обход индекса
+                triggerIndex.remove(trigger.getOrderId());
+                return;
+            }
+            BigDecimal bid = quote.hasBook() ? quote.getBid() : null;
+            BigDecimal ask = quote.hasBook() ? quote.getAsk() : null;
+            BigDecimal price = quote.getLastPrice() != null ? quote.getLastPrice()
+                : (bid != null ? bid.add(ask).divide(BigDecimal.valueOf(2), 9, RoundingMode.HALF_UP) : null);
+            evaluateVirtualOrder(order, price, bid, ask);
+            if (!"MONITORING".equals(order.getStatus())) {
+                triggerIndex.remove(order.getOrderId());
+            }
+        } catch (Exception e) {
+            log.error("Ошибка обработки триггера {}: {}", trigger.getOrderId(), e.getMessage());
+        } finally {
+            triggerIndex.release(trigger);
+        }
+    }
+
+    /**
+     * Сверка индекса с БД и страховочная проверка каждые 30 секунд.
+     * Индекс пересобирается из MONITORING-ордеров (восстановление после рестарта и правок в обход сервиса),
+     * инструменты подписываются на поток; ордера без живой котировки проверяются по запросу цены.
+     */
+    @SchedulerLane(SchedulerLane.Lane.RISK_CRITICAL)
     @Scheduled(fixedRate = 30000)
     public void monitorVirtualStops() {
         try {
-            // Получаем все активные виртуальные ордера
-                            List<Order> virtualStops = orderRepository.findByStatus("MONITORING").stream()
+            // Получаем все активные виртуальные ордера из реестра живых ордеров
+            List<Order> virtualStops = orderRegistry.getByStatus("MONITORING").stream()
                     .filter(order -> "VIRTUAL_STOP_LOSS".equals(order.getOrderType()) || 
                                    "VIRTUAL_TAKE_PROFIT".equals(order.getOrderType()))
                     .collect(java.util.stream.Collectors.toList());
             
+            triggerIndex.rebuild(virtualStops);
             if (virtualStops.isEmpty()) {
                 return;
             }
+            marketDataHub.subscribe(triggerIndex.getFigis());
             
-            log.debug("🔍 Мониторинг {} виртуальных ордеров (стопы + OCO)", virtualStops.size());
+            log.debug("🔍 Сверка {} виртуальных ордеров (стопы + OCO)", virtualStops.size());
             
             for (Order virtualOrder : virtualStops) {
                 try {
+                    if (marketDataHub.getQuote(virtualOrder.getFigi()) != null) {
+                        continue; // инструмент обслуживается событийно
+                    }
                     checkVirtualOrder(virtualOrder);
-                    Thread.sleep(100); // Небольшая задержка между проверками
+                    if (!"MONITORING".equals(virtualOrder.getStatus())) {
+                        triggerIndex.remove(virtualOrder.getOrderId());
+                    }
                 } catch (Exception e) {
                     log.error("Ошибка проверки виртуального ордера {}: {}", virtualOrder.getOrderId(), e.getMessage());
                 }
@@ -74,34 +151,14 @@ public class VirtualStopMonitorService {
     }
     
     /**
-     * Проверка конкретного виртуального ордера (стоп или тейк-профит)
+     * Проверка конкретного виртуального ордера по запрошенной цене (когда котировки из потока нет)
      */
     private void checkVirtualOrder(Order virtualOrder) {
         try {
             String figi = virtualOrder.getFigi();
-            BigDecimal triggerPrice = virtualOrder.getPrice();
-            String operation = virtualOrder.getOperation();
-            String orderType = virtualOrder.getOrderType();
-            int lots = virtualOrder.getRequestedLots().intValue();
-            String accountId = virtualOrder.getAccountId();
-            if (lots <= 0) return;
-
-            // Arm-delay: не активируем SL/TP первые N секунд
-            int armDelaySec =  tradingSettingsService.getInt("virtual.stop.arm.delay.sec", 60);
-            try {
-                LocalDateTime od = virtualOrder.getOrderDate();
-                if (od != null) {
-                    if (Duration.between(od, LocalDateTime.now()).getSeconds() < armDelaySec) {
-                        log.debug("⏳ Arm-delay для {}: стоп ещё не активен", virtualOrder.getOrderId());
-                        return;
-                    }
-                }
-            } catch (Exception ignore) { }
             
             // Получаем текущую цену
-            MarketAnalysisService.TrendAnalysis trend = marketAnalysisService.analyzeTrend(
-                figi, ru.tinkoff.piapi.contract.v1.CandleInterval.CANDLE_INTERVAL_1_MIN);
-            BigDecimal currentPrice = trend.getCurrentPrice();
+            BigDecimal currentPrice = marketAnalysisService.getCurrentMarketPrice(figi);
             if (currentPrice == null || currentPrice.compareTo(BigDecimal.ZERO) <= 0) {
                 log.debug("⚠️ Цена недоступна для {} — пропуск", displayOf(figi));
                 return;
@@ -115,68 +172,117 @@ public class VirtualStopMonitorService {
             BigDecimal bidApprox = currentPrice.multiply(BigDecimal.ONE.subtract(halfSpread));
             BigDecimal askApprox = currentPrice.multiply(BigDecimal.ONE.add(halfSpread));
             
-            boolean shouldTrigger = false;
-            OrderDirection triggerDirection = null;
-            String triggerType = "";
-            
-            // Логика для Stop-Loss
-            if ("VIRTUAL_STOP_LONG".equals(operation)) {
-                // Лонг: проверяем bid
-                if (bidApprox.compareTo(triggerPrice) <= 0) {
-                    shouldTrigger = true;
-                    triggerDirection = OrderDirection.ORDER_DIRECTION_SELL;
-                    triggerType = "STOP-LOSS (ЛОНГ)";
-                    log.warn("🛑 КАНДИДАТ SL (ЛОНГ): {} bid≈{} (mid={}) стоп {}", 
-                        displayOf(figi), bidApprox, currentPrice, triggerPrice);
-                }
-            } else if ("VIRTUAL_STOP_SHORT".equals(operation)) {
-                // Шорт: проверяем ask
-                if (askApprox.compareTo(triggerPrice) >= 0) {
-                    shouldTrigger = true;
-                    triggerDirection = OrderDirection.ORDER_DIRECTION_BUY;
-                    triggerType = "STOP-LOSS (ШОРТ)";
-                    log.warn("🛑 КАНДИДАТ SL (ШОРТ): {} ask≈{} (mid={}) стоп {}", 
-                        displayOf(figi), askApprox, currentPrice, triggerPrice);
+            evaluateVirtualOrder(virtualOrder, currentPrice, bidApprox, askApprox);
+            
+        } catch (Exception e) {
+            log.error("Ошибка проверки виртуального ордера {}: {}", virtualOrder.getOrderId(), e.getMessage());
+        }
+    }
+    
+    /**
+     * Проверка уровня виртуального ордера (стоп или тейк-профит) по цене и bid/ask
+     */
+    private void evaluateVirtualOrder(Order virtualOrder, BigDecimal currentPrice, BigDecimal bidApprox, BigDecimal askApprox) {
+        String figi = virtualOrder.getFigi();
+        BigDecimal triggerPrice = virtualOrder.getPrice();
+        String operation = virtualOrder.getOperation();
+        int lots = virtualOrder.getRequestedLots().intValue();
+        if (lots <= 0) return;
+        if (currentPrice == null || currentPrice.compareTo(BigDecimal.ZERO) <= 0) return;
+        if (bidApprox == null) bidApprox = currentPrice;
+        if (askApprox == null) askApprox = currentPrice;
+
+        // Arm-delay: не активируем SL/TP первые N секунд
+        int armDelaySec =  tradingSettingsService.getInt("virtual.stop.arm.delay.sec", 60);
+        try {
+            LocalDateTime od = virtualOrder.getOrderDate();
+            if (od != null) {
+                if (Duration.between(od, LocalDateTime.now()).getSeconds() < armDelaySec) {
+                    log.debug("⏳ Arm-delay для {}: стоп ещё не активен", virtualOrder.getOrderId());
+                    return;
                 }
             }
-            // Логика для Take-Profit
-            else if ("VIRTUAL_TP_LONG".equals(operation)) {
-                // Лонг: тейк-профит срабатывает если цена выросла выше уровня
-                if (currentPrice.compareTo(triggerPrice) >= 0) {
-                    shouldTrigger = true;
-                    triggerDirection = OrderDirection.ORDER_DIRECTION_SELL;
-                    triggerType = "TAKE-PROFIT (ЛОНГ)";
-                    log.info("🎯 СРАБАТЫВАНИЕ ТЕЙК-ПРОФИТА (ЛОНГ): {} вырос до {} (TP: {})", 
-                        displayOf(figi), currentPrice, triggerPrice);
-                }
-            } else if ("VIRTUAL_TP_SHORT".equals(operation)) {
-                // Шорт: тейк-профит срабатывает если цена упала ниже уровня
-                if (currentPrice.compareTo(triggerPrice) <= 0) {
-                    shouldTrigger = true;
-                    triggerDirection = OrderDirection.ORDER_DIRECTION_BUY;
-                    triggerType = "TAKE-PROFIT (ШОРТ)";
-                    log.info("🎯 СРАБАТЫВАНИЕ ТЕЙК-ПРОФИТА (ШОРТ): {} упал до {} (TP: {})", 
-                        displayOf(figi), currentPrice, triggerPrice);
-                }
+        } catch (Exception ignore) { }
+        
+        boolean shouldTrigger = false;
+        OrderDirection triggerDirection = null;
+        String triggerType = "";
+        
+        // Логика для Stop-Loss
+        if ("VIRTUAL_STOP_LONG".equals(operation)) {
+            // Лонг: проверяем bid
+            if (bidApprox.compareTo(triggerPrice) <= 0) {
+                shouldTrigger = true;
+                triggerDirection = OrderDirection.ORDER_DIRECTION_SELL;
+                triggerType = "STOP-LOSS (ЛОНГ)";
+                log.warn("🛑 КАНДИДАТ SL (ЛОНГ): {} bid≈{} (mid={}) стоп {}", 
+                    displayOf(figi), bidApprox, currentPrice, triggerPrice);
             }
-            
-            if (shouldTrigger) {
-                int need = tradingSettingsService.getInt("virtual.stop.confirmations", 2);
-                int touches = touchCounters.merge(virtualOrder.getOrderId(), 1, Integer::sum);
-                lastTouch.put(virtualOrder.getOrderId(), LocalDateTime.now());
-                if (touches >= need) {
-                    touchCounters.remove(virtualOrder.getOrderId());
-                    lastTouch.remove(virtualOrder.getOrderId());
-                    executeVirtualOrder(virtualOrder, triggerDirection, currentPrice, triggerType);
-                } else {
-                    log.debug("⏳ Подтверждение SL {}/{} для {}", touches, need, virtualOrder.getOrderId());
-                }
+        } else if ("VIRTUAL_STOP_SHORT".equals(operation)) {
+            // Шорт: проверяем ask
+            if (askApprox.compareTo(triggerPrice) >= 0) {
+                shouldTrigger = true;
+                triggerDirection = OrderDirection.ORDER_DIRECTION_BUY;
+                triggerType = "STOP-LOSS (ШОРТ)";
+                log.warn("🛑 КАНДИДАТ SL (ШОРТ): {} ask≈{} (mid={}) стоп {}", 
+                    displayOf(figi), askApprox, currentPrice, triggerPrice);
+            }
+        }
+        // Логика для Take-Profit
+        else if ("VIRTUAL_TP_LONG".equals(operation)) {
+            // Лонг: тейк-профит срабатывает если цена выросла выше уровня
+            if (currentPrice.compareTo(triggerPrice) >= 0) {
+                shouldTrigger = true;
+                triggerDirection = OrderDirection.ORDER_DIRECTION_SELL;
+                triggerType = "TAKE-PROFIT (ЛОНГ)";
+                log.info("🎯 СРАБАТЫВАНИЕ ТЕЙК-ПРОФИТА (ЛОНГ): {} вырос до {} (TP: {})", 
+                    displayOf(figi), currentPrice, triggerPrice);
+            }
+        } else if ("VIRTUAL_TP_SHORT".equals(operation)) {
+            // Шорт: тейк-профит срабатывает если цена упала ниже уровня
+            if (currentPrice.compareTo(triggerPrice) <= 0) {
+                shouldTrigger = true;
+                triggerDirection = OrderDirection.ORDER_DIRECTION_BUY;
+                triggerType = "TAKE-PROFIT (ШОРТ)";
+                log.info("🎯 СРАБАТЫВАНИЕ ТЕЙК-ПРОФИТА (ШОРТ): {} упал до {} (TP: {})", 
+                    displayOf(figi), currentPrice, triggerPrice);
+            }
+        }
+        
+        if (shouldTrigger) {
+            int need = tradingSettingsService.getInt("virtual.stop.confirmations", 2);
+            int confirmed = confirm(virtualOrder.getOrderId());
+            if (confirmed >= need) {
+                touches.remove(virtualOrder.getOrderId());
+                executeVirtualOrder(virtualOrder, triggerDirection, currentPrice, triggerType);
+            } else {
+                log.debug("⏳ Подтверждение SL {}/{} для {}", confirmed, need, virtualOrder.getOrderId());
             }
-            
-        } catch (Exception e) {
-            log.error("Ошибка проверки виртуального ордера {}: {}", virtualOrder.getOrderId(), e.getMessage());
         }
     }
+
+    /**
+     * Учёт касания уровня: подтверждением считается касание не раньше virtual.stop.confirm.interval_ms
+     * после предыдущего засчитанного, поэтому пачка тиков за миллисекунды даёт одно подтверждение.
+     * Если уровень не касался дольше virtual.stop.confirm.window_ms, счёт начинается заново.
+     */
+    private int confirm(String orderId) {
+        long now = System.currentTimeMillis();
+        long intervalMs = tradingSettingsService.getInt("virtual.stop.confirm.interval_ms", 1000);
+        long windowMs = tradingSettingsService.getInt("virtual.stop.confirm.window_ms", 60000);
+        Touch touch = touches.compute(orderId, (id, t) -> {
+            if (t == null || now - t.lastSeenMs > windowMs) {
+                return new Touch(1, now, now);
+            }
+            if (now - t.lastCountedMs >= intervalMs) {
+                return new Touch(t.count + 1, now, now);
+            }
+            return new Touch(t.count, t.lastCountedMs, now);
+        });
+        return touch.count;
+    }
+
+    private record Touch(int count, long lastCountedMs, long lastSeenMs) { }
     
     /**
      * Исполнение виртуального ордера с поддержкой OCO
@@ -355,8 +461,8 @@ public class VirtualStopMonitorService {
             if (ocoGroupId == null) return;
             
             // Находим все ордера в этой OCO группе
-            List<Order> ocoOrders = orderRepository.findByStatus("MONITORING").stream()
-                .filter(order -> order.getMessage() != null && order.getMessage().contains("OCO_GROUP:" + ocoGroupId))
+            List<Order> ocoOrders = orderRegistry.getByOcoGroup(ocoGroupId).stream()
+                .filter(order -> "MONITORING".equals(order.getStatus()))
                 .collect(java.util.stream.Collectors.toList());
             
             for (Order ocoOrder : ocoOrders) {
@@ -373,6 +479,7 @@ public class VirtualStopMonitorService {
                     ocoOrder.setMessage(newMessage);
                     
                     orderRepository.save(ocoOrder);
+                    triggerIndex.remove(ocoOrder.getOrderId());
                     
                     log.info("🚫 OCO: Отменен парный ордер {} (исполнен {})", 
                         ocoOrder.getOrderId(), executedOrderId);
@@ -597,7 +704,7 @@ public class VirtualStopMonitorService {
      * НЕ включает HARD_OCO ордера, так как они управляются HardOcoMonitorService
      */
     private List<Order> getActiveLimitOrders(String accountId, String excludeFigi) {
-        return orderRepository.findByAccountId(accountId).stream()
+        return orderRegistry.getByAccount(accountId).stream()
             .filter(order -> {
                 // Только лимитные ордера, НО НЕ HARD_OCO (они управляются отдельно)
                 String orderType = order.getOrderType();
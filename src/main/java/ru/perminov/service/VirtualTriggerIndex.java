@@ -0,0 +1,289 @@
+package ru.perminov.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+import ru.perminov.model.Order;
+
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory индекс виртуальных стопов и тейк-профитов.
+ * На каждый FIGI — четыре отсортированных по уровню набора (стопы лонга/шорта, тейки лонга/шорта),
+ * поэтому проверка тика — это один поиск в дереве плюс перебор только пересечённых уровней.
+ * БД остаётся источником истины: индекс пополняется при создании ордеров, следит за каждой записью
+ * ордера ({@link OrderRegistryListener}) и полностью пересобирается из MONITORING-ордеров при сверке.
+ * Триггер хранит копию ордера, поэтому обработка срабатывания не читает БД.
+ */
+@Component
+@RequiredArgsConstructor
+@Slf4j
+public class VirtualTriggerIndex {
+
+    private static final Comparator<Trigger> BY_LEVEL =
+        Comparator.comparingDouble((Trigger t) -> t.level).thenComparing(t -> t.orderId);
+
+    /**
+     * Тип триггера по операции виртуального ордера
+     */
+    public enum Kind {
+        STOP_LONG("VIRTUAL_STOP_LONG"),
+        STOP_SHORT("VIRTUAL_STOP_SHORT"),
+        TP_LONG("VIRTUAL_TP_LONG"),
+        TP_SHORT("VIRTUAL_TP_SHORT");
+
+        private final String operation;
+
+        Kind(String operation) {
+            this.operation = operation;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        static Kind ofOperation(String operation) {
+            for (Kind kind : values()) {
+                if (kind.operation.equals(operation)) {
+                    return kind;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final TradingSettingsService settingsService;
+
+    private final Map<String, FigiBook> books = new ConcurrentHashMap<>();
+    private final Map<String, Trigger> byOrderId = new ConcurrentHashMap<>();
+
+    private final AtomicLong evaluations = new AtomicLong();
+    private final AtomicLong crossings = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    /**
+     * Добавляет виртуальный ордер в индекс. Ордера не в статусе MONITORING или неизвестного типа игнорируются.
+     */
+    public boolean register(Order order) {
+        Kind kind = Kind.ofOperation(order.getOperation());
+        if (kind == null || order.getPrice() == null || !"MONITORING".equals(order.getStatus())) {
+            return false;
+        }
+        long armDelayMs = settingsService.getInt("virtual.stop.arm.delay.sec", 60) * 1000L;
+        long createdMs = order.getOrderDate() != null
+            ? order.getOrderDate().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+            : 0L;
+        Trigger trigger = new Trigger(order.getOrderId(), order.getFigi(), kind,
+            order.getPrice().doubleValue(), createdMs + armDelayMs);
+        trigger.order = OrderRegistry.copyOf(order);
+        Trigger previous = byOrderId.put(trigger.orderId, trigger);
+        if (previous != null) {
+            if (previous.level == trigger.level && previous.figi.equals(trigger.figi) && previous.kind == trigger.kind) {
+                previous.order = trigger.order;
+                byOrderId.put(previous.orderId, previous); // не теряем флаг обработки
+                return true;
+            }
+            removeFromBook(previous);
+        }
+        FigiBook book = books.computeIfAbsent(trigger.figi, f -> new FigiBook());
+        synchronized (book) {
+            book.set(kind).add(trigger);
+        }
+        return true;
+    }
+
+    /**
+     * Запись ордера: MONITORING-ордер (пере)регистрируется с новой копией, иначе снимается с индекса
+     */
+    public void apply(Order order) {
+        if (!register(order)) {
+            remove(order.getOrderId());
+        }
+    }
+
+    public void remove(String orderId) {
+        Trigger trigger = byOrderId.remove(orderId);
+        if (trigger != null) {
+            removeFromBook(trigger);
+        }
+    }
+
+    /**
+     * Полная пересборка по актуальному списку MONITORING-ордеров из БД.
+     * Триггеры, находящиеся в обработке, сохраняют свой флаг.
+     */
+    public void rebuild(Collection<Order> monitoringOrders) {
+        Set<String> alive = new HashSet<>();
+        for (Order order : monitoringOrders) {
+            if (register(order)) {
+                alive.add(order.getOrderId());
+            }
+        }
+        for (String orderId : new ArrayList<>(byOrderId.keySet())) {
+            if (!alive.contains(orderId)) {
+                remove(orderId);
+            }
+        }
+        rebuilds.incrementAndGet();
+    }
+
+    public boolean hasTriggers(String figi) {
+        FigiBook book = books.get(figi);
+        return book != null && !book.isEmpty();
+    }
+
+    public Set<String> getFigis() {
+        Set<String> figis = new HashSet<>();
+        books.forEach((figi, book) -> {
+            if (!book.isEmpty()) figis.add(figi);
+        });
+        return figis;
+    }
+
+    /**
+     * Триггеры, пересечённые текущей котировкой: стоп лонга — по bid, стоп шорта — по ask,
+     * тейки — по последней цене. NaN в цене означает «нет данных» для соответствующих наборов.
+     * Возвращаемые триггеры помечаются как находящиеся в обработке; вызывающий обязан
+     * вызвать {@link #release} или {@link #remove}.
+     */
+    public List<Trigger> collectCrossed(String figi, double bid, double ask, double last, long nowMs) {
+        FigiBook book = books.get(figi);
+        if (book == null) {
+            return List.of();
+        }
+        evaluations.incrementAndGet();
+        List<Trigger> crossed = null;
+        synchronized (book) {
+            // Уровень >= цены: сработали стопы лонга (bid <= стоп) и тейки шорта (цена <= тейк)
+            if (!Double.isNaN(bid)) {
+                crossed = take(book.stopLong.tailSet(probe(bid, ""), true), nowMs, crossed);
+            }
+            if (!Double.isNaN(last)) {
+                crossed = take(book.tpShort.tailSet(probe(last, ""), true), nowMs, crossed);
+            }
+            // Уровень <= цены: сработали стопы шорта (ask >= стоп) и тейки лонга (цена >= тейк)
+            if (!Double.isNaN(ask)) {
+                crossed = take(book.stopShort.headSet(probe(ask, "\uffff"), true), nowMs, crossed);
+            }
+            if (!Double.isNaN(last)) {
+                crossed = take(book.tpLong.headSet(probe(last, "\uffff"), true), nowMs, crossed);
+            }
+        }
+        if (crossed == null) {
+            return List.of();
+        }
+        crossings.addAndGet(crossed.size());
+        return crossed;
+    }
+
+    /**
+     * Снимает флаг обработки (триггер остаётся в индексе, например, до следующего подтверждения)
+     */
+    public void release(Trigger trigger) {
+        trigger.inFlight.set(false);
+    }
+
+    public int size() {
+        return byOrderId.size();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("triggers", byOrderId.size());
+        stats.put("figis", getFigis().size());
+        stats.put("evaluations", evaluations.get());
+        stats.put("crossings", crossings.get());
+        stats.put("rebuilds", rebuilds.get());
+        return stats;
+    }
+
+    private static List<Trigger> take(NavigableSet<Trigger> range, long nowMs, List<Trigger> out) {
+        for (Trigger trigger : range) {
+            if (nowMs < trigger.armedAtMs) {
+                continue; // arm-delay: стоп ещё не активен
+            }
+            if (trigger.inFlight.compareAndSet(false, true)) {
+                if (out == null) out = new ArrayList<>(2);
+                out.add(trigger);
+            }
+        }
+        return out;
+    }
+
+    private void removeFromBook(Trigger trigger) {
+        FigiBook book = books.get(trigger.figi);
+        if (book != null) {
+            synchronized (book) {
+                book.set(trigger.kind).remove(trigger);
+            }
+        }
+    }
+
+    private static Trigger probe(double level, String orderId) {
+        return new Trigger(orderId, "", Kind.STOP_LONG, level, 0L);
+    }
+
+    private static final class FigiBook {
+        final TreeSet<Trigger> stopLong = new TreeSet<>(BY_LEVEL);
+        final TreeSet<Trigger> stopShort = new TreeSet<>(BY_LEVEL);
+        final TreeSet<Trigger> tpLong = new TreeSet<>(BY_LEVEL);
+        final TreeSet<Trigger> tpShort = new TreeSet<>(BY_LEVEL);
+
+        TreeSet<Trigger> set(Kind kind) {
+            switch (kind) {
+                case STOP_LONG: return stopLong;
+                case STOP_SHORT: return stopShort;
+                case TP_LONG: return tpLong;
+                default: return tpShort;
+            }
+        }
+
+        boolean isEmpty() {
+            synchronized (this) {
+                return stopLong.isEmpty() && stopShort.isEmpty() && tpLong.isEmpty() && tpShort.isEmpty();
+            }
+        }
+    }
+
+    /**
+     * Триггер виртуального ордера; уровень хранится в double для сравнения без аллокаций
+     */
+    public static final class Trigger {
+        private final String orderId;
+        private final String figi;
+        private final Kind kind;
+        private final double level;
+        private final long armedAtMs;
+        private final AtomicBoolean inFlight = new AtomicBoolean();
+        private volatile Order order;
+
+        Trigger(String orderId, String figi, Kind kind, double level, long armedAtMs) {
+            this.orderId = orderId;
+            this.figi = figi;
+            this.kind = kind;
+            this.level = level;
+            this.armedAtMs = armedAtMs;
+        }
+
+        public String getOrderId() { return orderId; }
+        public String getFigi() { return figi; }
+        public Kind getKind() { return kind; }
+        public double getLevel() { return level; }
+        public long getArmedAtMs() { return armedAtMs; }
+        /** Копия ордера на момент последней записи */
+        public Order getOrder() { return order; }
+    }
+}
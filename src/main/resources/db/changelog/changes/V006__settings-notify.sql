@@ -0,0 +1,25 @@
+--liquibase formatted sql
+
+--changeset system:006-01-function-notify-settings splitStatements:false stripComments:false
+--comment: Уведомление о любых изменениях trading_settings (для in-memory кэша настроек)
+
+CREATE OR REPLACE FUNCTION notify_trading_settings_changed()
+RETURNS TRIGGER AS $function$
+BEGIN
+    IF TG_OP = 'DELETE' THEN
+        PERFORM pg_notify('trading_settings_changed', OLD.setting_key);
+        RETURN OLD;
+    END IF;
+    PERFORM pg_notify('trading_settings_changed', NEW.setting_key);
+    RETURN NEW;
+END;
+$function$ LANGUAGE plpgsql;
+
+--changeset system:006-02-trigger-notify-settings splitStatements:false stripComments:false
+--comment: Триггер уведомления об изменениях trading_settings
+
+DROP TRIGGER IF EXISTS trigger_trading_settings_notify ON trading_settings;
+CREATE TRIGGER trigger_trading_settings_notify
+    AFTER INSERT OR UPDATE OR DELETE ON trading_settings
+    FOR EACH ROW
+    EXECUTE FUNCTION notify_trading_settings_changed();
@@ -0,0 +1,7 @@
+--liquibase formatted sql
+
+--changeset system:007-01-instruments-lot
+--comment: Размер лота в справочнике инструментов (для in-memory каталога)
+
+ALTER TABLE instruments ADD COLUMN IF NOT EXISTS lot INTEGER;
+
@@ -0,0 +1,8 @@
+--liquibase formatted sql
+
+--changeset system:008-01-positions-account
+--comment: Позиции хранятся по паре (аккаунт, FIGI). ВНИМАНИЕ: все существующие строки positions (без аккаунта) удаляются — аккаунт по ним восстановить нельзя; таблицу заново заполнит первый проход PositionSyncService (раз в минуту) из портфелей брокера
+
+ALTER TABLE positions ADD COLUMN IF NOT EXISTS account_id VARCHAR(255);
+DELETE FROM positions WHERE account_id IS NULL;
+CREATE UNIQUE INDEX IF NOT EXISTS uq_positions_account_figi ON positions(account_id, figi);
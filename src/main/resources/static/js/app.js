@@ -2418,6 +2418,8 @@ async function executeTradingStrategy(figi = null) {
 // ==================== ЛОГ ДЕЙСТВИЙ БОТА ====================
 
 let logEventSource = null;
+// Номер последней полученной записи: при переподключении сервер досылает пропущенное
+let lastLogSequence = null;
 
 // Инициализация SSE соединения для логов
 function initLogStream() {
@@ -2425,7 +2427,10 @@ function initLogStream() {
         logEventSource.close();
     }
     
-    logEventSource = new EventSource('/api/logs/stream');
+    const streamUrl = lastLogSequence !== null
+        ? `/api/logs/stream?lastEventId=${lastLogSequence}`
+        : '/api/logs/stream';
+    logEventSource = new EventSource(streamUrl);
     
     logEventSource.onopen = function(event) {
         console.log('SSE соединение для логов установлено');
@@ -2442,12 +2447,27 @@ function initLogStream() {
     
     logEventSource.addEventListener('initial-logs', function(event) {
         const logs = JSON.parse(event.data);
+        if (event.lastEventId) lastLogSequence = event.lastEventId;
         displayBotLog({ entries: logs, totalEntries: logs.length });
     });
     
-    logEventSource.addEventListener('new-log', function(event) {
-        const logEntry = JSON.parse(event.data);
-        addNewLogEntry(logEntry);
+    // Новые записи приходят пачкой, старые первыми
+    logEventSource.addEventListener('new-logs', function(event) {
+        const logs = JSON.parse(event.data);
+        if (event.lastEventId) lastLogSequence = event.lastEventId;
+        logs.forEach(logEntry => addNewLogEntry(logEntry));
+    });
+    
+    // Клиент не успевал и часть записей пропущена — перечитываем лог целиком
+    logEventSource.addEventListener('dropped', function(event) {
+        console.warn('Пропущены записи лога:', event.data);
+        loadBotLog();
+    });
+    
+    // При переподключении история не сомкнулась с последней полученной записью — перечитываем лог
+    logEventSource.addEventListener('reset', function(event) {
+        console.warn('Разрыв в ленте лога:', event.data);
+        loadBotLog();
     });
     
     logEventSource.addEventListener('statistics-update', function(event) {
@@ -0,0 +1,107 @@
+package ru.perminov.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * MarketDataHub на локальном потоке FakeMarketDataStreamSource, без обращения к API
+ */
+class MarketDataHubTest {
+
+    private static final String FIGI = "BBG004730N88";
+
+    private final Map<String, Integer> intSettings = new ConcurrentHashMap<>();
+    private FakeMarketDataStreamSource source;
+    private MarketDataHub hub;
+
+    @BeforeEach
+    void setUp() {
+        TradingSettingsService settings = mock(TradingSettingsService.class);
+        when(settings.getInt(anyString(), anyInt()))
+            .thenAnswer(inv -> intSettings.getOrDefault(inv.<String>getArgument(0), inv.<Integer>getArgument(1)));
+        when(settings.getBoolean(anyString(), anyBoolean())).thenAnswer(inv -> inv.getArgument(1));
+        source = new FakeMarketDataStreamSource();
+        hub = new MarketDataHub(source, settings, new IndicatorEngine());
+    }
+
+    @Test
+    void deliversQuotesAfterSubscribe() {
+        List<String> notified = new CopyOnWriteArrayList<>();
+        hub.addListener((figi, quote) -> notified.add(figi));
+
+        // Первый запрос только ставит инструмент в очередь на подписку
+        assertNull(hub.getQuote(FIGI));
+        assertFalse(source.isOpen());
+
+        hub.maintainStream();
+        assertTrue(source.isOpen());
+        assertEquals(Set.of(FIGI), source.getSubscribed());
+
+        source.publishOrderBook(FIGI, new BigDecimal("250.10"), new BigDecimal("250.20"));
+        source.publishLastPrice(FIGI, new BigDecimal("250.15"));
+
+        MarketDataHub.Quote quote = hub.getQuote(FIGI);
+        assertNotNull(quote);
+        assertEquals(0, quote.getBid().compareTo(new BigDecimal("250.10")));
+        assertEquals(0, quote.getAsk().compareTo(new BigDecimal("250.20")));
+        assertEquals(0, quote.getLastPrice().compareTo(new BigDecimal("250.15")));
+        assertEquals(List.of(FIGI, FIGI), notified);
+    }
+
+    @Test
+    void evictsIdleInstruments() throws InterruptedException {
+        intSettings.put("market_data.stream.idle_evict_ms", 50);
+        hub.subscribe(List.of(FIGI));
+        hub.maintainStream();
+        assertEquals(Set.of(FIGI), source.getSubscribed());
+
+        Thread.sleep(100);
+        hub.maintainStream();
+
+        assertTrue(source.getSubscribed().isEmpty());
+        assertEquals(0, hub.getStats().get("subscribed"));
+        assertEquals(1L, hub.getStats().get("evictions"));
+    }
+
+    @Test
+    void reopensAndResubscribesAfterStreamError() {
+        hub.subscribe(List.of(FIGI));
+        hub.maintainStream();
+        source.publishOrderBook(FIGI, new BigDecimal("10.5"), new BigDecimal("10.6"));
+        assertNotNull(hub.getQuote(FIGI));
+
+        source.fail(new RuntimeException("UNAVAILABLE: connection reset"));
+        assertFalse(source.isOpen());
+        assertEquals("UNAVAILABLE: connection reset", hub.getStats().get("lastError"));
+
+        hub.maintainStream();
+        assertTrue(source.isOpen());
+        assertEquals(Set.of(FIGI), source.getSubscribed());
+        assertEquals(1L, hub.getStats().get("reconnects"));
+        // Снимки до обрыва сброшены — котировка появится с первым сообщением нового потока
+        assertNull(hub.getQuote(FIGI));
+
+        source.publishOrderBook(FIGI, new BigDecimal("10.7"), new BigDecimal("10.8"));
+        MarketDataHub.Quote quote = hub.getQuote(FIGI);
+        assertNotNull(quote);
+        assertEquals(0, quote.getBid().compareTo(new BigDecimal("10.7")));
+    }
+}